@@ -22,14 +22,21 @@ package org.photovault.command;
 
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.EmptyInterceptor;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.hibernate.context.ManagedSessionContext;
+import org.hibernate.jdbc.Work;
 import org.hibernate.type.Type;
 import org.photovault.persistence.DAOFactory;
 import org.photovault.persistence.HibernateDAOFactory;
@@ -37,6 +44,13 @@ import org.photovault.persistence.HibernateUtil;
 
 /**
   Basic command handler for Photovault.
+  <p>
+  Normally each command is executed in its own transaction. For bulk 
+  operations like indexing a thread can start a batch with {@link #beginBatch()},
+  after which commands executed by that thread share a single persistence 
+  context and transaction that is committed only when {@link #commitBatch()}
+  is called. Listeners are notified about the commands after the batch has 
+  been committed.
  */
 public class PhotovaultCommandHandler implements CommandHandler {
     
@@ -57,6 +71,10 @@ public class PhotovaultCommandHandler implements CommandHandler {
 
     public DataAccessCommand executeCommand(DataAccessCommand command) 
             throws CommandException {
+        Batch batch = currentBatch.get();
+        if ( batch != null ) {
+            return executeInBatch( command, batch );
+        }
         Session commandSession = session;
         ChangeInterceptor changeInterceptor = null;
         boolean shouldCloseSession = false;
@@ -104,6 +122,203 @@ public class PhotovaultCommandHandler implements CommandHandler {
         return command;
     }
         
+    /**
+     State of a batch started by a thread
+     */
+    private static class Batch {
+        Session session;
+        Transaction tx;
+        ChangeInterceptor changeInterceptor;
+        /**
+         Commands executed in current transaction
+         */
+        List<DataAccessCommand> commands = new ArrayList<DataAccessCommand>();
+        /**
+         Objects changed by commands in current transaction
+         */
+        Set<Object> changedObjects = new HashSet<Object>();
+        /**
+         Objects changed by commands that were rolled back in current 
+         transaction. These must be evicted from second level cache after
+         the transaction completes.
+         */
+        Set<Object> rolledBackObjects = new HashSet<Object>();
+    }
+    
+    /**
+     Batch of current thread or <code>null</code> if none
+     */
+    private ThreadLocal<Batch> currentBatch = new ThreadLocal<Batch>();
+    
+    /**
+     Start executing commands of the calling thread in a batch. The commands 
+     share a persistence context and are committed to database together when
+     {@link #commitBatch()} is called. If a command fails, its changes are 
+     rolled back but changes of the other commands in the batch are retained.
+     @return Persistence context used by the batch. The caller can use it for 
+     queries but it must not modify persistent objects except via commands.
+     @throws IllegalStateException if a batch is already active in this thread
+     */
+    public Session beginBatch() {
+        if ( currentBatch.get() != null ) {
+            throw new IllegalStateException( "Batch already started" );
+        }
+        Batch batch = new Batch();
+        batch.changeInterceptor = new ChangeInterceptor();
+        batch.session = 
+                HibernateUtil.getSessionFactory().openSession( batch.changeInterceptor );
+        batch.tx = batch.session.beginTransaction();
+        currentBatch.set( batch );
+        return batch.session;
+    }
+    
+    /**
+     Commit the commands executed in current batch and notify listeners. The 
+     batch stays active and following commands are executed in a new 
+     transaction.
+     @throws CommandException if committing fails. In this case the batch is 
+     ended.
+     @throws IllegalStateException if no batch is active in this thread
+     */
+    public void commitBatch() throws CommandException {
+        Batch batch = currentBatch.get();
+        if ( batch == null ) {
+            throw new IllegalStateException( "No batch active" );
+        }
+        try {
+            batch.session.flush();
+            batch.tx.commit();
+        } catch ( Exception e ) {
+            log.error( "Error committing batch: " + e.getMessage(), e );
+            try {
+                batch.tx.rollback();
+            } finally {
+                batch.session.close();
+                currentBatch.remove();
+                HibernateUtil.evictFromCache( batch.rolledBackObjects );
+            }
+            throw new CommandException( "Error committing batch: ", e );
+        }
+        HibernateUtil.evictFromCache( batch.rolledBackObjects );
+        batch.rolledBackObjects.clear();
+        List<DataAccessCommand> commands = batch.commands;
+        Set<Object> changedObjects = batch.changedObjects;
+        batch.commands = new ArrayList<DataAccessCommand>();
+        batch.changedObjects = new HashSet<Object>();
+        batch.tx = batch.session.beginTransaction();
+        for ( DataAccessCommand cmd : commands ) {
+            fireCommandEvent( new CommandExecutedEvent( this, cmd ) );
+        }
+        for ( Object o : changedObjects ) {
+            fireChangeEvent( o );
+        }
+    }
+    
+    /**
+     Commit and end the batch of calling thread.
+     @throws CommandException if committing fails.
+     @throws IllegalStateException if no batch is active in this thread
+     */
+    public void endBatch() throws CommandException {
+        commitBatch();
+        Batch batch = currentBatch.get();
+        currentBatch.remove();
+        batch.tx.commit();
+        batch.session.close();
+    }
+    
+    /**
+     Execute a command as a part of batch. Changes are flushed to database but 
+     not committed.
+     @param command The command to execute
+     @param batch Batch of the calling thread
+     @return The command
+     @throws CommandException if the command fails.
+     */
+    private DataAccessCommand executeInBatch( DataAccessCommand command, 
+            Batch batch ) throws CommandException {
+        Session oldSession = ManagedSessionContext.bind( 
+                (org.hibernate.classic.Session) batch.session );
+        HibernateDAOFactory df =
+                (HibernateDAOFactory) DAOFactory.instance( HibernateDAOFactory.class );
+        df.setSession( batch.session );
+        command.setDAOFactory( df );
+        Savepoint savepoint = null;
+        try {
+            savepoint = setSavepoint( batch.session );
+            command.execute();
+            batch.session.flush();
+            releaseSavepoint( batch.session, savepoint );
+            batch.commands.add( command );
+            batch.changedObjects.addAll( 
+                    batch.changeInterceptor.getChangedObjects() );
+        } catch ( Exception e ) {
+            log.warn( "Command failed in batch, rolling back: " + e.getMessage(), e );
+            batch.rolledBackObjects.addAll( 
+                    batch.changeInterceptor.getChangedObjects() );
+            // Objects in persistence context may not match the database anymore
+            batch.session.clear();
+            if ( savepoint != null ) {
+                try {
+                    rollbackToSavepoint( batch.session, savepoint );
+                } catch ( HibernateException ex ) {
+                    log.error( "Error rolling back command: " + ex.getMessage() );
+                }
+            }
+            throw new CommandException( "Exception thrown by command: ", e );
+        } finally {
+            batch.changeInterceptor.getChangedObjects().clear();
+            if ( oldSession != null ) {
+                ManagedSessionContext.bind(
+                        (org.hibernate.classic.Session) oldSession );
+            } else {
+                ManagedSessionContext.unbind( HibernateUtil.getSessionFactory() );
+            }
+        }
+        return command;
+    }
+    
+    /**
+     Set a savepoint in the current transaction of a session
+     @param s The session
+     @return The new savepoint
+     */
+    private static Savepoint setSavepoint( Session s ) {
+        final Savepoint[] ret = new Savepoint[1];
+        s.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                ret[0] = con.setSavepoint();
+            }
+        } );
+        return ret[0];
+    }
+    
+    /**
+     Release a savepoint set with {@link #setSavepoint(Session)}
+     @param s The session
+     @param savepoint The savepoint to release
+     */
+    private static void releaseSavepoint( Session s, final Savepoint savepoint ) {
+        s.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                con.releaseSavepoint( savepoint );
+            }
+        } );
+    }
+    
+    /**
+     Roll back changes made after a savepoint
+     @param s The session
+     @param savepoint The savepoint
+     */
+    private static void rollbackToSavepoint( Session s, final Savepoint savepoint ) {
+        s.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                con.rollback( savepoint );
+            }
+        } );
+    }
+    
     Set<CommandChangeListener> listeners = new HashSet<CommandChangeListener>();
     
     public void addChangeListener( CommandChangeListener l ) {
@@ -122,7 +337,7 @@ public class PhotovaultCommandHandler implements CommandHandler {
     
     static class ChangeInterceptor extends EmptyInterceptor {
         
-        Set changedObjects = new HashSet();
+        Set<Object> changedObjects = new HashSet<Object>();
         
         public void onDelete(Object entity,
                 Serializable id,
@@ -151,7 +366,7 @@ public class PhotovaultCommandHandler implements CommandHandler {
             return false;
         }
         
-        public Set getChangedObjects()  {
+        public Set<Object> getChangedObjects()  {
             return changedObjects;
         }
 
@@ -0,0 +1,113 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.command;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.Session;
+import org.photovault.folder.CreatePhotoFolderCommand;
+import org.photovault.folder.PhotoFolder;
+import org.photovault.folder.PhotoFolderDAO;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.persistence.HibernateUtil;
+import org.photovault.test.PhotovaultTestCase;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for batch execution in {@link PhotovaultCommandHandler}
+ */
+public class Test_PhotovaultCommandHandler extends PhotovaultTestCase {
+    
+    /**
+     Command that creates a folder and fails after the folder has been
+     flushed to database.
+     */
+    static class FailingCommand extends CreatePhotoFolderCommand {
+        FailingCommand( String name ) {
+            super( null, name, "" );
+        }
+        
+        @Override
+        public void execute() throws CommandException {
+            super.execute();
+            daoFactory.getPhotoFolderDAO().flush();
+            throw new CommandException( "Failing on purpose" );
+        }
+    }
+    
+    /**
+     Test that a failing command is rolled back to its savepoint while the 
+     other commands in the batch are committed and listeners are notified
+     only about them.
+     */
+    @Test
+    public void testFailingCommandInBatch() throws CommandException {
+        PhotovaultCommandHandler cmdHandler = new PhotovaultCommandHandler( null );
+        final List<DataAccessCommand> executed = new ArrayList<DataAccessCommand>();
+        cmdHandler.addCommandListener( new CommandListener() {
+            public void commandExecuted( CommandExecutedEvent e ) {
+                executed.add( e.getPayload() );
+            }
+        } );
+        CreatePhotoFolderCommand cmd1 = 
+                new CreatePhotoFolderCommand( null, "batch 1", "" );
+        FailingCommand failing = new FailingCommand( "batch failing" );
+        CreatePhotoFolderCommand cmd2 = 
+                new CreatePhotoFolderCommand( null, "batch 2", "" );
+        
+        cmdHandler.beginBatch();
+        cmdHandler.executeCommand( cmd1 );
+        try {
+            cmdHandler.executeCommand( failing );
+            fail( "Failing command did not throw exception" );
+        } catch ( CommandException e ) {
+            // expected
+        }
+        cmdHandler.executeCommand( cmd2 );
+        assertTrue( "Listeners notified before commit", executed.isEmpty() );
+        cmdHandler.endBatch();
+        
+        assertEquals( 2, executed.size() );
+        assertSame( cmd1, executed.get( 0 ) );
+        assertSame( cmd2, executed.get( 1 ) );
+        
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        try {
+            HibernateDAOFactory df = (HibernateDAOFactory) 
+                    DAOFactory.instance( HibernateDAOFactory.class );
+            df.setSession( session );
+            PhotoFolderDAO folderDAO = df.getPhotoFolderDAO();
+            PhotoFolder f1 = folderDAO.findByUUID( 
+                    cmd1.getCreatedFolder().getUuid() );
+            assertNotNull( f1 );
+            assertEquals( "batch 1", f1.getName() );
+            assertNotNull( folderDAO.findByUUID( 
+                    cmd2.getCreatedFolder().getUuid() ) );
+            assertNull( "Failed command was not rolled back", 
+                    folderDAO.findByUUID( failing.getCreatedFolder().getUuid() ) );
+        } finally {
+            session.close();
+        }
+    }
+}
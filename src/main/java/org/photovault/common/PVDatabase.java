@@ -29,6 +29,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -41,11 +43,15 @@ import java.util.Set;
 import java.util.UUID;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.jdbc.Work;
 import org.hibernate.tool.hbm2ddl.SchemaExport;
 import org.photovault.folder.PhotoFolder;
 import org.photovault.folder.PhotoFolderDAO;
+import org.photovault.imginfo.FileHashTable;
+import org.photovault.imginfo.FulltextIndex;
 import org.photovault.imginfo.VolumeManager;
 import org.photovault.persistence.DAOFactory;
 import org.photovault.persistence.HibernateDAOFactory;
@@ -440,6 +446,16 @@ public class PVDatabase {
         s.save( dbInfo );
         
         s.flush();
+        try {
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    FileHashTable.createTables( con );
+                    FulltextIndex.createTables( con );
+                }
+            } );
+        } catch ( HibernateException e ) {
+            log.error( "Error while creating tables: " + e.getMessage(), e );
+        }
         tr.commit();
         s.close();
     }
@@ -540,5 +556,5 @@ public class PVDatabase {
      The latest schema version which should be used with this version of 
      Photovault
      */
-    static public final int CURRENT_SCHEMA_VERSION = 13;
+    static public final int CURRENT_SCHEMA_VERSION = 15;
 }
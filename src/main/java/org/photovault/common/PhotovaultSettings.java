@@ -128,6 +128,14 @@ public class PhotovaultSettings {
         }
     }
 
+    /**
+     Get the directory in which Photovault configuration is stored
+     @return The configuration directory
+     */
+    public File getConfigDir() {
+        return configDir;
+    }
+
     /**
      * Return all known databases
      *@return Collection of PVDatabase objects
@@ -40,12 +40,15 @@ import java.util.Vector;
 import java.util.Date;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
+import org.hibernate.jdbc.Work;
 import org.hibernate.tool.hbm2ddl.SchemaExport;
 import org.photovault.dcraw.RawConversionSettings;
 import org.photovault.dcraw.RawSettingsFactory;
 import org.photovault.folder.ExternalDir;
+import org.photovault.folder.FolderClosure;
 import org.photovault.folder.FolderEditor;
 import org.photovault.folder.FolderPhotoAssocDAO;
 import org.photovault.folder.FolderPhotoAssociation;
@@ -55,6 +58,8 @@ import org.photovault.image.ChannelMapOperation;
 import org.photovault.image.ChannelMapOperationFactory;
 import org.photovault.imginfo.CopyImageDescriptor;
 import org.photovault.imginfo.ExternalVolume;
+import org.photovault.imginfo.FileHashTable;
+import org.photovault.imginfo.FulltextIndex;
 import org.photovault.imginfo.FileLocation;
 import org.photovault.imginfo.FuzzyDate;
 import org.photovault.imginfo.ImageDescriptorBase;
@@ -72,6 +77,7 @@ import org.photovault.imginfo.VolumeManager;
 import org.photovault.persistence.DAOFactory;
 import org.photovault.persistence.HibernateDAOFactory;
 import org.photovault.persistence.HibernateUtil;
+import org.photovault.replication.ChangeDigest;
 import org.photovault.replication.DTOResolverFactory;
 import org.photovault.replication.VersionedObjectEditor;
 
@@ -193,6 +199,49 @@ public class SchemaUpdateAction {
         if ( oldVersion < 12 ) {
             migrateToVersionedSchema();
         }
+        if ( oldVersion < 14 ) {
+            try {
+                session.doWork( new Work() {
+                    public void execute( Connection con ) throws SQLException {
+                        FileHashTable.createTables( con );
+                    }
+                } );
+            } catch ( HibernateException e ) {
+                log.error( "Error while creating file hash tables: " + e.getMessage(), e );
+            }
+        }
+        if ( oldVersion < 15 ) {
+            try {
+                session.doWork( new Work() {
+                    public void execute( Connection con ) throws SQLException {
+                        FulltextIndex.createTables( con );
+                    }
+                } );
+            } catch ( HibernateException e ) {
+                log.error( "Error while creating full text tables: " + e.getMessage(), e );
+            }
+        }
+        
+        // Folders and changes may have been modified without Hibernate, recreate
+        // closure and digests
+        try {
+            session.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    FolderClosure.rebuild( con );
+                }
+            } );
+        } catch ( HibernateException e ) {
+            log.error( "Error while rebuilding folder closure: " + e.getMessage(), e );
+        }
+        try {
+            session.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    ChangeDigest.rebuild( con );
+                }
+            } );
+        } catch ( HibernateException e ) {
+            log.error( "Error while rebuilding change digests: " + e.getMessage(), e );
+        }
         
         info = DbInfo.getDbInfo( session );
         info.setVersion( db.CURRENT_SCHEMA_VERSION );
@@ -928,4 +977,4 @@ public class SchemaUpdateAction {
     private void upgrade12( Session session ) {
         throw new UnsupportedOperationException( "Not yet implemented" );
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,548 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.dcraw;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * AHD interpolation of Bayer raw data, used by {@link AHDInterpolateOp}.
+ * <p>
+ * The interpolated area can be split into horizontal bands that are processed
+ * in parallel in a {@link ForkJoinPool}; the area is split recursively in
+ * halves until each part has one band. Each band is computed from a window that overlaps neighboring
+ * bands by {@link #BAND_OVERLAP} rows so that the result is identical to
+ * computing the whole area at once. Work arrays are kept in per thread
+ * workspaces and reused instead of allocating them for every call.
+ * <p>
+ * Number of worker threads is by default the number of processors and can be
+ * set with system property photovault.dcraw.threads or
+ * {@link #setThreadCount(int)}.
+ * @author Harri Kaimio
+ * @since 0.6.0
+ */
+class AHDInterpolator {
+
+    /**
+     * Number of source pixels needed around the destination area
+     */
+    static final int BORDER = 3;
+
+    /**
+     * Number of rows by which the computation windows of adjacent bands
+     * overlap. Destination row depends on source rows at most 5 rows away.
+     */
+    static final int BAND_OVERLAP = 6;
+
+    /**
+     * Minimum height of a band
+     */
+    static final int MIN_BAND_HEIGHT = 64;
+
+    /**
+     * Number of threads used for interpolation
+     */
+    static private int threadCount = Integer.getInteger( "photovault.dcraw.threads",
+            Runtime.getRuntime().availableProcessors() );
+
+    /**
+     * Pool that runs the bands, created when first needed
+     */
+    static private ForkJoinPool pool = null;
+
+    /**
+     * Work arrays of each thread
+     */
+    static private ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * Work arrays needed for interpolating a band. Arrays are indexed
+     * [direction][row][column][channel], flattened to one dimension.
+     */
+    static class Workspace {
+        int[] rgb = new int[0];
+        int[] lab = new int[0];
+        byte[] homo = new byte[0];
+
+        /**
+         * Ensure that the arrays are large enough for given window and clear
+         * them
+         * @param pixels Number of pixels in the window
+         */
+        void prepare( int pixels ) {
+            if ( homo.length < 2 * pixels ) {
+                rgb = new int[6 * pixels];
+                lab = new int[6 * pixels];
+                homo = new byte[2 * pixels];
+            } else {
+                Arrays.fill( rgb, 0, 6 * pixels, 0 );
+                Arrays.fill( lab, 0, 6 * pixels, 0 );
+                Arrays.fill( homo, 0, 2 * pixels, (byte) 0 );
+            }
+        }
+    }
+
+    /**
+     * Color channel multipliers
+     */
+    private double[] mult;
+    /**
+     * Bayer filter pattern of source
+     */
+    private int bayerfilter;
+
+    private int topMargin;
+
+    private int leftMargin;
+
+    /**
+     * Size of the image
+     */
+    private int width;
+    private int height;
+
+    private double cbrt[] = new double[0x10000];
+    private double[][] xyz_cam = new double[3][3];
+
+    /**
+     * Constructor
+     * @param mult Multipliers for each color in Bayer pattern
+     * @param bayerfilter Bayer filter pattern
+     * @param topMargin Top margin of the raw image
+     * @param leftMargin Left margin of the raw image
+     * @param camToRGB Conversion matrix from camera color space to linear sRGB
+     * @param width Width of the image
+     * @param height Height of the image
+     */
+    AHDInterpolator( double[] mult, int bayerfilter, int topMargin,
+            int leftMargin, double[][] camToRGB, int width, int height ) {
+        this.mult = mult;
+        this.bayerfilter = bayerfilter;
+        this.topMargin = topMargin;
+        this.leftMargin = leftMargin;
+        this.width = width;
+        this.height = height;
+        initCielabConv( camToRGB );
+    }
+
+    /**
+     * Set the number of threads used for interpolation
+     * @param count Number of threads, 1 disables parallel processing.
+     */
+    static synchronized void setThreadCount( int count ) {
+        if ( count != threadCount && pool != null ) {
+            pool.shutdown();
+            pool = null;
+        }
+        threadCount = Math.max( 1, count );
+    }
+
+    static synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Get the pool used for parallel raw processing in this package
+     * @return The pool, with parallelism of {@link #getThreadCount()}
+     */
+    static synchronized ForkJoinPool getPool() {
+        if ( pool == null ) {
+            pool = new ForkJoinPool( threadCount, 
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread( ForkJoinPool p ) {
+                    ForkJoinWorkerThread t = 
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( p );
+                    t.setName( "Raw processing " + t.getPoolIndex() );
+                    return t;
+                }
+            }, null, false );
+        }
+        return pool;
+    }
+
+    /**
+     * Get the executor used for parallel raw processing in this package
+     * @return The executor, with {@link #getThreadCount()} threads
+     */
+    static ExecutorService getExecutor() {
+        return getPool();
+    }
+
+    /**
+     * Get the area of source image needed for interpolating given area
+     * @param area Area of destination image
+     * @return The source area, clipped to image
+     */
+    Rectangle getSourceArea( Rectangle area ) {
+        int minx = Math.max( area.x - BORDER, 0 );
+        int miny = Math.max( area.y - BORDER, 0 );
+        int maxx = Math.min( area.x + area.width + BORDER, width - 1 );
+        int maxy = Math.min( area.y + area.height + BORDER, height - 1 );
+        return new Rectangle( minx, miny, maxx - minx + 1, maxy - miny + 1 );
+    }
+
+    /**
+     * Get the part of destination area that is interpolated. Pixels near the
+     * image border are left black.
+     * @param area Area of destination image
+     * @return The interpolated part of area
+     */
+    Rectangle getOutputArea( Rectangle area ) {
+        int minx = Math.max( area.x, 5 );
+        int miny = Math.max( area.y, 5 );
+        int maxx = Math.min( area.x + area.width, width - 5 );
+        int maxy = Math.min( area.y + area.height, height - 5 );
+        return new Rectangle( minx, miny, Math.max( maxx - minx, 0 ),
+                Math.max( maxy - miny, 0 ) );
+    }
+
+    /**
+     * Interpolate an area of the image. If parallel processing is enabled
+     * and the area is large enough, it is split to bands that are
+     * interpolated concurrently.
+     * @param raw Raw samples of the area returned by
+     * {@link #getSourceArea(Rectangle)}
+     * @param area Area to interpolate
+     * @return Pixels of the area returned by {@link #getOutputArea(Rectangle)}
+     * as interleaved RGB samples.
+     */
+    int[] interpolate( int[] raw, Rectangle area ) {
+        Rectangle out = getOutputArea( area );
+        int bands = Math.min( getThreadCount(), out.height / MIN_BAND_HEIGHT );
+        return interpolate( raw, area, Math.max( bands, 1 ) );
+    }
+
+    /**
+     * Interpolate an area of the image using given number of bands
+     * @param raw Raw samples of the area returned by
+     * {@link #getSourceArea(Rectangle)}
+     * @param area Area to interpolate
+     * @param bandCount Number of bands
+     * @return Pixels of the area returned by {@link #getOutputArea(Rectangle)}
+     * as interleaved RGB samples.
+     */
+    int[] interpolate( final int[] raw, Rectangle area, int bandCount ) {
+        final Rectangle src = getSourceArea( area );
+        final Rectangle out = getOutputArea( area );
+        final int[] dst = new int[out.width * out.height * 3];
+        if ( out.isEmpty() ) {
+            return dst;
+        }
+        bandCount = Math.min( bandCount, out.height );
+        if ( bandCount <= 1 ) {
+            computeBand( raw, src, out, out.y, out.y + out.height, dst );
+            return dst;
+        }
+        getPool().invoke( new BandTask( raw, src, out, dst, bandCount, 
+                0, bandCount ) );
+        return dst;
+    }
+
+    /**
+     * Task that interpolates a range of bands, splitting it in halves until 
+     * there is a single band.
+     */
+    private class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] raw;
+        private final Rectangle src;
+        private final Rectangle out;
+        private final int[] dst;
+        private final int bandCount;
+        private final int firstBand;
+        private final int lastBand;
+
+        /**
+         * Create a new task
+         * @param raw Raw samples of source area
+         * @param src Source area
+         * @param out Destination area
+         * @param dst Array for destination pixels
+         * @param bandCount Total number of bands in destination area
+         * @param firstBand First band interpolated by this task
+         * @param lastBand Band after the last one interpolated by this task
+         */
+        BandTask( int[] raw, Rectangle src, Rectangle out, int[] dst,
+                int bandCount, int firstBand, int lastBand ) {
+            this.raw = raw;
+            this.src = src;
+            this.out = out;
+            this.dst = dst;
+            this.bandCount = bandCount;
+            this.firstBand = firstBand;
+            this.lastBand = lastBand;
+        }
+
+        @Override
+        protected void compute() {
+            if ( lastBand - firstBand == 1 ) {
+                computeBand( raw, src, out, bandStart( firstBand ),
+                        bandStart( lastBand ), dst );
+                return;
+            }
+            int mid = ( firstBand + lastBand ) / 2;
+            invokeAll( new BandTask( raw, src, out, dst, bandCount, firstBand, mid ),
+                    new BandTask( raw, src, out, dst, bandCount, mid, lastBand ) );
+        }
+
+        private int bandStart( int band ) {
+            return out.y + out.height * band / bandCount;
+        }
+    }
+
+    /**
+     * Interpolate rows of destination area
+     * @param raw Raw samples of source area
+     * @param src Source area
+     * @param out Destination area
+     * @param firstRow First destination row to interpolate
+     * @param lastRow Row after the last one to interpolate
+     * @param dst Array for destination pixels
+     */
+    private void computeBand( int[] raw, Rectangle src, Rectangle out,
+            int firstRow, int lastRow, int[] dst ) {
+        // Window of source pixels used for this band
+        int minx = src.x;
+        int maxx = src.x + src.width - 1;
+        int miny = Math.max( firstRow - BAND_OVERLAP, src.y );
+        int maxy = Math.min( lastRow + BAND_OVERLAP, src.y + src.height - 1 );
+        int w = maxx - minx + 1;
+        int h = maxy - miny + 1;
+        int plane = w * h;
+        Workspace ws = workspaces.get();
+        ws.prepare( plane );
+        int[] rgb = ws.rgb;
+        int[] lab = ws.lab;
+        byte[] homo = ws.homo;
+
+        // Copy the data to work array
+        for ( int y = 0; y < maxy - miny; y++ ) {
+            int rawRow = ( y + miny - src.y ) * src.width - src.x;
+            for ( int x = 0; x < maxx - minx; x++ ) {
+                int color = fc( y + miny, x + minx );
+                if ( color == 3 ) color = 1;
+                int p = ( y * w + x ) * 3 + color;
+                rgb[p] = rgb[3 * plane + p] =
+                        (int) ( mult[color] * raw[rawRow + x + minx] );
+            }
+        }
+
+        // Interpolate green
+        int rowStride = w * 3;
+        for ( int y = 2; y < maxy - miny - 2; y++ ) {
+            int firstColor = fc( y + miny, minx + 3 );
+            int startCol = minx + 3 - ( firstColor % 2 );
+            for ( int x = startCol - minx; x < maxx - minx - 2; x += 2 ) {
+                int c = fc( y + miny, x + minx );
+                if ( c == 3 ) {
+                    c = 1;
+                }
+                int p = ( y * w + x ) * 3;
+                int tc = rgb[p + c];
+                int eg = rgb[p - 3 + 1];
+                int wg = rgb[p + 3 + 1];
+                int sg = rgb[p + rowStride + 1];
+                int ng = rgb[p - rowStride + 1];
+                int ec = rgb[p - 6 + c];
+                int wc = rgb[p + 6 + c];
+                int sc = rgb[p + 2 * rowStride + c];
+                int nc = rgb[p - 2 * rowStride + c];
+
+                // Horizonally
+                int green = 2 * ( wg + tc + eg ) - ( wc + ec );
+                green >>= 2;
+                if ( green < 0 ) green = 0;
+                rgb[p + 1] = green;
+                // Vertically
+                green = 2 * ( ng + tc + sg ) - ( nc + sc );
+                green >>= 2;
+                if ( green < 0 ) green = 0;
+                rgb[3 * plane + p + 1] = green;
+            }
+        }
+
+        // Interpolate R & B and convert to CIElab
+        for ( int dir = 0; dir < 2; dir++ ) {
+            int base = dir * 3 * plane;
+            for ( int y = 3; y < maxy - miny - 3; y++ ) {
+                for ( int x = 3; x < maxx - minx - 3; x++ ) {
+                    int p = base + ( y * w + x ) * 3;
+                    int color = fc( y + miny, x + minx );
+                    if ( color == 1 || color == 3 ) {
+                        // We need to interpolate both red and blue
+                        int c = fc( y + 1 + miny, x + minx );
+                        int tg = rgb[p + 1];
+                        int ng = rgb[p - rowStride + 1];
+                        int sg = rgb[p + rowStride + 1];
+                        int nc = rgb[p - rowStride + c];
+                        int sc = rgb[p + rowStride + c];
+                        int wo = rgb[p - 3 + 2 - c];
+                        int eo = rgb[p + 3 + 2 - c];
+                        int val = tg + ( ( wo + eo - ng - sg ) >> 1 );
+                        if ( val < 0 ) val = 0;
+                        rgb[p + 2 - c] = val;
+                        val = tg + ( ( nc + sc - ng - sg ) >> 1 );
+                        if ( val < 0 ) val = 0;
+                        rgb[p + c] = val;
+                    } else {
+                        /*
+                        This pixel is either red or blue so only one of those needs
+                        to be interpolated
+                         */
+                        int c = 2 - color;
+                        int tg = rgb[p + 1];
+                        int nwg = rgb[p - rowStride - 3 + 1];
+                        int seg = rgb[p + rowStride + 3 + 1];
+                        int swg = rgb[p + rowStride - 3 + 1];
+                        int neg = rgb[p - rowStride + 3 + 1];
+                        int nwc = rgb[p - rowStride - 3 + c];
+                        int nec = rgb[p - rowStride + 3 + c];
+                        int swc = rgb[p + rowStride - 3 + c];
+                        int sec = rgb[p + rowStride + 3 + c];
+                        int val = tg + ( ( nwc + nec + sec + swc - nwg - neg - swg -
+                                seg ) >> 2 );
+                        if ( val < 0 ) val = 0;
+                        rgb[p + c] = val;
+                    }
+                    // Convert to cielab
+                    double x0 = 0.5, x1 = 0.5, x2 = 0.5;
+                    for ( int i = 0; i < 3; i++ ) {
+                        x0 += xyz_cam[0][i] * rgb[p + i];
+                        x1 += xyz_cam[1][i] * rgb[p + i];
+                        x2 += xyz_cam[2][i] * rgb[p + i];
+                    }
+                    x0 = cbrt[Math.max( 0, (int) Math.min( x0, 65535.0 ) )];
+                    x1 = cbrt[Math.max( 0, (int) Math.min( x1, 65535.0 ) )];
+                    x2 = cbrt[Math.max( 0, (int) Math.min( x2, 65535.0 ) )];
+                    lab[p] = Math.max( 0, (int) ( 64.0 * ( 116.0 * x1 - 16.0 ) ) );
+                    lab[p + 1] = 0x8000 + 10 * (int) ( 64.0 * 500.0 * ( x0 - x1 ) );
+                    lab[p + 2] = 0x8000 + 10 * (int) ( 64.0 * 200.0 * ( x1 - x2 ) );
+                }
+            }
+        }
+
+        // Calculate the homogeneity maps
+        int ldiff[][] = new int[2][4];
+        int abdiff[][] = new int[2][4];
+        int offsets[] = { -3, 3, -rowStride, rowStride };
+        for ( int y = 2; y < maxy - miny - 2; y++ ) {
+            for ( int x = 2; x < maxx - minx - 2; x++ ) {
+                for ( int d = 0; d < 2; d++ ) {
+                    int p = d * 3 * plane + ( y * w + x ) * 3;
+                    for ( int i = 0; i < 4; i++ ) {
+                        int q = p + offsets[i];
+                        ldiff[d][i] = Math.abs( lab[p] - lab[q] );
+                        int da = lab[p + 1] - lab[q + 1];
+                        int db = lab[p + 1] - lab[q + 1];
+                        abdiff[d][i] = da * da + db * db;
+                    }
+                }
+                int leps = Math.min( Math.max( ldiff[0][0], ldiff[0][1] ),
+                        Math.max( ldiff[1][2], ldiff[1][3] ) );
+                int abeps = Math.min( Math.max( abdiff[0][0], abdiff[0][1] ),
+                        Math.max( abdiff[1][2], abdiff[1][3] ) );
+                for ( int d = 0; d < 2; d++ ) {
+                    for ( int i = 0; i < 4; i++ ) {
+                        if ( ldiff[d][i] <= leps && abdiff[d][i] <= abeps ) {
+                            homo[d * plane + y * w + x]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Select the direction with more homogenous neighborhood
+        for ( int row = firstRow; row < lastRow; row++ ) {
+            int dstRow = ( row - out.y ) * out.width * 3 - out.x * 3;
+            for ( int col = out.x; col < out.x + out.width; col++ ) {
+                int hm0 = 0, hm1 = 0;
+                for ( int i = row - miny - 1; i <= row - miny + 1; i++ ) {
+                    for ( int j = col - minx - 1; j <= col - minx + 1; j++ ) {
+                        hm0 += homo[i * w + j];
+                        hm1 += homo[plane + i * w + j];
+                    }
+                }
+                int p = ( ( row - miny ) * w + col - minx ) * 3;
+                int q = dstRow + col * 3;
+                for ( int i = 0; i < 3; i++ ) {
+                    if ( hm0 < hm1 ) {
+                        dst[q + i] = rgb[3 * plane + p + i];
+                    } else if ( hm0 > hm1 ) {
+                        dst[q + i] = rgb[p + i];
+                    } else {
+                        dst[q + i] = ( rgb[p + i] + rgb[3 * plane + p + i] ) / 2;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper function to find out the color of given pixel in original Bayer
+     * data
+     * @param row row of the pixel
+     * @param col Column of the pixel
+     * @return Color of the pixel (0 - red, 1 or 3 - green, 2 - blue)
+     */
+    int fc( int row, int col ) {
+        row+=topMargin;
+        col+=leftMargin;
+        return (bayerfilter >> ((((row) << 1 & 14) + ((col) & 1)) << 1) & 3);
+    }
+
+    /**
+     * Initialize the lookup tables needed for converting calera data to CIElab
+     */
+    private void initCielabConv( double[][] camToRGB ) {
+        for ( int i = 0; i < 0x10000; i++ ) {
+            double r = i / 65535.0;
+            cbrt[i] = r > 0.008856 ? Math.pow( r, 1.0 / 3.0 )
+                    : 7.787 * r + 16 / 116.0;
+        }
+        double[][] xyz_rgb = {
+            {0.412453, 0.357580, 0.180423},
+            {0.212671, 0.715160, 0.072169},
+            {0.019334, 0.119193, 0.950227}
+        };
+        double[] d65_white = { 0.950456, 1, 1.088754 };
+
+        for ( int i = 0; i < 3; i++ ) {
+            for ( int j = 0; j < 3; j++ ) {
+                xyz_cam[i][j] = 0.0;
+                for ( int k = 0; k < 3; k++ ) {
+                    xyz_cam[i][j] += xyz_rgb[i][k] * camToRGB[k][j] /
+                            d65_white[i];
+                }
+            }
+        }
+    }
+}
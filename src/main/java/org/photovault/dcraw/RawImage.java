@@ -35,9 +35,15 @@ import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.awt.image.renderable.ParameterBlock;
 import java.io.File;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.media.jai.BorderExtender;
 import javax.media.jai.Histogram;
 import javax.media.jai.Interpolation;
@@ -606,6 +612,15 @@ public class RawImage extends PhotovaultImage {
     private void loadRawImage() {
         long startTime = System.currentTimeMillis();
         log.debug( "begin:loadRawImage" );
+        if ( lrd != null && rawProcessed ) {
+            /*
+             dcraw_process() modifies the unpacked data in place, so the file
+             must be opened again. This happens only when a higher resolution
+             is needed, so it is cheaper than keeping a copy of the unpacked
+             data for every image.
+             */
+            closeRaw();
+        }
         if ( lrd == null ) {
             openRaw();
             log.debug( "openRaw() " + (System.currentTimeMillis() - startTime) );
@@ -616,20 +631,10 @@ public class RawImage extends PhotovaultImage {
             lr.libraw_unpack( lrd );
             log.debug( "unpacked " + (System.currentTimeMillis() - startTime) );
         }
-        /*
-         * Copy the unprocessed data to temporary array so that we can restore 
-         * lrd to the state it had after unpack()
-         */
-
-        int oldFlags = lrd.progress_flags;
-        int oldFilters = lrd.idata.filters;
-        int rawImageSize = lrd.sizes.iwidth * lrd.sizes.iheight * 4;
-        short rawWidth = lrd.sizes.width;
-        short rawHeight = lrd.sizes.height;
         this.width = lrd.sizes.width;
         this.height = lrd.sizes.height;
-        short[] rawData = lrd.image.getShortArray( 0, rawImageSize );
         lr.libraw_dcraw_process( lrd );
+        rawProcessed = true;
         log.debug(  "processed " + (System.currentTimeMillis()-startTime) );
         int procWidth = lrd.sizes.width;
         int procHeight = lrd.sizes.height;
@@ -641,38 +646,12 @@ public class RawImage extends PhotovaultImage {
          */
         int scaledW = procWidth / postSubsample;
         int scaledH = procHeight / postSubsample;
-        short[] buf = new short[scaledW*scaledH*3];
-        int pos = 0;
-        for ( int row = 0 ; row < scaledH; row++ ) {
-            for ( int col = 0; col < scaledW; col++ ) {
-                int rsum = 0;
-                int gsum = 0;
-                int bsum = 0;
-                for ( int or = row * postSubsample ; or < (row+1)*postSubsample ; or++ ) {
-                    for ( int oc = col * postSubsample ; oc < (col+1)*postSubsample ; oc++ ) {
-                        int r = lrd.image.getShort( 8 * ( oc + procWidth * or) );
-                        rsum += (r & 0xffff);
-                        int g = lrd.image.getShort( 8 * ( oc + procWidth * or) + 2 );
-                        gsum += (g & 0xffff);
-                        int b = lrd.image.getShort( 8 * ( oc + procWidth * or) + 4 );
-                        bsum += (b & 0xffff);
-                    }
-                }
-                buf[pos++] = (short) (rsum / (postSubsample * postSubsample));
-                buf[pos++] = (short) (gsum / (postSubsample * postSubsample));
-                buf[pos++] = (short) (bsum / (postSubsample * postSubsample));
-            }
-        }
+        ShortBuffer procData = lrd.image.getByteBuffer( 
+                0, 8L * procWidth * procHeight ).order( 
+                ByteOrder.nativeOrder() ).asShortBuffer();
+        short[] buf = subsample( procData, procWidth, postSubsample, scaledW, scaledH );
         log.debug(  "subsampled " + (System.currentTimeMillis()-startTime) );
 
-        // Restore LibRaw state to what it was before dcraw_process
-        lrd.image.write( 0, rawData, 0, rawImageSize );
-        lrd.progress_flags = oldFlags;
-        lrd.sizes.width = rawWidth;
-        lrd.sizes.height = rawHeight;
-        lrd.idata.filters = oldFilters;
-        rawData = null;
-        
         // closeRaw();
 
         DataBuffer db = new DataBufferUShort( buf, buf.length );
@@ -867,6 +846,110 @@ public class RawImage extends PhotovaultImage {
     LibRawData lrd;
     LibRaw lr = LibRaw.INSTANCE;
 
+    /**
+     * Has the data in lrd been processed with dcraw_process()?
+     */
+    private boolean rawProcessed = false;
+
+    /**
+     * Minimum number of destination rows per strip when subsampling in
+     * parallel
+     */
+    static final int MIN_STRIP_HEIGHT = 64;
+
+    /**
+     * Copy image from LibRaw buffer to Java array, averaging each 
+     * factor x factor block to one pixel. Rows are read in bulk and the image
+     * is processed in parallel strips.
+     * @param src Image data, 4 channels per pixel of which the first 3 are used
+     * @param srcWidth Width of source image
+     * @param factor Subsampling factor
+     * @param dstWidth Width of subsampled image
+     * @param dstHeight Height of subsampled image
+     * @return Subsampled image as interleaved RGB samples
+     */
+    static short[] subsample( final ShortBuffer src, final int srcWidth, 
+            final int factor, final int dstWidth, final int dstHeight ) {
+        final short[] dst = new short[dstWidth * dstHeight * 3];
+        int strips = Math.max( 1, Math.min( AHDInterpolator.getThreadCount(), 
+                dstHeight / MIN_STRIP_HEIGHT ) );
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for ( int n = 0 ; n < strips ; n++ ) {
+            final int firstRow = dstHeight * n / strips;
+            final int lastRow = dstHeight * ( n + 1 ) / strips;
+            Runnable strip = new Runnable() {
+                public void run() {
+                    subsampleRows( src.duplicate(), srcWidth, factor, 
+                            dstWidth, firstRow, lastRow, dst );
+                }
+            };
+            if ( n < strips - 1 ) {
+                results.add( AHDInterpolator.getExecutor().submit( strip ) );
+            } else {
+                strip.run();
+            }
+        }
+        try {
+            for ( Future<?> f : results ) {
+                f.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while copying image", e );
+        } catch ( ExecutionException e ) {
+            throw new IllegalStateException( "Error while copying image", e.getCause() );
+        }
+        return dst;
+    }
+
+    /**
+     * Subsample rows of image
+     * @param src Image data, 4 channels per pixel
+     * @param srcWidth Width of source image
+     * @param factor Subsampling factor
+     * @param dstWidth Width of subsampled image
+     * @param firstRow First destination row
+     * @param lastRow Row after the last destination row
+     * @param dst Array for destination image
+     */
+    private static void subsampleRows( ShortBuffer src, int srcWidth, 
+            int factor, int dstWidth, int firstRow, int lastRow, short[] dst ) {
+        short[] rowBuf = new short[dstWidth * factor * 4];
+        int[] sums = new int[dstWidth * 3];
+        int div = factor * factor;
+        for ( int row = firstRow ; row < lastRow ; row++ ) {
+            int pos = row * dstWidth * 3;
+            if ( factor == 1 ) {
+                src.position( row * srcWidth * 4 );
+                src.get( rowBuf );
+                for ( int col = 0 ; col < dstWidth ; col++ ) {
+                    dst[pos++] = rowBuf[col*4];
+                    dst[pos++] = rowBuf[col*4+1];
+                    dst[pos++] = rowBuf[col*4+2];
+                }
+                continue;
+            }
+            Arrays.fill( sums, 0 );
+            for ( int or = row * factor ; or < (row+1) * factor ; or++ ) {
+                src.position( or * srcWidth * 4 );
+                src.get( rowBuf );
+                int p = 0;
+                for ( int col = 0 ; col < dstWidth ; col++ ) {
+                    int s = col * 3;
+                    for ( int oc = 0 ; oc < factor ; oc++ ) {
+                        sums[s] += rowBuf[p] & 0xffff;
+                        sums[s+1] += rowBuf[p+1] & 0xffff;
+                        sums[s+2] += rowBuf[p+2] & 0xffff;
+                        p += 4;
+                    }
+                }
+            }
+            for ( int n = 0 ; n < sums.length ; n++ ) {
+                dst[pos++] = (short) ( sums[n] / div );
+            }
+        }
+    }
+
     private void openRaw() {
         lrd = lr.libraw_init( 0 );
         if ( subsample > 1 ) {
@@ -971,6 +1054,7 @@ public class RawImage extends PhotovaultImage {
             rawConverter.setParameter( black, 1 );
             rawConverter.setParameter( highlightCompression, 2 );
         }
+        invalidateStage( "raw_toneadj_image" );
     }
     
     /**
@@ -1118,6 +1202,7 @@ public class RawImage extends PhotovaultImage {
         if ( wbAdjustedRawImage != null ) {
             wbAdjustedRawImage.setParameter( colorCorrMat, 0 );
         }
+        invalidateStage( "wb_adjusted_image" );
     }
     
     /**
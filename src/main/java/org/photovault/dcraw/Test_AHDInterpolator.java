@@ -0,0 +1,97 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.dcraw;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test cases for {@link AHDInterpolator}
+ * @author Harri Kaimio
+ */
+public class Test_AHDInterpolator {
+
+    static final int WIDTH = 300;
+    static final int HEIGHT = 280;
+
+    private AHDInterpolator createInterpolator() {
+        double[] mult = {2.1, 1.3, 1.7, 1.3};
+        double[][] camToRGB = {
+            {1.5, -0.3, -0.2, 0.0},
+            {-0.2, 1.4, -0.2, 0.0},
+            {0.0, -0.4, 1.4, 0.0}
+        };
+        return new AHDInterpolator( mult, 0x94949494, 0, 0, camToRGB,
+                WIDTH, HEIGHT );
+    }
+
+    private int[] getSourceData( int[] raw, Rectangle r ) {
+        int[] ret = new int[r.width * r.height];
+        for ( int y = 0; y < r.height; y++ ) {
+            System.arraycopy( raw, ( y + r.y ) * WIDTH + r.x, ret,
+                    y * r.width, r.width );
+        }
+        return ret;
+    }
+
+    /**
+     * Verify that splitting the area to bands does not change the result
+     */
+    @Test
+    public void testBands() {
+        AHDInterpolator interp = createInterpolator();
+        int[] raw = new int[WIDTH * HEIGHT];
+        Random rnd = new Random( 1 );
+        for ( int n = 0; n < raw.length; n++ ) {
+            raw[n] = rnd.nextInt( 4000 );
+        }
+        Rectangle[] areas = {
+            new Rectangle( 0, 0, 256, 256 ),
+            new Rectangle( 256, 0, 44, 256 ),
+            new Rectangle( 20, 30, 200, 230 )
+        };
+        for ( Rectangle area : areas ) {
+            int[] src = getSourceData( raw, interp.getSourceArea( area ) );
+            int[] expected = interp.interpolate( src, area, 1 );
+            Rectangle out = interp.getOutputArea( area );
+            assertEquals( out.width * out.height * 3, expected.length );
+            for ( int bands = 2; bands < 8; bands++ ) {
+                assertTrue( area + ", " + bands + " bands",
+                        Arrays.equals( expected, interp.interpolate( src, area, bands ) ) );
+            }
+        }
+
+        // Parallel processing with default band selection
+        int oldThreads = AHDInterpolator.getThreadCount();
+        try {
+            AHDInterpolator.setThreadCount( 3 );
+            Rectangle area = new Rectangle( 0, 0, WIDTH, HEIGHT );
+            int[] src = getSourceData( raw, interp.getSourceArea( area ) );
+            assertTrue( Arrays.equals( interp.interpolate( src, area, 1 ),
+                    interp.interpolate( src, area ) ) );
+        } finally {
+            AHDInterpolator.setThreadCount( oldThreads );
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.folder;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.jdbc.Work;
+
+/**
+ FolderClosure maintains the transitive closure of folder hierarchy in table
+ pv_folder_closure. The table has a row (ancestor, descendant, depth) for
+ every folder and each of its ancestors, including the folder itself with
+ depth 0. This allows finding e.g. all photos in a folder or its subfolders
+ with a single indexed join instead of loading the folder tree.
+ <p>
+ The table is not mapped to Hibernate. It is kept up to date by
+ {@link Listener} that is called by Hibernate when folders are inserted,
+ updated or deleted, in the same transaction that modifies the folder. So
+ the closure is updated regardless of whether the folder hierarchy was
+ modified by {@link CreatePhotoFolderCommand}, {@link ChangePhotoFolderCommand}
+ or by applying changes from another database with
+ {@link PhotoFolder#reparentFolder(PhotoFolder)}.
+ <p>
+ The table is created and checked by {@link #init(Session)} when Hibernate is
+ initialized, so older databases do not need a schema update.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class FolderClosure {
+
+    static private Log log = LogFactory.getLog( FolderClosure.class.getName() );
+
+    /**
+     Name of the closure table
+     */
+    static public final String TABLE = "pv_folder_closure";
+
+    /**
+     SQL condition that selects photos in a folder hierarchy. The condition has
+     one parameter, the UUID of the top folder as string.
+     */
+    static public final String SUBTREE_PHOTOS_SQL =
+            "{alias}.photo_uuid in (select a.photo_uuid from pv_folder_photos a, " +
+            TABLE + " c where a.folder_uuid = c.descendant_uuid " +
+            "and c.ancestor_uuid = ?)";
+
+    /**
+     Maximum folder depth. Used to detect cycles in hierarchy.
+     */
+    static final int MAX_DEPTH = 1000;
+
+    /**
+     Not to be instantiated
+     */
+    private FolderClosure() {
+
+    }
+
+    /**
+     Create the closure table if it does not exist and rebuild it if it is
+     not consistent with folders in database.
+     @param s Session used to access the database
+     */
+    static public void init( Session s ) {
+        Transaction tx = s.beginTransaction();
+        try {
+            final int[] folderCount = {-1};
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    ensureTable( con );
+                    try {
+                        folderCount[0] = count( con, "select count(*) from pv_folders" );
+                    } catch ( SQLException e ) {
+                        // Folder table does not exist yet, database is being created
+                        log.debug( "Cannot count folders: " + e.getMessage() );
+                    }
+                }
+            } );
+            tx.commit();
+            tx = s.beginTransaction();
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    if ( folderCount[0] < 0 ) {
+                        FolderClosure.execute( con, "delete from " + TABLE );
+                    } else {
+                        int closureCount = count( con,
+                                "select count(*) from " + TABLE + " where depth = 0" );
+                        if ( closureCount != folderCount[0] ) {
+                            rebuild( con );
+                        }
+                    }
+                }
+            } );
+            tx.commit();
+        } catch ( HibernateException e ) {
+            log.error( "Error initializing folder closure", e );
+            tx.rollback();
+        }
+    }
+
+    /**
+     Create the table if it does not exist
+     */
+    static private void ensureTable( Connection con ) throws SQLException {
+        DatabaseMetaData md = con.getMetaData();
+        for ( String name : new String[] {TABLE, TABLE.toUpperCase()} ) {
+            ResultSet rs = md.getTables( null, null, name, null );
+            try {
+                if ( rs.next() ) {
+                    return;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        log.info( "Creating table " + TABLE );
+        execute( con, "create table " + TABLE + " ( " +
+                "ancestor_uuid varchar(36) not null, " +
+                "descendant_uuid varchar(36) not null, " +
+                "depth integer not null, " +
+                "primary key ( ancestor_uuid, descendant_uuid ) )" );
+        execute( con, "create index " + TABLE + "_desc on " + TABLE +
+                " ( descendant_uuid )" );
+    }
+
+    /**
+     Recreate the contents of closure table from folder table
+     @param con Connection used
+     @throws SQLException if an error occurs
+     */
+    static public void rebuild( Connection con ) throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Map<String, String> parents = new HashMap<String, String>();
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(
+                    "select folder_uuid, parent_uuid from pv_folders" );
+            while ( rs.next() ) {
+                parents.put( rs.getString( 1 ), rs.getString( 2 ) );
+            }
+            rs.close();
+            stmt.executeUpdate( "delete from " + TABLE );
+        } finally {
+            stmt.close();
+        }
+        PreparedStatement ins = con.prepareStatement( "insert into " + TABLE +
+                " ( ancestor_uuid, descendant_uuid, depth ) values ( ?, ?, ? )" );
+        try {
+            int rows = 0;
+            for ( String folder : parents.keySet() ) {
+                String ancestor = folder;
+                for ( int depth = 0; ancestor != null && depth < MAX_DEPTH; depth++ ) {
+                    ins.setString( 1, ancestor );
+                    ins.setString( 2, folder );
+                    ins.setInt( 3, depth );
+                    ins.addBatch();
+                    if ( ++rows % 500 == 0 ) {
+                        ins.executeBatch();
+                    }
+                    String parent = parents.get( ancestor );
+                    ancestor = ( parent != null && parents.containsKey( parent ) ) ?
+                        parent : null;
+                }
+            }
+            ins.executeBatch();
+        } finally {
+            ins.close();
+        }
+        log.info( "Rebuilt folder closure for " + parents.size() + " folders in " +
+                ( System.currentTimeMillis() - startTime ) + " ms" );
+    }
+
+    /**
+     Get the ancestors of a folder
+     @param f The folder
+     @return List of ancestor UUIDs, starting from parent of f
+     */
+    static private List<String> getAncestors( PhotoFolder f ) {
+        List<String> ret = new ArrayList<String>();
+        PhotoFolder a = f.getParentFolder();
+        while ( a != null && ret.size() < MAX_DEPTH ) {
+            ret.add( a.getUuid().toString() );
+            a = a.getParentFolder();
+        }
+        return ret;
+    }
+
+    /**
+     Add a newly created folder to closure
+     @param con Connection used
+     @param f The new folder
+     */
+    static void folderInserted( Connection con, PhotoFolder f ) throws SQLException {
+        Map<String, Integer> subtree = new LinkedHashMap<String, Integer>();
+        subtree.put( f.getUuid().toString(), 0 );
+        addAncestors( con, subtree, getAncestors( f ), true );
+    }
+
+    /**
+     Update closure after a folder has been moved to a new parent
+     @param con Connection used
+     @param f The moved folder
+     */
+    static void folderMoved( Connection con, PhotoFolder f ) throws SQLException {
+        String id = f.getUuid().toString();
+        Map<String, Integer> subtree = new LinkedHashMap<String, Integer>();
+        PreparedStatement stmt = con.prepareStatement( "select descendant_uuid, depth from " +
+                TABLE + " where ancestor_uuid = ?" );
+        try {
+            stmt.setString( 1, id );
+            ResultSet rs = stmt.executeQuery();
+            while ( rs.next() ) {
+                subtree.put( rs.getString( 1 ), rs.getInt( 2 ) );
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        if ( subtree.isEmpty() ) {
+            subtree.put( id, 0 );
+        }
+        // Remove links to ancestors of the old parent
+        PreparedStatement del = con.prepareStatement( "delete from " + TABLE +
+                " where descendant_uuid = ? and depth > ?" );
+        try {
+            for ( Map.Entry<String, Integer> e : subtree.entrySet() ) {
+                del.setString( 1, e.getKey() );
+                del.setInt( 2, e.getValue() );
+                del.addBatch();
+            }
+            del.executeBatch();
+        } finally {
+            del.close();
+        }
+        addAncestors( con, subtree, getAncestors( f ), false );
+    }
+
+    /**
+     Add links from a folder subtree to new ancestors.
+     @param con Connection used
+     @param subtree UUIDs of folders in subtree and their depth below the top
+     folder.
+     @param ancestors Ancestors of the top folder, starting from its parent
+     @param addSelf If <code>true</code>, insert also the rows with depth 0 for
+     folders in subtree
+     */
+    static private void addAncestors( Connection con, Map<String, Integer> subtree,
+            List<String> ancestors, boolean addSelf ) throws SQLException {
+        PreparedStatement ins = con.prepareStatement( "insert into " + TABLE +
+                " ( ancestor_uuid, descendant_uuid, depth ) values ( ?, ?, ? )" );
+        try {
+            for ( Map.Entry<String, Integer> e : subtree.entrySet() ) {
+                int depth = e.getValue();
+                if ( addSelf ) {
+                    ins.setString( 1, e.getKey() );
+                    ins.setString( 2, e.getKey() );
+                    ins.setInt( 3, depth );
+                    ins.addBatch();
+                }
+                for ( int n = 0; n < ancestors.size(); n++ ) {
+                    ins.setString( 1, ancestors.get( n ) );
+                    ins.setString( 2, e.getKey() );
+                    ins.setInt( 3, depth + n + 1 );
+                    ins.addBatch();
+                }
+            }
+            ins.executeBatch();
+        } finally {
+            ins.close();
+        }
+    }
+
+    /**
+     Remove a deleted folder from closure
+     @param con Connection used
+     @param id UUID of the deleted folder
+     */
+    static void folderDeleted( Connection con, UUID id ) throws SQLException {
+        PreparedStatement del = con.prepareStatement( "delete from " + TABLE +
+                " where ancestor_uuid = ? or descendant_uuid = ?" );
+        try {
+            del.setString( 1, id.toString() );
+            del.setString( 2, id.toString() );
+            del.executeUpdate();
+        } finally {
+            del.close();
+        }
+    }
+
+    static private int count( Connection con, String sql ) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery( sql );
+            rs.next();
+            return rs.getInt( 1 );
+        } finally {
+            stmt.close();
+        }
+    }
+
+    static private void execute( Connection con, String sql ) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate( sql );
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     Hibernate event listener that updates the closure when folders are
+     inserted, deleted or moved.
+     */
+    static public class Listener implements PostInsertEventListener,
+            PostUpdateEventListener, PostDeleteEventListener {
+
+        static final long serialVersionUID = 1L;
+
+        public void onPostInsert( PostInsertEvent event ) {
+            if ( !( event.getEntity() instanceof PhotoFolder ) ) {
+                return;
+            }
+            final PhotoFolder f = (PhotoFolder) event.getEntity();
+            event.getSession().doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    folderInserted( con, f );
+                }
+            } );
+        }
+
+        public void onPostUpdate( PostUpdateEvent event ) {
+            if ( !( event.getEntity() instanceof PhotoFolder ) ) {
+                return;
+            }
+            final PhotoFolder f = (PhotoFolder) event.getEntity();
+            Object[] oldState = event.getOldState();
+            if ( oldState != null ) {
+                String[] props = event.getPersister().getPropertyNames();
+                for ( int n = 0; n < props.length; n++ ) {
+                    if ( props[n].equals( "parentFolder" ) ) {
+                        PhotoFolder oldParent = (PhotoFolder) oldState[n];
+                        PhotoFolder newParent = f.getParentFolder();
+                        UUID oldId = oldParent != null ? oldParent.getUuid() : null;
+                        UUID newId = newParent != null ? newParent.getUuid() : null;
+                        if ( oldId == null ? newId == null : oldId.equals( newId ) ) {
+                            return;
+                        }
+                        break;
+                    }
+                }
+            }
+            event.getSession().doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    folderMoved( con, f );
+                }
+            } );
+        }
+
+        public void onPostDelete( PostDeleteEvent event ) {
+            if ( !( event.getEntity() instanceof PhotoFolder ) ) {
+                return;
+            }
+            final UUID id = (UUID) event.getId();
+            event.getSession().doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    folderDeleted( con, id );
+                }
+            } );
+        }
+    }
+}
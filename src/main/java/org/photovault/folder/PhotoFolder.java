@@ -22,6 +22,7 @@ package org.photovault.folder;
 
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
@@ -310,13 +311,13 @@ public class PhotoFolder implements PhotoCollection {
     public void addPhotoAssociation( FolderPhotoAssociation a ) {
         photoAssociations.add( a );
         a.setFolder( this );
-        modified();
+        photosModified( PhotoCollectionChangeEvent.Type.PHOTOS_ADDED, a.getPhoto() );
     }
 
     public void removePhotoAssociation( FolderPhotoAssociation a ) {
         photoAssociations.remove( a );
         a.setFolder( null );
-        modified();
+        photosModified( PhotoCollectionChangeEvent.Type.PHOTOS_REMOVED, a.getPhoto() );
     }
     /**
      Get all associations from this folder to photos
@@ -514,8 +515,35 @@ public class PhotoFolder implements PhotoCollection {
 	}
     }
     
+    /**
+     Notify listeners that a photo has been added to or removed from this 
+     folder.
+     @param type Type of the change
+     @param photo The photo that was added or removed. If <code>null</code>,
+     listeners are notified that the whole folder has changed.
+     */
+    private void photosModified( PhotoCollectionChangeEvent.Type type, 
+            PhotoInfo photo ) {
+        if ( photo == null ) {
+            modified();
+            return;
+        }
+        notifyListeners( new PhotoCollectionChangeEvent( 
+                this, type, Collections.singleton( photo ) ) );
+	if ( parent != null ) {
+	    parent.subfolderChanged( this );
+	}
+    }
+    
     protected void notifyListeners() {
-	PhotoCollectionChangeEvent ev = new PhotoCollectionChangeEvent( this );
+        notifyListeners( new PhotoCollectionChangeEvent( this ) );
+    }
+    
+    /**
+     Send an event to all listeners of this folder
+     @param ev The event
+     */
+    private void notifyListeners( PhotoCollectionChangeEvent ev ) {
 	Iterator iter = changeListeners.iterator();
 	while ( iter.hasNext() ) {
 	    PhotoCollectionChangeListener l = (PhotoCollectionChangeListener) iter.next();
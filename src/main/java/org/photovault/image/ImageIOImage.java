@@ -466,7 +466,16 @@ public class ImageIOImage extends PhotovaultImage {
                             if ( minWidth * 2 < width && minHeight * 2 < height ) {
                                 param.setSourceSubsampling( 2, 2, 0, 0 );
                             }
+                            if ( reader.isImageTiled( 0 ) ) {
+                                /*
+                                 Tiled images (like preview pyramid levels)
+                                 are decoded lazily so that only the tiles 
+                                 that are actually displayed are read.
+                                 */
+                                ri = reader.readAsRenderedImage( 0, param );
+                            } else {
                                 ri = reader.read( 0, param );
+                            }
                             
                         }
                         if ( ri != null ) {                            
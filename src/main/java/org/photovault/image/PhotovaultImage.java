@@ -31,8 +31,13 @@ import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.renderable.ParameterBlock;
 import java.io.File;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 import javax.media.jai.Histogram;
@@ -46,6 +51,7 @@ import javax.media.jai.ParameterBlockJAI;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.RenderableOp;
 import javax.media.jai.RenderedOp;
+import javax.media.jai.TiledImage;
 import javax.media.jai.operator.CropDescriptor;
 import javax.media.jai.operator.HistogramDescriptor;
 import javax.media.jai.operator.LookupDescriptor;
@@ -57,6 +63,14 @@ import org.apache.commons.logging.LogFactory;
 /**
  PhotovaultImage is a facade fro Photovault imaging pipeline. It is abstract 
  class, different image providers must derive their own classes from it.
+ <p>
+ Renderings of expensive pipeline stages are cached so that when a setting 
+ of a later stage is changed only the stages after the nearest cached one 
+ need to be computed again. Stages are identified by the 
+ "org.photovault.opname" property of the operations, see 
+ {@link #PIPELINE_STAGES}. Derived classes must call 
+ {@link #invalidateStage(String)} when they change parameters of their 
+ pipeline stages.
  */
 public abstract class PhotovaultImage {
 
@@ -151,7 +165,155 @@ public abstract class PhotovaultImage {
      */
     RenderedImage lastRendering = null;
     
+    /**
+     Names of imaging pipeline stages, in processing order
+     */
+    public static final List<String> PIPELINE_STAGES = Arrays.asList( 
+            "dcraw_data", "orientation_adjustment", "wb_adjusted_image", 
+            "raw_toneadj_image", "gamma_lut_image", "rotated_image", 
+            "cropped_image", "color_corrected_rgb_image", 
+            "color_corrected_ihs_image", "saturated_ihs_image", 
+            "saturated_image" );
+    
+    /**
+     Renderings larger than this (in pixels) are not cached. Can be set with 
+     system property photovault.rendercache.maxpixels.
+     */
+    static final long MAX_CACHED_PIXELS = 
+            Long.getLong( "photovault.rendercache.maxpixels", 16000000L );
+    
+    /**
+     Cached rendering of a pipeline stage
+     */
+    private static class CachedStage {
+        RenderedImage image;
+        int width;
+        int height;
+    }
+    
+    /**
+     Cached renderings of pipeline stages, by stage name
+     */
+    private Map<String, CachedStage> stageCache = new HashMap<String, CachedStage>();
+    
+    /**
+     Discard cached renderings of a pipeline stage and all stages after it. 
+     This must be called whenever parameters of the stage are changed.
+     @param stage Name of the stage. If it is not one of {@link #PIPELINE_STAGES}
+     all cached renderings are discarded.
+     */
+    protected void invalidateStage( String stage ) {
+        int stageIdx = PIPELINE_STAGES.indexOf( stage );
+        Iterator<String> iter = stageCache.keySet().iterator();
+        while ( iter.hasNext() ) {
+            if ( PIPELINE_STAGES.indexOf( iter.next() ) >= stageIdx ) {
+                iter.remove();
+            }
+        }
+    }
+    
+    /**
+     Get cached rendering of a pipeline stage
+     @param stage Name of the stage
+     @param width Width of the rendering
+     @param height Height of the rendering
+     @return The rendering or <code>null</code> if a valid rendering of 
+     given size is not cached.
+     */
+    private RenderedImage getCachedStage( String stage, int width, int height ) {
+        CachedStage c = stageCache.get( stage );
+        if ( c != null && c.width == width && c.height == height ) {
+            return c.image;
+        }
+        return null;
+    }
+    
+    /**
+     Add a stage rendering to cache if it is small enough. Pixels are copied 
+     lazily to cache when first requested.
+     @param stage Name of the stage
+     @param img Rendering of the stage
+     @param width Width requested for the rendering
+     @param height Height requested for the rendering
+     @return The image that should be used as source for the next stages
+     */
+    private RenderedImage cacheStage( String stage, RenderedImage img, 
+            int width, int height ) {
+        if ( (long) img.getWidth() * img.getHeight() > MAX_CACHED_PIXELS ) {
+            stageCache.remove( stage );
+            return img;
+        }
+        TiledImage cached = new TiledImage( img, img.getTileWidth(), img.getTileHeight() );
+        cached.setProperty( "org.photovault.opname", stage );
+        CachedStage c = new CachedStage();
+        c.image = cached;
+        c.width = width;
+        c.height = height;
+        stageCache.put( stage, c );
+        return cached;
+    }
+    
+    /**
+     Render the pipeline starting from nearest cached stage
+     @param width Width of the rendering
+     @param height Height of the rendering
+     @param hints Rendering hints used for rendering the renderable stages
+     @return Rendering of the last pipeline stage
+     */
+    private RenderedImage renderPipeline( int width, int height, RenderingHints hints ) {
+        if ( saturated != null ) {
+            RenderedImage ihsImage = getCachedStage( 
+                    "color_corrected_ihs_image", width, height );
+            if ( ihsImage != null ) {
+                return renderSaturation( ihsImage );
+            }
+        }
+        RenderedImage croppedImg = getCachedStage( "cropped_image", width, height );
+        if ( croppedImg == null ) {
+            croppedImg = cacheStage( "cropped_image", 
+                    cropped.createScaledRendering( width, height, hints ),
+                    width, height );
+        }
+        RenderedOp colorCorrectedImg = LookupDescriptor.create( croppedImg, 
+                (LookupTableJAI) colorCorrected.getParameterBlock().getObjectParameter( 0 ), 
+                null );
+        colorCorrectedImg.setProperty( "org.photovault.opname", "color_corrected_rgb_image" );
+        if ( saturated == null ) {
+            /*
+             The image color model does not support saturation (e.g. b/w image),
+             show the previous step instead.
+             */
+            return colorCorrectedImg;
+        }
+        ParameterBlock pb = new ParameterBlock();
+        pb.addSource( colorCorrectedImg );
+        pb.add( createIhsColorModel() );
+        RenderedOp ihsImage = JAI.create( "colorconvert", pb );
+        ihsImage.setProperty( "org.photovault.opname", "color_corrected_ihs_image" );
+        return renderSaturation( cacheStage( "color_corrected_ihs_image", 
+                ihsImage, width, height ) );
+    }
+    
+    /**
+     Render saturation adjustment and conversion back to RGB color space
+     @param ihsImage Rendering of color corrected image in IHS color space
+     @return Rendering of saturated_image stage
+     */
+    private RenderedImage renderSaturation( RenderedImage ihsImage ) {
+        RenderedOp saturatedIhs = LookupDescriptor.create( ihsImage, 
+                (LookupTableJAI) saturatedIhsImage.getParameterBlock().getObjectParameter( 0 ), 
+                null );
+        saturatedIhs.setProperty( "org.photovault.opname", "saturated_ihs_image" );
+        ParameterBlock pb = new ParameterBlock();
+        pb.addSource( saturatedIhs );
+        pb.add( createSrgbColorModel() );
+        RenderedOp saturatedImg = JAI.create( "colorconvert", pb );
+        saturatedImg.setProperty( "org.photovault.opname", "saturated_image" );
+        return saturatedImg;
+    }
+    
     protected void buildPipeline(RenderableOp original) {
+        stageCache.clear();
         originalImage = original;
         cropped = getCropped( original );
         cropped.setProperty( "org.photovault.opname", "cropped_image" );
@@ -248,22 +410,9 @@ public abstract class PhotovaultImage {
         RenderingHints hints = new RenderingHints( null );
         hints.put( JAI.KEY_INTERPOLATION, new InterpolationBilinear() );
         
-        RenderedImage rendered = null;
-        if ( lastRendering != null && lastRendering instanceof PlanarImage ) {
-            ((PlanarImage)lastRendering).dispose();
-            System.gc();
-        }
-        if ( saturated != null ) {
-            rendered = saturated.createScaledRendering( renderingWidth, renderingHeight, hints );
-            lastRendering = rendered;
-        } else {
-            /*
-             The image color model does not support saturation (e.g. b/w image),
-             show the previous step instead.
-             */
-            rendered = colorCorrected.createScaledRendering( renderingWidth, renderingHeight, hints );
-            lastRendering = rendered;
-        }
+        RenderedImage rendered = 
+                renderPipeline( renderingWidth, renderingHeight, hints );
+        lastRendering = rendered;
         fireNewRenderingEvent();
         return rendered;
     }
@@ -300,20 +449,9 @@ public abstract class PhotovaultImage {
         }
         RenderingHints hints = new RenderingHints( null );
         hints.put( JAI.KEY_INTERPOLATION, new InterpolationBilinear() );
-        if ( lastRendering != null && lastRendering instanceof PlanarImage ) {
-            ((PlanarImage)lastRendering).dispose();
-            System.gc();
-        }
-        RenderedImage rendered = null;
-        if ( saturated != null ) {
-                rendered = saturated.createScaledRendering( (int) (scale*cropW), 
-                (int) (scale*cropH), hints );
-            lastRendering = rendered;
-        } else {
-                rendered = colorCorrected.createScaledRendering( (int) (scale*cropW), 
-                (int) (scale*cropH), hints );
-            lastRendering = rendered;
-        }
+        RenderedImage rendered = 
+                renderPipeline( (int) (scale*cropW), (int) (scale*cropH), hints );
+        lastRendering = rendered;
         fireNewRenderingEvent();
         return rendered;
     }
@@ -341,9 +479,9 @@ public abstract class PhotovaultImage {
         RenderedImage src = null;
         if ( histType.equals( HISTOGRAM_RGB_CHANNELS ) ) {
             // Calculate histogram from the image into which color correction was applied
-            src = findNamedRendering( lastRendering, "cropped_image" );
+            src = findStageRendering( "cropped_image" );
         } else if ( histType.equals( HISTOGRAM_IHS_CHANNELS ) ) {
-            src = findNamedRendering( lastRendering, "color_corrected_ihs_image" );
+            src = findStageRendering( "color_corrected_ihs_image" );
             // src = lastSaturatedRendering.getSources().get(0).getSources().get(0);
         } 
         if ( src != null ) {
@@ -365,10 +503,11 @@ public abstract class PhotovaultImage {
     }
     
     public void dispose() {
+        stageCache.clear();
         if ( lastRendering != null && lastRendering instanceof PlanarImage ) {
             ((PlanarImage)lastRendering).dispose();
         }
-        System.gc();
+        lastRendering = null;
     }
     /**
      Get width of the original image
@@ -393,6 +532,7 @@ public abstract class PhotovaultImage {
      */
     public void setRotation( double r ) {
         rot = r;
+        invalidateStage( "rotated_image" );
         applyRotCrop();
     }
     
@@ -422,6 +562,7 @@ public abstract class PhotovaultImage {
         ChannelMapOperationFactory cmf = new ChannelMapOperationFactory( channelMap );
         cmf.setChannelCurve( "saturation", satCurve );
         channelMap = cmf.create();
+        invalidateStage( "saturated_ihs_image" );
         // Check that this image has a color model that supports saturation change
         if ( saturatedIhsImage != null ) {
             saturatedIhsImage.setParameter( createSaturationMappingLUT() , 0 );
@@ -465,6 +606,7 @@ public abstract class PhotovaultImage {
         if ( channelMap == null || colorCorrected == null ) {
             return;
         }
+        invalidateStage( "color_corrected_rgb_image" );
         LookupTableJAI jailut = createColorMappingLUT();
         colorCorrected.setParameter( jailut, 0 );
         if ( saturatedIhsImage != null ) {
@@ -644,6 +786,7 @@ public abstract class PhotovaultImage {
             cropMaxY = cropMinY;
             cropMinY = tmp;
         }        
+        invalidateStage( "rotated_image" );
         applyRotCrop();
     }
 
@@ -847,25 +990,17 @@ public abstract class PhotovaultImage {
      @return Saturation change operator.
      */
     protected RenderableOp getSaturated( RenderableOp src ) {
-        IHSColorSpace ihs = IHSColorSpace.getInstance();
-        ColorModel srcCm = getCorrectedImageColorModel();
-        int[] componentSizes = srcCm.getComponentSize();
+        int[] componentSizes = getCorrectedImageColorModel().getComponentSize();
         if ( componentSizes.length != 3 ) {
             // This is not an RGB image
             // TODO: handle also images with alpha channel
             return null;
         }
-        ColorModel ihsColorModel =
-                new ComponentColorModel(ihs,
-                componentSizes,
-                false,false,
-                Transparency.OPAQUE,
-                srcCm.getTransferType() );
         
         // Create a ParameterBlock for the conversion.
         ParameterBlock pb = new ParameterBlock();
         pb.addSource( src );
-        pb.add(ihsColorModel);
+        pb.add( createIhsColorModel() );
         // Do the conversion.
         RenderableOp ihsImage  = JAI.createRenderable("colorconvert", pb );
         ihsImage.setProperty( "org.photovault.opname", "color_corrected_ihs_image" );
@@ -877,20 +1012,55 @@ public abstract class PhotovaultImage {
         saturatedIhsImage.setProperty( "org.photovault.opname", "saturated_ihs_image" );
         pb = new ParameterBlock();
         pb.addSource(saturatedIhsImage);
-        ColorSpace sRGB = ColorSpace.getInstance( ColorSpace.CS_sRGB );
-        ColorModel srgbColorModel =
-                new ComponentColorModel(sRGB,
-                componentSizes,
-                false,false,
-                Transparency.OPAQUE,
-                srcCm.getTransferType() );
-        pb.add(srgbColorModel); // RGB color model!        
+        pb.add( createSrgbColorModel() ); // RGB color model!        
         RenderableOp saturatedImage = JAI.createRenderable("colorconvert", pb );        
         saturatedImage.setProperty( "org.photovault.opname", "saturated_image" );
         
         return saturatedImage;
     }
     
+    /**
+     Create color model for the IHS color space images used in saturation 
+     adjustment
+     */
+    private ColorModel createIhsColorModel() {
+        ColorModel srcCm = getCorrectedImageColorModel();
+        return new ComponentColorModel( IHSColorSpace.getInstance(),
+                srcCm.getComponentSize(),
+                false,false,
+                Transparency.OPAQUE,
+                srcCm.getTransferType() );
+    }
+    
+    /**
+     Create color model for the sRGB result of saturation adjustment
+     */
+    private ColorModel createSrgbColorModel() {
+        ColorModel srcCm = getCorrectedImageColorModel();
+        return new ComponentColorModel( ColorSpace.getInstance( ColorSpace.CS_sRGB ),
+                srcCm.getComponentSize(),
+                false,false,
+                Transparency.OPAQUE,
+                srcCm.getTransferType() );
+    }
+    
+    /**
+     Find rendering of a pipeline stage used in last rendering. Cached stage 
+     renderings are used if available, otherwise the stage is searched from
+     the graph of last rendering.
+     @param stage Name of the stage
+     @return The rendering or <code>null</code> if not found.
+     */
+    RenderedImage findStageRendering( String stage ) {
+        CachedStage c = stageCache.get( stage );
+        if ( c != null && lastRendering != null && 
+                c.image.getWidth() == lastRendering.getWidth() &&
+                c.image.getHeight() == lastRendering.getHeight() ) {
+            return c.image;
+        }
+        return findNamedRendering( lastRendering, stage );
+    }
+    
     /**
      Find the last cached rendering of a certain phase of image processing pipeline.
      The name is stored in JAI property "org.photovault.opname".
@@ -905,7 +1075,7 @@ public abstract class PhotovaultImage {
     RenderedImage findNamedRendering( RenderedImage op, String name ) {
         if ( op != null ) {
             Object imgName = op.getProperty( "org.photovault.opname" );
-            if ( imgName.equals( name ) ) {
+            if ( name.equals( imgName ) ) {
                 return op;
             }
             Vector sources = op.getSources();
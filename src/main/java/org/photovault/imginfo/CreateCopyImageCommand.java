@@ -171,6 +171,12 @@ public class CreateCopyImageCommand  extends DataAccessCommand {
      Operations that will be applied in the created image.
      */
     private Set<ImageOperations> operationsToApply = EnumSet.allOf( ImageOperations.class );
+    
+    /**
+     Tile size of the created image, or 0 if the image is saved as a normal 
+     JPEG file.
+     */
+    private int tileSize = 0;
 
     /**
      Execute the command. 
@@ -235,7 +241,7 @@ public class CreateCopyImageCommand  extends DataAccessCommand {
 
         if ( volumeUuid != null ) {
             VolumeBase vol = volDAO.findById(volumeUuid, false);
-            dstFile = vol.getInstanceName( photo, "jpg" );
+            dstFile = vol.getInstanceName( photo, tileSize > 0 ? "tif" : "jpg" );
         }
         if ( dstFile == null ) {
             throw new CommandException( "Either destination file or volume must be specified" );
@@ -264,7 +270,11 @@ public class CreateCopyImageCommand  extends DataAccessCommand {
 
         
         try {
-            saveImage( dstFile, renderedDst, xpmData );
+            if ( tileSize > 0 ) {
+                saveTiledImage( dstFile, renderedDst, tileSize );
+            } else {
+                saveImage( dstFile, renderedDst, xpmData );
+            }
         } catch (PhotovaultException ex) {
             throw new CommandException( ex.getMessage() );
         } finally {
@@ -376,22 +386,7 @@ public class CreateCopyImageCommand  extends DataAccessCommand {
             log.error( "Error writing image: " + e.getMessage() );
             throw new PhotovaultException( e.getMessage() );
         }
-        if ( img.getSampleModel().getSampleSize( 0 ) == 16 ) {
-            log.debug( "16 bit image, converting to 8 bits");
-            double[] subtract = new double[1]; subtract[0] = 0;
-            double[] divide   = new double[1]; divide[0]   = 1./256.;
-            // Now we can rescale the pixels gray levels:
-            ParameterBlock pbRescale = new ParameterBlock();
-            pbRescale.add(divide);
-            pbRescale.add(subtract);
-            pbRescale.addSource( img );
-            PlanarImage outputImage = (PlanarImage)JAI.create("rescale", pbRescale, null);
-            // Make sure it is a byte image - force conversion.
-            ParameterBlock pbConvert = new ParameterBlock();
-            pbConvert.addSource(outputImage);
-            pbConvert.add(DataBuffer.TYPE_BYTE);
-            img = JAI.create("format", pbConvert);
-        }
+        img = convertTo8Bits( img );
         
         IIOImage iioimg = new IIOImage( img, null, null );
 
@@ -465,6 +460,81 @@ public class CreateCopyImageCommand  extends DataAccessCommand {
         log.debug( "Exit: saveImage" );
     }
     
+    /**
+     Save a rendered image as tiled TIFF file with JPEG compression. Viewers
+     can read only the tiles needed to display part of such an image instead
+     of decoding the whole file. XMP metadata is not saved, as it is currently 
+     read only from JPEG files.
+     @param instanceFile The file into which the image will be saved
+     @param img Image that will be saved
+     @param tileSize Width and height of the tiles in pixels
+     @throws PhotovaultException if saving does not succeed
+     */
+    protected void saveTiledImage( File instanceFile, RenderedImage img, 
+            int tileSize ) throws PhotovaultException {
+        log.debug( "Entry: saveTiledImage, file = " + instanceFile.getAbsolutePath() );
+        Iterator writers = ImageIO.getImageWritersByFormatName( "tiff" );
+        if ( !writers.hasNext() ) {
+            throw new PhotovaultException( "Cannot find TIFF writer" );
+        }
+        ImageWriter imgwriter = (ImageWriter) writers.next();
+        ImageWriteParam params = imgwriter.getDefaultWriteParam();
+        params.setTilingMode( ImageWriteParam.MODE_EXPLICIT );
+        params.setTiling( tileSize, tileSize, 0, 0 );
+        params.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+        params.setCompressionType( "JPEG" );
+        params.setCompressionQuality( 0.9f );
+        
+        ImageOutputStream out = null;
+        try {
+            out = new FileImageOutputStream( instanceFile );
+            imgwriter.setOutput( out );
+            imgwriter.write( null, 
+                    new IIOImage( convertTo8Bits( img ), null, null ), params );
+        } catch ( IOException e ) {
+            log.warn( "Exception while encoding" + e.getMessage() );
+            throw new PhotovaultException( "Error writing instance " +
+                    instanceFile.getAbsolutePath() + ": " +
+                    e.getMessage() );
+        } finally {
+            imgwriter.dispose();
+            if ( out != null ) {
+                try {
+                    out.close();
+                } catch ( IOException e ) {
+                    log.warn( "Exception while closing file: " + e.getMessage() );
+                }
+            }
+        }
+        log.debug( "Exit: saveTiledImage" );
+    }
+    
+    /**
+     Convert 16 bit image to 8 bits per sample so that it can be saved in 
+     JPEG format.
+     @param img The image to convert
+     @return 8 bit version of img or img itself if it is already 8 bit image.
+     */
+    private RenderedImage convertTo8Bits( RenderedImage img ) {
+        if ( img.getSampleModel().getSampleSize( 0 ) == 16 ) {
+            log.debug( "16 bit image, converting to 8 bits");
+            double[] subtract = new double[1]; subtract[0] = 0;
+            double[] divide   = new double[1]; divide[0]   = 1./256.;
+            // Now we can rescale the pixels gray levels:
+            ParameterBlock pbRescale = new ParameterBlock();
+            pbRescale.add(divide);
+            pbRescale.add(subtract);
+            pbRescale.addSource( img );
+            PlanarImage outputImage = (PlanarImage)JAI.create("rescale", pbRescale, null);
+            // Make sure it is a byte image - force conversion.
+            ParameterBlock pbConvert = new ParameterBlock();
+            pbConvert.addSource(outputImage);
+            pbConvert.add(DataBuffer.TYPE_BYTE);
+            img = JAI.create("format", pbConvert);
+        }
+        return img;
+    }
+    
     /**
      Get the volume in which the image will be created.
      @return Volume in owning persistence context's scope.
@@ -601,4 +671,22 @@ public class CreateCopyImageCommand  extends DataAccessCommand {
     public void setLowQualityAllowed( boolean b ) {
         lowQualityAllowed = b;
     }
+    
+    /**
+     Get the tile size of the created image
+     @return Tile width and height in pixels or 0 if the image is not tiled.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+    
+    /**
+     Set the image to be saved as tiled TIFF file instead of JPEG. This is 
+     useful for large copies that are viewed only partially.
+     @param tileSize Tile width and height in pixels, or 0 to save the image 
+     as JPEG file (the default)
+     */
+    public void setTileSize( int tileSize ) {
+        this.tileSize = tileSize;
+    }
 }
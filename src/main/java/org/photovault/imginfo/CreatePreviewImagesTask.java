@@ -44,6 +44,14 @@ public class CreatePreviewImagesTask extends BackgroundTask {
 
     }
 
+    /**
+     Get the UUID of the photo whose preview images are created
+     @return UUID of the photo
+     */
+    public UUID getPhotoUuid() {
+        return photoUuid;
+    }
+    
     @Override
     public void run() {
         HibernateDAOFactory df =
@@ -104,9 +112,19 @@ public class CreatePreviewImagesTask extends BackgroundTask {
             cmdHandler.executeCommand( cmd );
             thumbTime = System.currentTimeMillis() - thumbStart;
         }
+        // Pyramid levels are created last so that errors in them do not
+        // prevent creating preview and thumbnail
+        long pyramidStart = System.currentTimeMillis();
+        try {
+            PreviewPyramid.createMissingLevels( img, p, vol, cmdHandler );
+        } catch ( CommandException ex ) {
+            log.warn( "Error creating preview pyramid for " + p.getUuid() + 
+                    ": " + ex.getMessage() );
+        }
+        long pyramidTime = System.currentTimeMillis() - pyramidStart;
         long totalTime = System.currentTimeMillis() - startTime;
-        log.debug( "preview " + previewImageTime + " ms, thumb " + thumbTime +
-                " ms, total " + totalTime + " ms");
+        log.debug( "pyramid " + pyramidTime + " ms, preview " + previewImageTime + 
+                " ms, thumb " + thumbTime + " ms, total " + totalTime + " ms");
     }
 
 
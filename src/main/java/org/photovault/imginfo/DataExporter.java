@@ -31,18 +31,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import javax.tools.FileObject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.photovault.common.ProtobufHelper;
@@ -90,73 +104,388 @@ public class DataExporter {
     public void exportPhotoProtobuf( FileOutputStream os, PhotoInfo p ) throws FileNotFoundException, IOException {
         ImageProtos.PhotovaultData.Builder d =
                 ImageProtos.PhotovaultData.newBuilder();
-        Set<UUID> fileIds = new HashSet();
+        addFilesProtobuf( d, p, new HashSet<UUID>() );
+
+        // Add the change history
+        ObjectHistoryDTO<PhotoInfo> h = new ObjectHistoryDTO( p.getHistory() );
+        for ( ChangeDTO ch : h.getChanges() ) {
+            d.addChanges( createChangeEnvelope( ch ) );
+        }
+
+        d.build().writeTo( os );
+    }
+
+    /**
+     * Add the image files of a photo to protobuf message
+     * @param d The message
+     * @param p The photo
+     * @param fileIds UUIDs of files already added to message. Files in this
+     * set are not added again, and the added files are added to the set.
+     */
+    static void addFilesProtobuf( ImageProtos.PhotovaultData.Builder d,
+            PhotoInfo p, Set<UUID> fileIds ) {
         OriginalImageDescriptor orig = p.getOriginal();
+        if ( orig == null ) {
+            return;
+        }
         ImageFile origFile = orig.getFile();
-        fileIds.add( origFile.getId() );
-        ImageFileDTO fdto = new ImageFileDTO( origFile );
-        d.addFiles( fdto.getBuilder() );
+        if ( fileIds.add( origFile.getId() ) ) {
+            ImageFileDTO fdto = new ImageFileDTO( origFile );
+            d.addFiles( fdto.getBuilder() );
+        }
         for ( CopyImageDescriptor copy : orig.getCopies() ) {
             ImageFile copyFile = copy.getFile();
-            if ( !fileIds.contains( copyFile.getId() ) ) {
-                fdto = new ImageFileDTO( copyFile );
+            if ( fileIds.add( copyFile.getId() ) ) {
+                ImageFileDTO fdto = new ImageFileDTO( copyFile );
                 d.addFiles( fdto.getBuilder() );
-                fileIds.add(  copyFile.getId() );
             }
         }
+    }
 
-        // Add the change history
-        ObjectHistoryDTO<PhotoInfo> h = new ObjectHistoryDTO( p.getHistory() );
-        for ( ChangeDTO ch : h.getChanges() ) {
-            ChangeProtos.ChangeEnvelope.Builder chEnv =
-                    ChangeProtos.ChangeEnvelope.newBuilder();
-            chEnv.setChangeId( ProtobufHelper.uuidBuf( ch.getChangeUuid() ) );
-            chEnv.setCreateTime( System.currentTimeMillis() );
-            chEnv.setSerializedChange( ByteString.copyFrom( ch.getXmlData() ) );
-            d.addChanges( chEnv );
+    /**
+     * Create a protobuf envelope for a change
+     * @param ch The change
+     * @return Envelope builder for the change
+     */
+    static ChangeProtos.ChangeEnvelope.Builder createChangeEnvelope( ChangeDTO ch ) {
+        ChangeProtos.ChangeEnvelope.Builder chEnv =
+                ChangeProtos.ChangeEnvelope.newBuilder();
+        chEnv.setChangeId( ProtobufHelper.uuidBuf( ch.getChangeUuid() ) );
+        chEnv.setCreateTime( System.currentTimeMillis() );
+        chEnv.setSerializedChange( ByteString.copyFrom( ch.getXmlData() ) );
+        return chEnv;
+    }
+
+    /**
+     * Number of objects read from database between clearing the persistence
+     * context during export.
+     */
+    static final int EXPORT_CLEAR_INTERVAL = 200;
+
+    /**
+     * Maximum number of exported objects that can be waiting for serialization
+     * or writing at the same time. This bounds the memory used by export
+     * regardless of database size.
+     */
+    static final int EXPORT_QUEUE_SIZE = 64;
+
+    /**
+     * Single entry in export file
+     */
+    static private class ExportEntry {
+        ExportEntry( String name, byte[] data ) {
+            this.name = name;
+            this.data = data;
         }
+        /**
+         * Name of the entry
+         */
+        String name;
+        /**
+         * Contents of the entry or <code>null</code> for directories
+         */
+        byte[] data;
+    }
 
-        d.build().writeTo( os );
+    /**
+     * Marks the end of export in writer queue
+     */
+    static private final Future<List<ExportEntry>> END_OF_EXPORT =
+            new FutureTask<List<ExportEntry>>( new Callable<List<ExportEntry>>() {
+        public List<ExportEntry> call() {
+            return null;
+        }
+    } );
+
+    /**
+     * Writer thread that drains serialized objects to the zip file in the
+     * order in which they were submitted.
+     */
+    private class ExportWriter extends Thread {
+
+        ExportWriter( ZipOutputStream zipo ) {
+            super( "Photovault export writer" );
+            this.zipo = zipo;
+        }
+
+        private ZipOutputStream zipo;
+
+        /**
+         * Serialization tasks waiting to be written
+         */
+        private BlockingQueue<Future<List<ExportEntry>>> queue =
+                new ArrayBlockingQueue<Future<List<ExportEntry>>>( EXPORT_QUEUE_SIZE );
+
+        /**
+         * First error encountered or <code>null</code> if none
+         */
+        private volatile Throwable error = null;
+
+        private int objectCount = 0;
+
+        /**
+         * Add a serialization task to the end of write queue. Blocks until
+         * there is space in the queue.
+         */
+        void submit( Future<List<ExportEntry>> f ) throws IOException {
+            checkError();
+            try {
+                queue.put( f );
+            } catch ( InterruptedException e ) {
+                throw new IOException( "Export interrupted" );
+            }
+        }
+
+        /**
+         * Wait until all submitted objects have been written.
+         */
+        void finish() throws IOException {
+            try {
+                queue.put( END_OF_EXPORT );
+                join();
+            } catch ( InterruptedException e ) {
+                throw new IOException( "Export interrupted" );
+            }
+            checkError();
+        }
+
+        /**
+         * Throw an IOException if writing has failed
+         */
+        void checkError() throws IOException {
+            Throwable t = error;
+            if ( t instanceof IOException ) {
+                throw (IOException) t;
+            } else if ( t != null ) {
+                IOException e = new IOException( "Error while exporting" );
+                e.initCause( t );
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            while ( true ) {
+                Future<List<ExportEntry>> f;
+                try {
+                    f = queue.take();
+                } catch ( InterruptedException e ) {
+                    error = e;
+                    return;
+                }
+                if ( f == END_OF_EXPORT ) {
+                    return;
+                }
+                if ( error != null ) {
+                    // Keep draining the queue so that the producer is not blocked
+                    f.cancel( false );
+                    continue;
+                }
+                try {
+                    for ( ExportEntry e : f.get() ) {
+                        zipo.putNextEntry( new ZipEntry( e.name ) );
+                        if ( e.data != null ) {
+                            zipo.write( e.data );
+                        }
+                    }
+                    objectCount++;
+                    if ( objectCount % 1000 == 0 ) {
+                        log.debug( "" + objectCount + " objects exported" );
+                    }
+                } catch ( ExecutionException e ) {
+                    log.error( "Error serializing exported object", e.getCause() );
+                    error = e.getCause();
+                } catch ( InterruptedException e ) {
+                    error = e;
+                    return;
+                } catch ( IOException e ) {
+                    log.error( "Error writing export file", e );
+                    error = e;
+                }
+            }
+        }
     }
 
+    /**
+     * Iterate through all instances of given entity. If the database is
+     * accessed with Hibernate the instances are read using a forward only
+     * cursor and the session is cleared after every
+     * {@link #EXPORT_CLEAR_INTERVAL} instances, so the caller must not use
+     * an instance after moving to the next one.
+     *
+     * @param entityClass Class of the entity
+     * @param dao DAO used if the database is not accessed with Hibernate
+     * @param df DAO factory for current persistence context
+     * @return Iterator through all instances
+     */
+    private <T> Iterator<T> iterateAll( final Class<T> entityClass, 
+            GenericDAO<T, ?> dao, DAOFactory df ) {
+        if ( !(df instanceof HibernateDAOFactory) ) {
+            return dao.findAll().iterator();
+        }
+        final Session s = ((HibernateDAOFactory) df).getSession();
+        final ScrollableResults rows = s.createQuery( "from " + entityClass.getName() ).
+                setFetchSize( EXPORT_CLEAR_INTERVAL ).setReadOnly( true ).
+                scroll( ScrollMode.FORWARD_ONLY );
+        return new Iterator<T>() {
+            int count = 0;
+            Boolean hasNext = null;
+
+            public boolean hasNext() {
+                if ( hasNext == null ) {
+                    if ( count > 0 && count % EXPORT_CLEAR_INTERVAL == 0 ) {
+                        s.clear();
+                    }
+                    hasNext = rows.next();
+                    if ( !hasNext ) {
+                        rows.close();
+                    }
+                }
+                return hasNext;
+            }
+
+            public T next() {
+                if ( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                hasNext = null;
+                count++;
+                return entityClass.cast( rows.get( 0 ) );
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Export all image files, folders and photos in database to a zip file.
+     * <p>
+     * Objects are read in batches, and the detached data needed for export is
+     * copied in the calling thread. Serialization is done in a pool of worker
+     * threads and a single writer thread writes the results to zip file in
+     * the original order. As only a bounded number of objects can be in
+     * process at any time, memory usage does not depend on database size.
+     *
+     * @param zipFile The file into which the data is written
+     * @param df DAO factory for accessing the database
+     * @throws FileNotFoundException if the file cannot be created
+     * @throws IOException if writing fails
+     */
     public void exportPhotos( File zipFile, DAOFactory df ) throws FileNotFoundException, IOException {
-        PhotoInfoDAO photoDAO = df.getPhotoInfoDAO();
         FileOutputStream os = new FileOutputStream( zipFile );
         ZipOutputStream zipo = new ZipOutputStream( os );
-        int photoCount = 0;
-        ImageFileDAO ifDao = df.getImageFileDAO();
-        List<ImageFile> files = ifDao.findAll();
-        ZipEntry filedir = new ZipEntry( "files/" );
-        zipo.putNextEntry( filedir );
-        for ( ImageFile f : files ) {
-            addFileInfo( f, zipo );
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors() );
+        ExportWriter writer = new ExportWriter( zipo );
+        writer.start();
+        try {
+            List<ExportEntry> filedir = new ArrayList<ExportEntry>();
+            filedir.add( new ExportEntry( "files/", null ) );
+            writer.submit( workers.submit( new EntriesTask( filedir ) ) );
+            Iterator<ImageFile> files =
+                    iterateAll( ImageFile.class, df.getImageFileDAO(), df );
+            while ( files.hasNext() ) {
+                writer.submit( workers.submit( 
+                        new FileInfoTask( new ImageFileDTO( files.next() ) ) ) );
+            }
+
+            PhotoFolderDAO folderDAO = df.getPhotoFolderDAO();
+            exportFolderHierarchy( folderDAO.findRootFolder(), writer, workers );
+
+            Iterator<PhotoInfo> photos =
+                    iterateAll( PhotoInfo.class, df.getPhotoInfoDAO(), df );
+            while ( photos.hasNext() ) {
+                PhotoInfo p = photos.next();
+                String dirName = "photo_" + p.getUuid() + "/";
+                writer.submit( workers.submit( new HistoryTask(
+                        new ObjectHistoryDTO<PhotoInfo>( p.getHistory() ), dirName ) ) );
+            }
+            writer.finish();
+        } finally {
+            workers.shutdownNow();
+            if ( writer.isAlive() ) {
+                writer.interrupt();
+                // Writer must not use the zip stream after it is closed
+                try {
+                    writer.join();
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            zipo.close();
         }
+    }
 
-        PhotoFolderDAO folderDAO = df.getPhotoFolderDAO();
-        exportFolderHierarchy( folderDAO.findRootFolder(), zipo );
-        List<PhotoInfo> allPhotos = photoDAO.findAll();
-        for ( PhotoInfo p : allPhotos ) {
-            String dirName = "photo_" +  p.getUuid() + "/";
-            exportHistory( p.getHistory(), dirName, zipo );
-            photoCount++;
-            log.debug( "" + photoCount + " photos exported" );
+    /**
+     * Task that returns a precalculated list of entries
+     */
+    static private class EntriesTask implements Callable<List<ExportEntry>> {
+        EntriesTask( List<ExportEntry> entries ) {
+            this.entries = entries;
+        }
+        List<ExportEntry> entries;
+
+        public List<ExportEntry> call() {
+            return entries;
+        }
+    }
+
+    /**
+     * Task that serializes change history of an object
+     */
+    static private class HistoryTask implements Callable<List<ExportEntry>> {
+        HistoryTask( ObjectHistoryDTO h, String dirName ) {
+            this.h = h;
+            this.dirName = dirName;
+        }
+        ObjectHistoryDTO<?> h;
+        String dirName;
+
+        public List<ExportEntry> call() throws IOException {
+            List<ExportEntry> ret = new ArrayList<ExportEntry>();
+            ret.add( new ExportEntry( dirName, null ) );
+            for ( ChangeDTO ch : h.getChanges() ) {
+                String fname = dirName + ch.getChangeUuid() + ".xml";
+                ret.add( new ExportEntry( fname, ch.getXmlData() ) );
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Task that serializes information about an image file
+     */
+    private class FileInfoTask implements Callable<List<ExportEntry>> {
+        FileInfoTask( ImageFileDTO dto ) {
+            this.dto = dto;
+        }
+        ImageFileDTO dto;
+
+        public List<ExportEntry> call() throws IOException {
+            String fileName = "files/file_" + dto.getUuid().toString()+ ".xml";
+            String xml = getFileXstream().toXML( dto );
+            return Collections.singletonList(
+                    new ExportEntry( fileName, xml.getBytes( "utf-8" ) ) );
         }
-        zipo.close();
     }
 
     /**
      * Export the folder hierarchy below a given folder to externam file
      * @param f The top folder of the hierarchy
-     * @param zipo Stream in which the exported data will be written.
+     * @param writer Writer used to write the exported data
+     * @param workers Executor used for serializing the folders
      * @throws IOException
      */
-    private void exportFolderHierarchy( PhotoFolder f, ZipOutputStream zipo )
+    private void exportFolderHierarchy( PhotoFolder f, ExportWriter writer,
+            ExecutorService workers )
             throws IOException {
-        ObjectHistory<PhotoFolder> h = f.getHistory();
         String dirName = "folder_" + f.getUuid() + "/";
-        exportHistory( h, dirName, zipo );
+        writer.submit( workers.submit( new HistoryTask( 
+                new ObjectHistoryDTO<PhotoFolder>( f.getHistory() ), dirName ) ) );
         for ( PhotoFolder child : f.getSubfolders() ) {
-            exportFolderHierarchy( child, zipo);
+            exportFolderHierarchy( child, writer, workers );
         }
     }
 
@@ -170,120 +499,29 @@ public class DataExporter {
      */
     public void importChanges( ObjectInputStream is, DAOFactory df )
             throws IOException {
-        ObjectHistoryDTO dto = null;
-        int folderCount = 0;
-        int photoCount = 0;
-        int totalCount = 0;
-        try {
-            dto = (ObjectHistoryDTO) is.readObject();
-        } catch ( ClassNotFoundException ex ) {
-            log.error( ex );
-        }
-        HibernateDAOFactory hdf = (HibernateDAOFactory) df;
-        Session session = hdf.getSession();
-        PhotoFolderDAO folderDao = df.getPhotoFolderDAO();
-        PhotoInfoDAO photoDao = df.getPhotoInfoDAO();
-        DTOResolverFactory rf = df.getDTOResolverFactory();
-        ChangeFactory cf = new ChangeFactory( df.getChangeDAO() );
-        while ( dto != null ) {
-            long startTime = System.currentTimeMillis();
-            Transaction tx = session.beginTransaction();
-            UUID uuid = dto.getTargetUuid();
-            String className = dto.getTargetClassName();
-
-            VersionedObjectEditor e = null;
-            if ( className.equals( PhotoFolder.class.getName() ) ) {
-                e = getFolderEditor( uuid, folderDao, rf );
-                folderCount++;
-            } else {
-                e = getPhotoEditor( uuid, photoDao, rf );
-                photoCount++;
-            }
-            totalCount++;
-            try {
-                e.addToHistory( dto, cf );
-            } catch ( ClassNotFoundException ex ) {
-                log.error( ex );
-            }
-            session.flush();
-            tx.commit();
-            session.clear();
-            log.debug(  "Imported " + className + " in " + (System.currentTimeMillis()-startTime) + " ms. " +
-                    photoCount + " photos, " + folderCount + " folders." );
-            // e.apply();
-            try {
-                dto = (ObjectHistoryDTO) is.readObject();
-            } catch ( ClassNotFoundException ex ) {
-                log.error( ex );
-                return;
-            }
-        }
-    }
-
-
-    /**
-     * Get editor for a folder with given UUID. if the folder is already knwon
-     * in current database return editor for it. If it is unknown, create a
-     * local instance and return editor for it.
-     * @param uuid UUID of the folder
-     * @param folderDao DAO for accessing local instances of folders.
-     * @param rf Resolver factory for the folders.
-     * @return
-     */
-    private VersionedObjectEditor<PhotoFolder> getFolderEditor(
-            UUID uuid, PhotoFolderDAO folderDao, DTOResolverFactory rf ) {
-        PhotoFolder target = null;
-        log.debug( "getFolderEditor(), uuid " + uuid );
-        target = folderDao.findByUUID( uuid );
-        VersionedObjectEditor<PhotoFolder> e = null;
-        if ( target != null ) {
-            log.debug( "getFodlerEditor: folder " + uuid + " found" );
-            e = new VersionedObjectEditor( target, rf );
-        } else {
-            try {
-                log.debug( "getFodlerEditor: Creating new folder " + uuid );
-                e = new VersionedObjectEditor( PhotoFolder.class, uuid, rf );
-                target = e.getTarget();
-                folderDao.makePersistent( target );
-                folderDao.flush();
-            } catch ( InstantiationException ex ) {
-                log.error( ex );
-            } catch ( IllegalAccessException ex ) {
-                log.error( ex );
-            }
-        }
-        return e;
+        importChanges( is, df, null );
     }
 
     /**
-     * Get editor for a photo with given UUID. If the photo is already knwon
-     * in current database return editor for it. If it is unknown, create a
-     * local instance and return editor for it.
-     * @param uuid UUID of the photo
-     * @param photoDao DAO for accessing local instances of photos.
-     * @param rf Resolver factory for the photos.
-     * @return
+     * Import changes from a export file using {@link HistoryImporter}. If
+     * the import is interrupted, it can be resumed by calling this method
+     * again with the same file and checkpoint.
+     * @param is stream used to read the file
+     * @param df factory for accessing current database and persistiong new
+     * objects
+     * @param checkpointFile File used to store import progress or
+     * <code>null</code> if progress is not stored.
+     * @throws IOException
      */
-    private VersionedObjectEditor<PhotoInfo> getPhotoEditor(
-            UUID uuid, PhotoInfoDAO photoDao, DTOResolverFactory rf ) {
-        PhotoInfo target = null;
-        target = photoDao.findByUUID( uuid );
-        VersionedObjectEditor<PhotoInfo> e = null;
-        if ( target != null ) {
-            e = new VersionedObjectEditor( target, rf );
-        } else {
-            try {
-                e = new VersionedObjectEditor( PhotoInfo.class, uuid, rf );
-                target = e.getTarget();
-                photoDao.makePersistent( target );
-                photoDao.flush();
-            } catch ( InstantiationException ex ) {
-                log.error( ex );
-            } catch ( IllegalAccessException ex ) {
-                log.error( ex );
-            }
-        }
-        return e;
+    public void importChanges( ObjectInputStream is, DAOFactory df,
+            File checkpointFile ) throws IOException {
+        HistoryImporter importer =
+                new HistoryImporter( (HibernateDAOFactory) df );
+        importer.setCheckpointFile( checkpointFile );
+        importer.importHistories( is );
+        log.debug( "Imported " + importer.getPhotoCount() + " photos, " +
+                importer.getFolderCount() + " folders, " +
+                importer.getFailedCount() + " failed." );
     }
 
     XStreamChangeSerializer ser = new PhotoChangeSerializer();
@@ -379,6 +617,25 @@ public class DataExporter {
 
     public void importChangesProtobuf( InputStream is, DAOFactory df )
             throws IOException {
+        ImageProtos.PhotovaultData d =
+                ImageProtos.PhotovaultData.parseDelimitedFrom( is );
+        while ( d != null ) {
+            importChangesProtobuf( d, df );
+            d = ImageProtos.PhotovaultData.parseDelimitedFrom( is );
+        }
+        log.debug( "import finished" );
+    }
+
+    /**
+     Import files and changes in a single protobuf message. Files are imported
+     in one transaction, after which the histories of changed objects are 
+     added.
+     @param d The message
+     @param df DAO factory used to access the database
+     @throws IOException if a change cannot be decoded
+     */
+    void importChangesProtobuf( ImageProtos.PhotovaultData d, DAOFactory df )
+            throws IOException {
         DTOResolverFactory drf = df.getDTOResolverFactory();
         ImageFileProtobufResolver fdr = (ImageFileProtobufResolver) drf.getResolver(
                 ImageFileProtobufResolver.class );
@@ -390,70 +647,64 @@ public class DataExporter {
         int fileCount = 0;
         int changeCount = 0;
         int changedObjectCount = 0;
-        ImageProtos.PhotovaultData d =
-                ImageProtos.PhotovaultData.parseDelimitedFrom( is );
-        while ( d != null ) {
-            long startTime = System.currentTimeMillis();
-            Transaction tx = null;
-            if ( s != null ) {
-                tx = s.beginTransaction();
-            }
-            for ( ImageProtos.ImageFile fp : d.getFilesList() ) {
-                fdr.getObjectFromDto( fp );
-                if ( tx != null ) {
-                    s.flush();
-                }
-                fileCount++;
-            }
+        long startTime = System.currentTimeMillis();
+        Transaction tx = null;
+        if ( s != null ) {
+            tx = s.beginTransaction();
+        }
+        for ( ImageProtos.ImageFile fp : d.getFilesList() ) {
+            fdr.getObjectFromDto( fp );
             if ( tx != null ) {
                 s.flush();
-                tx.commit();
-                s.clear();
             }
+            fileCount++;
+        }
+        if ( tx != null ) {
+            s.flush();
+            tx.commit();
+            s.clear();
+        }
 
-            ObjectHistoryDTO h = null;
-            UUID targetId= null;
-            Class targetClass = null;
-            for ( ChangeProtos.ChangeEnvelope cep : d.getChangesList() ) {
-                changeCount++;
-                ChangeProtos.Change chp =
-                        ChangeProtos.Change.parseFrom(cep.getSerializedChange() );
-                UUID newTargetId = ProtobufHelper.uuid( chp.getTargetUUID() );
-                if ( !newTargetId.equals( targetId ) ) {
-                    if ( h != null ) {
-                        addHistory( h, df );
-                    }
-                    try {
-                        targetId = newTargetId;
-                        targetClass = Class.forName(
-                                chp.getTargetClassName() );
-                        h = new ObjectHistoryDTO( targetClass, targetId );
-                    } catch ( ClassNotFoundException e ) {
-                        log.error( "Cannot find class "
-                                + chp.getTargetClassName() );
-                        h = null;
-                        continue;
-                    }
-                    changedObjectCount++;
+        ObjectHistoryDTO h = null;
+        UUID targetId= null;
+        Class targetClass = null;
+        for ( ChangeProtos.ChangeEnvelope cep : d.getChangesList() ) {
+            changeCount++;
+            ChangeProtos.Change chp =
+                    ChangeProtos.Change.parseFrom(cep.getSerializedChange() );
+            UUID newTargetId = ProtobufHelper.uuid( chp.getTargetUUID() );
+            if ( !newTargetId.equals( targetId ) ) {
+                if ( h != null ) {
+                    addHistory( h, df );
                 }
-                ChangeDTO dto = ChangeDTO.createChange(
-                        cep.getSerializedChange().toByteArray(), targetClass );
-                if ( !dto.calcUuid().equals( ProtobufHelper.uuid( cep.getChangeId() ) ) ) {
-                    log.error( "UUID in change envelope ("
-                            + ProtobufHelper.uuid( cep.getChangeId() )
-                            + ") does not match change hash " + dto.calcUuid() );
+                try {
+                    targetId = newTargetId;
+                    targetClass = Class.forName(
+                            chp.getTargetClassName() );
+                    h = new ObjectHistoryDTO( targetClass, targetId );
+                } catch ( ClassNotFoundException e ) {
+                    log.error( "Cannot find class "
+                            + chp.getTargetClassName() );
+                    h = null;
                     continue;
                 }
-                h.addChange( dto );
+                changedObjectCount++;
             }
-            if ( h != null ) {
-                addHistory( h, df );
+            ChangeDTO dto = ChangeDTO.createChange(
+                    cep.getSerializedChange().toByteArray(), targetClass );
+            if ( !dto.calcUuid().equals( ProtobufHelper.uuid( cep.getChangeId() ) ) ) {
+                log.error( "UUID in change envelope ("
+                        + ProtobufHelper.uuid( cep.getChangeId() )
+                        + ") does not match change hash " + dto.calcUuid() );
+                continue;
             }
-            log.debug( "Imported " + fileCount + " files & " + changeCount + " changes to " + changedObjectCount + " objects." );
-            log.debug( "last batch took " + (System.currentTimeMillis() - startTime) + " ms." );
-            d = ImageProtos.PhotovaultData.parseDelimitedFrom( is );
+            h.addChange( dto );
         }
-        log.debug( "import finished" );
+        if ( h != null ) {
+            addHistory( h, df );
+        }
+        log.debug( "Imported " + fileCount + " files & " + changeCount + " changes to " + changedObjectCount + " objects." );
+        log.debug( "batch took " + (System.currentTimeMillis() - startTime) + " ms." );
     }
 
 
@@ -0,0 +1,774 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.photovault.folder.PhotoFolder;
+import org.photovault.imginfo.dto.ImageProtos;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.replication.Change;
+import org.photovault.replication.ChangeDAO;
+import org.photovault.replication.ChangeDTO;
+import org.photovault.replication.ChangeDigest;
+import org.photovault.replication.ObjectHistory;
+
+/**
+ DeltaSynchronizer brings two Photovault databases to the same state by 
+ transferring only those changes that the other party does not have.
+ <p>
+ The synchronization consists of the following phases:
+ <ol>
+ <li>The objects whose changes differ are found by comparing {@link 
+ ChangeDigest}s. Initiator sends digests of the buckets at first level of
+ digest hierarchy, and responder replies with the buckets whose digests 
+ differ. This is repeated with the child buckets of differing ones until leaf
+ level, after which initiator sends digests of all objects in differing leaf 
+ buckets and responder replies with UUIDs of objects that differ.</li>
+ <li>Initiator sends UUIDs of the head changes of the differing objects.</li>
+ <li>Responder sends all changes that are not ancestors of the initiator's 
+ heads, followed by its own heads.</li>
+ <li>Initiator imports the changes and sends the changes that are not 
+ ancestors of responder's heads.</li>
+ </ol>
+ Changes are sent in batches of {@link #CHANGE_BATCH_SIZE} objects, each in
+ its own message, followed by a message that tells the number of changes 
+ sent. Receiver imports each batch when it arrives, so neither party needs to
+ hold all changes in memory.
+ Objects whose changes are equal in both databases are skipped without 
+ loading their history, so the amount of work and transferred data depends on
+ the number of changes made since last synchronization, not on the size of 
+ the database. Changes are sent as protobuf {@link 
+ org.photovault.replication.ChangeProtos.ChangeEnvelope} messages together 
+ with the image files of changed photos, and imported using {@link 
+ DataExporter#importChangesProtobuf(ImageProtos.PhotovaultData, 
+ org.photovault.persistence.DAOFactory)}, which also merges diverged 
+ branches.
+ <p>
+ The messages are delivered by a {@link SyncTransport}.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class DeltaSynchronizer {
+
+    static private Log log = LogFactory.getLog( DeltaSynchronizer.class.getName() );
+
+    /**
+     Version of the synchronization protocol
+     */
+    static final int PROTOCOL_VERSION = 3;
+
+    static final int MSG_HEADS = 1;
+    static final int MSG_CHANGES = 2;
+    static final int MSG_DIGESTS = 3;
+    static final int MSG_BUCKETS = 4;
+    static final int MSG_OBJECT_DIGESTS = 5;
+    static final int MSG_OBJECTS = 6;
+    static final int MSG_CHANGES_END = 7;
+
+    /**
+     Number of objects whose changes are put into a single message (and 
+     imported in a single transaction)
+     */
+    static final int CHANGE_BATCH_SIZE = 100;
+
+    /**
+     Heads of a single object
+     */
+    static class ObjectHeads {
+        String className;
+        Set<UUID> heads = new HashSet<UUID>();
+
+        ObjectHeads( String className ) {
+            this.className = className;
+        }
+    }
+
+    /**
+     Names of classes whose histories are synchronized
+     */
+    static private final Set<String> syncedClasses = new HashSet<String>();
+
+    static {
+        syncedClasses.add( PhotoFolder.class.getName() );
+        syncedClasses.add( PhotoInfo.class.getName() );
+    }
+
+    private HibernateDAOFactory df;
+
+    private int differingObjectCount = 0;
+    private int sentChangeCount = 0;
+    private int receivedChangeCount = 0;
+    private long sentBytes = 0;
+    private long receivedBytes = 0;
+
+    /**
+     Creates a new DeltaSynchronizer
+     @param df DAO factory used to access local database
+     */
+    public DeltaSynchronizer( HibernateDAOFactory df ) {
+        this.df = df;
+    }
+
+    /**
+     Get the number of objects whose changes differed from peer's
+     */
+    public int getDifferingObjectCount() {
+        return differingObjectCount;
+    }
+
+    /**
+     Get the number of changes sent to peer
+     */
+    public int getSentChangeCount() {
+        return sentChangeCount;
+    }
+
+    /**
+     Get the number of changes received from peer
+     */
+    public int getReceivedChangeCount() {
+        return receivedChangeCount;
+    }
+
+    /**
+     Get the number of bytes sent to peer
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     Get the number of bytes received from peer
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     Synchronize with a peer that is running {@link #serve(SyncTransport)}.
+     @param t Transport used to communicate with the peer
+     @throws IOException if communication fails
+     */
+    public void synchronize( SyncTransport t ) throws IOException {
+        log.debug( "synchronize: entry" );
+        Set<UUID> objects = findDifferences( t );
+        send( t, encodeHeads( readLocalHeads( objects ) ) );
+        receiveChanges( t );
+        Map<UUID, ObjectHeads> peerHeads = decodeHeads( receive( t ) );
+        sendChanges( t, peerHeads, objects );
+        log.debug( "synchronize: sent " + sentChangeCount + " changes, received " 
+                + receivedChangeCount );
+    }
+
+    /**
+     Respond to synchronization request from peer that is calling {@link 
+     #synchronize(SyncTransport)}.
+     @param t Transport used to communicate with the peer
+     @throws IOException if communication fails
+     */
+    public void serve( SyncTransport t ) throws IOException {
+        log.debug( "serve: entry" );
+        Set<UUID> objects = respondDifferences( t );
+        Map<UUID, ObjectHeads> peerHeads = decodeHeads( receive( t ) );
+        sendChanges( t, peerHeads, objects );
+        send( t, encodeHeads( readLocalHeads( objects ) ) );
+        receiveChanges( t );
+        log.debug( "serve: sent " + sentChangeCount + " changes, received " 
+                + receivedChangeCount );
+    }
+
+    private void send( SyncTransport t, byte[] msg ) throws IOException {
+        t.send( msg );
+        sentBytes += msg.length;
+    }
+
+    private byte[] receive( SyncTransport t ) throws IOException {
+        byte[] msg = t.receive();
+        receivedBytes += msg.length;
+        return msg;
+    }
+
+    /**
+     Find the objects whose changes differ from peer's. Called by initiator, 
+     peer must call {@link #respondDifferences(SyncTransport)}.
+     @param t Transport used
+     @return UUIDs of the differing objects
+     @throws IOException if communication fails
+     */
+    private Set<UUID> findDifferences( SyncTransport t ) throws IOException {
+        ChangeDigest.Digest[] leaves = readLeafDigests();
+        List<Integer> buckets = new ArrayList<Integer>();
+        for ( int n = 0 ; n < ChangeDigest.FANOUT ; n++ ) {
+            buckets.add( n );
+        }
+        for ( int level = 1 ; level <= ChangeDigest.LEAF_LEVEL ; level++ ) {
+            ChangeDigest.Digest[] digests = 
+                    ChangeDigest.getLevelDigests( leaves, level );
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream os = startMessage( bos, MSG_DIGESTS );
+            os.writeInt( level );
+            os.writeInt( buckets.size() );
+            for ( int b : buckets ) {
+                os.writeInt( b );
+                writeDigest( os, digests[b] );
+            }
+            os.close();
+            send( t, bos.toByteArray() );
+
+            DataInputStream is = readHeader( receive( t ), MSG_BUCKETS );
+            int count = is.readInt();
+            buckets = new ArrayList<Integer>();
+            for ( int n = 0 ; n < count ; n++ ) {
+                int b = is.readInt();
+                if ( level < ChangeDigest.LEAF_LEVEL ) {
+                    for ( int c = 0 ; c < ChangeDigest.FANOUT ; c++ ) {
+                        buckets.add( b * ChangeDigest.FANOUT + c );
+                    }
+                } else {
+                    buckets.add( b );
+                }
+            }
+            if ( buckets.isEmpty() ) {
+                log.debug( "No differences found at level " + level );
+                return Collections.emptySet();
+            }
+        }
+
+        Map<UUID, ChangeDigest.Digest> objects = readObjectDigests( buckets );
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = startMessage( bos, MSG_OBJECT_DIGESTS );
+        os.writeInt( buckets.size() );
+        for ( int b : buckets ) {
+            os.writeInt( b );
+        }
+        os.writeInt( objects.size() );
+        for ( Map.Entry<UUID, ChangeDigest.Digest> e : objects.entrySet() ) {
+            writeUuid( os, e.getKey() );
+            writeDigest( os, e.getValue() );
+        }
+        os.close();
+        send( t, bos.toByteArray() );
+
+        DataInputStream is = readHeader( receive( t ), MSG_OBJECTS );
+        int count = is.readInt();
+        Set<UUID> ret = new HashSet<UUID>( count * 2 );
+        for ( int n = 0 ; n < count ; n++ ) {
+            ret.add( readUuid( is ) );
+        }
+        differingObjectCount = ret.size();
+        log.debug( "Found " + ret.size() + " differing objects in " + 
+                buckets.size() + " buckets" );
+        return ret;
+    }
+
+    /**
+     Respond to {@link #findDifferences(SyncTransport)} called by peer.
+     @param t Transport used
+     @return UUIDs of the differing objects
+     @throws IOException if communication fails
+     */
+    private Set<UUID> respondDifferences( SyncTransport t ) throws IOException {
+        ChangeDigest.Digest[] leaves = readLeafDigests();
+        for ( int level = 1 ; level <= ChangeDigest.LEAF_LEVEL ; level++ ) {
+            DataInputStream is = readHeader( receive( t ), MSG_DIGESTS );
+            int peerLevel = is.readInt();
+            if ( peerLevel != level ) {
+                throw new IOException( "Expected digests of level " + level + 
+                        ", got " + peerLevel );
+            }
+            ChangeDigest.Digest[] digests = 
+                    ChangeDigest.getLevelDigests( leaves, level );
+            List<Integer> differing = new ArrayList<Integer>();
+            int count = is.readInt();
+            for ( int n = 0 ; n < count ; n++ ) {
+                int b = is.readInt();
+                ChangeDigest.Digest d = readDigest( is );
+                if ( b < 0 || b >= digests.length ) {
+                    throw new IOException( "Invalid bucket " + b );
+                }
+                if ( !d.equals( digests[b] ) ) {
+                    differing.add( b );
+                }
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream os = startMessage( bos, MSG_BUCKETS );
+            os.writeInt( differing.size() );
+            for ( int b : differing ) {
+                os.writeInt( b );
+            }
+            os.close();
+            send( t, bos.toByteArray() );
+            if ( differing.isEmpty() ) {
+                return Collections.emptySet();
+            }
+        }
+
+        DataInputStream is = readHeader( receive( t ), MSG_OBJECT_DIGESTS );
+        int bucketCount = is.readInt();
+        List<Integer> buckets = new ArrayList<Integer>( bucketCount );
+        for ( int n = 0 ; n < bucketCount ; n++ ) {
+            int b = is.readInt();
+            if ( b < 0 || b >= ChangeDigest.BUCKET_COUNT ) {
+                throw new IOException( "Invalid bucket " + b );
+            }
+            buckets.add( b );
+        }
+        Map<UUID, ChangeDigest.Digest> localObjects = readObjectDigests( buckets );
+        Set<UUID> ret = new HashSet<UUID>();
+        int count = is.readInt();
+        for ( int n = 0 ; n < count ; n++ ) {
+            UUID id = readUuid( is );
+            ChangeDigest.Digest d = readDigest( is );
+            if ( !d.equals( localObjects.remove( id ) ) ) {
+                ret.add( id );
+            }
+        }
+        // Objects that peer does not have at all
+        ret.addAll( localObjects.keySet() );
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = startMessage( bos, MSG_OBJECTS );
+        os.writeInt( ret.size() );
+        for ( UUID id : ret ) {
+            writeUuid( os, id );
+        }
+        os.close();
+        send( t, bos.toByteArray() );
+        differingObjectCount = ret.size();
+        return ret;
+    }
+
+    /**
+     Read digests of all leaf buckets from local database
+     */
+    private ChangeDigest.Digest[] readLeafDigests() throws IOException {
+        Session s = df.getSession();
+        Transaction tx = s.beginTransaction();
+        try {
+            ChangeDigest.Digest[] ret = ChangeDigest.readLeafDigests( s );
+            tx.commit();
+            return ret;
+        } catch ( HibernateException e ) {
+            tx.rollback();
+            throw new IOException( "Cannot read change digests", e );
+        }
+    }
+
+    /**
+     Read digests of all objects in given leaf buckets from local database
+     */
+    private Map<UUID, ChangeDigest.Digest> readObjectDigests( List<Integer> buckets )
+            throws IOException {
+        Map<UUID, ChangeDigest.Digest> ret = new HashMap<UUID, ChangeDigest.Digest>();
+        Session s = df.getSession();
+        Transaction tx = s.beginTransaction();
+        try {
+            for ( int b : buckets ) {
+                ret.putAll( ChangeDigest.readObjectDigests( s, b ) );
+            }
+            tx.commit();
+        } catch ( HibernateException e ) {
+            tx.rollback();
+            throw new IOException( "Cannot read change digests", e );
+        }
+        return ret;
+    }
+
+    /**
+     Read heads of all synchronized objects in local database
+     @return Map from object UUID to its heads
+     */
+    Map<UUID, ObjectHeads> readLocalHeads() {
+        return readLocalHeads( null );
+    }
+
+    /**
+     Read heads of given objects in local database
+     @param ids UUIDs of the objects, or <code>null</code> if heads of all
+     synchronized objects are read. Objects not found in database are 
+     ignored.
+     @return Map from object UUID to its heads
+     */
+    Map<UUID, ObjectHeads> readLocalHeads( Collection<UUID> ids ) {
+        Map<UUID, ObjectHeads> ret = new HashMap<UUID, ObjectHeads>();
+        if ( ids != null && ids.isEmpty() ) {
+            return ret;
+        }
+        Session s = df.getSession();
+        Transaction tx = s.beginTransaction();
+        try {
+            String hql = "select h.targetUuid, h.targetClassName, c.uuid " +
+                    "from ObjectHistory h join h.heads c";
+            if ( ids == null ) {
+                readHeads( s.createQuery( hql ), ret );
+            } else {
+                List<UUID> idList = new ArrayList<UUID>( ids );
+                for ( int start = 0 ; start < idList.size() ; 
+                        start += HEAD_QUERY_SIZE ) {
+                    Query q = s.createQuery( hql + " where h.targetUuid in (:ids)" );
+                    q.setParameterList( "ids", idList.subList( start, 
+                            Math.min( start + HEAD_QUERY_SIZE, idList.size() ) ) );
+                    readHeads( q, ret );
+                }
+            }
+            tx.commit();
+        } catch ( RuntimeException e ) {
+            tx.rollback();
+            throw e;
+        }
+        return ret;
+    }
+
+    /**
+     Maximum number of objects whose heads are read with a single query
+     */
+    static final int HEAD_QUERY_SIZE = 500;
+
+    static private void readHeads( Query q, Map<UUID, ObjectHeads> heads ) {
+        ScrollableResults r = q.scroll( ScrollMode.FORWARD_ONLY );
+        while ( r.next() ) {
+            UUID target = (UUID) r.get( 0 );
+            String className = (String) r.get( 1 );
+            if ( !syncedClasses.contains( className ) ) {
+                continue;
+            }
+            ObjectHeads oh = heads.get( target );
+            if ( oh == null ) {
+                oh = new ObjectHeads( className );
+                heads.put( target, oh );
+            }
+            oh.heads.add( (UUID) r.get( 2 ) );
+        }
+        r.close();
+    }
+
+    /**
+     Encode heads message
+     @param heads Map from object UUID to its heads
+     @return The message
+     */
+    static byte[] encodeHeads( Map<UUID, ObjectHeads> heads ) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = startMessage( bos, MSG_HEADS );
+        os.writeInt( heads.size() );
+        for ( Map.Entry<UUID, ObjectHeads> e : heads.entrySet() ) {
+            writeUuid( os, e.getKey() );
+            os.writeUTF( e.getValue().className );
+            os.writeInt( e.getValue().heads.size() );
+            for ( UUID h : e.getValue().heads ) {
+                writeUuid( os, h );
+            }
+        }
+        os.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     Decode heads message
+     @param msg The message
+     @return Map from object UUID to its heads
+     @throws IOException if the message is not a valid heads message
+     */
+    static Map<UUID, ObjectHeads> decodeHeads( byte[] msg ) throws IOException {
+        DataInputStream is = readHeader( msg, MSG_HEADS );
+        int count = is.readInt();
+        Map<UUID, ObjectHeads> ret = new HashMap<UUID, ObjectHeads>( count * 2 );
+        for ( int n = 0 ; n < count ; n++ ) {
+            UUID target = readUuid( is );
+            ObjectHeads oh = new ObjectHeads( is.readUTF() );
+            int headCount = is.readInt();
+            for ( int m = 0 ; m < headCount ; m++ ) {
+                oh.heads.add( readUuid( is ) );
+            }
+            ret.put( target, oh );
+        }
+        return ret;
+    }
+
+    static private DataOutputStream startMessage( ByteArrayOutputStream bos, 
+            int type ) throws IOException {
+        DataOutputStream os = new DataOutputStream( bos );
+        os.writeInt( type );
+        os.writeInt( PROTOCOL_VERSION );
+        return os;
+    }
+
+    static private int getMessageType( byte[] msg ) throws IOException {
+        return new DataInputStream( new ByteArrayInputStream( msg ) ).readInt();
+    }
+
+    static private DataInputStream readHeader( byte[] msg, int type ) 
+            throws IOException {
+        DataInputStream is = new DataInputStream( new ByteArrayInputStream( msg ) );
+        int msgType = is.readInt();
+        if ( msgType != type ) {
+            throw new IOException( "Expected message " + type + ", got " + msgType );
+        }
+        int version = is.readInt();
+        if ( version != PROTOCOL_VERSION ) {
+            throw new IOException( "Unsupported protocol version " + version );
+        }
+        return is;
+    }
+
+    static private void writeUuid( DataOutputStream os, UUID id ) throws IOException {
+        os.writeLong( id.getMostSignificantBits() );
+        os.writeLong( id.getLeastSignificantBits() );
+    }
+
+    static private UUID readUuid( DataInputStream is ) throws IOException {
+        long msb = is.readLong();
+        long lsb = is.readLong();
+        return new UUID( msb, lsb );
+    }
+
+    static private void writeDigest( DataOutputStream os, ChangeDigest.Digest d ) 
+            throws IOException {
+        os.writeLong( d.getHi() );
+        os.writeLong( d.getLo() );
+    }
+
+    static private ChangeDigest.Digest readDigest( DataInputStream is ) 
+            throws IOException {
+        long hi = is.readLong();
+        long lo = is.readLong();
+        return new ChangeDigest.Digest( hi, lo );
+    }
+
+    /**
+     Send all local changes the peer does not have. Changes of each batch of 
+     {@link #CHANGE_BATCH_SIZE} objects are sent in a separate message, and 
+     the last message tells the number of changes sent.
+     @param t Transport used
+     @param peerHeads Heads of objects in peer's database
+     @param objects UUIDs of objects whose changes are sent, or 
+     <code>null</code> if all objects are checked.
+     @throws IOException if communication fails
+     */
+    void sendChanges( SyncTransport t, Map<UUID, ObjectHeads> peerHeads, 
+            Set<UUID> objects ) throws IOException {
+        Map<UUID, ObjectHeads> localHeads = readLocalHeads( objects );
+        final Map<UUID, Integer> folderDepths = new HashMap<UUID, Integer>();
+        List<UUID> photos = new ArrayList<UUID>();
+        Session s = df.getSession();
+        Transaction tx = s.beginTransaction();
+        try {
+            for ( Map.Entry<UUID, ObjectHeads> e : localHeads.entrySet() ) {
+                ObjectHeads ph = peerHeads.get( e.getKey() );
+                if ( ph != null && ph.heads.containsAll( e.getValue().heads ) ) {
+                    continue;
+                }
+                if ( PhotoFolder.class.getName().equals( e.getValue().className ) ) {
+                    PhotoFolder f = df.getPhotoFolderDAO().findByUUID( e.getKey() );
+                    int depth = 0;
+                    for ( PhotoFolder p = f.getParentFolder() ; p != null ;
+                            p = p.getParentFolder() ) {
+                        depth++;
+                    }
+                    folderDepths.put( e.getKey(), depth );
+                } else {
+                    photos.add( e.getKey() );
+                }
+            }
+            tx.commit();
+        } catch ( RuntimeException e ) {
+            tx.rollback();
+            throw e;
+        }
+        s.clear();
+
+        /*
+         Folders are sent before photos and parents before subfolders, so that
+         all objects referred by a history are known when it is imported.
+         */
+        List<UUID> sendOrder = new ArrayList<UUID>( folderDepths.keySet() );
+        Collections.sort( sendOrder, new Comparator<UUID>() {
+            public int compare( UUID o1, UUID o2 ) {
+                return folderDepths.get( o1 ) - folderDepths.get( o2 );
+            }
+        });
+        sendOrder.addAll( photos );
+
+        int changeCount = 0;
+        ChangeDAO changeDao = df.getChangeDAO();
+        for ( int start = 0 ; start < sendOrder.size() ; start += CHANGE_BATCH_SIZE ) {
+            int end = Math.min( start + CHANGE_BATCH_SIZE, sendOrder.size() );
+            ImageProtos.PhotovaultData.Builder d =
+                    ImageProtos.PhotovaultData.newBuilder();
+            Set<UUID> fileIds = new HashSet<UUID>();
+            tx = s.beginTransaction();
+            try {
+                for ( UUID id : sendOrder.subList( start, end ) ) {
+                    ObjectHistory h = changeDao.findObjectHistory( id );
+                    ObjectHeads ph = peerHeads.get( id );
+                    Set<UUID> known = ph != null ? 
+                        ph.heads : Collections.<UUID>emptySet();
+                    List<Change> missing = findMissingChanges( h, known );
+                    if ( missing.isEmpty() ) {
+                        continue;
+                    }
+                    if ( PhotoInfo.class.getName().equals( h.getTargetClassName() ) ) {
+                        PhotoInfo p = df.getPhotoInfoDAO().findByUUID( id );
+                        DataExporter.addFilesProtobuf( d, p, fileIds );
+                    }
+                    for ( Change c : missing ) {
+                        d.addChanges( DataExporter.createChangeEnvelope( 
+                                new ChangeDTO( c ) ) );
+                    }
+                    changeCount += missing.size();
+                }
+                tx.commit();
+            } catch ( RuntimeException e ) {
+                tx.rollback();
+                throw e;
+            }
+            s.clear();
+            if ( d.getChangesCount() > 0 ) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream os = startMessage( bos, MSG_CHANGES );
+                d.build().writeTo( os );
+                os.close();
+                send( t, bos.toByteArray() );
+            }
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream os = startMessage( bos, MSG_CHANGES_END );
+        os.writeInt( changeCount );
+        os.close();
+        send( t, bos.toByteArray() );
+        sentChangeCount += changeCount;
+    }
+
+    /**
+     Receive and import changes sent by peer's {@link #sendChanges(
+     SyncTransport, Map, Set)}. Each batch is imported when it is received.
+     @param t Transport used
+     @throws IOException if communication fails, a message is invalid or the 
+     number of changes received does not match the number peer sent.
+     */
+    void receiveChanges( SyncTransport t ) throws IOException {
+        DataExporter importer = new DataExporter();
+        int changeCount = 0;
+        byte[] msg = receive( t );
+        while ( getMessageType( msg ) == MSG_CHANGES ) {
+            ImageProtos.PhotovaultData d = ImageProtos.PhotovaultData.parseFrom( 
+                    readHeader( msg, MSG_CHANGES ) );
+            changeCount += d.getChangesCount();
+            importer.importChangesProtobuf( d, df );
+            msg = receive( t );
+        }
+        DataInputStream is = readHeader( msg, MSG_CHANGES_END );
+        int sentCount = is.readInt();
+        if ( sentCount != changeCount ) {
+            throw new IOException( "Peer sent " + sentCount + 
+                    " changes but " + changeCount + " were received" );
+        }
+        receivedChangeCount += changeCount;
+    }
+
+    /**
+     Find the changes of a history that are not known by peer
+     @param h The history
+     @param peerHeads UUIDs of heads of the object in peer's database. Peer is 
+     assumed to know all ancestors of these changes. Heads not found in the
+     history are ignored.
+     @return The changes that are not ancestors of peerHeads, topologically 
+     sorted so that parents are before their children
+     */
+    static <T> List<Change<T>> findMissingChanges( ObjectHistory<T> h, 
+            Set<UUID> peerHeads ) {
+        Set<Change<T>> known = new HashSet<Change<T>>();
+        LinkedList<Change<T>> queue = new LinkedList<Change<T>>();
+        for ( UUID id : peerHeads ) {
+            Change<T> c = h.getChange( id );
+            if ( c != null ) {
+                queue.add( c );
+            }
+        }
+        while ( !queue.isEmpty() ) {
+            Change<T> c = queue.removeFirst();
+            if ( known.add( c ) ) {
+                queue.addAll( c.getParentChanges() );
+            }
+        }
+
+        /*
+         Sort the missing changes. Iterative depth first search, the stack 
+         contains changes whose parents have not been handled yet. A change
+         can be in stack many times, it is added to result when its parents
+         are done for the first time.
+         */
+        List<Change<T>> ret = new ArrayList<Change<T>>();
+        Set<Change<T>> visited = new HashSet<Change<T>>( known );
+        for ( Change<T> head : h.getHeads() ) {
+            if ( visited.contains( head ) ) {
+                continue;
+            }
+            LinkedList<Change<T>> stack = new LinkedList<Change<T>>();
+            stack.add( head );
+            while ( !stack.isEmpty() ) {
+                Change<T> c = stack.getLast();
+                if ( visited.contains( c ) ) {
+                    stack.removeLast();
+                    continue;
+                }
+                boolean parentsDone = true;
+                for ( Change<T> p : c.getParentChanges() ) {
+                    if ( !visited.contains( p ) ) {
+                        stack.add( p );
+                        parentsDone = false;
+                    }
+                }
+                if ( parentsDone ) {
+                    stack.removeLast();
+                    visited.add( c );
+                    ret.add( c );
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ FileAvailabilityCache remembers which copy of an {@link ImageFile} was found
+ to be available (or that none was), so that e.g. selecting preferred images
+ for a thumbnail view does not need to access file system for every copy of
+ every photo.
+ <p>
+ Cached results expire after a time to live so that changes made outside
+ Photovault are eventually noticed. Changes that Photovault knows about
+ invalidate the affected results immediately: adding or removing a location
+ of an image file invalidates the result for that file and changes in volume
+ mounts invalidate all results.
+ <p>
+ As this is application wide information, the class is a singleton like
+ {@link VolumeManager}. It is safe to use from multiple threads.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class FileAvailabilityCache {
+
+    /**
+     Default time to live of cached results in milliseconds. Can be set with
+     system property photovault.availability.ttl.
+     */
+    static final long DEFAULT_TTL =
+            Long.getLong( "photovault.availability.ttl", 30000L );
+
+    /**
+     Cached result of a single lookup
+     */
+    static private class Entry {
+        /**
+         The available copy or <code>null</code> if none was found
+         */
+        File file;
+        /**
+         Time (as given by System.currentTimeMillis()) after which the entry
+         is no longer valid
+         */
+        long expires;
+        /**
+         Number of locations the image file had when the entry was created. 
+         Different persistence contexts can have instances of the same file 
+         with different locations, this is used as a cheap check that the 
+         result was obtained using the same locations.
+         */
+        int locationCount;
+    }
+
+    /**
+     Singleton instance
+     */
+    static private FileAvailabilityCache inst = new FileAvailabilityCache();
+
+    /**
+     Cached results by image file UUID
+     */
+    private ConcurrentMap<UUID, Entry> entries =
+            new ConcurrentHashMap<UUID, Entry>();
+
+    /**
+     Incremented each time something is invalidated. Used to detect that
+     the cache was invalidated while a file system lookup was in progress so
+     that stale results are not stored.
+     */
+    private AtomicLong generation = new AtomicLong();
+
+    private volatile long ttl = DEFAULT_TTL;
+
+    /**
+     Constructs a new FileAvailabilityCache. As this class is singleton, use
+     instance() method to get the instance.
+     */
+    private FileAvailabilityCache() {
+
+    }
+
+    /**
+     Get the FileAvailabilityCache
+     @return Instance of FileAvailabilityCache class
+     */
+    public static FileAvailabilityCache instance() {
+        return inst;
+    }
+
+    /**
+     Find an available copy of image file, using cached result if it is still
+     valid.
+     @param f The image file
+     @return Available copy of the file or <code>null</code> if no copy is
+     available.
+     */
+    File findAvailableCopy( ImageFile f ) {
+        UUID id = f.getId();
+        if ( id == null ) {
+            return f.lookupAvailableCopy();
+        }
+        long now = System.currentTimeMillis();
+        Entry e = entries.get( id );
+        if ( e != null && e.expires > now && 
+                e.locationCount == f.getLocations().size() ) {
+            return e.file;
+        }
+        long gen = generation.get();
+        File file = f.lookupAvailableCopy();
+        e = new Entry();
+        e.file = file;
+        e.expires = now + ttl;
+        e.locationCount = f.getLocations().size();
+        entries.put( id, e );
+        if ( generation.get() != gen ) {
+            // Invalidated during the lookup, the result may be stale
+            entries.remove( id, e );
+        }
+        return file;
+    }
+
+    /**
+     Discard cached result for an image file. This must be called when
+     locations of the file are changed.
+     @param id UUID of the image file
+     */
+    public void invalidate( UUID id ) {
+        if ( id == null ) {
+            return;
+        }
+        generation.incrementAndGet();
+        entries.remove( id );
+    }
+
+    /**
+     Discard all cached results, e.g. after volume mounts have changed.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     Set the time to live of cached results
+     @param ttl New time to live in milliseconds. 0 disables caching.
+     */
+    public void setTtl( long ttl ) {
+        this.ttl = ttl;
+        invalidateAll();
+    }
+
+    /**
+     Get the time to live of cached results
+     @return Time to live in milliseconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ SyncTransport that exchanges messages as files in a directory that both 
+ parties can access, e.g. a shared network drive. Each message is written to
+ file named <i>sender</i>-<i>session</i>-<i>n</i>.pvsync, where 
+ <i>session</i> is a random identifier of the sending transport and <i>n</i> 
+ is the sequence number of the message. The file is first written with a 
+ temporary name and then renamed so that the receiver never sees a partial 
+ message. Received messages are deleted.
+ <p>
+ Files left by an earlier session that was interrupted must not be read as 
+ messages of the current one. When a transport is created it deletes all 
+ message files of earlier sessions of the local party. The receiver accepts 
+ messages only from the session whose first message it reads; if there are 
+ several, the newest one is used and the others are deleted.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class FileDropSyncTransport implements SyncTransport {
+
+    static private Log log = LogFactory.getLog( FileDropSyncTransport.class.getName() );
+
+    /**
+     Default time to wait for a message, in milliseconds. Can be set with 
+     system property photovault.sync.filetimeout.
+     */
+    static final long DEFAULT_TIMEOUT =
+            Long.getLong( "photovault.sync.filetimeout", 600000 );
+
+    /**
+     Interval between checks for new messages, in milliseconds
+     */
+    static final long POLL_INTERVAL = 500;
+
+    static final String SUFFIX = ".pvsync";
+
+    private File dir;
+    private String localName;
+    private String peerName;
+    private int sentCount = 0;
+    private int receivedCount = 0;
+    private String sessionId = UUID.randomUUID().toString();
+    private String peerSessionId = null;
+    private long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     Creates a new transport
+     @param dir Directory used for the messages
+     @param localName Name of this party
+     @param peerName Name of the peer. This must differ from localName.
+     */
+    public FileDropSyncTransport( File dir, String localName, String peerName ) {
+        if ( localName.equals( peerName ) ) {
+            throw new IllegalArgumentException( 
+                    "Local and peer names must be different" );
+        }
+        this.dir = dir;
+        this.localName = localName;
+        this.peerName = peerName;
+        deleteStaleFiles();
+    }
+
+    /**
+     Get a pattern that matches names of message files from given party
+     @param name Name of the party
+     @param seq Sequence number of the message or <code>null</code> to match 
+     all messages
+     */
+    private static Pattern getMessagePattern( String name, Integer seq ) {
+        return Pattern.compile( Pattern.quote( name ) + 
+                "-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}-" +
+                ( seq != null ? seq.toString() : "\\d+" ) + 
+                Pattern.quote( SUFFIX ) + "(\\.tmp)?" );
+    }
+
+    /**
+     List files in message directory whose name matches a pattern
+     */
+    private File[] listFiles( final Pattern pattern ) throws IOException {
+        File[] files = dir.listFiles( new FilenameFilter() {
+            public boolean accept( File d, String name ) {
+                return pattern.matcher( name ).matches();
+            }
+        } );
+        if ( files == null ) {
+            throw new IOException( "Cannot list " + dir );
+        }
+        return files;
+    }
+
+    /**
+     Delete message files left by earlier sessions of local party.
+     */
+    private void deleteStaleFiles() {
+        try {
+            for ( File f : listFiles( getMessagePattern( localName, null ) ) ) {
+                log.warn( "Deleting stale message " + f );
+                if ( !f.delete() ) {
+                    log.warn( "Cannot delete " + f );
+                }
+            }
+        } catch ( IOException ex ) {
+            log.warn( "Error while deleting stale messages: " + ex.getMessage() );
+        }
+    }
+
+    /**
+     Find the first message of current peer session. If there are first 
+     messages from several sessions, the newest one is selected and the others
+     are deleted.
+     @return The file of first message or <code>null</code> if there is none.
+     */
+    private File findPeerSession() throws IOException {
+        File newest = null;
+        File[] files = listFiles( getMessagePattern( peerName, 0 ) );
+        for ( File f : files ) {
+            if ( f.getName().endsWith( ".tmp" ) ) {
+                continue;
+            }
+            if ( newest == null || f.lastModified() > newest.lastModified() ) {
+                newest = f;
+            }
+        }
+        if ( newest == null ) {
+            return null;
+        }
+        for ( File f : files ) {
+            if ( f != newest && !f.getName().endsWith( ".tmp" ) ) {
+                log.warn( "Deleting message of earlier session " + f );
+                f.delete();
+            }
+        }
+        String name = newest.getName();
+        peerSessionId = name.substring( peerName.length() + 1, 
+                name.length() - SUFFIX.length() - "-0".length() );
+        log.debug( "Peer session " + peerSessionId );
+        return newest;
+    }
+
+    /**
+     Set the time to wait for a message from peer
+     @param timeout Timeout in milliseconds
+     */
+    public void setTimeout( long timeout ) {
+        this.timeout = timeout;
+    }
+
+    /**
+     Get the time to wait for a message from peer
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void send( byte[] msg ) throws IOException {
+        String name = localName + "-" + sessionId + "-" + sentCount + SUFFIX;
+        File tmp = new File( dir, name + ".tmp" );
+        FileOutputStream os = new FileOutputStream( tmp );
+        try {
+            os.write( msg );
+        } finally {
+            os.close();
+        }
+        File f = new File( dir, name );
+        if ( !tmp.renameTo( f ) ) {
+            tmp.delete();
+            throw new IOException( "Cannot rename " + tmp + " to " + f );
+        }
+        sentCount++;
+        log.debug( "Wrote message " + f );
+    }
+
+    public byte[] receive() throws IOException {
+        File f = null;
+        long deadline = System.currentTimeMillis() + timeout;
+        while ( true ) {
+            if ( peerSessionId == null ) {
+                f = findPeerSession();
+            } else {
+                f = new File( dir, peerName + "-" + peerSessionId + "-" + 
+                        receivedCount + SUFFIX );
+            }
+            if ( f != null && f.exists() ) {
+                break;
+            }
+            if ( System.currentTimeMillis() > deadline ) {
+                throw new IOException( "Timeout while waiting for message " + 
+                        receivedCount + " from " + peerName );
+            }
+            try {
+                Thread.sleep( POLL_INTERVAL );
+            } catch ( InterruptedException ex ) {
+                throw new InterruptedIOException( 
+                        "Interrupted while waiting for message " + 
+                        receivedCount + " from " + peerName );
+            }
+        }
+        byte[] msg = new byte[(int) f.length()];
+        FileInputStream is = new FileInputStream( f );
+        try {
+            int offset = 0;
+            while ( offset < msg.length ) {
+                int n = is.read( msg, offset, msg.length - offset );
+                if ( n < 0 ) {
+                    throw new IOException( "Unexpected end of file " + f );
+                }
+                offset += n;
+            }
+        } finally {
+            is.close();
+        }
+        if ( !f.delete() ) {
+            log.warn( "Cannot delete " + f );
+        }
+        receivedCount++;
+        return msg;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,356 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.jdbc.Work;
+
+/**
+ FileHashTable stores additional content hashes of {@link ImageFile}s. The
+ identity of an image file is always based on its MD5 hash, as the id of the
+ file is derived from it and must be the same in all databases that share
+ history. In addition, each database can choose a faster digest algorithm
+ (by default {@link Murmur3Digest#ALGORITHM}) that is used for checking
+ whether a file has been changed or whether it is a copy of a known file.
+ <p>
+ Hashes are stored in table pv_file_hashes together with the name of the
+ algorithm that was used to calculate them, so changing the algorithm of a
+ database does not make the stored hashes invalid. The algorithm used for
+ new hashes is stored in table pv_file_hash_algorithm. If it is not set
+ when the table is created, it is read from system property
+ photovault.hash.algorithm.
+ <p>
+ The tables are not mapped to Hibernate. They are created by 
+ {@link #createTables(Connection)} when a new database is created or when the
+ schema is upgraded to version 14. Hashes of a file are deleted by the 
+ database when the {@link ImageFile} is deleted.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class FileHashTable {
+
+    static private Log log = LogFactory.getLog( FileHashTable.class.getName() );
+
+    /**
+     Name of the hash table
+     */
+    static public final String TABLE = "pv_file_hashes";
+
+    /**
+     Name of the table that stores the algorithm used by this database
+     */
+    static public final String ALGORITHM_TABLE = "pv_file_hash_algorithm";
+
+    /**
+     Algorithm used for new content hashes
+     */
+    static private volatile String algorithm = FileHasher.MD5;
+
+    /**
+     Not to be instantiated
+     */
+    private FileHashTable() {
+
+    }
+
+    /**
+     Read the algorithm used in the database. This must be called every time 
+     Hibernate is initialized so that the algorithm of previously used 
+     database is not used with a new one. If the tables do not exist yet (i.e.
+     schema has not been upgraded) only MD5 is used.
+     @param s Session used to access the database
+     */
+    static public void init( Session s ) {
+        algorithm = FileHasher.MD5;
+        Transaction tx = s.beginTransaction();
+        try {
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    if ( tableExists( con, ALGORITHM_TABLE ) ) {
+                        algorithm = readAlgorithm( con );
+                    }
+                }
+            } );
+            tx.commit();
+        } catch ( RuntimeException e ) {
+            log.error( "Error initializing file hash table", e );
+            tx.rollback();
+        }
+    }
+
+    /**
+     Get the algorithm used for new content hashes in current database
+     @return Name of the algorithm. If this is {@link FileHasher#MD5}, no
+     additional hashes are calculated.
+     */
+    static public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     Change the algorithm used for new content hashes in current database.
+     Existing hashes are kept.
+     @param s Session used to access the database
+     @param newAlgorithm Name of the new algorithm
+     @throws IllegalArgumentException if the algorithm is not supported
+     */
+    static public void setAlgorithm( Session s, final String newAlgorithm ) {
+        // Check that the algorithm is supported
+        new FileHasher( newAlgorithm );
+        s.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                PreparedStatement stmt = con.prepareStatement(
+                        "update " + ALGORITHM_TABLE + " set algorithm = ?" );
+                try {
+                    stmt.setString( 1, newAlgorithm );
+                    stmt.executeUpdate();
+                } finally {
+                    stmt.close();
+                }
+            }
+        } );
+        algorithm = newAlgorithm;
+    }
+
+    /**
+     Create the tables and read the algorithm used in the database. Tables 
+     created by earlier development versions without foreign key to 
+     pv_image_files are recreated, hashes of files that do not exist anymore 
+     are dropped.
+     @param con Connection used to access the database
+     @throws SQLException if an error occurs
+     */
+    static public void createTables( Connection con ) throws SQLException {
+        String oldTable = TABLE + "_old";
+        boolean hasOldTable = tableExists( con, TABLE );
+        if ( hasOldTable ) {
+            log.info( "Recreating table " + TABLE );
+            execute( con, "create table " + oldTable + " ( " +
+                    "file_uuid varchar(36) not null, " +
+                    "algorithm varchar(32) not null, " +
+                    "hash varchar(64) not null )" );
+            execute( con, "insert into " + oldTable + 
+                    " ( file_uuid, algorithm, hash ) " +
+                    "select file_uuid, algorithm, hash from " + TABLE );
+            execute( con, "drop table " + TABLE );
+        } else {
+            log.info( "Creating table " + TABLE );
+        }
+        // file_uuid must have exactly the same type as pv_image_files.id
+        execute( con, "create table " + TABLE + " ( " +
+                "file_uuid varchar(255) not null, " +
+                "algorithm varchar(32) not null, " +
+                "hash varchar(64) not null, " +
+                "primary key ( file_uuid, algorithm ), " +
+                "foreign key ( file_uuid ) references pv_image_files ( id ) " +
+                "on delete cascade )" );
+        execute( con, "create index " + TABLE + "_hash on " + TABLE +
+                " ( hash )" );
+        if ( hasOldTable ) {
+            execute( con, "insert into " + TABLE + 
+                    " ( file_uuid, algorithm, hash ) " +
+                    "select file_uuid, algorithm, hash from " + oldTable + 
+                    " where file_uuid in ( select id from pv_image_files )" );
+            execute( con, "drop table " + oldTable );
+        }
+        if ( !tableExists( con, ALGORITHM_TABLE ) ) {
+            log.info( "Creating table " + ALGORITHM_TABLE );
+            execute( con, "create table " + ALGORITHM_TABLE + " ( " +
+                    "algorithm varchar(32) not null )" );
+            String alg = System.getProperty( "photovault.hash.algorithm",
+                    Murmur3Digest.ALGORITHM );
+            PreparedStatement stmt = con.prepareStatement( "insert into " +
+                    ALGORITHM_TABLE + " ( algorithm ) values ( ? )" );
+            try {
+                stmt.setString( 1, alg );
+                stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+        }
+        algorithm = readAlgorithm( con );
+    }
+
+    static private boolean tableExists( Connection con, String table )
+            throws SQLException {
+        DatabaseMetaData md = con.getMetaData();
+        for ( String name : new String[] {table, table.toUpperCase()} ) {
+            ResultSet rs = md.getTables( null, null, name, null );
+            try {
+                if ( rs.next() ) {
+                    return true;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     Read the algorithm of the database. If the stored algorithm is not
+     supported by this Java installation, only MD5 is used.
+     */
+    static private String readAlgorithm( Connection con ) throws SQLException {
+        String ret = null;
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(
+                    "select algorithm from " + ALGORITHM_TABLE );
+            if ( rs.next() ) {
+                ret = rs.getString( 1 );
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        if ( ret == null ) {
+            return FileHasher.MD5;
+        }
+        try {
+            new FileHasher( ret );
+        } catch ( IllegalArgumentException e ) {
+            log.warn( "Hash algorithm " + ret + " not supported, using MD5" );
+            return FileHasher.MD5;
+        }
+        return ret;
+    }
+
+    /**
+     Get a stored hash of a file
+     @param con Connection used
+     @param fileId UUID of the image file
+     @param alg Algorithm of the hash
+     @return The hash or <code>null</code> if no hash with given algorithm is
+     stored
+     @throws SQLException if an error occurs
+     */
+    static public byte[] getHash( Connection con, UUID fileId, String alg )
+            throws SQLException {
+        PreparedStatement stmt = con.prepareStatement( "select hash from " +
+                TABLE + " where file_uuid = ? and algorithm = ?" );
+        try {
+            stmt.setString( 1, fileId.toString() );
+            stmt.setString( 2, alg );
+            ResultSet rs = stmt.executeQuery();
+            String hex = rs.next() ? rs.getString( 1 ) : null;
+            rs.close();
+            return hex != null ? fromHex( hex ) : null;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     Store a hash of a file, replacing the previous hash calculated with the
+     same algorithm
+     @param con Connection used
+     @param fileId UUID of the image file
+     @param alg Algorithm of the hash
+     @param hash The hash
+     @throws SQLException if an error occurs
+     */
+    static public void setHash( Connection con, UUID fileId, String alg,
+            byte[] hash ) throws SQLException {
+        PreparedStatement del = con.prepareStatement( "delete from " + TABLE +
+                " where file_uuid = ? and algorithm = ?" );
+        try {
+            del.setString( 1, fileId.toString() );
+            del.setString( 2, alg );
+            del.executeUpdate();
+        } finally {
+            del.close();
+        }
+        PreparedStatement ins = con.prepareStatement( "insert into " + TABLE +
+                " ( file_uuid, algorithm, hash ) values ( ?, ?, ? )" );
+        try {
+            ins.setString( 1, fileId.toString() );
+            ins.setString( 2, alg );
+            ins.setString( 3, toHex( hash ) );
+            ins.executeUpdate();
+        } finally {
+            ins.close();
+        }
+    }
+
+    /**
+     Find a file with given hash
+     @param con Connection used
+     @param alg Algorithm of the hash
+     @param hash The hash
+     @return UUID of a file with given hash or <code>null</code> if none
+     found
+     @throws SQLException if an error occurs
+     */
+    static public UUID findFile( Connection con, String alg, byte[] hash )
+            throws SQLException {
+        PreparedStatement stmt = con.prepareStatement( "select file_uuid from " +
+                TABLE + " where hash = ? and algorithm = ?" );
+        try {
+            stmt.setString( 1, toHex( hash ) );
+            stmt.setString( 2, alg );
+            ResultSet rs = stmt.executeQuery();
+            String id = rs.next() ? rs.getString( 1 ) : null;
+            rs.close();
+            return id != null ? UUID.fromString( id ) : null;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    static String toHex( byte[] data ) {
+        StringBuilder b = new StringBuilder( data.length * 2 );
+        for ( byte d : data ) {
+            b.append( Character.forDigit( ( d >> 4 ) & 0xf, 16 ) );
+            b.append( Character.forDigit( d & 0xf, 16 ) );
+        }
+        return b.toString();
+    }
+
+    static byte[] fromHex( String hex ) {
+        byte[] ret = new byte[hex.length() / 2];
+        for ( int n = 0 ; n < ret.length ; n++ ) {
+            ret[n] = (byte) Integer.parseInt( hex.substring( 2*n, 2*n+2 ), 16 );
+        }
+        return ret;
+    }
+
+    static private void execute( Connection con, String sql ) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate( sql );
+        } finally {
+            stmt.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ FileHasher calculates message digests of files. Files are read through a
+ FileChannel into a large direct buffer that is reused by each thread, or
+ optionally mapped into memory, so that the data does not need to be copied
+ between Java heap and the operating system.
+ <p>
+ The digest algorithm can be any algorithm supported by the Java security
+ providers or {@link Murmur3Digest#ALGORITHM}. Note that identity of
+ {@link ImageFile}s is based on MD5 hash, so {@link #getDefault()} must be used
+ for hashes that are used as identity of image files or with
+ {@link ImageFileDAO#findImageFileWithHash(byte[])}. Faster algorithms are
+ useful for detecting changes in files; the algorithm used by a database is
+ chosen in {@link FileHashTable}.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class FileHasher {
+
+    static private Log log = LogFactory.getLog( FileHasher.class.getName() );
+
+    /**
+     Name of the algorithm used for identifying image files
+     */
+    public static final String MD5 = "MD5";
+
+    /**
+     Size of the buffer used for reading files
+     */
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     Maximum size of a memory mapped region
+     */
+    static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+
+    /**
+     Hasher used for image file hashes
+     */
+    private static FileHasher defaultHasher = new FileHasher( MD5 );
+
+    /**
+     Read buffers of each thread
+     */
+    private static ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect( BUFFER_SIZE );
+        }
+    };
+
+    /**
+     Name of the digest algorithm
+     */
+    private String algorithm;
+
+    /**
+     Should files be memory mapped instead of reading them?
+     */
+    private boolean memoryMapped = false;
+
+    /**
+     Create a new hasher
+     @param algorithm Name of the digest algorithm
+     @throws IllegalArgumentException if the algorithm is not supported
+     */
+    public FileHasher( String algorithm ) {
+        this.algorithm = algorithm;
+        try {
+            createDigest();
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalArgumentException(
+                    "Unsupported digest algorithm " + algorithm, e );
+        }
+    }
+
+    /**
+     Get the hasher that calculates hashes used for identifying image files
+     @return MD5 hasher
+     */
+    public static FileHasher getDefault() {
+        return defaultHasher;
+    }
+
+    /**
+     Get the name of digest algorithm
+     @return Algorithm name
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     Set whether files are memory mapped. Mapping avoids copying data on local
+     disks but reading into a direct buffer is usually faster for network file
+     systems, so it is the default.
+     @param memoryMapped <code>true</code> if files should be mapped
+     */
+    public void setMemoryMapped( boolean memoryMapped ) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     Check whether files are memory mapped
+     @return <code>true</code> if files are mapped
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     Create a new digest object for the algorithm
+     @return New MessageDigest
+     @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    public MessageDigest createDigest() throws NoSuchAlgorithmException {
+        if ( Murmur3Digest.ALGORITHM.equals( algorithm ) ) {
+            return new Murmur3Digest();
+        }
+        return MessageDigest.getInstance( algorithm );
+    }
+
+    /**
+     Calculate hash of a file
+     @param f The file
+     @return Hash of the file contents
+     @throws IOException if reading the file fails
+     */
+    public byte[] hash( File f ) throws IOException {
+        MessageDigest md = createDigestUnchecked();
+        update( f, new MessageDigest[] {md} );
+        return md.digest();
+    }
+
+    /**
+     Calculate hashes of a file with several algorithms while reading the file
+     only once. This is used for calculating both the MD5 identity hash and
+     the content hash used by the database (see {@link FileHashTable}).
+     @param f The file
+     @param algorithms Names of the algorithms
+     @return Hashes of the file in the same order as algorithms
+     @throws IOException if reading the file fails
+     @throws IllegalArgumentException if some algorithm is not supported
+     */
+    public static byte[][] hash( File f, String... algorithms ) throws IOException {
+        MessageDigest[] mds = new MessageDigest[algorithms.length];
+        for ( int n = 0 ; n < algorithms.length ; n++ ) {
+            mds[n] = new FileHasher( algorithms[n] ).createDigestUnchecked();
+        }
+        new FileHasher( MD5 ).update( f, mds );
+        byte[][] ret = new byte[mds.length][];
+        for ( int n = 0 ; n < mds.length ; n++ ) {
+            ret[n] = mds[n].digest();
+        }
+        return ret;
+    }
+
+    private MessageDigest createDigestUnchecked() {
+        try {
+            return createDigest();
+        } catch ( NoSuchAlgorithmException e ) {
+            // Checked already in constructor
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     Read a file and update digests with its content
+     */
+    private void update( File f, MessageDigest[] mds ) throws IOException {
+        FileInputStream is = new FileInputStream( f );
+        try {
+            FileChannel ch = is.getChannel();
+            if ( memoryMapped ) {
+                long size = ch.size();
+                for ( long pos = 0; pos < size; pos += MAP_REGION_SIZE ) {
+                    MappedByteBuffer region = ch.map( FileChannel.MapMode.READ_ONLY,
+                            pos, Math.min( MAP_REGION_SIZE, size - pos ) );
+                    for ( MessageDigest md : mds ) {
+                        region.rewind();
+                        md.update( region );
+                    }
+                }
+            } else {
+                ByteBuffer buf = buffers.get();
+                buf.clear();
+                while ( ch.read( buf ) >= 0 ) {
+                    buf.flip();
+                    for ( MessageDigest md : mds ) {
+                        buf.rewind();
+                        md.update( buf );
+                    }
+                    buf.clear();
+                }
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     Calculate hashes of several files concurrently
+     @param files The files to hash
+     @param threadCount Number of threads used
+     @return Map from file to its hash. Files that could not be read are not
+     included.
+     @throws InterruptedException if the calling thread is interrupted while
+     waiting for the results.
+     */
+    public Map<File, byte[]> hash( Collection<File> files, int threadCount )
+            throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max( 1, Math.min( threadCount, files.size() ) ) );
+        Map<File, byte[]> ret = new HashMap<File, byte[]>();
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for ( final File f : files ) {
+                results.add( executor.submit( new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return hash( f );
+                    }
+                } ) );
+            }
+            int n = 0;
+            for ( File f : files ) {
+                try {
+                    ret.put( f, results.get( n ).get() );
+                } catch ( ExecutionException e ) {
+                    log.warn( "Error hashing " + f.getAbsolutePath() + ": " +
+                            e.getCause().getMessage() );
+                }
+                n++;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return ret;
+    }
+}
@@ -21,8 +21,6 @@
 package org.photovault.imginfo;
 
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
    FileUtils is a static class that implements common file handling operations that are often needed.
@@ -80,31 +78,13 @@ public class FileUtils {
      @return Hash of f
      */
     public static byte[] calcHash( File f ) {
-        FileInputStream is = null;
         byte hash[] = null;
         try {
-            is = new FileInputStream( f );
-            byte readBuffer[] = new byte[4096];
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            int bytesRead = -1;
-            while( ( bytesRead = is.read( readBuffer ) ) > 0 ) {
-                md.update( readBuffer, 0, bytesRead );
-            }
-            hash = md.digest();   
-        } catch (NoSuchAlgorithmException ex) {
-            log.error( "MD5 algorithm not found" );
+            hash = FileHasher.getDefault().hash( f );
         } catch (FileNotFoundException ex) {
             log.error( f.getAbsolutePath() + "not found" );
         } catch (IOException ex) {
             log.error( "IOException while calculating hash: " + ex.getMessage() );
-        }  finally {
-            try {
-                if ( is != null ) {
-                    is.close();
-                }
-            } catch (IOException ex) {
-                log.error( "Cannot close stream after calculating hash" );
-            }
         }
         return hash;
     }    
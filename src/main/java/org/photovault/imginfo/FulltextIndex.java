@@ -0,0 +1,727 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.photovault.command.ApplyChangeCommand;
+import org.photovault.command.CommandExecutedEvent;
+import org.photovault.command.CommandListener;
+import org.photovault.command.DataAccessCommand;
+import org.photovault.replication.ChangeDTO;
+
+/**
+ FulltextIndex is an in-memory inverted index of the text fields of photos
+ (description, shooting place, photographer, camera, lens and tag names). It
+ is used by {@link QueryFulltextCriteria} so that full text queries work
+ with every database backend without scanning the photo table.
+ <p>
+ The index is built from database when it is used for the first time. The
+ indexed fields are read with projection queries so that photo entities and
+ their tag collections are not loaded. After that the index is kept up to 
+ date by listening to executed commands: photos created or modified by 
+ {@link ChangePhotoInfoCommand}, {@link ModifyImageFileCommand} or 
+ {@link ApplyChangeCommand} are marked dirty and reindexed from database 
+ before the next search. {@link HistoryImporter} marks the photos it imports
+ dirty in the same way. Deleted photos are removed from the index by 
+ {@link Listener} once the deletion has been committed.
+ <p>
+ Each term has a posting list of documents (photos) that contain it. When a
+ photo is reindexed, postings of terms it no longer contains are not removed
+ immediately but skipped during search, and the posting lists are compacted
+ when there are too many stale entries.
+ <p>
+ Matches of a search are given to database queries through table 
+ pv_fulltext_matches (see {@link #storeMatches(Connection, UUID, Collection)}),
+ so that a query can be restricted to them with a subquery regardless of the
+ number of matches. The table is created in schema version 15.
+ <p>
+ As the index describes the whole database, this class is a singleton like
+ {@link VolumeManager}. It is safe to use from multiple threads.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class FulltextIndex implements CommandListener {
+
+    static private Log log = LogFactory.getLog( FulltextIndex.class.getName() );
+
+    /**
+     Weight of each indexed field in ranking, in the order used by
+     {@link #getFieldValues(PhotoInfo)}: description, shooting place,
+     photographer, camera, lens, tags.
+     */
+    static final float[] FIELD_WEIGHTS = {1.0f, 2.0f, 2.0f, 1.0f, 1.0f, 3.0f};
+
+    /**
+     JDBC fetch size used when reading photos for building the index
+     */
+    static final int BUILD_FETCH_SIZE = 500;
+
+    /**
+     Name of the table that holds matches of ongoing searches
+     */
+    static public final String MATCH_TABLE = "pv_fulltext_matches";
+
+    /**
+     SQL condition that selects photos stored for a search. The condition has
+     one parameter, the search id as string.
+     */
+    static public final String MATCHING_PHOTOS_SQL =
+            "{alias}.photo_uuid in (select m.photo_uuid from " + MATCH_TABLE +
+            " m where m.search_id = ?)";
+
+    /**
+     Number of rows inserted to match table in one JDBC batch
+     */
+    static final int MATCH_BATCH_SIZE = 500;
+
+    /**
+     Singleton instance
+     */
+    static private FulltextIndex inst = new FulltextIndex();
+
+    /**
+     Growable list of ints
+     */
+    static private class IntList {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add( int i ) {
+            if ( size == data.length ) {
+                data = Arrays.copyOf( data, size * 2 );
+            }
+            data[size++] = i;
+        }
+    }
+
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     Term ids by term. Sorted so that prefix searches are possible.
+     */
+    private TreeMap<String, Integer> termIds = new TreeMap<String, Integer>();
+
+    /**
+     Posting lists by term id. May contain stale entries for documents that
+     no longer contain the term.
+     */
+    private List<IntList> postings = new ArrayList<IntList>();
+
+    /**
+     Number of live documents containing each term, by term id
+     */
+    private IntList docFreqs = new IntList();
+
+    /**
+     Document ids by photo UUID
+     */
+    private Map<UUID, Integer> docIds = new HashMap<UUID, Integer>();
+
+    /**
+     Photo UUIDs by document id
+     */
+    private List<UUID> docUuids = new ArrayList<UUID>();
+
+    /**
+     Sorted ids of terms each document contains, by document id
+     */
+    private List<int[]> docTerms = new ArrayList<int[]>();
+
+    /**
+     Weights of terms in docTerms, by document id
+     */
+    private List<float[]> docWeights = new ArrayList<float[]>();
+
+    private int liveDocCount = 0;
+
+    private int postingCount = 0;
+
+    private int stalePostingCount = 0;
+
+    private volatile boolean built = false;
+
+    /**
+     UUIDs of photos that must be reindexed before next search
+     */
+    private Set<UUID> dirtyPhotos =
+            Collections.newSetFromMap( new ConcurrentHashMap<UUID, Boolean>() );
+
+    /**
+     Constructs a new FulltextIndex. As this class is a singleton, use
+     instance() to get the instance.
+     */
+    FulltextIndex() {
+
+    }
+
+    /**
+     Get the FulltextIndex
+     @return Instance of FulltextIndex class
+     */
+    public static FulltextIndex instance() {
+        return inst;
+    }
+
+    /**
+     Split text into lower case terms
+     @param text The text to split
+     @param terms List into which the terms are added
+     */
+    static void tokenize( String text, List<String> terms ) {
+        if ( text == null ) {
+            return;
+        }
+        int start = -1;
+        for ( int n = 0; n <= text.length(); n++ ) {
+            boolean isWordChar = n < text.length() &&
+                    Character.isLetterOrDigit( text.charAt( n ) );
+            if ( isWordChar && start < 0 ) {
+                start = n;
+            } else if ( !isWordChar && start >= 0 ) {
+                terms.add( text.substring( start, n ).toLowerCase() );
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     Get the indexed fields of a photo
+     @param p The photo
+     @return Values of the fields, in the order of {@link #FIELD_WEIGHTS}
+     */
+    static String[] getFieldValues( PhotoInfo p ) {
+        StringBuilder tags = new StringBuilder();
+        if ( p.getTags() != null ) {
+            for ( Tag t : p.getTags() ) {
+                tags.append( t.getName() ).append( ' ' );
+            }
+        }
+        return new String[] {p.getDescription(), p.getShootingPlace(),
+                    p.getPhotographer(), p.getCamera(), p.getLens(),
+                    tags.toString()};
+    }
+
+    /**
+     Add or replace a photo in index
+     @param id UUID of the photo
+     @param fields Values of the indexed fields, in the order of
+     {@link #FIELD_WEIGHTS}
+     */
+    void setDocument( UUID id, String[] fields ) {
+        // Calculate term weights before taking the lock
+        Map<String, Float> weights = new HashMap<String, Float>();
+        List<String> terms = new ArrayList<String>();
+        int termCount = 0;
+        for ( int f = 0; f < fields.length && f < FIELD_WEIGHTS.length; f++ ) {
+            terms.clear();
+            tokenize( fields[f], terms );
+            termCount += terms.size();
+            for ( String t : terms ) {
+                Float w = weights.get( t );
+                weights.put( t, ( w != null ? w : 0.0f ) + FIELD_WEIGHTS[f] );
+            }
+        }
+        float norm = termCount > 0 ? (float) ( 1.0 / Math.sqrt( termCount ) ) : 0.0f;
+
+        lock.writeLock().lock();
+        try {
+            Integer docId = docIds.get( id );
+            int[] oldTerms = new int[0];
+            if ( docId == null ) {
+                docId = docUuids.size();
+                docIds.put( id, docId );
+                docUuids.add( id );
+                docTerms.add( oldTerms );
+                docWeights.add( new float[0] );
+            } else {
+                oldTerms = docTerms.get( docId );
+            }
+            if ( oldTerms.length == 0 && !weights.isEmpty() ) {
+                liveDocCount++;
+            } else if ( oldTerms.length > 0 && weights.isEmpty() ) {
+                liveDocCount--;
+            }
+            SortedMap<Integer, Float> weightsById = new TreeMap<Integer, Float>();
+            for ( Map.Entry<String, Float> w : weights.entrySet() ) {
+                weightsById.put( getTermId( w.getKey() ), w.getValue() * norm );
+            }
+            int[] newTerms = new int[weightsById.size()];
+            float[] newWeights = new float[newTerms.length];
+            int n = 0;
+            for ( Map.Entry<Integer, Float> w : weightsById.entrySet() ) {
+                newTerms[n] = w.getKey();
+                newWeights[n++] = w.getValue();
+            }
+            for ( int termId : newTerms ) {
+                if ( Arrays.binarySearch( oldTerms, termId ) < 0 ) {
+                    postings.get( termId ).add( docId );
+                    postingCount++;
+                    docFreqs.data[termId]++;
+                }
+            }
+            for ( int termId : oldTerms ) {
+                if ( Arrays.binarySearch( newTerms, termId ) < 0 ) {
+                    docFreqs.data[termId]--;
+                    stalePostingCount++;
+                }
+            }
+            docTerms.set( docId, newTerms );
+            docWeights.set( docId, newWeights );
+            if ( stalePostingCount > 1000 && stalePostingCount * 2 > postingCount ) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     Remove a photo from index
+     @param id UUID of the photo
+     */
+    void removeDocument( UUID id ) {
+        boolean indexed;
+        lock.readLock().lock();
+        try {
+            indexed = docIds.containsKey( id );
+        } finally {
+            lock.readLock().unlock();
+        }
+        if ( indexed ) {
+            setDocument( id, new String[0] );
+        }
+    }
+
+    /**
+     Get id of a term, creating a new one if needed. Must be called with
+     write lock held.
+     */
+    private int getTermId( String term ) {
+        Integer id = termIds.get( term );
+        if ( id == null ) {
+            id = postings.size();
+            termIds.put( term, id );
+            postings.add( new IntList() );
+            docFreqs.add( 0 );
+        }
+        return id;
+    }
+
+    /**
+     Remove stale entries from posting lists. Must be called with write lock
+     held.
+     */
+    private void compact() {
+        log.debug( "Compacting fulltext index, " + stalePostingCount +
+                " stale postings" );
+        for ( int n = 0; n < postings.size(); n++ ) {
+            postings.set( n, new IntList() );
+        }
+        postingCount = 0;
+        for ( int docId = 0; docId < docTerms.size(); docId++ ) {
+            for ( int termId : docTerms.get( docId ) ) {
+                postings.get( termId ).add( docId );
+                postingCount++;
+            }
+        }
+        stalePostingCount = 0;
+    }
+
+    /**
+     Search the index without synchronizing it with database first.
+     <p>
+     Query is split into terms in the same way as the indexed text. All terms
+     must be found in a photo. A term ending with '*' matches all terms that
+     start with it.
+     @param query The query
+     @return UUIDs of matching photos and their scores, ordered by decreasing
+     score
+     */
+    public Map<UUID, Float> search( String query ) {
+        List<String> queryTerms = new ArrayList<String>();
+        tokenize( query, queryTerms );
+        if ( queryTerms.isEmpty() ) {
+            return Collections.emptyMap();
+        }
+        // Find out which query terms were prefixes
+        String lowerQuery = query.toLowerCase();
+        boolean[] isPrefix = new boolean[queryTerms.size()];
+        int pos = 0;
+        for ( int n = 0; n < queryTerms.size(); n++ ) {
+            int end = lowerQuery.indexOf( queryTerms.get( n ), pos ) +
+                    queryTerms.get( n ).length();
+            isPrefix[n] = end < lowerQuery.length() && lowerQuery.charAt( end ) == '*';
+            pos = end;
+        }
+
+        lock.readLock().lock();
+        try {
+            int docCount = docUuids.size();
+            float[] scores = new float[docCount];
+            int[] matchCounts = new int[docCount];
+            for ( int n = 0; n < queryTerms.size(); n++ ) {
+                String term = queryTerms.get( n );
+                Collection<Integer> matchingTerms;
+                if ( isPrefix[n] ) {
+                    SortedMap<String, Integer> m =
+                            termIds.subMap( term, term + Character.MAX_VALUE );
+                    matchingTerms = m.values();
+                } else {
+                    Integer termId = termIds.get( term );
+                    matchingTerms = termId != null ?
+                        Collections.singletonList( termId ) :
+                        Collections.<Integer>emptyList();
+                }
+                if ( matchingTerms.isEmpty() ) {
+                    return Collections.emptyMap();
+                }
+                for ( int termId : matchingTerms ) {
+                    int df = docFreqs.data[termId];
+                    if ( df == 0 ) {
+                        continue;
+                    }
+                    float idf = (float) Math.log( 1.0 + (double) liveDocCount / df );
+                    IntList p = postings.get( termId );
+                    for ( int i = 0; i < p.size; i++ ) {
+                        int docId = p.data[i];
+                        int idx = Arrays.binarySearch( docTerms.get( docId ), termId );
+                        if ( idx < 0 ) {
+                            // Stale posting
+                            continue;
+                        }
+                        if ( matchCounts[docId] == n ) {
+                            matchCounts[docId]++;
+                        } else if ( matchCounts[docId] < n ) {
+                            continue;
+                        }
+                        scores[docId] += idf * docWeights.get( docId )[idx];
+                    }
+                }
+            }
+            final List<Integer> hits = new ArrayList<Integer>();
+            for ( int docId = 0; docId < docCount; docId++ ) {
+                if ( matchCounts[docId] == queryTerms.size() ) {
+                    hits.add( docId );
+                }
+            }
+            final float[] s = scores;
+            Collections.sort( hits, new Comparator<Integer>() {
+                public int compare( Integer o1, Integer o2 ) {
+                    return Float.compare( s[o2], s[o1] );
+                }
+            } );
+            Map<UUID, Float> ret = new LinkedHashMap<UUID, Float>();
+            for ( int docId : hits ) {
+                ret.put( docUuids.get( docId ), scores[docId] );
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     Search the index. The index is built or updated from database if needed
+     before the search. See {@link #search(String)} for query syntax.
+     @param query The query
+     @param session Session used to access the database. It is used only for
+     opening a new session, so its state is not affected.
+     @return UUIDs of matching photos and their scores, ordered by decreasing
+     score
+     */
+    public Map<UUID, Float> search( String query, Session session ) {
+        if ( !built || !dirtyPhotos.isEmpty() ) {
+            Session s = session.getSessionFactory().openSession();
+            try {
+                update( s );
+            } finally {
+                s.close();
+            }
+        }
+        return search( query );
+    }
+
+    /**
+     Read names of all tags in database with a single query
+     @param s Session used for the query
+     @return Tag names of each photo separated with spaces, in the format used
+     by {@link #getFieldValues(PhotoInfo)}
+     */
+    private Map<UUID, StringBuilder> readTagNames( Session s ) {
+        Map<UUID, StringBuilder> ret = new HashMap<UUID, StringBuilder>();
+        ScrollableResults rows = s.createQuery( 
+                "select p.uuid, t.name from PhotoInfo p join p.tags t" ).
+                setFetchSize( BUILD_FETCH_SIZE ).setReadOnly( true ).
+                scroll( ScrollMode.FORWARD_ONLY );
+        try {
+            while ( rows.next() ) {
+                UUID id = (UUID) rows.get( 0 );
+                StringBuilder b = ret.get( id );
+                if ( b == null ) {
+                    b = new StringBuilder();
+                    ret.put( id, b );
+                }
+                b.append( (String) rows.get( 1 ) ).append( ' ' );
+            }
+        } finally {
+            rows.close();
+        }
+        return ret;
+    }
+
+    /**
+     Build the index if it has not yet been built and reindex dirty photos.
+     @param s Session used to read the photos
+     */
+    synchronized void update( Session s ) {
+        if ( !built ) {
+            long startTime = System.currentTimeMillis();
+            Map<UUID, StringBuilder> tags = readTagNames( s );
+            ScrollableResults rows = s.createQuery( 
+                    "select p.uuid, p.description, p.shotLocation.description, " +
+                    "p.photographer, p.camera, p.lens from PhotoInfo p" ).
+                    setFetchSize( BUILD_FETCH_SIZE ).setReadOnly( true ).
+                    scroll( ScrollMode.FORWARD_ONLY );
+            int count = 0;
+            try {
+                while ( rows.next() ) {
+                    UUID id = (UUID) rows.get( 0 );
+                    StringBuilder photoTags = tags.remove( id );
+                    setDocument( id, new String[] {
+                                (String) rows.get( 1 ), (String) rows.get( 2 ),
+                                (String) rows.get( 3 ), (String) rows.get( 4 ),
+                                (String) rows.get( 5 ),
+                                photoTags != null ? photoTags.toString() : ""} );
+                    count++;
+                }
+            } finally {
+                rows.close();
+            }
+            built = true;
+            log.debug( "Built fulltext index of " + count + " photos in " +
+                    ( System.currentTimeMillis() - startTime ) + " ms" );
+        }
+        if ( !dirtyPhotos.isEmpty() ) {
+            PhotoInfoDAOHibernate photoDao = new PhotoInfoDAOHibernate();
+            photoDao.setSession( s );
+            List<UUID> ids = new ArrayList<UUID>( dirtyPhotos );
+            for ( UUID id : ids ) {
+                dirtyPhotos.remove( id );
+                PhotoInfo p = photoDao.findByUUID( id );
+                if ( p != null ) {
+                    setDocument( id, getFieldValues( p ) );
+                } else {
+                    removeDocument( id );
+                }
+            }
+            s.clear();
+        }
+    }
+
+    /**
+     Mark photos as changed so that they are reindexed before next search
+     @param ids UUIDs of the changed photos
+     */
+    public void photosChanged( Collection<UUID> ids ) {
+        dirtyPhotos.addAll( ids );
+    }
+
+    /**
+     Discard the index contents. The index will be rebuilt from database when
+     it is used next time. This must be called e.g. if another database is
+     opened.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            termIds.clear();
+            postings.clear();
+            docFreqs = new IntList();
+            docIds.clear();
+            docUuids.clear();
+            docTerms.clear();
+            docWeights.clear();
+            liveDocCount = 0;
+            postingCount = 0;
+            stalePostingCount = 0;
+            dirtyPhotos.clear();
+            built = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     Mark photos changed by executed commands dirty.
+     @param e Event describing the executed command
+     */
+    public void commandExecuted( CommandExecutedEvent e ) {
+        DataAccessCommand cmd = e.getPayload();
+        List<UUID> changed = new ArrayList<UUID>();
+        if ( cmd instanceof ChangePhotoInfoCommand ) {
+            Set<PhotoInfo> photos = ((ChangePhotoInfoCommand) cmd).getChangedPhotos();
+            if ( photos != null ) {
+                for ( PhotoInfo p : photos ) {
+                    changed.add( p.getUuid() );
+                }
+            }
+        } else if ( cmd instanceof ModifyImageFileCommand ) {
+            for ( PhotoInfo p : ((ModifyImageFileCommand) cmd).getCreatedPhotos() ) {
+                changed.add( p.getUuid() );
+            }
+        } else if ( cmd instanceof ApplyChangeCommand ) {
+            for ( ChangeDTO ch : ((ApplyChangeCommand) cmd).getChanges() ) {
+                if ( PhotoInfo.class.getName().equals( ch.getTargetClassName() ) ) {
+                    changed.add( ch.getTargetUuid() );
+                }
+            }
+        }
+        photosChanged( changed );
+    }
+
+    /**
+     Create the table for search matches if it does not exist
+     @param con Connection used to access the database
+     @throws SQLException if an error occurs
+     */
+    static public void createTables( Connection con ) throws SQLException {
+        DatabaseMetaData md = con.getMetaData();
+        for ( String name : new String[] {MATCH_TABLE, MATCH_TABLE.toUpperCase()} ) {
+            ResultSet rs = md.getTables( null, null, name, null );
+            try {
+                if ( rs.next() ) {
+                    return;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        log.info( "Creating table " + MATCH_TABLE );
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate( "create table " + MATCH_TABLE + " ( " +
+                    "search_id varchar(36) not null, " +
+                    "photo_uuid varchar(255) not null, " +
+                    "primary key ( search_id, photo_uuid ) )" );
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     Store matches of a search so that queries can use them with 
+     {@link #MATCHING_PHOTOS_SQL}. The rows must be removed with 
+     {@link #deleteMatches(Connection, UUID)} after use.
+     @param con Connection used
+     @param searchId Unique id of the search
+     @param photoIds UUIDs of the matching photos
+     @throws SQLException if an error occurs
+     */
+    static public void storeMatches( Connection con, UUID searchId, 
+            Collection<UUID> photoIds ) throws SQLException {
+        PreparedStatement stmt = con.prepareStatement( "insert into " +
+                MATCH_TABLE + " ( search_id, photo_uuid ) values ( ?, ? )" );
+        try {
+            int batchCount = 0;
+            for ( UUID id : photoIds ) {
+                stmt.setString( 1, searchId.toString() );
+                stmt.setString( 2, id.toString() );
+                stmt.addBatch();
+                if ( ++batchCount == MATCH_BATCH_SIZE ) {
+                    stmt.executeBatch();
+                    batchCount = 0;
+                }
+            }
+            if ( batchCount > 0 ) {
+                stmt.executeBatch();
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     Remove matches of a search stored with 
+     {@link #storeMatches(Connection, UUID, Collection)}
+     @param con Connection used
+     @param searchId Id of the search
+     @throws SQLException if an error occurs
+     */
+    static public void deleteMatches( Connection con, UUID searchId ) 
+            throws SQLException {
+        PreparedStatement stmt = con.prepareStatement( "delete from " +
+                MATCH_TABLE + " where search_id = ?" );
+        try {
+            stmt.setString( 1, searchId.toString() );
+            stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     Hibernate event listener that removes deleted photos from the index. It
+     must be registered as a post commit delete listener so that photos are
+     not removed if the transaction is rolled back.
+     */
+    static public class Listener implements PostDeleteEventListener {
+
+        static final long serialVersionUID = 1L;
+
+        public void onPostDelete( PostDeleteEvent event ) {
+            if ( event.getEntity() instanceof PhotoInfo ) {
+                UUID id = ((PhotoInfo) event.getEntity()).getUuid();
+                if ( id != null ) {
+                    inst.removeDocument( id );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,691 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.photovault.folder.PhotoFolder;
+import org.photovault.folder.PhotoFolderDAO;
+import org.photovault.imginfo.dto.FolderRefDTO;
+import org.photovault.imginfo.dto.OrigImageRefDTO;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.persistence.HibernateUtil;
+import org.photovault.replication.ChangeDTO;
+import org.photovault.replication.ChangeFactory;
+import org.photovault.replication.DTOResolverFactory;
+import org.photovault.replication.ObjectHistoryDTO;
+import org.photovault.replication.VersionedObjectEditor;
+
+/**
+ HistoryImporter applies object histories read from an export stream to the
+ local database.
+ <p>
+ Histories are read ahead in batches. Folder histories of a batch are applied
+ first in the persistence context given to constructor, as photos refer to
+ the folders. Photo histories whose folders are already known are then
+ divided between worker threads that apply them in separate sessions, one
+ transaction per worker and batch. Photos that refer to the same original
+ image file are always handled by the same worker, so that two sessions never
+ try to create the same image file. Photos that refer to folders not yet
+ imported are postponed until the folders are found, too many photos are
+ waiting or the stream ends.
+ <p>
+ If a worker transaction fails, the histories in it are applied again one by
+ one in separate transactions so that a single broken history does not
+ prevent importing the others.
+ <p>
+ Since histories are applied directly and not with commands, the importer
+ tells {@link FulltextIndex} about the photos it has modified.
+ <p>
+ If a checkpoint file is set, the number of histories read from the stream
+ that have been committed is written to it after every batch. If import is
+ interrupted, it can be resumed by importing the same stream again with the
+ same checkpoint file; the committed histories are skipped. Since adding
+ known changes to a history does not modify it, replaying a history is
+ harmless.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class HistoryImporter {
+
+    static private Log log = LogFactory.getLog( HistoryImporter.class.getName() );
+
+    /**
+     Default number of histories in a batch. Can be set with system property
+     photovault.import.batchsize.
+     */
+    static final int DEFAULT_BATCH_SIZE =
+            Integer.getInteger( "photovault.import.batchsize", 200 );
+
+    /**
+     A history read from the stream
+     */
+    static private class Item {
+        /**
+         The history
+         */
+        ObjectHistoryDTO dto;
+        /**
+         Position of the history in stream, starting from 1.
+         */
+        long pos;
+        /**
+         UUIDs of folders referenced by the history.
+         */
+        Set<UUID> folders = new HashSet<UUID>();
+        /**
+         Key used to select the worker that applies the history
+         */
+        UUID groupKey;
+    }
+
+    /**
+     DAO factory for the persistence context used for folders
+     */
+    private HibernateDAOFactory df;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private File checkpointFile = null;
+
+    /**
+     UUIDs of folders that are known to exist in database
+     */
+    private Set<UUID> knownFolders = new HashSet<UUID>();
+
+    /**
+     Photo histories that are waiting for their folders to be imported, in
+     stream order.
+     */
+    private List<Item> postponed = new ArrayList<Item>();
+
+    private int folderCount = 0;
+    private int photoCount = 0;
+    private int failedCount = 0;
+    private int retriedCount = 0;
+
+    /**
+     Creates a new HistoryImporter
+     @param df DAO factory used for accessing the database. Folders are imported
+     using its session, photos in sessions created by the importer.
+     */
+    public HistoryImporter( HibernateDAOFactory df ) {
+        this.df = df;
+    }
+
+    /**
+     Set the number of histories read from stream in a single batch
+     @param batchSize Number of histories
+     */
+    public void setBatchSize( int batchSize ) {
+        if ( batchSize < 1 ) {
+            throw new IllegalArgumentException( "Batch size must be positive" );
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     Get the number of histories read from stream in a single batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     Set the number of threads used for importing photos. If set to 1, all
+     histories are applied in the caller's thread and session.
+     @param threadCount Number of threads
+     */
+    public void setThreadCount( int threadCount ) {
+        if ( threadCount < 1 ) {
+            throw new IllegalArgumentException( "Thread count must be positive" );
+        }
+        this.threadCount = threadCount;
+    }
+
+    /**
+     Get the number of threads used for importing photos
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     Set the file used for storing import progress
+     @param f The checkpoint file or <code>null</code> if progress is not
+     stored.
+     */
+    public void setCheckpointFile( File f ) {
+        checkpointFile = f;
+    }
+
+    /**
+     Get the file used for storing import progress
+     */
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     Get the number of folder histories imported
+     */
+    public int getFolderCount() {
+        return folderCount;
+    }
+
+    /**
+     Get the number of photo histories imported
+     */
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    /**
+     Get the number of histories that could not be imported
+     */
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     Get the number of histories that were applied one by one after the
+     transaction they were first applied in failed
+     */
+    public int getRetriedCount() {
+        return retriedCount;
+    }
+
+    /**
+     Import all histories from a stream. The stream ends either with a
+     <code>null</code> object or at end of file.
+     @param is The stream from which {@link ObjectHistoryDTO}s are read
+     @throws IOException if reading the stream or checkpoint file fails
+     */
+    public void importHistories( ObjectInputStream is ) throws IOException {
+        long skip = readCheckpoint();
+        if ( skip > 0 ) {
+            log.info( "Resuming import after " + skip + " histories" );
+        }
+        long pos = 0;
+        ExecutorService workers = null;
+        if ( threadCount > 1 ) {
+            workers = Executors.newFixedThreadPool( threadCount );
+        }
+        try {
+            boolean eof = false;
+            while ( !eof ) {
+                long startTime = System.currentTimeMillis();
+                List<Item> batch = new ArrayList<Item>( batchSize );
+                while ( batch.size() < batchSize ) {
+                    ObjectHistoryDTO dto = readHistory( is );
+                    if ( dto == null ) {
+                        eof = true;
+                        break;
+                    }
+                    pos++;
+                    if ( pos > skip ) {
+                        Item i = new Item();
+                        i.dto = dto;
+                        i.pos = pos;
+                        batch.add( i );
+                    }
+                }
+                importBatch( batch, eof, workers );
+                if ( postponed.isEmpty() ) {
+                    writeCheckpoint( Math.max( pos, skip ) );
+                } else {
+                    writeCheckpoint( Math.max( postponed.get( 0 ).pos - 1, skip ) );
+                }
+                log.debug( "Imported batch in " +
+                        ( System.currentTimeMillis() - startTime ) + " ms. " +
+                        photoCount + " photos, " + folderCount + " folders, " +
+                        failedCount + " failed." );
+            }
+        } finally {
+            if ( workers != null ) {
+                workers.shutdown();
+            }
+        }
+        if ( checkpointFile != null ) {
+            checkpointFile.delete();
+        }
+    }
+
+    /**
+     Read next history from stream
+     @return The history or <code>null</code> if the stream has ended.
+     */
+    private ObjectHistoryDTO readHistory( ObjectInputStream is )
+            throws IOException {
+        try {
+            return (ObjectHistoryDTO) is.readObject();
+        } catch ( EOFException e ) {
+            return null;
+        } catch ( ClassNotFoundException e ) {
+            log.error( e );
+            return null;
+        }
+    }
+
+    /**
+     Import histories read from stream in one batch
+     @param batch The histories
+     @param last <code>true</code> if this is the last batch in stream
+     @param workers Executor for importing photos or <code>null</code> if
+     they should be imported in current thread.
+     */
+    private void importBatch( List<Item> batch, boolean last,
+            ExecutorService workers ) {
+        List<Item> folders = new ArrayList<Item>();
+        List<Item> photos = new ArrayList<Item>();
+        for ( Item i : batch ) {
+            if ( PhotoFolder.class.getName().equals( i.dto.getTargetClassName() ) ) {
+                folders.add( i );
+            } else {
+                photos.add( i );
+            }
+        }
+        importFolders( folders );
+
+        // Find out which photos are ready to be imported
+        List<Item> candidates = new ArrayList<Item>( postponed );
+        candidates.addAll( photos );
+        postponed.clear();
+        List<Item> ready = new ArrayList<Item>();
+        for ( Item i : candidates ) {
+            if ( i.groupKey == null ) {
+                findDependencies( i );
+            }
+            if ( last || allFoldersKnown( i ) ) {
+                ready.add( i );
+            } else {
+                postponed.add( i );
+            }
+        }
+        // Do not let the postponed photos take unbounded amount of memory
+        while ( postponed.size() > batchSize ) {
+            ready.add( postponed.remove( 0 ) );
+        }
+
+        int oldFailedCount = failedCount;
+        if ( workers == null ) {
+            if ( !applyBatch( ready, df ) ) {
+                applyOneByOne( ready );
+            }
+        } else {
+            importPhotos( ready, workers );
+        }
+        photoCount += ready.size() - ( failedCount - oldFailedCount );
+    }
+
+    /**
+     Import folder histories in the main persistence context. The folders are
+     imported in a single transaction.
+     */
+    private void importFolders( List<Item> folders ) {
+        if ( folders.isEmpty() ) {
+            return;
+        }
+        int oldFailedCount = failedCount;
+        if ( !applyBatch( folders, df ) ) {
+            applyOneByOne( folders );
+        }
+        folderCount += folders.size() - ( failedCount - oldFailedCount );
+        for ( Item i : folders ) {
+            knownFolders.add( i.dto.getTargetUuid() );
+        }
+    }
+
+    /**
+     Import photo histories using worker threads. Each worker commits its
+     share of the photos in a single transaction.
+     */
+    private void importPhotos( List<Item> photos, ExecutorService workers ) {
+        if ( photos.isEmpty() ) {
+            return;
+        }
+        List<List<Item>> groups = new ArrayList<List<Item>>( threadCount );
+        for ( int n = 0; n < threadCount; n++ ) {
+            groups.add( new ArrayList<Item>() );
+        }
+        for ( Item i : photos ) {
+            int g = ( i.groupKey.hashCode() & Integer.MAX_VALUE ) % threadCount;
+            groups.get( g ).add( i );
+        }
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for ( List<Item> group : groups ) {
+            if ( !group.isEmpty() ) {
+                results.add( workers.submit( new ImportTask( group ) ) );
+            }
+        }
+        List<Item> failed = new ArrayList<Item>();
+        Iterator<Future<Boolean>> ri = results.iterator();
+        for ( List<Item> group : groups ) {
+            if ( group.isEmpty() ) {
+                continue;
+            }
+            boolean ok = false;
+            try {
+                ok = ri.next().get();
+            } catch ( InterruptedException e ) {
+                log.error( e );
+            } catch ( ExecutionException e ) {
+                log.error( e.getCause() );
+            }
+            if ( !ok ) {
+                failed.addAll( group );
+            }
+        }
+        if ( !failed.isEmpty() ) {
+            Collections.sort( failed, new Comparator<Item>() {
+                public int compare( Item o1, Item o2 ) {
+                    return o1.pos < o2.pos ? -1 : ( o1.pos == o2.pos ? 0 : 1 );
+                }
+            } );
+            applyOneByOne( failed );
+        }
+    }
+
+    /**
+     Task that imports a group of photos in its own session and transaction
+     */
+    private class ImportTask implements Callable<Boolean> {
+
+        ImportTask( List<Item> items ) {
+            this.items = items;
+        }
+
+        List<Item> items;
+
+        public Boolean call() {
+            Session s = HibernateUtil.getSessionFactory().openSession();
+            HibernateDAOFactory wdf = (HibernateDAOFactory) DAOFactory.instance(
+                    HibernateDAOFactory.class );
+            wdf.setSession( s );
+            try {
+                return applyBatch( items, wdf );
+            } finally {
+                s.close();
+            }
+        }
+    }
+
+    /**
+     Apply histories in a single transaction
+     @param items The histories to apply
+     @param df DAO factory for the persistence context used
+     @return <code>true</code> if the transaction was committed,
+     <code>false</code> if it was rolled back.
+     */
+    private boolean applyBatch( List<Item> items, HibernateDAOFactory df ) {
+        if ( items.isEmpty() ) {
+            return true;
+        }
+        Session s = df.getSession();
+        Transaction tx = s.beginTransaction();
+        try {
+            for ( Item i : items ) {
+                applyHistory( i.dto, df );
+            }
+            s.flush();
+            tx.commit();
+            photosImported( items );
+            return true;
+        } catch ( Exception e ) {
+            log.warn( "Error importing batch of " + items.size() +
+                    " histories, retrying one by one", e );
+            tx.rollback();
+            return false;
+        } finally {
+            s.clear();
+        }
+    }
+
+    /**
+     Apply histories in the main persistence context, each in its own
+     transaction. Histories that cannot be applied are logged and skipped.
+     */
+    private void applyOneByOne( List<Item> items ) {
+        retriedCount += items.size();
+        Session s = df.getSession();
+        for ( Item i : items ) {
+            Transaction tx = s.beginTransaction();
+            try {
+                applyHistory( i.dto, df );
+                s.flush();
+                tx.commit();
+                photosImported( Collections.singletonList( i ) );
+            } catch ( Exception e ) {
+                log.error( "Cannot import history of " +
+                        i.dto.getTargetClassName() + " " +
+                        i.dto.getTargetUuid(), e );
+                tx.rollback();
+                failedCount++;
+            }
+            s.clear();
+        }
+    }
+
+    /**
+     Mark photos whose histories have been committed as changed in full text
+     index
+     @param items The committed histories
+     */
+    private void photosImported( List<Item> items ) {
+        List<UUID> ids = new ArrayList<UUID>();
+        for ( Item i : items ) {
+            if ( PhotoInfo.class.getName().equals( i.dto.getTargetClassName() ) ) {
+                ids.add( i.dto.getTargetUuid() );
+            }
+        }
+        if ( !ids.isEmpty() ) {
+            FulltextIndex.instance().photosChanged( ids );
+        }
+    }
+
+    /**
+     Find folders and original image files referenced by a photo history
+     */
+    private void findDependencies( Item i ) {
+        UUID fileId = null;
+        for ( Object o : i.dto.getChanges() ) {
+            ChangeDTO ch = (ChangeDTO) o;
+            for ( Object v : ch.getReferencedValues() ) {
+                if ( v instanceof FolderRefDTO ) {
+                    UUID folderId = ((FolderRefDTO) v).getFolderId();
+                    if ( folderId != null ) {
+                        i.folders.add( folderId );
+                    }
+                } else if ( v instanceof OrigImageRefDTO ) {
+                    UUID id = ((OrigImageRefDTO) v).getFileUuid();
+                    if ( id != null && ( fileId == null || id.compareTo( fileId ) < 0 ) ) {
+                        fileId = id;
+                    }
+                }
+            }
+        }
+        i.groupKey = fileId != null ? fileId : i.dto.getTargetUuid();
+    }
+
+    /**
+     Check whether all folders referenced by a history exist in database
+     */
+    private boolean allFoldersKnown( Item i ) {
+        PhotoFolderDAO folderDao = null;
+        for ( UUID id : i.folders ) {
+            if ( knownFolders.contains( id ) ) {
+                continue;
+            }
+            if ( folderDao == null ) {
+                folderDao = df.getPhotoFolderDAO();
+            }
+            if ( folderDao.findByUUID( id ) == null ) {
+                return false;
+            }
+            knownFolders.add( id );
+        }
+        return true;
+    }
+
+    /**
+     Apply a history in given persistence context. The caller is responsible
+     for transaction management. Called from worker threads if more than one 
+     thread is used.
+     @param dto The history
+     @param df DAO factory for the persistence context
+     */
+    void applyHistory( ObjectHistoryDTO dto, HibernateDAOFactory df )
+            throws ClassNotFoundException, IOException,
+            InstantiationException, IllegalAccessException {
+        DTOResolverFactory rf = df.getDTOResolverFactory();
+        ChangeFactory cf = new ChangeFactory( df.getChangeDAO() );
+        VersionedObjectEditor e = null;
+        UUID uuid = dto.getTargetUuid();
+        if ( PhotoFolder.class.getName().equals( dto.getTargetClassName() ) ) {
+            e = getFolderEditor( uuid, df.getPhotoFolderDAO(), rf );
+        } else {
+            e = getPhotoEditor( uuid, df.getPhotoInfoDAO(), rf );
+        }
+        e.addToHistory( dto, cf );
+    }
+
+    /**
+     * Get editor for a folder with given UUID. if the folder is already knwon
+     * in current database return editor for it. If it is unknown, create a
+     * local instance and return editor for it.
+     * @param uuid UUID of the folder
+     * @param folderDao DAO for accessing local instances of folders.
+     * @param rf Resolver factory for the folders.
+     * @return
+     */
+    private VersionedObjectEditor<PhotoFolder> getFolderEditor(
+            UUID uuid, PhotoFolderDAO folderDao, DTOResolverFactory rf )
+            throws InstantiationException, IllegalAccessException {
+        PhotoFolder target = folderDao.findByUUID( uuid );
+        VersionedObjectEditor<PhotoFolder> e = null;
+        if ( target != null ) {
+            e = new VersionedObjectEditor( target, rf );
+        } else {
+            log.debug( "getFolderEditor: Creating new folder " + uuid );
+            e = new VersionedObjectEditor( PhotoFolder.class, uuid, rf );
+            target = e.getTarget();
+            folderDao.makePersistent( target );
+            folderDao.flush();
+        }
+        return e;
+    }
+
+    /**
+     * Get editor for a photo with given UUID. If the photo is already knwon
+     * in current database return editor for it. If it is unknown, create a
+     * local instance and return editor for it.
+     * @param uuid UUID of the photo
+     * @param photoDao DAO for accessing local instances of photos.
+     * @param rf Resolver factory for the photos.
+     * @return
+     */
+    private VersionedObjectEditor<PhotoInfo> getPhotoEditor(
+            UUID uuid, PhotoInfoDAO photoDao, DTOResolverFactory rf )
+            throws InstantiationException, IllegalAccessException {
+        PhotoInfo target = photoDao.findByUUID( uuid );
+        VersionedObjectEditor<PhotoInfo> e = null;
+        if ( target != null ) {
+            e = new VersionedObjectEditor( target, rf );
+        } else {
+            e = new VersionedObjectEditor( PhotoInfo.class, uuid, rf );
+            target = e.getTarget();
+            photoDao.makePersistent( target );
+            photoDao.flush();
+        }
+        return e;
+    }
+
+    /**
+     Read the number of histories already imported from checkpoint file
+     @return Number of histories or 0 if there is no checkpoint.
+     */
+    private long readCheckpoint() throws IOException {
+        if ( checkpointFile == null || !checkpointFile.exists() ) {
+            return 0;
+        }
+        BufferedReader r = new BufferedReader( new FileReader( checkpointFile ) );
+        try {
+            String line = r.readLine();
+            return line != null ? Long.parseLong( line.trim() ) : 0;
+        } catch ( NumberFormatException e ) {
+            log.warn( "Invalid checkpoint file " + checkpointFile );
+            return 0;
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     Write number of histories imported to checkpoint file. The file is
+     replaced atomically so that a crash while writing does not corrupt it.
+     */
+    private void writeCheckpoint( long count ) throws IOException {
+        if ( checkpointFile == null ) {
+            return;
+        }
+        File tmp = new File( checkpointFile.getPath() + ".tmp" );
+        Writer w = new FileWriter( tmp );
+        try {
+            w.write( Long.toString( count ) );
+            w.write( "\n" );
+        } finally {
+            w.close();
+        }
+        if ( !tmp.renameTo( checkpointFile ) ) {
+            checkpointFile.delete();
+            if ( !tmp.renameTo( checkpointFile ) ) {
+                throw new IOException( "Cannot write checkpoint " + checkpointFile );
+            }
+        }
+    }
+}
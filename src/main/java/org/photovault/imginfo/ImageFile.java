@@ -21,11 +21,8 @@
 package org.photovault.imginfo;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -232,6 +229,7 @@ public class ImageFile implements java.io.Serializable {
     public void addLocation( FileLocation newLocation ) {
         newLocation.file = this;
         locations.add( newLocation );
+        FileAvailabilityCache.instance().invalidate( id );
     }
     
     /**
@@ -240,22 +238,31 @@ public class ImageFile implements java.io.Serializable {
      */
     public void removeLocation( FileLocation location ) {
         locations.remove( location );
+        FileAvailabilityCache.instance().invalidate( id );
     }
     
 
     /**
-     Find a copy of this file that can be used
+     Find a copy of this file that can be used. The result is cached by 
+     {@link FileAvailabilityCache} so this is cheap to call repeatedly.
      @return File that is described by this object or <code>null</code> if
      no copy is available.
      */
     public File findAvailableCopy() {
+        return FileAvailabilityCache.instance().findAvailableCopy( this );
+    }
+    
+    /**
+     Find a copy of this file from file system, bypassing the cache
+     @return File that is described by this object or <code>null</code> if
+     no copy is available.
+     */
+    File lookupAvailableCopy() {
         for ( FileLocation loc : locations ) {
             if ( loc.getVolume().isAvailable() ) {
                 try {
-                    File f = loc.getVolume().mapFileName(loc.getFname());
-                    if ( f.exists() ) {
-                        return f;
-                    }
+                    // mapFileName checks that the file exists
+                    return loc.getVolume().mapFileName(loc.getFname());
                 } catch (FileNotFoundException ex) {
                     log.warn( "Exception while looking for available file: " + 
                             ex.getMessage() );
@@ -361,31 +368,13 @@ public class ImageFile implements java.io.Serializable {
      * @return Hash of f
      */
     public static byte[] calcHash( File f ) {
-        FileInputStream is = null;
         byte hash[] = null;
         try {
-            is = new FileInputStream( f );
-            byte readBuffer[] = new byte[4096];
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            int bytesRead = -1;
-            while( ( bytesRead = is.read( readBuffer ) ) > 0 ) {
-                md.update( readBuffer, 0, bytesRead );
-            }
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException ex) {
-            log.error( "MD5 algorithm not found" );
+            hash = FileHasher.getDefault().hash( f );
         } catch (FileNotFoundException ex) {
             log.error( f.getAbsolutePath() + "not found" );
         } catch (IOException ex) {
             log.error( "IOException while calculating hash: " + ex.getMessage() );
-        }  finally {
-            try {
-                if ( is != null ) {
-                    is.close();
-                }
-            } catch (IOException ex) {
-                log.error( "Cannot close stream after calculating hash" );
-            }
         }
         return hash;
     }
@@ -39,6 +39,34 @@ public interface ImageFileDAO extends GenericDAO<ImageFile, UUID> {
      */
     ImageFile findImageFileWithHash( byte[] hash );
 
+    /**
+     Find image file that matches a hash calculated with given algorithm.
+     @param algorithm Name of the digest algorithm. If this is MD5, the 
+     identity hash of image files is used, otherwise hashes stored in 
+     {@link FileHashTable}.
+     @param hash The hash code to search for
+     @return ImageFile with matching hash or <code>null</code> if no such file 
+     found.
+     */
+    ImageFile findImageFileWithHash( String algorithm, byte[] hash );
+
+    /**
+     Get a content hash of an image file
+     @param f The image file
+     @param algorithm Name of the digest algorithm
+     @return Hash of f calculated with given algorithm or <code>null</code> if
+     such hash is not known.
+     */
+    byte[] getContentHash( ImageFile f, String algorithm );
+
+    /**
+     Store a content hash of an image file
+     @param f The image file
+     @param algorithm Name of the digest algorithm used
+     @param hash The hash
+     */
+    void setContentHash( ImageFile f, String algorithm, byte[] hash );
+
     ImageFile findFileInLocation(ExternalVolume volume, String string);
     
     /**
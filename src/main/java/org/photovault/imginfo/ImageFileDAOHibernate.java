@@ -20,9 +20,12 @@
 
 package org.photovault.imginfo;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.UUID;
 import org.hibernate.Query;
+import org.hibernate.jdbc.Work;
 import org.photovault.persistence.GenericHibernateDAO;
 
 /**
@@ -52,6 +55,45 @@ public class ImageFileDAOHibernate
         return images.isEmpty() ? null : images.get( 0 );
     }
 
+    public ImageFile findImageFileWithHash( final String algorithm, 
+            final byte[] hash ) {
+        if ( FileHasher.MD5.equals( algorithm ) ) {
+            return findImageFileWithHash( hash );
+        }
+        final UUID[] id = new UUID[1];
+        getSession().doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                id[0] = FileHashTable.findFile( con, algorithm, hash );
+            }
+        } );
+        return id[0] != null ? findById( id[0], false ) : null;
+    }
+
+    public byte[] getContentHash( final ImageFile f, final String algorithm ) {
+        if ( FileHasher.MD5.equals( algorithm ) ) {
+            return f.getHash();
+        }
+        final byte[][] hash = new byte[1][];
+        getSession().doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                hash[0] = FileHashTable.getHash( con, f.getId(), algorithm );
+            }
+        } );
+        return hash[0];
+    }
+
+    public void setContentHash( final ImageFile f, final String algorithm, 
+            final byte[] hash ) {
+        if ( FileHasher.MD5.equals( algorithm ) ) {
+            return;
+        }
+        getSession().doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                FileHashTable.setHash( con, f.getId(), algorithm, hash );
+            }
+        } );
+    }
+
     public ImageFile findFileInLocation(ExternalVolume volume, String string) {
         return (ImageFile) getSession().getNamedQuery( "findImageFileByLocation" ).
                 setEntity( "volume", volume).setString( "fname", string ).
@@ -59,7 +101,8 @@ public class ImageFileDAOHibernate
     }
 
     public List<ImageFile> findFilesInDir( ExternalVolume vol, String path ) {
-        throw new UnsupportedOperationException( "Not supported yet." );
+        return getSession().getNamedQuery( "findImageFilesInDir" ).
+                setEntity( "volume", vol ).setString( "dir", path ).list();
     }
     
 }   
@@ -98,6 +98,16 @@ public class ModifyImageFileCommand extends DataAccessCommand {
 
     Set<FileLocation> removedLocations = new HashSet<FileLocation>();
     
+    /**
+     Algorithm of the content hash stored for the file
+     */
+    String contentHashAlgorithm;
+    
+    /**
+     Content hash stored for the file or <code>null</code> if none
+     */
+    byte[] contentHash;
+    
     /**
      Photos created while executing the command
      */
@@ -127,6 +137,17 @@ public class ModifyImageFileCommand extends DataAccessCommand {
         addedLocations.remove( l );        
     }
     
+    /**
+     Set the content hash that will be stored for the file in 
+     {@link FileHashTable}.
+     @param algorithm Algorithm used to calculate the hash
+     @param hash The hash
+     */
+    public void setContentHash( String algorithm, byte[] hash ) {
+        contentHashAlgorithm = algorithm;
+        contentHash = hash;
+    }
+    
     public void execute() throws CommandException {
         ImageFileDAO ifDAO = daoFactory.getImageFileDAO();
         PhotoInfoDAO photoDAO = daoFactory.getPhotoInfoDAO();
@@ -198,5 +219,8 @@ public class ModifyImageFileCommand extends DataAccessCommand {
         for ( FileLocation l : removedLocations ) {
             imageFile.removeLocation( l );
         }
+        if ( contentHash != null ) {
+            ifDAO.setContentHash( imageFile, contentHashAlgorithm, contentHash );
+        }
     }
 }
@@ -0,0 +1,190 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ MessageDigest implementation of the 128 bit x64 variant of MurmurHash3. This
+ is a non-cryptographic hash function that is several times faster than MD5,
+ so it is suitable for detecting changes in files where resistance against
+ deliberate collisions is not needed. The output is the two 64 bit halves of
+ the hash in little endian byte order.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class Murmur3Digest extends MessageDigest {
+
+    /**
+     Name of the algorithm
+     */
+    public static final String ALGORITHM = "MurmurHash3-128";
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private long h1;
+    private long h2;
+
+    /**
+     Total number of bytes processed
+     */
+    private long length;
+
+    /**
+     Bytes not yet processed because they do not fill a full block
+     */
+    private byte[] tail = new byte[16];
+    private int tailLength;
+
+    /**
+     Create a new digest
+     */
+    public Murmur3Digest() {
+        super( ALGORITHM );
+        engineReset();
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineUpdate( byte input ) {
+        tail[tailLength++] = input;
+        length++;
+        if ( tailLength == 16 ) {
+            processTail();
+        }
+    }
+
+    @Override
+    protected void engineUpdate( byte[] input, int offset, int len ) {
+        engineUpdate( ByteBuffer.wrap( input, offset, len ) );
+    }
+
+    @Override
+    protected void engineUpdate( ByteBuffer input ) {
+        ByteBuffer buf = input.slice().order( ByteOrder.LITTLE_ENDIAN );
+        int len = buf.remaining();
+        length += len;
+        // Fill a partial block first
+        while ( tailLength > 0 && buf.hasRemaining() ) {
+            tail[tailLength++] = buf.get();
+            if ( tailLength == 16 ) {
+                processTail();
+            }
+        }
+        while ( buf.remaining() >= 16 ) {
+            processBlock( buf.getLong(), buf.getLong() );
+        }
+        while ( buf.hasRemaining() ) {
+            tail[tailLength++] = buf.get();
+        }
+        input.position( input.position() + len );
+    }
+
+    private void processTail() {
+        ByteBuffer b = ByteBuffer.wrap( tail ).order( ByteOrder.LITTLE_ENDIAN );
+        processBlock( b.getLong(), b.getLong() );
+        tailLength = 0;
+    }
+
+    private void processBlock( long k1, long k2 ) {
+        h1 ^= mixK1( k1 );
+        h1 = Long.rotateLeft( h1, 27 );
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2( k2 );
+        h2 = Long.rotateLeft( h2, 31 );
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1( long k1 ) {
+        k1 *= C1;
+        k1 = Long.rotateLeft( k1, 31 );
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2( long k2 ) {
+        k2 *= C2;
+        k2 = Long.rotateLeft( k2, 33 );
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix( long k ) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long k1 = 0;
+        long k2 = 0;
+        for ( int n = tailLength - 1; n >= 8; n-- ) {
+            k2 ^= ( (long) tail[n] & 0xff ) << ( 8 * ( n - 8 ) );
+        }
+        for ( int n = Math.min( tailLength, 8 ) - 1; n >= 0; n-- ) {
+            k1 ^= ( (long) tail[n] & 0xff ) << ( 8 * n );
+        }
+        if ( tailLength > 8 ) {
+            h2 ^= mixK2( k2 );
+        }
+        if ( tailLength > 0 ) {
+            h1 ^= mixK1( k1 );
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix( h1 );
+        h2 = fmix( h2 );
+        h1 += h2;
+        h2 += h1;
+
+        byte[] result = new byte[16];
+        ByteBuffer.wrap( result ).order( ByteOrder.LITTLE_ENDIAN ).
+                putLong( h1 ).putLong( h2 );
+        engineReset();
+        return result;
+    }
+
+    @Override
+    protected void engineReset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        tailLength = 0;
+    }
+}
@@ -0,0 +1,700 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ PackedThumbnailStore stores thumbnail data of many photos in a few large
+ segment files instead of one file per thumbnail.
+ <p>
+ Segments are append-only. Each record contains UUID of the photo, version of
+ the thumbnail and the data. Storing a new version of a photo or removing it
+ appends a new record that shadows the older ones, so the latest record of a
+ photo is always the valid one. An index that maps photo UUIDs to record
+ positions is kept in memory and saved to file index.dat; if the index file
+ is missing or out of date the records not covered by it are scanned from the
+ segments when the store is opened.
+ <p>
+ Segments are memory mapped for reading, so reading a thumbnail is a single
+ lookup from the index and a copy from the mapped buffer. Space used by
+ shadowed records is reclaimed by compaction, which copies the valid records
+ of a segment to the end of the active segment and deletes the old one.
+ Compaction is done automatically when less than half of a segment is in use.
+ <p>
+ The store is used only for the local disk tier of {@link ThumbnailCache}.
+ Thumbnails and previews stored in volumes stay as separate image files, as
+ each of them is an {@link ImageFile} with its own MD5 based identity and
+ {@link FileLocation}. They are replicated to other databases and found
+ again by the volume indexer, which both work on individual files. Since 
+ thumbnails are normally read from the cache, the volume files are accessed
+ only when a thumbnail is not cached.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class PackedThumbnailStore {
+
+    static private Log log = LogFactory.getLog( PackedThumbnailStore.class.getName() );
+
+    /**
+     Magic number at the beginning of each segment file
+     */
+    static final int SEGMENT_MAGIC = 0x50565453; // "PVTS"
+
+    /**
+     Magic number at the beginning of index file
+     */
+    static final int INDEX_MAGIC = 0x50565449; // "PVTI"
+
+    /**
+     Version of segment & index file format
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     Size of segment file header
+     */
+    static final int SEGMENT_HEADER_SIZE = 8;
+
+    /**
+     Size of record header (2 UUIDs and data length)
+     */
+    static final int RECORD_HEADER_SIZE = 36;
+
+    /**
+     Record data length that marks removal of a photo
+     */
+    static final int REMOVED = -1;
+
+    /**
+     Default maximum size of a segment
+     */
+    static final long DEFAULT_SEGMENT_SIZE = 32L << 20;
+
+    /**
+     Segments with smaller fraction of valid data are compacted
+     */
+    static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     Number of changes after which the index is saved
+     */
+    static final int INDEX_SAVE_INTERVAL = 1000;
+
+    private static final String SEGMENT_PREFIX = "seg_";
+    private static final String SEGMENT_SUFFIX = ".pts";
+    private static final String INDEX_FILE = "index.dat";
+
+    /**
+     A segment file
+     */
+    private static class Segment {
+        int id;
+        File file;
+        RandomAccessFile raf;
+        FileChannel channel;
+        /**
+         Mapped region of the file, <code>null</code> if not yet mapped. May
+         be shorter than the file if records have been appended after mapping.
+         */
+        MappedByteBuffer map;
+        /**
+         Size of the file
+         */
+        long size;
+        /**
+         Total size of valid records
+         */
+        long liveBytes;
+    }
+
+    /**
+     Location of the latest record of a photo
+     */
+    private static class Entry {
+        UUID version;
+        Segment segment;
+        long offset;
+        int length;
+
+        int recordSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     Directory in which the store is located
+     */
+    private File dir;
+
+    /**
+     Maximum size of a segment
+     */
+    private long maxSegmentSize;
+
+    /**
+     Segments by their ID, in creation order
+     */
+    private TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    /**
+     Segment into which new records are appended
+     */
+    private Segment active = null;
+
+    /**
+     Latest record of each photo
+     */
+    private Map<UUID, Entry> entries = new HashMap<UUID, Entry>();
+
+    /**
+     Number of changes since the index was saved
+     */
+    private int unsavedChanges = 0;
+
+    /**
+     Open a store, creating it if it does not exist
+     @param dir Directory of the store
+     @param maxSegmentSize Maximum size of a segment file
+     @throws IOException if the store cannot be opened
+     */
+    public PackedThumbnailStore( File dir, long maxSegmentSize ) throws IOException {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        if ( !dir.isDirectory() && !dir.mkdirs() ) {
+            throw new IOException( "Cannot create directory " + dir );
+        }
+        open();
+    }
+
+    /**
+     Get the data of a thumbnail
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @return The data or <code>null</code> if the store does not contain
+     given version of the thumbnail.
+     */
+    public synchronized byte[] get( UUID photoId, UUID version ) {
+        Entry e = entries.get( photoId );
+        if ( e == null || !e.version.equals( version ) ) {
+            return null;
+        }
+        try {
+            Segment seg = e.segment;
+            long dataStart = e.offset + RECORD_HEADER_SIZE;
+            if ( seg.map == null || seg.map.capacity() < dataStart + e.length ) {
+                seg.map = seg.channel.map( FileChannel.MapMode.READ_ONLY, 0, seg.size );
+            }
+            byte[] data = new byte[e.length];
+            ByteBuffer buf = seg.map.duplicate();
+            buf.position( (int) dataStart );
+            buf.get( data );
+            return data;
+        } catch ( IOException ex ) {
+            log.warn( "Error reading thumbnail of " + photoId + ": " + ex.getMessage() );
+            return null;
+        }
+    }
+
+    /**
+     Check whether the store contains a thumbnail
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @return <code>true</code> if the thumbnail is found
+     */
+    public synchronized boolean contains( UUID photoId, UUID version ) {
+        Entry e = entries.get( photoId );
+        return e != null && e.version.equals( version );
+    }
+
+    /**
+     Store thumbnail data of a photo. Replaces all earlier versions of the
+     thumbnail.
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @param data The data
+     @throws IOException if writing fails
+     */
+    public synchronized void put( UUID photoId, UUID version, byte[] data )
+            throws IOException {
+        Entry e = append( photoId, version, data, 0, data.length );
+        replaceEntry( photoId, e );
+    }
+
+    /**
+     Remove all versions of a thumbnail
+     @param photoId UUID of the photo
+     @throws IOException if writing fails
+     */
+    public synchronized void remove( UUID photoId ) throws IOException {
+        if ( !entries.containsKey( photoId ) ) {
+            return;
+        }
+        append( photoId, new UUID( 0, 0 ), null, 0, REMOVED );
+        replaceEntry( photoId, null );
+    }
+
+    /**
+     Get the total size of segment files
+     @return Size in bytes
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for ( Segment seg : segments.values() ) {
+            size += seg.size;
+        }
+        return size;
+    }
+
+    /**
+     Get the number of thumbnails in store
+     @return Number of photos that have a thumbnail in store
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     Get the number of segment files
+     @return Number of segments
+     */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     Remove the oldest segments until the total size of the store is at most
+     given limit. Thumbnails in removed segments are lost.
+     @param maxSize Maximum size of the store in bytes
+     @throws IOException if removing fails
+     */
+    public synchronized void trim( long maxSize ) throws IOException {
+        while ( getSize() > maxSize && segments.size() > 1 ) {
+            Segment oldest = segments.firstEntry().getValue();
+            if ( oldest == active ) {
+                break;
+            }
+            Iterator<Entry> iter = entries.values().iterator();
+            while ( iter.hasNext() ) {
+                if ( iter.next().segment == oldest ) {
+                    iter.remove();
+                }
+            }
+            deleteSegment( oldest );
+        }
+    }
+
+    /**
+     Compact all segments that contain shadowed records.
+     @throws IOException if compaction fails
+     */
+    public synchronized void compact() throws IOException {
+        rollSegment();
+        for ( Segment seg : new ArrayList<Segment>( segments.values() ) ) {
+            if ( seg != active && seg.liveBytes < seg.size - SEGMENT_HEADER_SIZE ) {
+                compact( seg );
+            }
+        }
+    }
+
+    /**
+     Save the index and close segment files
+     @throws IOException if saving the index fails
+     */
+    public synchronized void close() throws IOException {
+        saveIndex();
+        for ( Segment seg : segments.values() ) {
+            closeSegment( seg );
+        }
+        segments.clear();
+        entries.clear();
+        active = null;
+    }
+
+    /**
+     Save the index so that segments need not be scanned when the store is
+     opened next time.
+     @throws IOException if saving fails
+     */
+    public synchronized void saveIndex() throws IOException {
+        File tmpFile = new File( dir, INDEX_FILE + ".tmp" );
+        DataOutputStream os = new DataOutputStream( new BufferedOutputStream(
+                new FileOutputStream( tmpFile ) ) );
+        try {
+            os.writeInt( INDEX_MAGIC );
+            os.writeInt( FORMAT_VERSION );
+            os.writeInt( segments.size() );
+            for ( Segment seg : segments.values() ) {
+                os.writeInt( seg.id );
+                os.writeLong( seg.size );
+            }
+            os.writeInt( entries.size() );
+            for ( Map.Entry<UUID, Entry> me : entries.entrySet() ) {
+                Entry e = me.getValue();
+                writeUuid( os, me.getKey() );
+                writeUuid( os, e.version );
+                os.writeInt( e.segment.id );
+                os.writeLong( e.offset );
+                os.writeInt( e.length );
+            }
+        } finally {
+            os.close();
+        }
+        File indexFile = new File( dir, INDEX_FILE );
+        indexFile.delete();
+        if ( !tmpFile.renameTo( indexFile ) ) {
+            throw new IOException( "Cannot rename " + tmpFile );
+        }
+        unsavedChanges = 0;
+    }
+
+    /**
+     Open existing segments and read the index
+     */
+    private void open() throws IOException {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                String name = f.getName();
+                if ( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) ) {
+                    try {
+                        int id = Integer.parseInt( name.substring(
+                                SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length() ) );
+                        segments.put( id, openSegment( id ) );
+                    } catch ( NumberFormatException e ) {
+                        log.warn( "Unknown file in thumbnail store: " + f );
+                    }
+                }
+            }
+        }
+        Map<Integer, Long> indexed = readIndex();
+        if ( indexed == null ) {
+            entries.clear();
+            indexed = new HashMap<Integer, Long>();
+        }
+        // Scan records that have been added after index was saved
+        for ( Segment seg : segments.values() ) {
+            Long start = indexed.get( seg.id );
+            scanSegment( seg, start != null ? start : SEGMENT_HEADER_SIZE );
+        }
+        for ( Entry e : entries.values() ) {
+            e.segment.liveBytes += e.recordSize();
+        }
+        if ( !segments.isEmpty() ) {
+            Segment last = segments.lastEntry().getValue();
+            if ( last.size < maxSegmentSize ) {
+                active = last;
+            }
+        }
+    }
+
+    /**
+     Read the index file.
+     @return Map from segment ID to the segment size covered by the index or
+     <code>null</code> if the index cannot be used.
+     */
+    private Map<Integer, Long> readIndex() {
+        File indexFile = new File( dir, INDEX_FILE );
+        if ( !indexFile.exists() ) {
+            return null;
+        }
+        Map<Integer, Long> indexed = new HashMap<Integer, Long>();
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream( new BufferedInputStream(
+                    new FileInputStream( indexFile ) ) );
+            if ( is.readInt() != INDEX_MAGIC || is.readInt() != FORMAT_VERSION ) {
+                log.warn( "Unknown thumbnail index format, rebuilding" );
+                return null;
+            }
+            int segCount = is.readInt();
+            for ( int n = 0; n < segCount; n++ ) {
+                int id = is.readInt();
+                long size = is.readLong();
+                Segment seg = segments.get( id );
+                if ( seg == null || seg.size < size ) {
+                    // Segment has been modified after saving the index
+                    return null;
+                }
+                indexed.put( id, size );
+            }
+            int entryCount = is.readInt();
+            for ( int n = 0; n < entryCount; n++ ) {
+                UUID photoId = readUuid( is );
+                Entry e = new Entry();
+                e.version = readUuid( is );
+                e.segment = segments.get( is.readInt() );
+                e.offset = is.readLong();
+                e.length = is.readInt();
+                if ( e.segment == null ) {
+                    return null;
+                }
+                entries.put( photoId, e );
+            }
+            return indexed;
+        } catch ( IOException e ) {
+            log.warn( "Error reading thumbnail index, rebuilding: " + e.getMessage() );
+            return null;
+        } finally {
+            if ( is != null ) {
+                try {
+                    is.close();
+                } catch ( IOException e ) {
+                    log.warn( "Error closing " + indexFile + ": " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    /**
+     Read records of a segment and add them to index
+     @param seg The segment
+     @param start Offset of the first record to read
+     */
+    private void scanSegment( Segment seg, long start ) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_SIZE );
+        long pos = start;
+        while ( pos < seg.size ) {
+            header.clear();
+            if ( pos + RECORD_HEADER_SIZE > seg.size ) {
+                break;
+            }
+            seg.channel.read( header, pos );
+            header.flip();
+            UUID photoId = new UUID( header.getLong(), header.getLong() );
+            UUID version = new UUID( header.getLong(), header.getLong() );
+            int length = header.getInt();
+            if ( length < REMOVED || pos + RECORD_HEADER_SIZE + Math.max( length, 0 ) > seg.size ) {
+                break;
+            }
+            if ( length == REMOVED ) {
+                entries.remove( photoId );
+                pos += RECORD_HEADER_SIZE;
+            } else {
+                Entry e = new Entry();
+                e.version = version;
+                e.segment = seg;
+                e.offset = pos;
+                e.length = length;
+                entries.put( photoId, e );
+                pos += e.recordSize();
+            }
+        }
+        if ( pos < seg.size ) {
+            // Incomplete record at the end, probably writing was interrupted
+            log.warn( "Truncating corrupted thumbnail segment " + seg.file +
+                    " at " + pos );
+            seg.channel.truncate( pos );
+            seg.size = pos;
+            seg.map = null;
+        }
+    }
+
+    /**
+     Append a record to the active segment
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @param data Data buffer
+     @param offset Offset of the data in buffer
+     @param length Length of the data or {@link #REMOVED}
+     @return Entry describing the new record
+     */
+    private Entry append( UUID photoId, UUID version, byte[] data,
+            int offset, int length ) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + Math.max( length, 0 );
+        if ( active == null || ( active.size + recordSize > maxSegmentSize &&
+                active.size > SEGMENT_HEADER_SIZE ) ) {
+            rollSegment();
+        }
+        ByteBuffer buf = ByteBuffer.allocate( recordSize );
+        buf.putLong( photoId.getMostSignificantBits() );
+        buf.putLong( photoId.getLeastSignificantBits() );
+        buf.putLong( version.getMostSignificantBits() );
+        buf.putLong( version.getLeastSignificantBits() );
+        buf.putInt( length );
+        if ( length > 0 ) {
+            buf.put( data, offset, length );
+        }
+        buf.flip();
+        long pos = active.size;
+        while ( buf.hasRemaining() ) {
+            active.channel.write( buf, pos + buf.position() );
+        }
+        active.size += recordSize;
+        Entry e = new Entry();
+        e.version = version;
+        e.segment = active;
+        e.offset = pos;
+        e.length = length;
+        return e;
+    }
+
+    /**
+     Replace the entry of a photo and compact the segment of the old entry if
+     it has become sparse.
+     @param photoId UUID of the photo
+     @param e New entry or <code>null</code> if the photo was removed
+     */
+    private void replaceEntry( UUID photoId, Entry e ) throws IOException {
+        Entry old = e != null ? entries.put( photoId, e ) : entries.remove( photoId );
+        if ( e != null ) {
+            e.segment.liveBytes += e.recordSize();
+        }
+        if ( old != null ) {
+            Segment seg = old.segment;
+            seg.liveBytes -= old.recordSize();
+            if ( seg != active && segments.containsKey( seg.id ) &&
+                    seg.liveBytes < ( seg.size - SEGMENT_HEADER_SIZE ) * COMPACTION_THRESHOLD ) {
+                compact( seg );
+            }
+        }
+        if ( ++unsavedChanges >= INDEX_SAVE_INTERVAL ) {
+            saveIndex();
+        }
+    }
+
+    /**
+     Copy valid records of a segment to the active segment and delete it
+     @param seg The segment to compact
+     */
+    private void compact( Segment seg ) throws IOException {
+        log.debug( "Compacting thumbnail segment " + seg.file );
+        List<Map.Entry<UUID, Entry>> live = new ArrayList<Map.Entry<UUID, Entry>>();
+        for ( Map.Entry<UUID, Entry> me : entries.entrySet() ) {
+            if ( me.getValue().segment == seg ) {
+                live.add( me );
+            }
+        }
+        for ( Map.Entry<UUID, Entry> me : live ) {
+            Entry old = me.getValue();
+            ByteBuffer buf = ByteBuffer.allocate( old.length );
+            long pos = old.offset + RECORD_HEADER_SIZE;
+            while ( buf.hasRemaining() ) {
+                if ( seg.channel.read( buf, pos + buf.position() ) < 0 ) {
+                    throw new IOException( "Unexpected end of " + seg.file );
+                }
+            }
+            Entry e = append( me.getKey(), old.version, buf.array(), 0, old.length );
+            e.segment.liveBytes += e.recordSize();
+            me.setValue( e );
+        }
+        /*
+         Removal records are not copied, so removed records in older segments
+         would become valid again if the index was rebuilt by scanning. This
+         is harmless as data of a given version never changes but wastes
+         space, so save the index before deleting the segment.
+         */
+        active.channel.force( false );
+        segments.remove( seg.id );
+        saveIndex();
+        deleteSegment( seg );
+    }
+
+    /**
+     Start a new active segment
+     */
+    private void rollSegment() throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment seg = openSegment( id );
+        segments.put( id, seg );
+        active = seg;
+    }
+
+    private File getSegmentFile( int id ) {
+        return new File( dir, String.format( "%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX ) );
+    }
+
+    /**
+     Open a segment file, creating it if it does not exist
+     @param id ID of the segment
+     */
+    private Segment openSegment( int id ) throws IOException {
+        Segment seg = new Segment();
+        seg.id = id;
+        seg.file = getSegmentFile( id );
+        seg.raf = new RandomAccessFile( seg.file, "rw" );
+        seg.channel = seg.raf.getChannel();
+        seg.size = seg.channel.size();
+        ByteBuffer header = ByteBuffer.allocate( SEGMENT_HEADER_SIZE );
+        if ( seg.size < SEGMENT_HEADER_SIZE ) {
+            header.putInt( SEGMENT_MAGIC );
+            header.putInt( FORMAT_VERSION );
+            header.flip();
+            seg.channel.truncate( 0 );
+            seg.channel.write( header, 0 );
+            seg.size = SEGMENT_HEADER_SIZE;
+        } else {
+            seg.channel.read( header, 0 );
+            header.flip();
+            if ( header.getInt() != SEGMENT_MAGIC || header.getInt() != FORMAT_VERSION ) {
+                seg.raf.close();
+                throw new IOException( seg.file + " is not a thumbnail segment" );
+            }
+        }
+        return seg;
+    }
+
+    private void closeSegment( Segment seg ) throws IOException {
+        seg.map = null;
+        seg.raf.close();
+    }
+
+    private void deleteSegment( Segment seg ) throws IOException {
+        segments.remove( seg.id );
+        closeSegment( seg );
+        if ( !seg.file.delete() ) {
+            // Mapped files cannot be deleted on some platforms
+            log.warn( "Cannot delete " + seg.file );
+            seg.file.deleteOnExit();
+        }
+    }
+
+    private static void writeUuid( DataOutputStream os, UUID id ) throws IOException {
+        os.writeLong( id.getMostSignificantBits() );
+        os.writeLong( id.getLeastSignificantBits() );
+    }
+
+    private static UUID readUuid( DataInputStream is ) throws IOException {
+        return new UUID( is.readLong(), is.readLong() );
+    }
+}
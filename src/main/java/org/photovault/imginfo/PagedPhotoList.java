@@ -0,0 +1,632 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.Vector;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Criteria;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+
+/**
+ PagedPhotoList is a read only list of photos matching a {@link PhotoQuery}
+ that loads the photos lazily in pages when they are accessed. Only the
+ number of results is queried when the list is created, so even queries with
+ very large result sets can be shown immediately.
+ <p>
+ Pages are located using keyset pagination on the sort key, i.e. a page is
+ read by querying photos whose (sort key, UUID) pair is after the last photo
+ of previous page. Positions of pages that have not been read are found by
+ scrolling through projections of just the sort key and UUID. Only a limited
+ number of pages is kept in memory; photos of pages that are dropped are
+ evicted from the session.
+ <p>
+ If the query results change after they have been counted, a page can come
+ back shorter than expected. In that case the list discards its pages,
+ counts the results again and notifies its listeners.
+ <p>
+ Photos with equal sort key are ordered by their UUID. Photos without a
+ value for the sort key are ordered like the corresponding comparators
+ do, i.e. photos without shooting time last and photos without shooting
+ place first.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class PagedPhotoList extends AbstractList<PhotoInfo>
+        implements PhotoCollection {
+
+    static private Log log = LogFactory.getLog( PagedPhotoList.class.getName() );
+
+    /**
+     Number of photos in a page. Can be set with system property
+     photovault.query.pagesize.
+     */
+    static final int PAGE_SIZE =
+            Integer.getInteger( "photovault.query.pagesize", 200 );
+
+    /**
+     Maximum number of pages kept in memory. Can be set with system property
+     photovault.query.cachedpages.
+     */
+    static final int MAX_CACHED_PAGES =
+            Integer.getInteger( "photovault.query.cachedpages", 20 );
+
+    /**
+     Sort keys that can be used for ordering the list
+     */
+    public enum SortKey {
+        /**
+         Ascending shooting time, photos without shooting time last
+         */
+        SHOOTING_DATE( "shootTime", true, false ) {
+            Object getValue( PhotoInfo p ) {
+                return p.getShootTime();
+            }
+        },
+        /**
+         Descending quality
+         */
+        QUALITY( "quality", false, false ) {
+            Object getValue( PhotoInfo p ) {
+                return p.getQuality();
+            }
+        },
+        /**
+         Ascending shooting place, photos without shooting place first
+         */
+        SHOOTING_PLACE( "shotLocation.description", true, true ) {
+            Object getValue( PhotoInfo p ) {
+                return p.getShootingPlace();
+            }
+        },
+        /**
+         No sort key, photos are ordered only by UUID
+         */
+        NONE( null, true, false ) {
+            Object getValue( PhotoInfo p ) {
+                return null;
+            }
+        };
+
+        SortKey( String property, boolean ascending, boolean nullsFirst ) {
+            this.property = property;
+            this.ascending = ascending;
+            this.nullsFirst = nullsFirst;
+        }
+
+        /**
+         Name of the sorted property or <code>null</code> if photos are sorted
+         only by UUID
+         */
+        final String property;
+
+        /**
+         Is the property sorted in ascending order?
+         */
+        final boolean ascending;
+
+        /**
+         Are photos without a value for property sorted before others?
+         */
+        final boolean nullsFirst;
+
+        /**
+         Get the value of sort key for given photo
+         */
+        abstract Object getValue( PhotoInfo p );
+
+        /**
+         Get the sort key that corresponds to a comparator
+         @param c The comparator
+         @return Sort key that orders photos like c or <code>null</code> if
+         there is no such key. If c is <code>null</code>, returns NONE.
+         */
+        static public SortKey forComparator( Comparator c ) {
+            if ( c == null ) {
+                return NONE;
+            } else if ( c instanceof ShootingDateComparator ) {
+                return SHOOTING_DATE;
+            } else if ( c instanceof QualityComparator ) {
+                return QUALITY;
+            } else if ( c instanceof ShootingPlaceComparator ) {
+                return SHOOTING_PLACE;
+            }
+            return null;
+        }
+    }
+
+    /**
+     Position in the result set. The photo (if any) whose key this is and all
+     photos before it in sort order are before the position.
+     */
+    static private class Bookmark {
+        Bookmark( boolean isNull, Object value, UUID uuid ) {
+            this.isNull = isNull;
+            this.value = value;
+            this.uuid = uuid;
+        }
+
+        /**
+         Is the position in the part of results that have no value for sort
+         key?
+         */
+        final boolean isNull;
+
+        final Object value;
+
+        final UUID uuid;
+    }
+
+    /**
+     The query whose results this list contains
+     */
+    private final PhotoQuery query;
+
+    /**
+     Session used for loading photos
+     */
+    private final Session session;
+
+    private final SortKey sortKey;
+
+    /**
+     Number of photos in a page
+     */
+    private final int pageSize;
+
+    /**
+     Number of photos in the list
+     */
+    private int size;
+
+    /**
+     Start positions of pages. Item n is the start of page n, <code>null</code>
+     meaning beginning of results.
+     */
+    private List<Bookmark> pageStarts = new ArrayList<Bookmark>();
+
+    /**
+     Pages currently in memory, in least recently used order
+     */
+    private Map<Integer, List<PhotoInfo>> pages =
+            new LinkedHashMap<Integer, List<PhotoInfo>>( 16, 0.75f, true ) {
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<Integer, List<PhotoInfo>> e ) {
+            if ( size() > MAX_CACHED_PAGES ) {
+                pageEvicted( e.getValue() );
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     Listeners of this collection
+     */
+    private Vector<PhotoCollectionChangeListener> listeners =
+            new Vector<PhotoCollectionChangeListener>();
+
+    /**
+     Change listeners that are added to all photos in loaded pages
+     */
+    private List<PhotoInfoChangeListener> photoListeners =
+            new ArrayList<PhotoInfoChangeListener>();
+
+    /**
+     Create a new list of query results.
+     @param query The query
+     @param session Session used to load the photos. The list must be used only
+     while this session is open.
+     @param sortKey Order of the photos
+     @throws IllegalArgumentException if the query cannot be paged
+     */
+    public PagedPhotoList( PhotoQuery query, Session session, SortKey sortKey ) {
+        this( query, session, sortKey, PAGE_SIZE );
+    }
+
+    /**
+     Create a new list of query results using given page size.
+     @param query The query
+     @param session Session used to load the photos.
+     @param sortKey Order of the photos
+     @param pageSize Number of photos in a page
+     */
+    PagedPhotoList( PhotoQuery query, Session session, SortKey sortKey,
+            int pageSize ) {
+        if ( !query.isPageable() ) {
+            throw new IllegalArgumentException(
+                    "Full text query results cannot be paged" );
+        }
+        this.query = query;
+        this.session = session;
+        this.sortKey = sortKey;
+        this.pageSize = pageSize;
+        size = countPhotos();
+        pageStarts.add( null );
+        log.debug( "Query has " + size + " results" );
+    }
+
+    /**
+     Count the results of the query
+     */
+    private int countPhotos() {
+        Criteria crit = query.createCriteria( session );
+        crit.setProjection( Projections.rowCount() );
+        return ((Number) crit.uniqueResult()).intValue();
+    }
+
+    /**
+     Get the query whose results are in this list
+     */
+    public PhotoQuery getQuery() {
+        return query;
+    }
+
+    /**
+     Get the order of photos in this list
+     */
+    public SortKey getSortKey() {
+        return sortKey;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     Get a photo, loading the page containing it if needed
+     @param n Index of the photo
+     @return The photo or <code>null</code> if the query results have changed
+     so that there is no longer a photo at this index. In that case the list
+     has been reloaded and its listeners notified.
+     @throws IndexOutOfBoundsException if n is not a valid index
+     */
+    @Override
+    public PhotoInfo get( int n ) {
+        if ( n < 0 || n >= size ) {
+            throw new IndexOutOfBoundsException( "Index " + n + ", size " + size );
+        }
+        int pageNum = n / pageSize;
+        List<PhotoInfo> page = getPage( pageNum );
+        int idx = n - pageNum * pageSize;
+        if ( page == null || idx >= page.size() ) {
+            // The results have been changed after counting them
+            log.debug( "Photo " + n + " not found, reloading results" );
+            reload();
+            return null;
+        }
+        return page.get( idx );
+    }
+
+    /**
+     Discard all loaded pages, count the results again and notify listeners
+     that the collection has changed.
+     */
+    private void reload() {
+        for ( List<PhotoInfo> page : pages.values() ) {
+            pageEvicted( page );
+        }
+        pages.clear();
+        pageStarts.clear();
+        pageStarts.add( null );
+        size = countPhotos();
+        log.debug( "Query has " + size + " results" );
+        PhotoCollectionChangeEvent e = new PhotoCollectionChangeEvent( this );
+        for ( PhotoCollectionChangeListener l :
+                new ArrayList<PhotoCollectionChangeListener>( listeners ) ) {
+            l.photoCollectionChanged( e );
+        }
+    }
+
+    /**
+     Add a change listener to all photos of this list that are in memory. The
+     listener is added to photos of pages when they are loaded and removed
+     when the page is dropped from memory.
+     @param l The listener
+     */
+    public void addPhotoChangeListener( PhotoInfoChangeListener l ) {
+        photoListeners.add( l );
+        for ( List<PhotoInfo> page : pages.values() ) {
+            for ( PhotoInfo p : page ) {
+                p.addChangeListener( l );
+            }
+        }
+    }
+
+    /**
+     Remove a listener added with {@link #addPhotoChangeListener}
+     @param l The listener
+     */
+    public void removePhotoChangeListener( PhotoInfoChangeListener l ) {
+        photoListeners.remove( l );
+        for ( List<PhotoInfo> page : pages.values() ) {
+            for ( PhotoInfo p : page ) {
+                p.removeChangeListener( l );
+            }
+        }
+    }
+
+    /**
+     Called when a page is dropped from memory. Removes photo listeners from
+     its photos and evicts them from session.
+     */
+    private void pageEvicted( List<PhotoInfo> page ) {
+        for ( PhotoInfo p : page ) {
+            for ( PhotoInfoChangeListener l : photoListeners ) {
+                p.removeChangeListener( l );
+            }
+            session.evict( p );
+        }
+    }
+
+    /**
+     Check whether a photo is loaded into memory
+     @param n Index of the photo
+     @return <code>true</code> if the photo can be accessed without querying
+     database.
+     */
+    public boolean isLoaded( int n ) {
+        return pages.containsKey( n / pageSize );
+    }
+
+    /**
+     Find the index of a photo. Only the pages currently in memory are
+     searched.
+     @param o The photo
+     @return Index of a photo with same UUID as o or -1 if it is not found in
+     loaded pages.
+     */
+    @Override
+    public int indexOf( Object o ) {
+        if ( !(o instanceof PhotoInfo) ) {
+            return -1;
+        }
+        UUID id = ((PhotoInfo) o).getUuid();
+        for ( Map.Entry<Integer, List<PhotoInfo>> e : pages.entrySet() ) {
+            List<PhotoInfo> page = e.getValue();
+            for ( int n = 0; n < page.size(); n++ ) {
+                if ( page.get( n ).getUuid().equals( id ) ) {
+                    return e.getKey() * pageSize + n;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf( Object o ) {
+        return indexOf( o );
+    }
+
+    /**
+     Find a photo from the pages currently in memory
+     @param id UUID of the photo
+     @return The photo or <code>null</code> if it is not loaded
+     */
+    public PhotoInfo findLoaded( UUID id ) {
+        for ( List<PhotoInfo> page : pages.values() ) {
+            for ( PhotoInfo p : page ) {
+                if ( p.getUuid().equals( id ) ) {
+                    return p;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     Get the photos currently loaded into memory
+     @return List of loaded photos
+     */
+    public List<PhotoInfo> getLoadedPhotos() {
+        List<PhotoInfo> ret = new ArrayList<PhotoInfo>();
+        for ( List<PhotoInfo> page : pages.values() ) {
+            ret.addAll( page );
+        }
+        return ret;
+    }
+
+    /**
+     Get a page, loading it from database if it is not in memory
+     @return The page or <code>null</code> if the results do not have such page
+     anymore.
+     */
+    @SuppressWarnings( "unchecked" )
+    private List<PhotoInfo> getPage( int pageNum ) {
+        List<PhotoInfo> page = pages.get( pageNum );
+        if ( page != null ) {
+            return page;
+        }
+        long startTime = System.currentTimeMillis();
+        if ( !findPageStart( pageNum ) ) {
+            return null;
+        }
+        page = new ArrayList<PhotoInfo>( pageSize );
+        Bookmark start = pageStarts.get( pageNum );
+        for ( boolean nullPart : getParts( start ) ) {
+            Criteria crit = createCriteria( nullPart, start );
+            crit.setMaxResults( pageSize - page.size() );
+            page.addAll( crit.list() );
+            if ( page.size() >= pageSize ) {
+                break;
+            }
+        }
+        if ( page.size() == pageSize && pageStarts.size() == pageNum+1 ) {
+            PhotoInfo last = page.get( pageSize-1 );
+            Object value = sortKey.getValue( last );
+            pageStarts.add( new Bookmark(
+                    sortKey.property != null && value == null, value, last.getUuid() ) );
+        }
+        for ( PhotoInfo p : page ) {
+            for ( PhotoInfoChangeListener l : photoListeners ) {
+                p.addChangeListener( l );
+            }
+        }
+        pages.put( pageNum, page );
+        log.debug( "Loaded page " + pageNum + " in " +
+                ( System.currentTimeMillis() - startTime ) + " ms" );
+        return page;
+    }
+
+    /**
+     Find start positions of all pages up to given page by scrolling through
+     sort keys after the last known position.
+     @return <code>true</code> if start of the page was found,
+     <code>false</code> if the results have fewer pages.
+     */
+    private boolean findPageStart( int pageNum ) {
+        if ( pageStarts.size() > pageNum ) {
+            return true;
+        }
+        Bookmark start = pageStarts.get( pageStarts.size()-1 );
+        int rowsNeeded = ( pageNum - pageStarts.size() + 1 ) * pageSize;
+        int rows = 0;
+        for ( boolean nullPart : getParts( start ) ) {
+            Criteria crit = createCriteria( nullPart, start );
+            if ( sortKey.property != null && !nullPart ) {
+                crit.setProjection( Projections.projectionList().
+                        add( Projections.property( sortKey.property ) ).
+                        add( Projections.property( "uuid" ) ) );
+            } else {
+                crit.setProjection( Projections.property( "uuid" ) );
+            }
+            crit.setMaxResults( rowsNeeded - rows );
+            crit.setFetchSize( pageSize );
+            ScrollableResults res = crit.scroll( ScrollMode.FORWARD_ONLY );
+            try {
+                while ( res.next() ) {
+                    rows++;
+                    if ( rows % pageSize == 0 ) {
+                        Object[] row = res.get();
+                        Bookmark b = row.length > 1 ?
+                            new Bookmark( false, row[0], (UUID) row[1] ) :
+                            new Bookmark( nullPart, null, (UUID) row[0] );
+                        pageStarts.add( b );
+                    }
+                }
+            } finally {
+                res.close();
+            }
+            if ( rows >= rowsNeeded ) {
+                break;
+            }
+        }
+        // The results may have been changed after counting them
+        return pageStarts.size() > pageNum;
+    }
+
+    /**
+     Get the parts of results that must be read after given position. If the
+     sort key can be null, the photos with null and non-null keys are queried
+     separately so that the ordering does not depend on database.
+     @param start The position
+     @return List of parts, <code>true</code> meaning part with null sort key
+     */
+    private List<Boolean> getParts( Bookmark start ) {
+        List<Boolean> parts = new ArrayList<Boolean>( 2 );
+        if ( sortKey.property == null ) {
+            parts.add( false );
+            return parts;
+        }
+        boolean first = sortKey.nullsFirst;
+        if ( start == null || start.isNull == first ) {
+            parts.add( first );
+        }
+        parts.add( !first );
+        return parts;
+    }
+
+    /**
+     Create criteria for reading photos after given position
+     @param nullPart Read photos with null value for sort key?
+     @param start Position after which the photos are read or <code>null</code>
+     if reading from beginning
+     @return The criteria, ordered by sort key.
+     */
+    private Criteria createCriteria( boolean nullPart, Bookmark start ) {
+        Criteria crit = query.createCriteria( session );
+        String prop = sortKey.property;
+        if ( prop != null ) {
+            if ( nullPart ) {
+                crit.add( Restrictions.isNull( prop ) );
+            } else {
+                crit.add( Restrictions.isNotNull( prop ) );
+                crit.addOrder( sortKey.ascending ? Order.asc( prop ) : Order.desc( prop ) );
+            }
+        }
+        crit.addOrder( Order.asc( "uuid" ) );
+        if ( start != null && start.isNull == nullPart ) {
+            if ( prop == null || nullPart ) {
+                crit.add( Restrictions.gt( "uuid", start.uuid ) );
+            } else {
+                crit.add( Restrictions.or(
+                        sortKey.ascending ?
+                            Restrictions.gt( prop, start.value ) :
+                            Restrictions.lt( prop, start.value ),
+                        Restrictions.and(
+                            Restrictions.eq( prop, start.value ),
+                            Restrictions.gt( "uuid", start.uuid ) ) ) );
+            }
+        }
+        return crit;
+    }
+
+    // Implementation of PhotoCollection
+
+    public int getPhotoCount() {
+        return size();
+    }
+
+    public PhotoInfo getPhoto( int numPhoto ) {
+        return get( numPhoto );
+    }
+
+    public void addPhotoCollectionChangeListener( PhotoCollectionChangeListener l ) {
+        listeners.add( l );
+    }
+
+    public void removePhotoCollectionChangeListener( PhotoCollectionChangeListener l ) {
+        listeners.remove( l );
+    }
+
+    /**
+     Get the query results in another session
+     @param s The session
+     @return New paged list using s.
+     */
+    public List<PhotoInfo> queryPhotos( Session s ) {
+        return new PagedPhotoList( query, s, sortKey );
+    }
+}
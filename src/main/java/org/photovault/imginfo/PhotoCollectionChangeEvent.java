@@ -24,11 +24,109 @@ import java.util.*;
 /**
    PhotoCollectionChangeEvent will be sent to PhotoCollectionChangeListeners when the photo colledction
    is changed.
+   <p>
+   If the collection knows which photos were changed, the event describes the
+   change as photos added, removed or updated so that listeners can update 
+   their state incrementally. Collections that have an order can also tell 
+   the range of indexes affected by the change. Otherwise the type of event 
+   is CHANGED and listeners should assume that the whole collection has 
+   changed.
 */
 public class PhotoCollectionChangeEvent extends EventObject {
+    
+    /**
+     Types of changes
+     */
+    public enum Type {
+        /**
+         The collection may have changed in any way
+         */
+        CHANGED,
+        /**
+         Photos were added to the collection
+         */
+        PHOTOS_ADDED,
+        /**
+         Photos were removed from the collection
+         */
+        PHOTOS_REMOVED,
+        /**
+         Properties of photos in the collection were changed
+         */
+        PHOTOS_UPDATED
+    }
+    
     public PhotoCollectionChangeEvent ( PhotoCollection source ) {
-	super( source );
+	this( source, Type.CHANGED, null, -1, -1 );
+    }
+    
+    /**
+     Create an event describing change to given photos
+     @param source The changed collection
+     @param type Type of the change
+     @param photos The photos added, removed or updated
+     */
+    public PhotoCollectionChangeEvent( PhotoCollection source, Type type, 
+            Collection<PhotoInfo> photos ) {
+        this( source, type, photos, -1, -1 );
+    }
+    
+    /**
+     Create an event describing change to given range of photos
+     @param source The changed collection
+     @param type Type of the change
+     @param photos The photos added, removed or updated
+     @param firstIndex Index of first photo affected by the change. For
+     removed photos, the index before removal.
+     @param lastIndex Index of last photo affected by the change
+     */
+    public PhotoCollectionChangeEvent( PhotoCollection source, Type type, 
+            Collection<PhotoInfo> photos, int firstIndex, int lastIndex ) {
+        super( source );
+        this.type = type;
+        this.photos = photos != null ? 
+            Collections.unmodifiableCollection( photos ) : 
+            Collections.<PhotoInfo>emptyList();
+        this.firstIndex = firstIndex;
+        this.lastIndex = lastIndex;
+    }
+    
+    private Type type;
+    
+    private Collection<PhotoInfo> photos;
+    
+    private int firstIndex;
+    
+    private int lastIndex;
+    
+    /**
+     Get the type of this change
+     */
+    public Type getType() {
+        return type;
+    }
+    
+    /**
+     Get the photos affected by this change.
+     @return The photos, or empty collection if type is CHANGED
+     */
+    public Collection<PhotoInfo> getPhotos() {
+        return photos;
+    }
+    
+    /**
+     Get the first index affected by the change
+     @return The index or -1 if the change is not limited to a known range.
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+    
+    /**
+     Get the last index affected by the change
+     @return The index or -1 if the change is not limited to a known range.
+     */
+    public int getLastIndex() {
+        return lastIndex;
     }
 }
-
-
@@ -348,13 +348,16 @@ public class PhotoInfo implements PhotoEditor {
      @param maxWidth Maximum width of the returned image in pixels
      @param maxHeight Maximum height of the returned image in pixels
      @return Image that best matches the given criteria or <code>null</code>
-     if no suct image exists or is not available.
+     if no suct image exists or is not available. If several images have the
+     same operations applied, the one with lowest resolution is returned as it
+     is fastest to load.
      */
     public ImageDescriptorBase getPreferredImage( Set<ImageOperations> requiredOpers,
             Set<ImageOperations> allowedOpers, int minWidth, int minHeight,
             int maxWidth, int maxHeight ) {
         ImageDescriptorBase preferred = null;
         EnumSet<ImageOperations> appliedPreferred = null;
+        double preferredScale = 0.0;
         
         // We are not interested in operations that are not specified for this photo
         EnumSet<ImageOperations> specifiedOpers = getAppliedOperations();
@@ -370,6 +373,7 @@ public class PhotoInfo implements PhotoEditor {
                 original.getFile().findAvailableCopy() != null ) {
             preferred = original;
             appliedPreferred = EnumSet.noneOf( ImageOperations.class );
+            preferredScale = 1.0;
         }
 
         // Calculate minimum & maimum scaling of resolution compared to original
@@ -417,9 +421,12 @@ public class PhotoInfo implements PhotoEditor {
                         isConsistentWithCurrentSettings( copy ) ) {
                     
                     // This is a potential one
-                    if ( preferred == null || !appliedPreferred.containsAll( applied ) ) {
+                    if ( preferred == null || !appliedPreferred.containsAll( applied ) ||
+                            ( applied.containsAll( appliedPreferred ) && 
+                            scale < preferredScale ) ) {
                         preferred = copy;
                         appliedPreferred = applied;                        
+                        preferredScale = scale;
                     }
                 }
             }
@@ -500,8 +507,7 @@ public class PhotoInfo implements PhotoEditor {
             if ( img != null ) {
                 log.debug( "Found thumbnail from database" );
                 // TODO: This must take also locator.
-                thumbnail = Thumbnail.createThumbnail( this,
-                        img.getFile().findAvailableCopy() );
+                thumbnail = Thumbnail.createThumbnail( this, img.getFile(), null );
                 oldThumbnail = null;
             }
         }
@@ -734,8 +740,8 @@ public class PhotoInfo implements PhotoEditor {
             // haven't changed anything yet so we can safely commit the tx.
             return;
         }
+        ImageFile thumbFile = null;
         try {
-            ImageFile thumbFile;
             thumbFile = new ImageFile(thumbnailFile);
             CopyImageDescriptor thumbImageDesc = new CopyImageDescriptor( thumbFile, "image#0", original );
             thumbImageDesc.setRotation( getPrefRotation() );
@@ -750,7 +756,9 @@ public class PhotoInfo implements PhotoEditor {
         
         log.debug( "Loading thumbnail..." );
         
-        thumbnail = Thumbnail.createThumbnail( this, thumbnailFile );
+        thumbnail = thumbFile != null ? 
+            Thumbnail.createThumbnail( this, thumbFile, thumbnailFile ) :
+            Thumbnail.createThumbnail( this, thumbnailFile );
         oldThumbnail = null;
         log.debug( "Thumbnail loaded" );
         
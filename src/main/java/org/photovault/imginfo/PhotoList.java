@@ -22,13 +22,20 @@ package org.photovault.imginfo;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 import org.hibernate.Session;
+import org.photovault.command.CommandChangeListener;
 
 /**
   Simple list of photos that implements the PhotoCollection interface.
+  <p>
+  If the list is registered as a {@link CommandChangeListener}, photos changed
+  by committed commands replace the instances in the list and listeners get a 
+  PHOTOS_UPDATED event for them.
  */
-public class PhotoList implements PhotoCollection {
+public class PhotoList implements PhotoCollection, CommandChangeListener {
     
     /**
      Photos in this collection
@@ -86,7 +93,55 @@ public class PhotoList implements PhotoCollection {
      */
     public void addPhoto( PhotoInfo p ) {
         photos.add( p );
-        fireChangeEvent();
+        fireChangeEvent( new PhotoCollectionChangeEvent( this,
+                PhotoCollectionChangeEvent.Type.PHOTOS_ADDED,
+                Collections.singleton( p ), photos.size()-1, photos.size()-1 ) );
+    }
+    
+    /**
+     Remove a photo from the collection
+     @param p Photo to remove
+     */
+    public void removePhoto( PhotoInfo p ) {
+        int idx = photos.indexOf( p );
+        if ( idx >= 0 ) {
+            photos.remove( idx );
+            fireChangeEvent( new PhotoCollectionChangeEvent( this,
+                    PhotoCollectionChangeEvent.Type.PHOTOS_REMOVED,
+                    Collections.singleton( p ), idx, idx ) );
+        }
+    }
+    
+    /**
+     Notify listeners that properties of photos in this collection have been
+     changed
+     @param changed The changed photos
+     */
+    public void photosUpdated( Collection<PhotoInfo> changed ) {
+        fireChangeEvent( new PhotoCollectionChangeEvent( this,
+                PhotoCollectionChangeEvent.Type.PHOTOS_UPDATED, changed ) );
+    }
+    
+    /**
+     Called by command handler after a command that changed an entity has been
+     committed. If the entity is a photo in this collection, it replaces the 
+     old instance and listeners are notified.
+     @param entity The changed entity
+     */
+    public void entityChanged( Object entity ) {
+        if ( !( entity instanceof PhotoInfo ) ) {
+            return;
+        }
+        PhotoInfo changed = (PhotoInfo) entity;
+        UUID id = changed.getUuid();
+        for ( int n = 0; n < photos.size(); n++ ) {
+            PhotoInfo p = photos.get( n );
+            if ( p == changed || ( id != null && id.equals( p.getUuid() ) ) ) {
+                photos.set( n, changed );
+                photosUpdated( Collections.singleton( changed ) );
+                return;
+            }
+        }
     }
     
     /**
@@ -109,15 +164,15 @@ public class PhotoList implements PhotoCollection {
      @param l to remove
      */
     public void removePhotoCollectionChangeListener(PhotoCollectionChangeListener l) {
-        listeners.add( l );
+        listeners.remove( l );
     }
     
     /**
      Notify all registered listeners about a change to this collection
      */
-    private void fireChangeEvent( ) {
+    private void fireChangeEvent( PhotoCollectionChangeEvent ev ) {
         for ( PhotoCollectionChangeListener l : listeners ) {
-            l.photoCollectionChanged( new PhotoCollectionChangeEvent( this ) );
+            l.photoCollectionChanged( ev );
         }
     }
 
@@ -26,6 +26,8 @@ import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.Session;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.type.StandardBasicTypes;
+import org.photovault.folder.FolderClosure;
 import org.photovault.folder.PhotoFolder;
 
 /**
@@ -141,31 +143,6 @@ public class PhotoQuery implements PhotoCollection {
     }
     
 
-    /**
-       Create a list of folderIds in a given folder hierarchy
-     @param folder root folder of the hierarchy
-     @return List of ids of all folders in the hierarchy
-    */
-
-    private List<UUID> getSubfolderIds( PhotoFolder folder ) {
-        List<UUID> folders = new ArrayList<UUID>();
-        folders.add( folder.getUuid() );
-	appendSubfolderIds( folders, folder );
-	return folders;
-    }
-
-    /**
-     Append folder ids of given folder to a list
-     @param folders List to which the ids are added
-     @param folder Root folder for the hierarchy     
-     */
-    private void appendSubfolderIds( List<UUID> folders, PhotoFolder folder ) {
-	for ( PhotoFolder subfolder : folder.getSubfolders() ) {
-	    folders.add( subfolder.getUuid() );
-	    appendSubfolderIds( folders, subfolder );
-	}
-    }
-
     // Implementation of imginfo.PhotoCollection
 
     /**
@@ -288,26 +265,89 @@ public class PhotoQuery implements PhotoCollection {
 	fields[FIELD_FILM_SPEED] = new QueryField( "filmSpeed", "film_speed" );
     }
 
+    /**
+     Sort query results by full text search score, best match first
+     @param photos The query results, all of them must match the full text 
+     search
+     @param fulltext Full text criteria used in the query
+     @return Photos in order of decreasing score
+     */
+    private List<PhotoInfo> rankResults( List<PhotoInfo> photos,
+            QueryFulltextCriteria fulltext ) {
+        final Map<UUID, Float> ranks = fulltext.getRanks();
+        List<PhotoInfo> ret = new ArrayList<PhotoInfo>( photos );
+        Collections.sort( ret, new Comparator<PhotoInfo>() {
+            public int compare( PhotoInfo p1, PhotoInfo p2 ) {
+                return Float.compare( ranks.get( p2.getUuid() ),
+                        ranks.get( p1.getUuid() ) );
+            }
+        } );
+        return ret;
+    }
+
+    /**
+     Check whether the query results can be read in pages using {@link 
+     PagedPhotoList}. This is not possible if the results are ordered by full
+     text search score.
+     @return <code>true</code> if the query can be paged
+     */
+    public boolean isPageable() {
+        return criterias[FIELD_FULLTEXT] == null;
+    }
+    
+    /**
+     Create Hibernate criteria for photos matching this query. Full text
+     criteria is added only after the full text search has been executed.
+     @param session Session used for the query
+     @return The criteria
+     */
+    Criteria createCriteria( Session session ) {
+        Criteria crit = session.createCriteria( PhotoInfo.class );
+        // Go through all the fields and create the criteria
+        for ( int n = 0; n < criterias.length; n++ ) {
+            if ( criterias[n] != null ) {
+                criterias[n].setupQuery( crit );
+            }
+        }
+
+        if ( limitFolder != null ) {
+            // Use folder closure table instead of walking the hierarchy
+            crit.add( Restrictions.sqlRestriction(
+                    FolderClosure.SUBTREE_PHOTOS_SQL,
+                    limitFolder.getUuid().toString(), StandardBasicTypes.STRING ) );
+        }
+        return crit;
+    }
+    
+    /**
+     Execute the query. If the query has a full text criteria, the matching 
+     photos are stored in database for the duration of the query so that the
+     full text restriction is done with a subquery, and results are ordered
+     by relevance.
+     @param session Session used for the query
+     @return Photos matching the query
+     */
     @SuppressWarnings( "unchecked" )
     public List<PhotoInfo> queryPhotos( Session session ) {
 	log.debug( "Entry: PhotoQuery.queryPhotos" );
         List<PhotoInfo> result = null;
         try {
-	    Criteria crit = session.createCriteria( PhotoInfo.class );
-	    // Go through all the fields and create the criteria
-	    for ( int n = 0; n < criterias.length; n++ ) {
-		if ( criterias[n] != null ) {
-		    criterias[n].setupQuery( crit );
-		}
-	    }
-
-	    if ( limitFolder != null ) {
- 		Collection folders = getSubfolderIds( limitFolder );
- 		crit.createCriteria( "folderAssociations" ).add(
-                        Restrictions.in( "folder.uuid", folders ));
-	    }
-	    
-	    result = crit.list();
+            QueryFulltextCriteria fulltext = null;
+            if ( criterias[FIELD_FULLTEXT] instanceof QueryFulltextCriteria ) {
+                fulltext = (QueryFulltextCriteria) criterias[FIELD_FULLTEXT];
+                fulltext.search( session );
+            }
+            if ( fulltext != null ) {
+                try {
+                    result = rankResults( createCriteria( session ).list(), 
+                            fulltext );
+                } finally {
+                    fulltext.release( session );
+                }
+            } else {
+                Criteria crit = createCriteria( session );
+                result = crit.list();
+            }
 	} catch ( Exception e ) {
 	    log.warn( "Error executing query: " + e.getMessage() );
 	    e.printStackTrace( System.out );
@@ -0,0 +1,181 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.photovault.command.CommandException;
+import org.photovault.command.CommandHandler;
+import org.photovault.common.PhotovaultException;
+import org.photovault.image.PhotovaultImage;
+import org.photovault.image.PhotovaultImageFactory;
+
+/**
+ Helper for creating a multi-resolution pyramid of preview images for large
+ photos. Each level has half the resolution of the previous one, starting from
+ half of the original, and the levels are stored as tiled copy images in the
+ default volume. When zooming a photo the viewer can then use the smallest
+ level that has enough resolution (see {@link PhotoInfo#getPreferredImage}) 
+ and read only the tiles that are visible instead of decoding the whole 
+ original.
+ <p>
+ Levels are created only as long as they are larger than the normal preview
+ image.
+ <p>
+ The pyramid costs disk space in the default volume. The levels together 
+ have about 1/3 of the pixels of the original (1/4 + 1/16 + 1/64 with three 
+ levels), so for a JPEG original they take roughly a third of its size, and
+ for a raw original about as much as a JPEG of half of its resolution. Set
+ system property photovault.pyramid.levels to 0 to turn the pyramid off, or
+ to 1 to create only the largest level (1/4 of the pixels).
+ */
+public class PreviewPyramid {
+    
+    static private Log log = LogFactory.getLog( PreviewPyramid.class.getName() );
+    
+    /**
+     Longer side of the normal preview image
+     */
+    static final int PREVIEW_SIZE = 1280;
+    
+    /**
+     Width and height of tiles in pyramid levels
+     */
+    static final int TILE_SIZE = 256;
+    
+    /**
+     Maximum number of pyramid levels. Setting this to 0 disables the pyramid.
+     See class description for the disk space needed.
+     */
+    static final int MAX_LEVELS = Integer.getInteger( "photovault.pyramid.levels", 3 );
+    
+    /**
+     Operations that are applied in pyramid levels. Cropping is not applied 
+     so that the levels can be used while the photo is cropped.
+     */
+    static final EnumSet<ImageOperations> LEVEL_OPERATIONS = 
+            EnumSet.of( ImageOperations.RAW_CONVERSION, ImageOperations.COLOR_MAP );
+    
+    /**
+     Static utility class, not to be instantiated
+     */
+    private PreviewPyramid() {}
+    
+    /**
+     Get the sizes of pyramid levels for a photo
+     @param p The photo
+     @return Maximum dimensions of each level, largest first. Empty list if 
+     the photo is so small that the normal preview is sufficient.
+     */
+    public static List<Dimension> getLevelSizes( PhotoInfo p ) {
+        return getLevelSizes( p.getOriginal().getWidth(), 
+                p.getOriginal().getHeight(), MAX_LEVELS );
+    }
+    
+    /**
+     Get the sizes of pyramid levels for an image
+     @param w Width of the original image
+     @param h Height of the original image
+     @param maxLevels Maximum number of levels
+     @return Dimensions of each level, largest first. Level n is the original
+     divided by 2^n, rounded up. Only levels larger than {@link #PREVIEW_SIZE}
+     are included.
+     */
+    static List<Dimension> getLevelSizes( int w, int h, int maxLevels ) {
+        List<Dimension> ret = new ArrayList<Dimension>();
+        for ( int n = 1 ; n <= maxLevels ; n++ ) {
+            int lw = ( w + ( 1 << n ) - 1 ) >> n;
+            int lh = ( h + ( 1 << n ) - 1 ) >> n;
+            if ( Math.max( lw, lh ) <= PREVIEW_SIZE ) {
+                break;
+            }
+            ret.add( new Dimension( lw, lh ) );
+        }
+        return ret;
+    }
+    
+    /**
+     Find an existing image that can be used as a given pyramid level.
+     @param p The photo
+     @param level Size of the level
+     @return An image whose size is within 10% of level size and that 
+     is consistent with current settings of the photo, or <code>null</code>
+     if no such image is available.
+     */
+    static ImageDescriptorBase findLevel( PhotoInfo p, Dimension level ) {
+        return p.getPreferredImage( LEVEL_OPERATIONS, LEVEL_OPERATIONS, 
+                level.width * 9 / 10, level.height * 9 / 10, 
+                level.width * 11 / 10, level.height * 11 / 10 );
+    }
+    
+    /**
+     Create the pyramid levels that are missing or out of date for a photo.
+     @param img The original image of the photo if it is already loaded, 
+     otherwise <code>null</code>
+     @param p The photo
+     @param vol Volume in which the levels are stored
+     @param cmdHandler Command handler used for executing the commands
+     @return Number of levels created
+     @throws CommandException if creating a level fails
+     */
+    public static int createMissingLevels( PhotovaultImage img, PhotoInfo p, 
+            Volume vol, CommandHandler cmdHandler ) throws CommandException {
+        List<Dimension> missing = new ArrayList<Dimension>();
+        for ( Dimension level : getLevelSizes( p ) ) {
+            if ( findLevel( p, level ) == null ) {
+                missing.add( level );
+            }
+        }
+        if ( missing.isEmpty() ) {
+            return 0;
+        }
+        if ( img == null ) {
+            // Load the original only once for all levels
+            File src = p.getOriginal().getFile().findAvailableCopy();
+            if ( src == null ) {
+                log.debug( "Original of " + p.getUuid() + " not available, " +
+                        "cannot create preview pyramid" );
+                return 0;
+            }
+            try {
+                img = new PhotovaultImageFactory().create( src, false, false );
+            } catch ( PhotovaultException e ) {
+                throw new CommandException( e.getMessage() );
+            }
+        }
+        for ( Dimension level : missing ) {
+            CreateCopyImageCommand cmd = 
+                    new CreateCopyImageCommand( img, p, vol, level.width, level.height );
+            cmd.setLowQualityAllowed( false );
+            cmd.setOperationsToApply( LEVEL_OPERATIONS );
+            cmd.setTileSize( TILE_SIZE );
+            cmdHandler.executeCommand( cmd );
+        }
+        log.debug( "Created " + missing.size() + " pyramid levels for " + p.getUuid() );
+        return missing.size();
+    }
+}
@@ -20,10 +20,27 @@
   
 package org.photovault.imginfo;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
 import org.hibernate.Criteria;
-import org.hibernate.Hibernate;
+import org.hibernate.Session;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.jdbc.Work;
+import org.hibernate.type.StandardBasicTypes;
 
+/**
+   Full text search criteria. The search is done using {@link FulltextIndex}
+   so it does not depend on full text search support of the database. Call
+   {@link #search(Session)} before {@link #setupQuery(Criteria)}.
+   <p>
+   The matching photos are stored in database table 
+   {@link FulltextIndex#MATCH_TABLE} by search(), so the query is restricted
+   to them with a single subquery regardless of the number of matches. The
+   stored matches must be removed with {@link #release(Session)} after the 
+   query has been executed.
+*/
 public class QueryFulltextCriteria implements QueryFieldCriteria {
     static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger( QueryFulltextCriteria.class.getName() );
 
@@ -38,15 +55,76 @@ public class QueryFulltextCriteria implements QueryFieldCriteria {
 
     public void setText( String text ) {
 	this.text = text;
+        ranks = null;
+    }
+
+    /**
+       Search the full text index for matching photos and store them in 
+       database for the query.
+       @param session Session used if the index must be updated and for 
+       storing the matches. The query must be executed in the same session.
+    */
+    public void search( Session session ) {
+        ranks = FulltextIndex.instance().search( text, session );
+        log.debug( "Fulltext search '" + text + "': " + ranks.size() + " matches" );
+        searchId = null;
+        if ( ranks.isEmpty() ) {
+            return;
+        }
+        final UUID id = UUID.randomUUID();
+        session.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                FulltextIndex.storeMatches( con, id, ranks.keySet() );
+            }
+        } );
+        searchId = id;
+    }
+
+    /**
+       Remove the matches stored by {@link #search(Session)} from database
+       @param session Session used for the search
+    */
+    public void release( Session session ) {
+        if ( searchId == null ) {
+            return;
+        }
+        final UUID id = searchId;
+        searchId = null;
+        session.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                FulltextIndex.deleteMatches( con, id );
+            }
+        } );
+    }
+
+    /**
+       Get the photos matching the search
+       @return UUIDs of matching photos and their scores, ordered by 
+       decreasing score, or <code>null</code> if search has not been done.
+    */
+    public Map<UUID, Float> getRanks() {
+        return ranks;
     }
 
     public void setupQuery( Criteria crit ) {
-	String sql = "MATCH(" + field.getName() + ") AGAINST('" + text + "')";
-	log.debug( sql );
-        crit.add( Restrictions.sqlRestriction( "MATCH(" + field.getName() + ") AGAINST( ? )", text, Hibernate.STRING ) );
-	log.debug( "Added" );
+        if ( ranks == null ) {
+            throw new IllegalStateException( "search() must be called before setupQuery()" );
+        }
+        if ( searchId == null ) {
+            crit.add( Restrictions.sqlRestriction( "1=0" ) );
+            return;
+        }
+        crit.add( Restrictions.sqlRestriction( FulltextIndex.MATCHING_PHOTOS_SQL,
+                searchId.toString(), StandardBasicTypes.STRING ) );
     }
 
     String text = null;
     QueryField field;
-}
\ No newline at end of file
+    Map<UUID, Float> ranks = null;
+
+    /**
+       Id of the matches stored in database, or <code>null</code> if there 
+       are none
+    */
+    UUID searchId = null;
+}
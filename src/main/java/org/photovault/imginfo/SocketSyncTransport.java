@@ -0,0 +1,79 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ SyncTransport that sends messages over a socket connection. Each message is 
+ sent as its length followed by the message content.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class SocketSyncTransport implements SyncTransport {
+
+    /**
+     Maximum size of a received message. Can be set with system property
+     photovault.sync.maxmessagesize.
+     */
+    static final int MAX_MESSAGE_SIZE =
+            Integer.getInteger( "photovault.sync.maxmessagesize", 256 << 20 );
+
+    private Socket socket;
+    private DataInputStream is;
+    private DataOutputStream os;
+
+    /**
+     Creates a new transport
+     @param socket Connected socket to peer
+     @throws IOException if the socket streams cannot be opened
+     */
+    public SocketSyncTransport( Socket socket ) throws IOException {
+        this.socket = socket;
+        is = new DataInputStream( socket.getInputStream() );
+        os = new DataOutputStream( socket.getOutputStream() );
+    }
+
+    public void send( byte[] msg ) throws IOException {
+        os.writeInt( msg.length );
+        os.write( msg );
+        os.flush();
+    }
+
+    public byte[] receive() throws IOException {
+        int len = is.readInt();
+        if ( len < 0 || len > MAX_MESSAGE_SIZE ) {
+            throw new IOException( "Invalid message length " + len );
+        }
+        byte[] msg = new byte[len];
+        is.readFully( msg );
+        return msg;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -21,6 +21,7 @@
 
 package org.photovault.imginfo;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.SortedSet;
@@ -34,7 +35,14 @@ import org.hibernate.Session;
 /**
  * <p>This class implements a filter for sorting a photo collection by specific criteria. 
  * In practice, it creates a copy of the collection, sorts it and listens to change events
- * from the original colelction. If it is changed, the sorted copy is also recreated. </p>
+ * from the original colelction. If the event tells which photos were added, 
+ * removed or updated, only those are moved to their correct places in the 
+ * sorted copy and listeners are notified about the changed range of indexes. 
+ * Otherwise the sorted copy is recreated. </p>
+ * <p>The Swing UI keeps its photos in a plain list, so the static 
+ * {@link #findSorted(List, PhotoInfo, Comparator)} and 
+ * {@link #insertSorted(List, PhotoInfo, Comparator)} methods are available for
+ * moving changed photos in any sorted list.</p>
  * <p> The sorting order can be defined using a Comparator object that is capable of 
  * Comparing PhotoInfo objects. The default is to order photos according to their ID.</p>
  * @author Harri Kaimio
@@ -60,9 +68,15 @@ public class SortedPhotoCollection implements PhotoCollection, PhotoCollectionCh
     protected PhotoCollection origCollection;
     
     /**
-     * This Vector contains the photos in sorted order.
+     * This list contains the photos in sorted order.
      */
-    protected ArrayList sortedPhotos = null;
+    protected ArrayList<PhotoInfo> sortedPhotos = null;
+    
+    /**
+     * If an event changes more than this fraction of the collection, it is
+     * sorted again instead of updating it incrementally.
+     */
+    static final int RESORT_FRACTION = 8;
     /**
      * Comparator used in sorting the photosd.
      */
@@ -136,7 +150,152 @@ public class SortedPhotoCollection implements PhotoCollection, PhotoCollectionCh
      * @param ev Event describing change to the collection
      */
     public void photoCollectionChanged(PhotoCollectionChangeEvent ev) {
-        sortCollection();
+        Collection<PhotoInfo> changed = ev.getPhotos();
+        if ( ev.getType() == PhotoCollectionChangeEvent.Type.CHANGED || 
+                sortedPhotos == null || 
+                changed.size() > Math.max( 1, sortedPhotos.size() / RESORT_FRACTION ) ) {
+            sortCollection();
+            return;
+        }
+        for ( PhotoInfo p : changed ) {
+            switch ( ev.getType() ) {
+                case PHOTOS_ADDED:
+                    photoAdded( p );
+                    break;
+                case PHOTOS_REMOVED:
+                    photoRemoved( p );
+                    break;
+                case PHOTOS_UPDATED:
+                    photoUpdated( p );
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Insert a new photo to correct place in the sorted list
+     * @param p The added photo
+     */
+    private void photoAdded( PhotoInfo p ) {
+        if ( findPhoto( p ) >= 0 ) {
+            return;
+        }
+        int idx = insertPhoto( p );
+        notifyListeners( PhotoCollectionChangeEvent.Type.PHOTOS_ADDED, p, idx, idx );
+    }
+    
+    /**
+     * Remove a photo from the sorted list
+     * @param p The removed photo
+     */
+    private void photoRemoved( PhotoInfo p ) {
+        int idx = findPhoto( p );
+        if ( idx < 0 ) {
+            return;
+        }
+        sortedPhotos.remove( idx );
+        notifyListeners( PhotoCollectionChangeEvent.Type.PHOTOS_REMOVED, p, idx, idx );
+    }
+    
+    /**
+     * Move a changed photo to its new place in the sorted list
+     * @param p The changed photo
+     */
+    private void photoUpdated( PhotoInfo p ) {
+        int oldIdx = findPhoto( p );
+        if ( oldIdx < 0 ) {
+            return;
+        }
+        sortedPhotos.remove( oldIdx );
+        int newIdx = insertPhoto( p );
+        notifyListeners( PhotoCollectionChangeEvent.Type.PHOTOS_UPDATED, p, 
+                Math.min( oldIdx, newIdx ), Math.max( oldIdx, newIdx ) );
+    }
+    
+    /**
+     * Insert a photo after all photos that are not after it in sort order
+     * @param p The photo
+     * @return Index of the inserted photo
+     */
+    private int insertPhoto( PhotoInfo p ) {
+        return insertSorted( sortedPhotos, p, comparator );
+    }
+    
+    /**
+     * Insert a photo to a sorted list after all photos that are not after it
+     * in sort order
+     * @param sorted The list, sorted by c
+     * @param p The photo
+     * @param c Comparator used to sort the list
+     * @return Index of the inserted photo
+     */
+    @SuppressWarnings( "unchecked" )
+    public static int insertSorted( List<PhotoInfo> sorted, PhotoInfo p, 
+            Comparator c ) {
+        int low = 0;
+        int high = sorted.size();
+        while ( low < high ) {
+            int mid = ( low + high ) >>> 1;
+            if ( c.compare( sorted.get( mid ), p ) <= 0 ) {
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        sorted.add( low, p );
+        return low;
+    }
+    
+    /**
+     * Find the index of a photo in sorted list. The sort key of the photo may
+     * have changed, so if the photo is not found using binary search, the 
+     * whole list is searched.
+     * @param p The photo
+     * @return Index of the photo or -1 if it is not in the list
+     */
+    private int findPhoto( PhotoInfo p ) {
+        return findSorted( sortedPhotos, p, comparator );
+    }
+    
+    /**
+     * Find the index of a photo in a sorted list. The photo is matched by 
+     * identity or UUID. Its sort key may have changed, so if the photo is not
+     * found using binary search, the whole list is searched.
+     * @param sorted The list, sorted by c
+     * @param p The photo
+     * @param c Comparator used to sort the list
+     * @return Index of the photo or -1 if it is not in the list
+     */
+    @SuppressWarnings( "unchecked" )
+    public static int findSorted( List<PhotoInfo> sorted, PhotoInfo p, 
+            Comparator c ) {
+        UUID id = p.getUuid();
+        int idx = Collections.binarySearch( sorted, p, c );
+        if ( idx >= 0 ) {
+            // Check photos that are equal in sort order
+            for ( int n = idx; n >= 0 && 
+                    c.compare( sorted.get( n ), p ) == 0; n-- ) {
+                if ( isSamePhoto( sorted.get( n ), p, id ) ) {
+                    return n;
+                }
+            }
+            for ( int n = idx+1; n < sorted.size() && 
+                    c.compare( sorted.get( n ), p ) == 0; n++ ) {
+                if ( isSamePhoto( sorted.get( n ), p, id ) ) {
+                    return n;
+                }
+            }
+        }
+        for ( int n = 0; n < sorted.size(); n++ ) {
+            if ( isSamePhoto( sorted.get( n ), p, id ) ) {
+                return n;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean isSamePhoto( PhotoInfo p1, PhotoInfo p2, UUID id2 ) {
+        return p1 == p2 || ( id2 != null && id2.equals( p1.getUuid() ) );
     }
     
     
@@ -145,7 +304,7 @@ public class SortedPhotoCollection implements PhotoCollection, PhotoCollectionCh
      */
     protected void sortCollection() {
  
-        sortedPhotos = new ArrayList( origCollection.getPhotoCount() );
+        sortedPhotos = new ArrayList<PhotoInfo>( origCollection.getPhotoCount() );
         for ( int n = 0; n < origCollection.getPhotoCount(); n++ ) {
             PhotoInfo p = origCollection.getPhoto( n );
             sortedPhotos.add( p );
@@ -158,7 +317,19 @@ public class SortedPhotoCollection implements PhotoCollection, PhotoCollectionCh
      * Sends a change event to all listeners of this collection.
      */
      protected void notifyListeners() {
-	PhotoCollectionChangeEvent ev = new PhotoCollectionChangeEvent( this );
+        notifyListeners( new PhotoCollectionChangeEvent( this ) );
+     }
+     
+    /**
+     * Sends an event about change to single photo to all listeners
+     */
+     private void notifyListeners( PhotoCollectionChangeEvent.Type type, 
+             PhotoInfo p, int firstIndex, int lastIndex ) {
+         notifyListeners( new PhotoCollectionChangeEvent( this, type, 
+                 Collections.singleton( p ), firstIndex, lastIndex ) );
+     }
+     
+     private void notifyListeners( PhotoCollectionChangeEvent ev ) {
 	Iterator iter = changeListeners.iterator();
 	while ( iter.hasNext() ) {
 	    PhotoCollectionChangeListener l = (PhotoCollectionChangeListener) iter.next();
@@ -186,7 +357,6 @@ public class SortedPhotoCollection implements PhotoCollection, PhotoCollectionCh
     public void setComparator(Comparator comparator) {
         this.comparator = comparator;
         sortCollection();
-        notifyListeners();
     }
 
     public List<PhotoInfo> queryPhotos( Session arg0 ) {
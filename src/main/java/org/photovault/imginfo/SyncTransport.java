@@ -0,0 +1,56 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.IOException;
+
+/**
+ SyncTransport delivers messages between two Photovault instances that are
+ synchronized with {@link DeltaSynchronizer}. Messages are delivered in the 
+ order they were sent and each message is received as a whole.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public interface SyncTransport {
+
+    /**
+     Send a message to peer
+     @param msg The message
+     @throws IOException if sending fails
+     */
+    void send( byte[] msg ) throws IOException;
+
+    /**
+     Receive next message from peer. Blocks until a message is available.
+     @return The message
+     @throws IOException if receiving fails or the peer does not respond in 
+     time
+     */
+    byte[] receive() throws IOException;
+
+    /**
+     Release resources used by the transport
+     @throws IOException if closing the connection fails
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,316 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.hibernate.Session;
+import org.photovault.common.ProtobufHelper;
+import org.photovault.imginfo.dto.ImageProtos;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.persistence.HibernateUtil;
+import org.photovault.replication.Change;
+import org.photovault.replication.ChangeProtos;
+import org.photovault.replication.DTOResolverFactory;
+import org.photovault.replication.HibernateDtoResolverFactory;
+import org.photovault.replication.VersionedObjectEditor;
+import org.photovault.test.PhotovaultTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link DeltaSynchronizer} and sync transports
+ */
+public class Test_DeltaSynchronizer extends PhotovaultTestCase {
+
+    Session session = null;
+    HibernateDAOFactory daoFactory;
+
+    @BeforeMethod
+    @Override
+    public void setUp() {
+        session = HibernateUtil.getSessionFactory().openSession();
+        daoFactory = (HibernateDAOFactory) DAOFactory.instance( HibernateDAOFactory.class );
+        daoFactory.setSession( session );
+    }
+
+    @AfterMethod
+    @Override
+    public void tearDown() {
+        session.close();
+    }
+
+    /**
+     Transport that keeps sent messages in memory so that they can be 
+     inspected and received in the same thread
+     */
+    static class QueueSyncTransport implements SyncTransport {
+        LinkedList<byte[]> messages = new LinkedList<byte[]>();
+
+        public void send( byte[] msg ) {
+            messages.add( msg );
+        }
+
+        public byte[] receive() throws IOException {
+            if ( messages.isEmpty() ) {
+                throw new IOException( "No messages" );
+            }
+            return messages.removeFirst();
+        }
+
+        public void close() {
+        }
+    }
+
+    private Change<PhotoInfo> changeQuality( PhotoInfo photo, int quality ) {
+        DTOResolverFactory rf = new HibernateDtoResolverFactory( session );
+        VersionedObjectEditor<PhotoInfo> pe =
+                new VersionedObjectEditor<PhotoInfo>( photo, rf );
+        PhotoEditor pep = (PhotoEditor) pe.getProxy();
+        pep.setQuality( quality );
+        pe.apply();
+        return pe.getChange();
+    }
+
+    /**
+     Test finding the changes missing from peer when history has branches
+     */
+    @Test
+    public void testFindMissingChanges() {
+        org.hibernate.Transaction tx = session.beginTransaction();
+        PhotoInfo photo = daoFactory.getPhotoInfoDAO().create();
+        Change<PhotoInfo> c1 = changeQuality( photo, 1 );
+        Change<PhotoInfo> c2 = changeQuality( photo, 2 );
+        DTOResolverFactory rf = new HibernateDtoResolverFactory( session );
+        VersionedObjectEditor<PhotoInfo> pe =
+                new VersionedObjectEditor<PhotoInfo>( photo, rf );
+        pe.changeToVersion( c1 );
+        Change<PhotoInfo> c3 = changeQuality( photo, 3 );
+
+        List<Change<PhotoInfo>> missing = DeltaSynchronizer.findMissingChanges(
+                photo.getHistory(), Collections.singleton( c2.getUuid() ) );
+        assertEquals( Arrays.asList( c3 ), missing );
+
+        missing = DeltaSynchronizer.findMissingChanges(
+                photo.getHistory(), new HashSet<UUID>( 
+                Arrays.asList( c2.getUuid(), c3.getUuid() ) ) );
+        assertTrue( missing.isEmpty() );
+
+        missing = DeltaSynchronizer.findMissingChanges(
+                photo.getHistory(), Collections.<UUID>emptySet() );
+        assertEquals( photo.getHistory().getChanges().size(), missing.size() );
+        for ( int n = 0 ; n < missing.size() ; n++ ) {
+            for ( Change<PhotoInfo> p : missing.get( n ).getParentChanges() ) {
+                assertTrue( missing.indexOf( p ) < n );
+            }
+        }
+        tx.rollback();
+    }
+
+    /**
+     Test sending and receiving changes of an object whose history has 
+     diverged from peer's. Only the change in local branch must be sent, in a
+     batch message followed by end marker.
+     */
+    @Test
+    public void testSendDivergedChanges() throws IOException {
+        org.hibernate.Transaction tx = session.beginTransaction();
+        PhotoInfo photo = daoFactory.getPhotoInfoDAO().create();
+        Change<PhotoInfo> c1 = changeQuality( photo, 1 );
+        Change<PhotoInfo> c2 = changeQuality( photo, 2 );
+        DTOResolverFactory rf = new HibernateDtoResolverFactory( session );
+        VersionedObjectEditor<PhotoInfo> pe =
+                new VersionedObjectEditor<PhotoInfo>( photo, rf );
+        pe.changeToVersion( c1 );
+        Change<PhotoInfo> c3 = changeQuality( photo, 3 );
+        tx.commit();
+        UUID photoId = photo.getUuid();
+        session.clear();
+
+        // Peer has branch c1 -> c2 but not c3
+        Map<UUID, DeltaSynchronizer.ObjectHeads> peerHeads = 
+                new HashMap<UUID, DeltaSynchronizer.ObjectHeads>();
+        DeltaSynchronizer.ObjectHeads ph = 
+                new DeltaSynchronizer.ObjectHeads( PhotoInfo.class.getName() );
+        ph.heads.add( c2.getUuid() );
+        peerHeads.put( photoId, ph );
+
+        QueueSyncTransport t = new QueueSyncTransport();
+        DeltaSynchronizer sender = new DeltaSynchronizer( daoFactory );
+        sender.sendChanges( t, peerHeads, Collections.singleton( photoId ) );
+        assertEquals( 1, sender.getSentChangeCount() );
+        assertEquals( 2, t.messages.size() );
+
+        DataInputStream is = new DataInputStream( 
+                new ByteArrayInputStream( t.messages.get( 0 ) ) );
+        assertEquals( DeltaSynchronizer.MSG_CHANGES, is.readInt() );
+        assertEquals( DeltaSynchronizer.PROTOCOL_VERSION, is.readInt() );
+        ImageProtos.PhotovaultData d = ImageProtos.PhotovaultData.parseFrom( is );
+        assertEquals( 1, d.getChangesCount() );
+        ChangeProtos.ChangeEnvelope env = d.getChanges( 0 );
+        assertEquals( c3.getUuid(), ProtobufHelper.uuid( env.getChangeId() ) );
+
+        is = new DataInputStream( 
+                new ByteArrayInputStream( t.messages.get( 1 ) ) );
+        assertEquals( DeltaSynchronizer.MSG_CHANGES_END, is.readInt() );
+        assertEquals( DeltaSynchronizer.PROTOCOL_VERSION, is.readInt() );
+        assertEquals( 1, is.readInt() );
+
+        // Only the end marker is sent when peer knows all heads
+        ph.heads.add( c3.getUuid() );
+        QueueSyncTransport t2 = new QueueSyncTransport();
+        sender.sendChanges( t2, peerHeads, Collections.singleton( photoId ) );
+        assertEquals( 1, t2.messages.size() );
+
+        Session s = HibernateUtil.getSessionFactory().openSession();
+        try {
+            HibernateDAOFactory df = new HibernateDAOFactory();
+            df.setSession( s );
+            DeltaSynchronizer receiver = new DeltaSynchronizer( df );
+            receiver.receiveChanges( t );
+            assertEquals( 1, receiver.getReceivedChangeCount() );
+            assertTrue( t.messages.isEmpty() );
+            Map<UUID, DeltaSynchronizer.ObjectHeads> heads = 
+                    receiver.readLocalHeads( Collections.singleton( photoId ) );
+            assertEquals( new HashSet<UUID>( 
+                    Arrays.asList( c2.getUuid(), c3.getUuid() ) ), 
+                    heads.get( photoId ).heads );
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     Receiving must fail if the number of changes does not match the end 
+     marker
+     */
+    @Test
+    public void testChangeCountMismatch() throws IOException {
+        QueueSyncTransport t = new QueueSyncTransport();
+        DeltaSynchronizer sender = new DeltaSynchronizer( daoFactory );
+        sender.sendChanges( t, 
+                new HashMap<UUID, DeltaSynchronizer.ObjectHeads>(), 
+                Collections.<UUID>emptySet() );
+        assertEquals( 1, t.messages.size() );
+        byte[] end = t.messages.get( 0 );
+        // Claim that one change was sent
+        end[end.length-1] = 1;
+        try {
+            new DeltaSynchronizer( daoFactory ).receiveChanges( t );
+            fail( "Change count mismatch not detected" );
+        } catch ( IOException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testHeadsEncoding() throws IOException {
+        Map<UUID, DeltaSynchronizer.ObjectHeads> heads = 
+                new DeltaSynchronizer( daoFactory ).readLocalHeads();
+        Map<UUID, DeltaSynchronizer.ObjectHeads> decoded = 
+                DeltaSynchronizer.decodeHeads( DeltaSynchronizer.encodeHeads( heads ) );
+        assertEquals( heads.keySet(), decoded.keySet() );
+        for ( UUID id : heads.keySet() ) {
+            assertEquals( heads.get( id ).className, decoded.get( id ).className );
+            assertEquals( heads.get( id ).heads, decoded.get( id ).heads );
+        }
+    }
+
+    @Test
+    public void testFileDropTransport() throws IOException {
+        File dir = File.createTempFile( "pv_sync_test", "" );
+        dir.delete();
+        dir.mkdir();
+        FileDropSyncTransport t1 = new FileDropSyncTransport( dir, "a", "b" );
+        FileDropSyncTransport t2 = new FileDropSyncTransport( dir, "b", "a" );
+        t2.setTimeout( 1000 );
+        t1.send( new byte[] {1, 2, 3} );
+        t1.send( new byte[0] );
+        assertTrue( Arrays.equals( new byte[] {1, 2, 3}, t2.receive() ) );
+        assertEquals( 0, t2.receive().length );
+        assertEquals( 0, dir.list().length );
+        try {
+            t2.receive();
+            fail( "Receiving nonexistent message should time out" );
+        } catch ( IOException e ) {
+            // expected
+        }
+        dir.delete();
+    }
+
+    /**
+     Synchronize database with itself over socket. As the digests are equal, 
+     no objects should be compared and no changes transferred.
+     */
+    @Test
+    public void testSyncEqualDatabases() throws Exception {
+        final ServerSocket ss = new ServerSocket( 0 );
+        final Exception[] serverError = new Exception[1];
+        final DeltaSynchronizer[] server = new DeltaSynchronizer[1];
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                Session s = HibernateUtil.getSessionFactory().openSession();
+                try {
+                    HibernateDAOFactory df = new HibernateDAOFactory();
+                    df.setSession( s );
+                    SyncTransport t = new SocketSyncTransport( ss.accept() );
+                    server[0] = new DeltaSynchronizer( df );
+                    server[0].serve( t );
+                    t.close();
+                } catch ( Exception e ) {
+                    serverError[0] = e;
+                } finally {
+                    s.close();
+                }
+            }
+        };
+        serverThread.start();
+        SyncTransport t = new SocketSyncTransport( 
+                new Socket( "localhost", ss.getLocalPort() ) );
+        DeltaSynchronizer client = new DeltaSynchronizer( daoFactory );
+        client.synchronize( t );
+        serverThread.join();
+        t.close();
+        ss.close();
+        assertNull( serverError[0] );
+        assertEquals( 0, client.getDifferingObjectCount() );
+        assertEquals( 0, client.getSentChangeCount() );
+        assertEquals( 0, client.getReceivedChangeCount() );
+        assertEquals( 0, server[0].getSentChangeCount() );
+    }
+}
@@ -0,0 +1,114 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import org.photovault.common.PhotovaultException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link FileAvailabilityCache}
+ @author Harri Kaimio
+ */
+public class Test_FileAvailabilityCache {
+
+    File volDir;
+    ExternalVolume vol;
+    long oldTtl;
+
+    @BeforeMethod
+    public void setUp() throws IOException, PhotovaultException {
+        volDir = File.createTempFile( "pv_availtest", "" );
+        volDir.delete();
+        vol = new ExternalVolume();
+        vol.setName( "availtest" );
+        VolumeManager.instance().initVolume( vol, volDir );
+        oldTtl = FileAvailabilityCache.instance().getTtl();
+        FileAvailabilityCache.instance().setTtl( 3600000 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        FileAvailabilityCache.instance().setTtl( oldTtl );
+        FileUtils.deleteTree( volDir );
+    }
+
+    private File createFile( String name ) throws IOException {
+        File f = new File( volDir, name );
+        FileOutputStream os = new FileOutputStream( f );
+        os.write( 1 );
+        os.close();
+        return f;
+    }
+
+    /**
+     Verify that results are cached and invalidated when locations or
+     volume mounts change.
+     */
+    @Test
+    public void testInvalidation() throws IOException, PhotovaultException {
+        ImageFile imgFile = new ImageFile();
+        imgFile.setId( UUID.randomUUID() );
+        File f1 = createFile( "test1.jpg" );
+        imgFile.addLocation( new FileLocation( vol, "test1.jpg" ) );
+        assertEquals( f1, imgFile.findAvailableCopy() );
+
+        // Deleting the file is not noticed before cache is invalidated
+        f1.delete();
+        assertEquals( f1, imgFile.findAvailableCopy() );
+        FileAvailabilityCache.instance().invalidate( imgFile.getId() );
+        assertNull( imgFile.findAvailableCopy() );
+
+        // Adding a location invalidates the negative result
+        File f2 = createFile( "test2.jpg" );
+        imgFile.addLocation( new FileLocation( vol, "test2.jpg" ) );
+        assertEquals( f2, imgFile.findAvailableCopy() );
+
+        // Change in volume mounts
+        f2.delete();
+        assertEquals( f2, imgFile.findAvailableCopy() );
+        File vol2Dir = new File( volDir, "vol2" );
+        ExternalVolume vol2 = new ExternalVolume();
+        vol2.setName( "availtest2" );
+        VolumeManager.instance().initVolume( vol2, vol2Dir );
+        assertNull( imgFile.findAvailableCopy() );
+    }
+
+    /**
+     Verify that expired results are not used
+     */
+    @Test
+    public void testTtl() throws IOException {
+        FileAvailabilityCache.instance().setTtl( 0 );
+        ImageFile imgFile = new ImageFile();
+        imgFile.setId( UUID.randomUUID() );
+        imgFile.addLocation( new FileLocation( vol, "test1.jpg" ) );
+        assertNull( imgFile.findAvailableCopy() );
+        File f = createFile( "test1.jpg" );
+        assertEquals( f, imgFile.findAvailableCopy() );
+    }
+}
@@ -0,0 +1,90 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link FileDropSyncTransport}
+ */
+public class Test_FileDropSyncTransport {
+
+    private File createDir() throws IOException {
+        File d = File.createTempFile( "pv_filedrop_test", "" );
+        d.delete();
+        d.mkdir();
+        d.deleteOnExit();
+        return d;
+    }
+
+    private void writeFile( File f, byte[] data ) throws IOException {
+        FileOutputStream os = new FileOutputStream( f );
+        os.write( data );
+        os.close();
+        f.deleteOnExit();
+    }
+
+    /**
+     Messages are delivered in order in both directions
+     */
+    @Test
+    public void testExchange() throws IOException {
+        File dir = createDir();
+        FileDropSyncTransport a = new FileDropSyncTransport( dir, "a", "b" );
+        FileDropSyncTransport b = new FileDropSyncTransport( dir, "b", "a" );
+        a.send( new byte[] {1} );
+        a.send( new byte[] {2, 3} );
+        assertEquals( 1, b.receive()[0] );
+        assertEquals( 3, b.receive()[1] );
+        b.send( new byte[] {4} );
+        assertEquals( 4, a.receive()[0] );
+        assertEquals( 0, dir.list().length );
+    }
+
+    /**
+     Messages left by an earlier session must not be received
+     */
+    @Test
+    public void testStaleMessages() throws IOException {
+        File dir = createDir();
+        FileDropSyncTransport old = new FileDropSyncTransport( dir, "a", "b" );
+        old.send( new byte[] {1} );
+        old.send( new byte[] {2} );
+        // Files in the old naming scheme are not messages
+        writeFile( new File( dir, "a-0.pvsync" ), new byte[] {3} );
+
+        FileDropSyncTransport a = new FileDropSyncTransport( dir, "a", "b" );
+        FileDropSyncTransport b = new FileDropSyncTransport( dir, "b", "a" );
+        b.setTimeout( 0 );
+        try {
+            b.receive();
+            fail( "Stale message received" );
+        } catch ( IOException e ) {
+            // expected
+        }
+        a.send( new byte[] {5} );
+        assertEquals( 5, b.receive()[0] );
+    }
+}
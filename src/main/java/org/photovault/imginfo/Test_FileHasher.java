@@ -0,0 +1,147 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link FileHasher} and {@link Murmur3Digest}
+ @author Harri Kaimio
+ */
+public class Test_FileHasher {
+
+    private File createFile( byte[] data ) throws IOException {
+        File f = File.createTempFile( "pv_hash_test", ".dat" );
+        f.deleteOnExit();
+        FileOutputStream os = new FileOutputStream( f );
+        os.write( data );
+        os.close();
+        return f;
+    }
+
+    private byte[] randomData( int size, long seed ) {
+        byte[] data = new byte[size];
+        new Random( seed ).nextBytes( data );
+        return data;
+    }
+
+    /**
+     Verify that file hashes match hashes calculated from memory both when
+     reading and mapping the file
+     */
+    @Test
+    public void testFileHash() throws Exception {
+        byte[] data = randomData( 3 * FileHasher.BUFFER_SIZE + 17, 1 );
+        File f = createFile( data );
+        byte[] expected = MessageDigest.getInstance( "MD5" ).digest( data );
+        assertTrue( Arrays.equals( expected, FileHasher.getDefault().hash( f ) ) );
+        assertTrue( Arrays.equals( expected, ImageFile.calcHash( f ) ) );
+        FileHasher mapped = new FileHasher( FileHasher.MD5 );
+        mapped.setMemoryMapped( true );
+        assertTrue( Arrays.equals( expected, mapped.hash( f ) ) );
+
+        FileHasher murmur = new FileHasher( Murmur3Digest.ALGORITHM );
+        assertTrue( Arrays.equals( new Murmur3Digest().digest( data ),
+                murmur.hash( f ) ) );
+    }
+
+    /**
+     Verify that hashing a file with several algorithms at once gives the same
+     results as hashing with each algorithm separately
+     */
+    @Test
+    public void testSeveralAlgorithms() throws Exception {
+        byte[] data = randomData( 2 * FileHasher.BUFFER_SIZE + 5, 3 );
+        File f = createFile( data );
+        byte[][] hashes = FileHasher.hash( f, FileHasher.MD5, 
+                Murmur3Digest.ALGORITHM, "SHA-1" );
+        assertEquals( 3, hashes.length );
+        assertTrue( Arrays.equals( 
+                MessageDigest.getInstance( "MD5" ).digest( data ), hashes[0] ) );
+        assertTrue( Arrays.equals( new Murmur3Digest().digest( data ), hashes[1] ) );
+        assertTrue( Arrays.equals( 
+                MessageDigest.getInstance( "SHA-1" ).digest( data ), hashes[2] ) );
+        assertTrue( Arrays.equals( hashes[1], 
+                FileHashTable.fromHex( FileHashTable.toHex( hashes[1] ) ) ) );
+    }
+
+    /**
+     Verify that several files can be hashed concurrently
+     */
+    @Test
+    public void testConcurrentHash() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for ( int n = 0; n < 6; n++ ) {
+            files.add( createFile( randomData( 100000 + n, n ) ) );
+        }
+        files.add( new File( "nonexistent_file_for_pv_hash_test" ) );
+        Map<File, byte[]> hashes = FileHasher.getDefault().hash( files, 3 );
+        assertEquals( 6, hashes.size() );
+        for ( int n = 0; n < 6; n++ ) {
+            File f = files.get( n );
+            assertTrue( Arrays.equals( ImageFile.calcHash( f ), hashes.get( f ) ) );
+        }
+    }
+
+    /**
+     Verify Murmur3Digest against known value and that the result does not
+     depend on how the data is split into updates.
+     */
+    @Test
+    public void testMurmur3() throws Exception {
+        Murmur3Digest md = new Murmur3Digest();
+        byte[] h = md.digest(
+                "The quick brown fox jumps over the lazy dog".getBytes( "US-ASCII" ) );
+        StringBuffer hex = new StringBuffer();
+        for ( byte b : h ) {
+            hex.append( String.format( "%02x", b ) );
+        }
+        assertEquals( "6c1b07bc7bbc4be347939ac4a93c437a", hex.toString() );
+        assertTrue( Arrays.equals( new byte[16], md.digest() ) );
+
+        byte[] data = randomData( 1000, 2 );
+        byte[] expected = md.digest( data );
+        int[] splits = { 1, 5, 15, 16, 17, 333 };
+        for ( int split : splits ) {
+            int pos = 0;
+            while ( pos < data.length ) {
+                int len = Math.min( split, data.length - pos );
+                if ( len == 1 ) {
+                    md.update( data[pos] );
+                } else {
+                    md.update( data, pos, len );
+                }
+                pos += len;
+            }
+            assertTrue( "split " + split, Arrays.equals( expected, md.digest() ) );
+        }
+    }
+}
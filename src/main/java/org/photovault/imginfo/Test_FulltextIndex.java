@@ -0,0 +1,97 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link FulltextIndex}
+ @author Harri Kaimio
+ */
+public class Test_FulltextIndex {
+
+    private String[] fields( String desc, String place, String tags ) {
+        return new String[] {desc, place, null, null, null, tags};
+    }
+
+    @Test
+    public void testSearch() {
+        FulltextIndex idx = new FulltextIndex();
+        UUID p1 = UUID.randomUUID();
+        UUID p2 = UUID.randomUUID();
+        UUID p3 = UUID.randomUUID();
+        idx.setDocument( p1, fields( "Katsokaa kun Lassi ui", "Helsinki", null ) );
+        idx.setDocument( p2, fields( "Lassille kuuluu hyvaa", "Espoo", "Lassi" ) );
+        idx.setDocument( p3, fields( "Sunset", "Helsinki, Kaivopuisto", null ) );
+
+        Map<UUID, Float> res = idx.search( "lassi" );
+        assertEquals( 2, res.size() );
+        // Match in tags is ranked higher than in description
+        assertEquals( p2, res.keySet().iterator().next() );
+
+        res = idx.search( "LASSI Helsinki" );
+        assertEquals( 1, res.size() );
+        assertTrue( res.containsKey( p1 ) );
+
+        res = idx.search( "lass*" );
+        assertEquals( 2, res.size() );
+        res = idx.search( "helsinki kaivo*" );
+        assertEquals( 1, res.size() );
+        assertTrue( res.containsKey( p3 ) );
+        assertTrue( idx.search( "nothing" ).isEmpty() );
+        assertTrue( idx.search( "" ).isEmpty() );
+    }
+
+    /**
+     Verify that updated and removed photos are found correctly also after
+     the index has been compacted
+     */
+    @Test
+    public void testUpdate() {
+        FulltextIndex idx = new FulltextIndex();
+        List<UUID> ids = new ArrayList<UUID>();
+        for ( int n = 0; n < 1000; n++ ) {
+            UUID id = UUID.randomUUID();
+            ids.add( id );
+            idx.setDocument( id, fields( "photo number " + n, "place" + n % 10, null ) );
+        }
+        assertEquals( 100, idx.search( "place3" ).size() );
+        for ( int round = 0; round < 3; round++ ) {
+            for ( int n = 0; n < 1000; n++ ) {
+                idx.setDocument( ids.get( n ),
+                        fields( "photo number " + n, "newplace" + n % 10, null ) );
+            }
+        }
+        assertTrue( idx.search( "place3" ).isEmpty() );
+        assertEquals( 100, idx.search( "newplace3" ).size() );
+        assertEquals( 1000, idx.search( "photo" ).size() );
+        idx.removeDocument( ids.get( 5 ) );
+        assertEquals( 999, idx.search( "photo" ).size() );
+        assertTrue( idx.search( "number 5" ).isEmpty() );
+        idx.setDocument( ids.get( 5 ), fields( "photo number 5", null, null ) );
+        assertEquals( 1, idx.search( "number 5" ).size() );
+    }
+}
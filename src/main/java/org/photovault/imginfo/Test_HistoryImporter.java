@@ -0,0 +1,376 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.photovault.folder.FolderEditor;
+import org.photovault.folder.FolderPhotoAssociation;
+import org.photovault.folder.PhotoFolder;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.persistence.HibernateUtil;
+import org.photovault.replication.DTOResolverFactory;
+import org.photovault.replication.ObjectHistoryDTO;
+import org.photovault.replication.VersionedObjectEditor;
+import org.photovault.test.PhotovaultTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link HistoryImporter}. The histories are created in a 
+ transaction that is rolled back, so the imported objects are not yet known 
+ to the database.
+ */
+public class Test_HistoryImporter extends PhotovaultTestCase {
+    
+    private Session session;
+    private HibernateDAOFactory daoFactory;
+    
+    /**
+     Thrown by the importer to simulate a crash during import
+     */
+    static class Crash extends Error {
+        static final long serialVersionUID = 1L;
+    }
+    
+    @BeforeMethod
+    public void setUp() {
+        session = HibernateUtil.getSessionFactory().openSession();
+        daoFactory = (HibernateDAOFactory) DAOFactory.instance( 
+                HibernateDAOFactory.class );
+        daoFactory.setSession( session );
+    }
+    
+    @AfterMethod
+    public void tearDown() {
+        Transaction tx = session.getTransaction();
+        if ( tx != null && tx.isActive() ) {
+            tx.rollback();
+        }
+        session.close();
+    }
+    
+    /**
+     Create a new folder in current transaction
+     */
+    private PhotoFolder createFolder( String name ) 
+            throws InstantiationException, IllegalAccessException {
+        VersionedObjectEditor<PhotoFolder> e = 
+                new VersionedObjectEditor<PhotoFolder>( PhotoFolder.class, 
+                UUID.randomUUID(), daoFactory.getDTOResolverFactory() );
+        ((FolderEditor) e.getProxy()).setName( name );
+        e.apply();
+        PhotoFolder f = e.getTarget();
+        daoFactory.getPhotoFolderDAO().makePersistent( f );
+        return f;
+    }
+    
+    /**
+     Create a new image file with random hash in current transaction
+     @return Original image of the file
+     */
+    private OriginalImageDescriptor createOriginal() {
+        ImageFile i = new ImageFile();
+        byte[] hash = new byte[16];
+        new Random().nextBytes( hash );
+        i.setHash( hash );
+        i.setFileSize( 1000000 );
+        OriginalImageDescriptor orig = new OriginalImageDescriptor( i, "image#0" );
+        daoFactory.getImageFileDAO().makePersistent( i );
+        return orig;
+    }
+    
+    /**
+     Create a new photo in current transaction
+     @param photographer Value for photographer field
+     @param orig Original image of the photo or <code>null</code>
+     @param folder Folder into which the photo is added or <code>null</code>
+     */
+    private PhotoInfo createPhoto( String photographer, 
+            OriginalImageDescriptor orig, PhotoFolder folder ) 
+            throws InstantiationException, IllegalAccessException {
+        DTOResolverFactory rf = daoFactory.getDTOResolverFactory();
+        VersionedObjectEditor<PhotoInfo> e = new VersionedObjectEditor<PhotoInfo>(
+                PhotoInfo.class, UUID.randomUUID(), rf );
+        e.setField( PhotoInfoFields.PHOTOGRAPHER.getName(), photographer );
+        if ( orig != null ) {
+            e.setField( "original", orig );
+        }
+        e.apply();
+        PhotoInfo p = e.getTarget();
+        daoFactory.getPhotoInfoDAO().makePersistent( p );
+        if ( folder != null ) {
+            VersionedObjectEditor<PhotoInfo> e2 = 
+                    new VersionedObjectEditor<PhotoInfo>( p, rf );
+            e2.addToSet( "folderAssociations", new FolderPhotoAssociation( folder, p ) );
+            e2.apply();
+        }
+        return p;
+    }
+    
+    /**
+     Serialize histories to a byte array in the format read by the importer
+     */
+    private byte[] serialize( List<ObjectHistoryDTO> histories ) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream( os );
+        for ( ObjectHistoryDTO h : histories ) {
+            oos.writeObject( h );
+        }
+        oos.writeObject( null );
+        oos.close();
+        return os.toByteArray();
+    }
+    
+    private ObjectInputStream stream( byte[] data ) throws IOException {
+        return new ObjectInputStream( new ByteArrayInputStream( data ) );
+    }
+    
+    /**
+     Test that photos referring to the same image file are imported by the 
+     same worker and that the batches are committed without falling back to
+     one by one import.
+     */
+    @Test
+    public void testParallelGrouping() throws Exception {
+        Transaction tx = session.beginTransaction();
+        OriginalImageDescriptor shared = createOriginal();
+        List<ObjectHistoryDTO> histories = new ArrayList<ObjectHistoryDTO>();
+        List<UUID> photoIds = new ArrayList<UUID>();
+        UUID fileId = shared.getFile().getId();
+        for ( int n = 0; n < 8; n++ ) {
+            OriginalImageDescriptor orig = 
+                    ( n == 0 || n == 5 ) ? shared : createOriginal();
+            PhotoInfo p = createPhoto( "grouping", orig, null );
+            photoIds.add( p.getUuid() );
+            histories.add( new ObjectHistoryDTO<PhotoInfo>( p.getHistory() ) );
+        }
+        byte[] data = serialize( histories );
+        tx.rollback();
+        session.clear();
+        
+        final Map<UUID, Thread> appliedBy = new ConcurrentHashMap<UUID, Thread>();
+        HistoryImporter importer = new HistoryImporter( daoFactory ) {
+            @Override
+            void applyHistory( ObjectHistoryDTO dto, HibernateDAOFactory df ) 
+                    throws ClassNotFoundException, IOException,
+                    InstantiationException, IllegalAccessException {
+                appliedBy.put( dto.getTargetUuid(), Thread.currentThread() );
+                super.applyHistory( dto, df );
+            }
+        };
+        importer.setThreadCount( 3 );
+        importer.setBatchSize( 8 );
+        importer.importHistories( stream( data ) );
+        
+        assertEquals( 8, importer.getPhotoCount() );
+        assertEquals( 0, importer.getFailedCount() );
+        assertEquals( 0, importer.getRetriedCount() );
+        assertSame( appliedBy.get( photoIds.get( 0 ) ), 
+                appliedBy.get( photoIds.get( 5 ) ) );
+        
+        PhotoInfoDAO photoDao = daoFactory.getPhotoInfoDAO();
+        for ( UUID id : photoIds ) {
+            assertNotNull( photoDao.findByUUID( id ) );
+        }
+        PhotoInfo p0 = photoDao.findByUUID( photoIds.get( 0 ) );
+        PhotoInfo p5 = photoDao.findByUUID( photoIds.get( 5 ) );
+        assertEquals( fileId, p0.getOriginal().getFile().getId() );
+        assertSame( p0.getOriginal(), p5.getOriginal() );
+    }
+    
+    /**
+     Test that a photo that is read before its folder is postponed until the
+     folder has been imported, and that the imported photo is found by full
+     text search.
+     */
+    @Test
+    public void testPostponeUntilFolderKnown() throws Exception {
+        Transaction tx = session.beginTransaction();
+        PhotoFolder folder = createFolder( "Test_HistoryImporter postpone" );
+        UUID folderId = folder.getUuid();
+        PhotoInfo p = createPhoto( "Qwzxpostponed", null, folder );
+        UUID photoId = p.getUuid();
+        List<ObjectHistoryDTO> histories = new ArrayList<ObjectHistoryDTO>();
+        histories.add( new ObjectHistoryDTO<PhotoInfo>( p.getHistory() ) );
+        histories.add( new ObjectHistoryDTO<PhotoFolder>( folder.getHistory() ) );
+        byte[] data = serialize( histories );
+        tx.rollback();
+        session.clear();
+        
+        // Build the index before import so that the photo must be added to it
+        FulltextIndex.instance().search( "Qwzxpostponed", session );
+        
+        HistoryImporter importer = new HistoryImporter( daoFactory );
+        importer.setThreadCount( 1 );
+        importer.setBatchSize( 1 );
+        importer.importHistories( stream( data ) );
+        
+        assertEquals( 1, importer.getFolderCount() );
+        assertEquals( 1, importer.getPhotoCount() );
+        assertEquals( 0, importer.getFailedCount() );
+        PhotoInfo imported = daoFactory.getPhotoInfoDAO().findByUUID( photoId );
+        assertNotNull( imported );
+        Set<FolderPhotoAssociation> assocs = imported.getFolderAssociations();
+        assertEquals( 1, assocs.size() );
+        PhotoFolder f = assocs.iterator().next().getFolder();
+        assertNotNull( "Photo imported before its folder", f );
+        assertEquals( folderId, f.getUuid() );
+        
+        Map<UUID, Float> hits = 
+                FulltextIndex.instance().search( "Qwzxpostponed", session );
+        assertTrue( hits.containsKey( photoId ) );
+    }
+    
+    /**
+     Test that if a batch fails, its histories are applied one by one and only
+     the broken one is skipped.
+     */
+    @Test
+    public void testFallbackOneByOne() throws Exception {
+        Transaction tx = session.beginTransaction();
+        List<ObjectHistoryDTO> histories = new ArrayList<ObjectHistoryDTO>();
+        List<UUID> photoIds = new ArrayList<UUID>();
+        for ( int n = 0; n < 3; n++ ) {
+            PhotoInfo p = createPhoto( "fallback", null, null );
+            photoIds.add( p.getUuid() );
+            histories.add( new ObjectHistoryDTO<PhotoInfo>( p.getHistory() ) );
+        }
+        byte[] data = serialize( histories );
+        tx.rollback();
+        session.clear();
+        
+        final UUID brokenId = photoIds.get( 1 );
+        HistoryImporter importer = new HistoryImporter( daoFactory ) {
+            @Override
+            void applyHistory( ObjectHistoryDTO dto, HibernateDAOFactory df ) 
+                    throws ClassNotFoundException, IOException,
+                    InstantiationException, IllegalAccessException {
+                super.applyHistory( dto, df );
+                if ( dto.getTargetUuid().equals( brokenId ) ) {
+                    throw new IOException( "Broken history" );
+                }
+            }
+        };
+        importer.setThreadCount( 1 );
+        importer.importHistories( stream( data ) );
+        
+        assertEquals( 2, importer.getPhotoCount() );
+        assertEquals( 1, importer.getFailedCount() );
+        assertEquals( 3, importer.getRetriedCount() );
+        PhotoInfoDAO photoDao = daoFactory.getPhotoInfoDAO();
+        assertNotNull( photoDao.findByUUID( photoIds.get( 0 ) ) );
+        assertNull( photoDao.findByUUID( brokenId ) );
+        assertNotNull( photoDao.findByUUID( photoIds.get( 2 ) ) );
+    }
+    
+    /**
+     Test that an interrupted import is resumed from checkpoint without 
+     applying the committed batches again.
+     */
+    @Test
+    public void testCheckpointResume() throws Exception {
+        Transaction tx = session.beginTransaction();
+        List<ObjectHistoryDTO> histories = new ArrayList<ObjectHistoryDTO>();
+        List<UUID> photoIds = new ArrayList<UUID>();
+        for ( int n = 0; n < 6; n++ ) {
+            PhotoInfo p = createPhoto( "checkpoint", null, null );
+            photoIds.add( p.getUuid() );
+            histories.add( new ObjectHistoryDTO<PhotoInfo>( p.getHistory() ) );
+        }
+        byte[] data = serialize( histories );
+        tx.rollback();
+        session.clear();
+        
+        File checkpoint = File.createTempFile( "pv_import_checkpoint", ".txt" );
+        checkpoint.delete();
+        
+        final UUID crashId = photoIds.get( 4 );
+        HistoryImporter crashing = new HistoryImporter( daoFactory ) {
+            @Override
+            void applyHistory( ObjectHistoryDTO dto, HibernateDAOFactory df ) 
+                    throws ClassNotFoundException, IOException,
+                    InstantiationException, IllegalAccessException {
+                if ( dto.getTargetUuid().equals( crashId ) ) {
+                    throw new Crash();
+                }
+                super.applyHistory( dto, df );
+            }
+        };
+        crashing.setThreadCount( 1 );
+        crashing.setBatchSize( 2 );
+        crashing.setCheckpointFile( checkpoint );
+        try {
+            crashing.importHistories( stream( data ) );
+            fail( "Import did not crash" );
+        } catch ( Crash e ) {
+            // expected
+        }
+        if ( session.getTransaction().isActive() ) {
+            session.getTransaction().rollback();
+        }
+        session.clear();
+        assertTrue( checkpoint.exists() );
+        
+        final Set<UUID> applied = 
+                Collections.synchronizedSet( new HashSet<UUID>() );
+        HistoryImporter resumed = new HistoryImporter( daoFactory ) {
+            @Override
+            void applyHistory( ObjectHistoryDTO dto, HibernateDAOFactory df ) 
+                    throws ClassNotFoundException, IOException,
+                    InstantiationException, IllegalAccessException {
+                applied.add( dto.getTargetUuid() );
+                super.applyHistory( dto, df );
+            }
+        };
+        resumed.setThreadCount( 1 );
+        resumed.setBatchSize( 2 );
+        resumed.setCheckpointFile( checkpoint );
+        resumed.importHistories( stream( data ) );
+        
+        assertEquals( 2, resumed.getPhotoCount() );
+        assertEquals( new HashSet<UUID>( photoIds.subList( 4, 6 ) ), applied );
+        assertFalse( checkpoint.exists() );
+        PhotoInfoDAO photoDao = daoFactory.getPhotoInfoDAO();
+        for ( UUID id : photoIds ) {
+            assertNotNull( photoDao.findByUUID( id ) );
+        }
+    }
+}
@@ -174,6 +174,28 @@ public class Test_ImageFile extends PhotovaultTestCase {
         assert vol2Found;
     }
     
+    /**
+     Test that content hashes of a file are deleted together with the file
+     */
+    @Test
+    public void testContentHashDeletedWithFile() {
+        Transaction tx = session.beginTransaction();
+        ImageFile i = new ImageFile();
+        i.setId( UUID.randomUUID() );
+        i.setFileSize( 1000 );
+        i.setHash( new byte[]{4,5,6} );
+        ifDAO.makePersistent( i );
+        session.flush();
+        byte[] hash = new byte[]{1,2,3,4,5,6,7,8};
+        ifDAO.setContentHash( i, Murmur3Digest.ALGORITHM, hash );
+        assertTrue( Arrays.equals( hash, 
+                ifDAO.getContentHash( i, Murmur3Digest.ALGORITHM ) ) );
+        ifDAO.makeTransient( i );
+        session.flush();
+        tx.commit();
+        assertNull( ifDAO.getContentHash( i, Murmur3Digest.ALGORITHM ) );
+    }
+    
     @Test
     public void testImageDescriptorPersistence() 
             throws InstantiationException, InstantiationException, IllegalAccessException {
@@ -0,0 +1,162 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.UUID;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link PackedThumbnailStore}
+ @author Harri Kaimio
+ */
+public class Test_PackedThumbnailStore {
+
+    File storeDir;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        storeDir = File.createTempFile( "pv_thumbstore", "" );
+        storeDir.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        FileUtils.deleteTree( storeDir );
+    }
+
+    private byte[] data( int size, int seed ) {
+        byte[] ret = new byte[size];
+        for ( int n = 0; n < size; n++ ) {
+            ret[n] = (byte) ( n * 31 + seed );
+        }
+        return ret;
+    }
+
+    /**
+     Verify that thumbnails are found after reopening the store both with and
+     without index file, and that new versions shadow old ones.
+     */
+    @Test
+    public void testReopen() throws IOException {
+        PackedThumbnailStore store = new PackedThumbnailStore( storeDir, 10000 );
+        UUID[] photos = new UUID[20];
+        UUID[] versions = new UUID[20];
+        for ( int n = 0; n < photos.length; n++ ) {
+            photos[n] = UUID.randomUUID();
+            versions[n] = UUID.randomUUID();
+            store.put( photos[n], UUID.randomUUID(), data( 500, -n ) );
+            store.put( photos[n], versions[n], data( 1000, n ) );
+        }
+        store.remove( photos[0] );
+        assertNull( store.get( photos[0], versions[0] ) );
+        assertTrue( Arrays.equals( data( 1000, 3 ), store.get( photos[3], versions[3] ) ) );
+        store.close();
+
+        store = new PackedThumbnailStore( storeDir, 10000 );
+        assertEquals( 19, store.getEntryCount() );
+        assertTrue( Arrays.equals( data( 1000, 5 ), store.get( photos[5], versions[5] ) ) );
+        // Records added after saving index
+        UUID newVersion = UUID.randomUUID();
+        store.put( photos[1], newVersion, data( 10, 1 ) );
+        store.remove( photos[2] );
+
+        PackedThumbnailStore store2 = new PackedThumbnailStore( storeDir, 10000 );
+        assertNull( store2.get( photos[1], versions[1] ) );
+        assertTrue( Arrays.equals( data( 10, 1 ), store2.get( photos[1], newVersion ) ) );
+        assertFalse( store2.contains( photos[2], versions[2] ) );
+        store2.close();
+        store.close();
+
+        assertTrue( new File( storeDir, "index.dat" ).delete() );
+        store = new PackedThumbnailStore( storeDir, 10000 );
+        assertEquals( 18, store.getEntryCount() );
+        for ( int n = 3; n < photos.length; n++ ) {
+            assertTrue( Arrays.equals( data( 1000, n ), store.get( photos[n], versions[n] ) ) );
+        }
+        store.close();
+    }
+
+    /**
+     Verify that sparse segments are compacted and that the store is trimmed
+     to given size.
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        PackedThumbnailStore store = new PackedThumbnailStore( storeDir, 5000 );
+        UUID[] photos = new UUID[40];
+        UUID version = UUID.randomUUID();
+        for ( int n = 0; n < photos.length; n++ ) {
+            photos[n] = UUID.randomUUID();
+            store.put( photos[n], version, data( 1000, n ) );
+        }
+        int segCount = store.getSegmentCount();
+        assertTrue( segCount >= 8 );
+        // Replace all thumbnails, old segments should be compacted away
+        UUID version2 = UUID.randomUUID();
+        for ( int n = 0; n < photos.length; n++ ) {
+            store.put( photos[n], version2, data( 1000, n + 1 ) );
+        }
+        assertTrue( store.getSize() < 2 * 40 * 1100 );
+        for ( int n = 0; n < photos.length; n++ ) {
+            assertTrue( Arrays.equals( data( 1000, n + 1 ),
+                    store.get( photos[n], version2 ) ) );
+        }
+
+        store.trim( 20000 );
+        assertTrue( store.getSize() <= 20000 );
+        assertTrue( store.getEntryCount() < photos.length );
+        assertNotNull( store.get( photos[photos.length - 1], version2 ) );
+        store.close();
+    }
+
+    /**
+     Verify that a partially written record at the end of segment is ignored
+     */
+    @Test
+    public void testTruncatedSegment() throws IOException {
+        PackedThumbnailStore store = new PackedThumbnailStore( storeDir, 100000 );
+        UUID p1 = UUID.randomUUID();
+        UUID p2 = UUID.randomUUID();
+        UUID version = UUID.randomUUID();
+        store.put( p1, version, data( 1000, 1 ) );
+        store.put( p2, version, data( 1000, 2 ) );
+        store.close();
+        new File( storeDir, "index.dat" ).delete();
+        File seg = storeDir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile( seg, "rw" );
+        raf.setLength( raf.length() - 10 );
+        raf.close();
+
+        store = new PackedThumbnailStore( storeDir, 100000 );
+        assertTrue( Arrays.equals( data( 1000, 1 ), store.get( p1, version ) ) );
+        assertNull( store.get( p2, version ) );
+        store.put( p2, version, data( 1000, 3 ) );
+        assertTrue( Arrays.equals( data( 1000, 3 ), store.get( p2, version ) ) );
+        store.close();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+*/
+
+package org.photovault.imginfo;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.photovault.folder.FolderPhotoAssocDAO;
+import org.photovault.folder.FolderPhotoAssociation;
+import org.photovault.folder.PhotoFolder;
+import org.photovault.folder.PhotoFolderDAO;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.persistence.HibernateUtil;
+import org.photovault.replication.DTOResolverFactory;
+import org.photovault.replication.HibernateDtoResolverFactory;
+import org.photovault.replication.VersionedObjectEditor;
+import org.photovault.test.PhotovaultTestCase;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link PagedPhotoList}
+ */
+public class Test_PagedPhotoList extends PhotovaultTestCase {
+
+    List<PhotoInfo> photos = new ArrayList<PhotoInfo>();
+    PhotoFolder folder = null;
+    DAOFactory daoFactory;
+    PhotoInfoDAO photoDAO = null;
+    PhotoFolderDAO folderDAO = null;
+    Session session = null;
+    Transaction tx = null;
+
+    @BeforeClass
+    @Override
+    public void setUp() {
+        session = HibernateUtil.getSessionFactory().openSession();
+        HibernateDAOFactory hdf = (HibernateDAOFactory) DAOFactory.instance( HibernateDAOFactory.class );
+        hdf.setSession( session );
+        daoFactory = hdf;
+        photoDAO = daoFactory.getPhotoInfoDAO();
+        folderDAO = daoFactory.getPhotoFolderDAO();
+        tx = session.beginTransaction();
+
+        folder = folderDAO.create( "PagedPhotoList test", null );
+        folder.reparentFolder( folderDAO.findRootFolder() );
+        FolderPhotoAssocDAO assocDao = daoFactory.getFolderPhotoAssocDAO();
+
+        // Photos with equal dates & qualities and some without shooting time
+        Calendar cal = Calendar.getInstance();
+        for ( int n = 0; n < 11; n++ ) {
+            cal.clear();
+            cal.set( 2010, 5, 1 + n / 3 );
+            PhotoInfo photo = photoDAO.create();
+            DTOResolverFactory rf = new HibernateDtoResolverFactory( session );
+            VersionedObjectEditor<PhotoInfo> pe =
+                    new VersionedObjectEditor<PhotoInfo>( photo, rf );
+            PhotoEditor pep = (PhotoEditor) pe.getProxy();
+            if ( n % 4 != 3 ) {
+                pep.setFuzzyShootTime( new FuzzyDate( cal.getTime(), 0 ) );
+            }
+            pep.setQuality( n % 3 );
+            pe.apply();
+            FolderPhotoAssociation a = assocDao.getAssociation( folder, photo );
+            folder.addPhotoAssociation( a );
+            photo.addFolderAssociation( a );
+            photos.add( photo );
+        }
+        session.flush();
+    }
+
+    @AfterClass
+    @Override
+    public void tearDown() {
+        for ( PhotoInfo photo : photos ) {
+            photo.delete();
+            photoDAO.makeTransient( photo );
+        }
+        folder.delete();
+        folderDAO.makeTransient( folder );
+        tx.commit();
+        session.close();
+    }
+
+    /**
+     Check that the list contains all photos of the folder in order determined
+     by c. Pages are accessed in reverse order so that page positions must be
+     found by scrolling.
+     */
+    private void checkOrder( PagedPhotoList.SortKey key, Comparator c ) {
+        PhotoQuery q = new PhotoQuery();
+        q.limitToFolder( folder );
+        PagedPhotoList l = new PagedPhotoList( q, session, key, 3 );
+        assertEquals( photos.size(), l.size() );
+        PhotoInfo[] result = new PhotoInfo[l.size()];
+        for ( int n = l.size()-1; n >= 0; n-- ) {
+            result[n] = l.get( n );
+        }
+        Set<UUID> ids = new HashSet<UUID>();
+        for ( int n = 0; n < result.length; n++ ) {
+            ids.add( result[n].getUuid() );
+            if ( n > 0 && c != null ) {
+                assertTrue( "Photo " + n + " out of order",
+                        c.compare( result[n-1], result[n] ) <= 0 );
+            }
+        }
+        assertEquals( photos.size(), ids.size() );
+        for ( PhotoInfo p : photos ) {
+            assertTrue( ids.contains( p.getUuid() ) );
+        }
+
+        // Sequential access from another list must give same order
+        l = new PagedPhotoList( q, session, key, 3 );
+        for ( int n = 0; n < result.length; n++ ) {
+            assertEquals( result[n].getUuid(), l.get( n ).getUuid() );
+        }
+    }
+
+    @Test
+    public void testShootingDateOrder() {
+        checkOrder( PagedPhotoList.SortKey.SHOOTING_DATE, new ShootingDateComparator() );
+    }
+
+    @Test
+    public void testQualityOrder() {
+        checkOrder( PagedPhotoList.SortKey.QUALITY, new QualityComparator() );
+    }
+
+    @Test
+    public void testUuidOrder() {
+        checkOrder( PagedPhotoList.SortKey.NONE, null );
+    }
+
+    @Test
+    public void testLoadedPhotos() {
+        PhotoQuery q = new PhotoQuery();
+        q.limitToFolder( folder );
+        PagedPhotoList l = new PagedPhotoList( q, session,
+                PagedPhotoList.SortKey.SHOOTING_DATE, 3 );
+        assertFalse( l.isLoaded( 4 ) );
+        PhotoInfo p = l.get( 4 );
+        assertTrue( l.isLoaded( 3 ) );
+        assertEquals( 4, l.indexOf( p ) );
+        assertSame( p, l.findLoaded( p.getUuid() ) );
+        assertEquals( 3, l.getLoadedPhotos().size() );
+        assertFalse( l.isLoaded( 0 ) );
+    }
+
+    /**
+     Check that photo change listeners are added to photos of loaded pages
+     */
+    @Test
+    public void testPhotoChangeListeners() {
+        PhotoQuery q = new PhotoQuery();
+        q.limitToFolder( folder );
+        PagedPhotoList l = new PagedPhotoList( q, session,
+                PagedPhotoList.SortKey.SHOOTING_DATE, 3 );
+        PhotoInfoChangeListener listener = new PhotoInfoChangeListener() {
+            public void photoInfoChanged( PhotoInfoChangeEvent e ) {}
+        };
+        PhotoInfo p1 = l.get( 1 );
+        l.addPhotoChangeListener( listener );
+        assertTrue( p1.changeListeners.contains( listener ) );
+        PhotoInfo p2 = l.get( 7 );
+        assertTrue( p2.changeListeners.contains( listener ) );
+        l.removePhotoChangeListener( listener );
+        assertFalse( p1.changeListeners.contains( listener ) );
+        assertFalse( p2.changeListeners.contains( listener ) );
+    }
+}
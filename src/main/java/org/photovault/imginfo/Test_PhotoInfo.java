@@ -20,6 +20,7 @@
 
 package org.photovault.imginfo;
 
+import java.awt.Dimension;
 import java.awt.geom.Rectangle2D;
 import java.io.*;
 import java.util.*;
@@ -712,6 +713,12 @@ public class Test_PhotoInfo extends PhotovaultTestCase {
                 EnumSet.allOf(ImageOperations.class), 150, 150, 300, 300 );
         assertEquals( 200, img.getWidth() );
         
+        // Smallest suitable image should be preferred
+        img = photo.getPreferredImage( 
+                EnumSet.allOf(ImageOperations.class),
+                EnumSet.allOf(ImageOperations.class), 0, 0, 300, 300 );
+        assertEquals( 100, img.getWidth() );
+        
         photo.setPrefRotation( 90 );
         img = photo.getPreferredImage( 
                 EnumSet.allOf(ImageOperations.class),
@@ -725,6 +732,46 @@ public class Test_PhotoInfo extends PhotovaultTestCase {
         
     }
     
+    /**
+     Test that a copy created like a preview pyramid level is found as that
+     level, but not as a level of different size.
+     */
+    @Test
+    public void testFindPyramidLevel() throws CommandException {
+	File f = new File( testImgDir, "test1.jpg" );
+	PhotoInfo photo = createPhoto( f );
+        VolumeDAO volDAO = daoFactory.getVolumeDAO();
+	File instanceFile = volDAO.getDefaultVolume().getFilingFname( f );
+	try {
+	    FileUtils.copyFile( f, instanceFile );
+	} catch ( IOException e ) {
+	    fail( e.getMessage() );
+	}        
+        ModifyImageFileCommand fileCmd = 
+                new ModifyImageFileCommand( photo.getOriginal().getFile() );
+        Volume vol = volDAO.getDefaultVolume();
+        fileCmd.addLocation( vol.getFileLocation( instanceFile ) );
+        cmdHandler.executeCommand( fileCmd );
+        
+        int w = photo.getOriginal().getWidth();
+        int h = photo.getOriginal().getHeight();
+        Dimension level = new Dimension( ( w + 1 ) / 2, ( h + 1 ) / 2 );
+        assertNull( PreviewPyramid.findLevel( photo, level ) );
+        
+        CreateCopyImageCommand levelCmd = new CreateCopyImageCommand( 
+                photo, vol, level.width, level.height );
+        levelCmd.setOperationsToApply( PreviewPyramid.LEVEL_OPERATIONS );
+        levelCmd.setTileSize( PreviewPyramid.TILE_SIZE );
+        cmdHandler.executeCommand( levelCmd );
+        
+        ImageDescriptorBase img = PreviewPyramid.findLevel( photo, level );
+        assertNotNull( img );
+        assertEquals( level.width, img.getWidth() );
+        assertNull( PreviewPyramid.findLevel( photo, new Dimension( w, h ) ) );
+        assertNull( PreviewPyramid.findLevel( photo, 
+                new Dimension( level.width / 2, level.height / 2 ) ) );
+    }
+    
     @Test
     public void testTagging() throws InstantiationException, IllegalAccessException {
 	UUID photoId = UUID.randomUUID();
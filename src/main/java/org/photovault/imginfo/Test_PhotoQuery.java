@@ -256,6 +256,31 @@ public class Test_PhotoQuery extends PhotovaultTestCase {
 	boolean[] expected3 = { true, false, true, true };
 	checkResults( q, expected3 );
     }
+
+    /**
+     Check that folder limit follows changes in folder hierarchy
+     */
+    @Test
+    public void testFolderLimitReparent() {
+        subfolder.reparentFolder( folderDAO.findRootFolder() );
+        session.flush();
+        try {
+            PhotoQuery q = new PhotoQuery();
+            q.limitToFolder( folder );
+            boolean[] expected = { true, false, true, false };
+            checkResults( q, expected );
+            q.limitToFolder( subfolder );
+            boolean[] expected2 = { false, false, false, true };
+            checkResults( q, expected2 );
+        } finally {
+            subfolder.reparentFolder( folder );
+            session.flush();
+        }
+        PhotoQuery q = new PhotoQuery();
+        q.limitToFolder( folder );
+        boolean[] expected3 = { true, false, true, true };
+        checkResults( q, expected3 );
+    }
     
     
     /**
@@ -0,0 +1,70 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.awt.Dimension;
+import java.util.List;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for level size calculation in {@link PreviewPyramid}
+ */
+public class Test_PreviewPyramid {
+
+    /**
+     Each level must halve the previous one, rounding up, and levels stop 
+     when they would not be larger than the normal preview.
+     */
+    @Test
+    public void testLevelSizes() {
+        List<Dimension> levels = PreviewPyramid.getLevelSizes( 12001, 8001, 3 );
+        assertEquals( 3, levels.size() );
+        assertEquals( new Dimension( 6001, 4001 ), levels.get( 0 ) );
+        assertEquals( new Dimension( 3001, 2001 ), levels.get( 1 ) );
+        assertEquals( new Dimension( 1501, 1001 ), levels.get( 2 ) );
+
+        // Level of 1/8 would be smaller than preview
+        levels = PreviewPyramid.getLevelSizes( 6000, 4000, 3 );
+        assertEquals( 2, levels.size() );
+        assertEquals( new Dimension( 1500, 1000 ), levels.get( 1 ) );
+
+        // Longer side is used, portrait photos are handled like landscape
+        levels = PreviewPyramid.getLevelSizes( 4000, 6000, 3 );
+        assertEquals( new Dimension( 1000, 1500 ), levels.get( 1 ) );
+    }
+
+    /**
+     Test the end conditions: level exactly of preview size is not created, 
+     small photos get no levels and maximum number of levels is respected.
+     */
+    @Test
+    public void testLevelLimits() {
+        int s = PreviewPyramid.PREVIEW_SIZE;
+        assertTrue( PreviewPyramid.getLevelSizes( 2 * s, s, 3 ).isEmpty() );
+        assertEquals( 1, PreviewPyramid.getLevelSizes( 2 * s + 2, s, 3 ).size() );
+        assertTrue( PreviewPyramid.getLevelSizes( s, s, 3 ).isEmpty() );
+        assertTrue( PreviewPyramid.getLevelSizes( 100000, 100000, 0 ).isEmpty() );
+        assertEquals( 1, PreviewPyramid.getLevelSizes( 100000, 100000, 1 ).size() );
+        assertEquals( 3, PreviewPyramid.getLevelSizes( 100000, 100000, 3 ).size() );
+    }
+}
@@ -21,6 +21,7 @@
 
 package org.photovault.imginfo;
 
+import java.util.Calendar;
 import java.util.Date;
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -108,13 +109,60 @@ public class Test_SortedCollection extends PhotovaultTestCase {
                 (collection.getPhoto( 2 ) == photo1) || (collection.getPhoto( 2 ) == photo3) );
         
     }
+    
+    /**
+     * Test that changes to individual photos are applied without resorting 
+     * and listeners are notified about the changed range.
+     */
+    public void testIncrementalChanges() {
+        PhotoList list = new PhotoList();
+        list.addPhoto( photo1 );
+        list.addPhoto( photo3 );
+        SortedPhotoCollection collection = new SortedPhotoCollection( list );
+        collection.setComparator( new ShootingDateComparator() );
+        TestChangeListener l = new TestChangeListener();
+        collection.addPhotoCollectionChangeListener( l );
+        
+        list.addPhoto( photo2 );
+        assertEquals( 3, collection.getPhotoCount() );
+        assertTrue( collection.getPhoto( 2 ) == photo2 );
+        assertEquals( PhotoCollectionChangeEvent.Type.PHOTOS_ADDED, l.lastEvent.getType() );
+        assertEquals( 2, l.lastEvent.getFirstIndex() );
+        assertEquals( 2, l.lastEvent.getLastIndex() );
+        
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set( 1999, Calendar.FEBRUARY, 1 );
+        photo3.setShootTime( cal.getTime() );
+        list.entityChanged( photo3 );
+        assertTrue( collection.getPhoto( 0 ) == photo3 );
+        assertTrue( collection.getPhoto( 1 ) == photo1 );
+        assertEquals( PhotoCollectionChangeEvent.Type.PHOTOS_UPDATED, l.lastEvent.getType() );
+        assertEquals( 0, l.lastEvent.getFirstIndex() );
+        assertEquals( 1, l.lastEvent.getLastIndex() );
+        
+        list.removePhoto( photo1 );
+        assertEquals( 2, collection.getPhotoCount() );
+        assertTrue( collection.getPhoto( 1 ) == photo2 );
+        assertEquals( PhotoCollectionChangeEvent.Type.PHOTOS_REMOVED, l.lastEvent.getType() );
+        assertEquals( 1, l.lastEvent.getFirstIndex() );
+        
+        // Entities that are not in the list are ignored
+        l.lastEvent = null;
+        list.entityChanged( photo1 );
+        list.entityChanged( folder );
+        assertNull( l.lastEvent );
+    }
+    
     /**
      * Simple test listener
      */
     private class TestChangeListener implements PhotoCollectionChangeListener {
         public boolean isNotified = false;
+        public PhotoCollectionChangeEvent lastEvent = null;
         public void photoCollectionChanged( PhotoCollectionChangeEvent ev ) {
             isNotified = true;
+            lastEvent = ev;
         }
     }
     
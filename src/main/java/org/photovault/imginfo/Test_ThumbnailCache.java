@@ -0,0 +1,107 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link ThumbnailCache}
+ @author Harri Kaimio
+ */
+public class Test_ThumbnailCache {
+
+    File cacheDir;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile( "pv_thumbcache", "" );
+        cacheDir.delete();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        FileUtils.deleteTree( cacheDir );
+    }
+
+    private BufferedImage createImage( int width, int height, int rgb ) {
+        BufferedImage img = new BufferedImage( width, height,
+                BufferedImage.TYPE_3BYTE_BGR );
+        for ( int y = 0; y < height; y++ ) {
+            for ( int x = 0; x < width; x++ ) {
+                img.setRGB( x, y, rgb + x );
+            }
+        }
+        return img;
+    }
+
+    /**
+     Verify that memory budget is respected and evicted images are read from
+     disk
+     */
+    @Test
+    public void testEviction() {
+        // Budget for 2 100x100 images
+        ThumbnailCache cache = new ThumbnailCache( 80000, cacheDir, 1 << 20 );
+        UUID[] photos = new UUID[3];
+        UUID version = UUID.randomUUID();
+        for ( int n = 0; n < photos.length; n++ ) {
+            photos[n] = UUID.randomUUID();
+            cache.put( photos[n], version, createImage( 100, 100, n << 16 ) );
+            assertTrue( cache.getMemoryUsed() <= 80000 );
+        }
+        BufferedImage img = cache.get( photos[0], version );
+        assertNotNull( img );
+        assertEquals( 100, img.getWidth() );
+        assertEquals( 5, img.getRGB( 5, 0 ) & 0xffffff );
+
+        // A new cache instance finds the images from disk
+        ThumbnailCache cache2 = new ThumbnailCache( 80000, cacheDir, 1 << 20 );
+        img = cache2.get( photos[2], version );
+        assertNotNull( img );
+        assertEquals( ( 2 << 16 ) + 7, img.getRGB( 7, 3 ) & 0xffffff );
+        assertNull( cache2.get( photos[2], UUID.randomUUID() ) );
+    }
+
+    /**
+     Verify that old versions are removed when a new one is added
+     */
+    @Test
+    public void testNewVersion() {
+        ThumbnailCache cache = new ThumbnailCache( 1 << 20, cacheDir, 1 << 20 );
+        UUID photo = UUID.randomUUID();
+        UUID v1 = UUID.randomUUID();
+        UUID v2 = UUID.randomUUID();
+        cache.put( photo, v1, createImage( 10, 10, 0 ) );
+        cache.put( photo, v2, createImage( 20, 10, 0 ) );
+        ThumbnailCache cache2 = new ThumbnailCache( 1 << 20, cacheDir, 1 << 20 );
+        assertNull( cache2.get( photo, v1 ) );
+        assertEquals( 20, cache2.get( photo, v2 ).getWidth() );
+        cache2.remove( photo );
+        assertNull( cache2.get( photo, v2 ) );
+    }
+}
@@ -22,6 +22,7 @@ package org.photovault.imginfo;
 
 
 import java.net.URL;
+import java.util.UUID;
 import javax.imageio.*;
 import java.awt.image.*;
 import java.io.*;
@@ -46,10 +47,49 @@ public class Thumbnail {
     }
 
     /**
-       Returns a BufferedImage that contains the thumbnail image data
+       Returns a BufferedImage that contains the thumbnail image data. Image
+       data of cached thumbnails is fetched from {@link ThumbnailCache} and 
+       loaded again if it has been evicted from cache.
     */
     public BufferedImage getImage() {
-	return image;
+        if ( image != null || version == null ) {
+            return image;
+        }
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        BufferedImage img = cache.get( photoId, version );
+        if ( img == null ) {
+            img = loadImage();
+            if ( img == null ) {
+                return getErrorThumbnail().getImage();
+            }
+            cache.put( photoId, version, img );
+        }
+        return img;
+    }
+
+    /**
+     Returns the thumbnail image if it is in memory. Unlike {@link #getImage()}
+     this never accesses disk or database, so it is safe to call for 
+     thumbnails whose photo is not associated with current persistence 
+     context.
+     @return The image or <code>null</code> if it has been evicted from 
+     memory cache and must be loaded again.
+     */
+    public BufferedImage getCachedImage() {
+        if ( image != null || version == null ) {
+            return image;
+        }
+        return ThumbnailCache.getInstance().getFromMemory( photoId, version );
+    }
+
+    /**
+     Check whether image data of this thumbnail can be obtained without
+     accessing disk.
+     @return <code>true</code> if {@link #getImage()} returns immediately.
+     */
+    public boolean isImageLoaded() {
+        return image != null || version == null || 
+                ThumbnailCache.getInstance().isInMemory( photoId, version );
     }
 
     /**
@@ -60,9 +100,92 @@ public class Thumbnail {
 	return photo;
     }
 
+    /**
+     Image data of thumbnails that are not cached (default & error thumbnails
+     and thumbnails created from a file)
+     */
     BufferedImage image = null;
     PhotoInfo photo = null;
     
+    /**
+     UUID of the photo
+     */
+    UUID photoId = null;
+    
+    /**
+     Version of the thumbnail in {@link ThumbnailCache} or <code>null</code>
+     if the thumbnail is not cached.
+     */
+    UUID version = null;
+    
+    /**
+     Image file that contains the thumbnail
+     */
+    ImageFile imageFile = null;
+    
+    /**
+     Known location of the thumbnail file or <code>null</code> if an 
+     available copy of imageFile must be searched when the image is loaded.
+     */
+    File sourceFile = null;
+    
+    /**
+     Load the thumbnail image from file
+     @return The image or <code>null</code> if it cannot be loaded.
+     */
+    private BufferedImage loadImage() {
+        File f = sourceFile;
+        if ( f == null && imageFile != null ) {
+            try {
+                f = imageFile.findAvailableCopy();
+            } catch ( RuntimeException e ) {
+                log.warn( "Error finding thumbnail file: " + e.getMessage() );
+            }
+        }
+        if ( f == null ) {
+            return null;
+        }
+        log.debug( "Loading thumbnail from " + f.getPath() );
+        try {
+            return ImageIO.read( f );
+        } catch ( IOException e ) {
+            log.warn( "Error reading thumbnail image: " + e.getMessage() );
+            return null;
+        }
+    }
+    
+    /**
+     Creates a thumbnail that is cached in {@link ThumbnailCache}. If the 
+     thumbnail is not found in cache it is loaded from file.
+     @param photo The photo which the thumbnail presents
+     @param thumbFile Image file that contains the thumbnail. Its UUID is used
+     as thumbnail version, as a new file is created whenever the settings that
+     affect the thumbnail are changed.
+     @param f Location of thumbFile or <code>null</code> if it is not known.
+     @return A new Thumbnail object or the default thumbnail if the thumbnail 
+     is not in cache and cannot be read.
+     */
+    protected static Thumbnail createThumbnail( PhotoInfo photo, 
+            ImageFile thumbFile, File f ) {
+        Thumbnail thumb = new Thumbnail();
+        thumb.photo = photo;
+        thumb.photoId = photo.getUuid();
+        thumb.version = thumbFile.getId();
+        thumb.imageFile = thumbFile;
+        thumb.sourceFile = f;
+        ThumbnailCache cache = ThumbnailCache.getInstance();
+        if ( cache.get( thumb.photoId, thumb.version ) == null ) {
+            log.debug( "Creating thumbnail for " + photo.getUuid() );
+            BufferedImage img = thumb.loadImage();
+            if ( img == null ) {
+                return getDefaultThumbnail();
+            }
+            cache.put( thumb.photoId, thumb.version, img );
+        }
+        return thumb;
+    }
+    
+    
     /**
        Creates a thumbnail from a given image instance
        @param photo The photoInfo which the thumbnail presents
@@ -0,0 +1,405 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.photovault.common.PhotovaultSettings;
+
+/**
+ Two level cache for decoded thumbnail images. Recently used thumbnails are
+ kept in memory in LRU order until their total size exceeds the memory budget.
+ All cached thumbnails are also stored on local disk as deflate compressed
+ pixel data in a {@link PackedThumbnailStore}, which is much faster to load
+ than decoding the JPEG file from the volume and does not require the volume
+ to be available.
+ <p>
+ Thumbnails are identified by UUID of the photo and a version UUID. The
+ version must change whenever the processing settings that affect the
+ thumbnail change - {@link PhotoInfo} uses the UUID of the image file that
+ holds the thumbnail, as a new thumbnail file is created whenever the
+ settings are changed. Entries with older versions of a photo are removed
+ from disk when a new version is stored. When the disk cache grows over its
+ budget, the oldest segments of the store are removed.
+ <p>
+ Memory budget can be set with system property
+ photovault.thumbnailcache.memory and disk budget with
+ photovault.thumbnailcache.disk (both in megabytes).
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class ThumbnailCache {
+
+    static private Log log = LogFactory.getLog( ThumbnailCache.class.getName() );
+
+    /**
+     Magic number at the beginning of each cached image
+     */
+    static private final int FILE_MAGIC = 0x50565431; // "PVT1"
+
+    /**
+     The shared cache instance
+     */
+    static private ThumbnailCache instance = null;
+
+    /**
+     Images in memory, in access order
+     */
+    private LinkedHashMap<String, BufferedImage> memCache =
+            new LinkedHashMap<String, BufferedImage>( 256, 0.75f, true );
+
+    /**
+     Maximum total size of images in memory in bytes
+     */
+    private long memoryBudget;
+
+    /**
+     Current size of images in memory
+     */
+    private long memoryUsed = 0;
+
+    /**
+     Disk cache or <code>null</code> if disk cache is not used
+     */
+    private PackedThumbnailStore store = null;
+
+    /**
+     Maximum size of disk cache in bytes
+     */
+    private long diskBudget;
+
+    /**
+     Create a new cache
+     @param memoryBudget Maximum size of images kept in memory (bytes)
+     @param diskDir Directory for the disk cache or <code>null</code> if only
+     memory cache is used.
+     @param diskBudget Maximum size of disk cache (bytes)
+     */
+    public ThumbnailCache( long memoryBudget, File diskDir, long diskBudget ) {
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        if ( diskDir != null ) {
+            try {
+                store = new PackedThumbnailStore( diskDir, 
+                        Math.min( PackedThumbnailStore.DEFAULT_SEGMENT_SIZE, 
+                        Math.max( diskBudget / 8, 1 << 20 ) ) );
+            } catch ( IOException e ) {
+                log.warn( "Cannot open thumbnail cache in " + diskDir + ": " + 
+                        e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     Get the shared cache instance. The disk cache is stored in Photovault
+     configuration directory.
+     @return The cache
+     */
+    public static synchronized ThumbnailCache getInstance() {
+        if ( instance == null ) {
+            long memBudget =
+                    Long.getLong( "photovault.thumbnailcache.memory", 32 ) << 20;
+            long diskBudget =
+                    Long.getLong( "photovault.thumbnailcache.disk", 512 ) << 20;
+            File dir = new File( PhotovaultSettings.getSettings().getConfigDir(),
+                    "thumbcache" );
+            instance = new ThumbnailCache( memBudget, dir, diskBudget );
+            final ThumbnailCache cache = instance;
+            Runtime.getRuntime().addShutdownHook( new Thread() {
+                @Override
+                public void run() {
+                    cache.flush();
+                }
+            } );
+        }
+        return instance;
+    }
+
+    private static String key( UUID photoId, UUID version ) {
+        return photoId.toString() + "_" + version.toString();
+    }
+
+    /**
+     Get a thumbnail image from cache
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @return The image or <code>null</code> if it is not found in either
+     memory or disk cache.
+     */
+    public BufferedImage get( UUID photoId, UUID version ) {
+        String key = key( photoId, version );
+        synchronized ( this ) {
+            BufferedImage img = memCache.get( key );
+            if ( img != null ) {
+                return img;
+            }
+        }
+        BufferedImage img = readFromDisk( photoId, version );
+        if ( img != null ) {
+            addToMemory( key, img );
+        }
+        return img;
+    }
+
+    /**
+     Get a thumbnail image from memory cache without accessing disk
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @return The image or <code>null</code> if it is not in memory.
+     */
+    public synchronized BufferedImage getFromMemory( UUID photoId, UUID version ) {
+        return memCache.get( key( photoId, version ) );
+    }
+
+    /**
+     Check whether a thumbnail is in memory cache. This can be used to check
+     whether a thumbnail can be obtained without blocking for disk access.
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @return <code>true</code> if the thumbnail is in memory
+     */
+    public synchronized boolean isInMemory( UUID photoId, UUID version ) {
+        return memCache.containsKey( key( photoId, version ) );
+    }
+
+    /**
+     Add a thumbnail to the cache
+     @param photoId UUID of the photo
+     @param version Version of the thumbnail
+     @param img The thumbnail image
+     */
+    public void put( UUID photoId, UUID version, BufferedImage img ) {
+        String key = key( photoId, version );
+        BufferedImage rgbImg = toIntRgb( img );
+        addToMemory( key, rgbImg );
+        writeToDisk( photoId, version, rgbImg );
+    }
+
+    /**
+     Remove all thumbnails of a photo from cache
+     @param photoId UUID of the photo
+     */
+    public void remove( UUID photoId ) {
+        String prefix = photoId.toString() + "_";
+        synchronized ( this ) {
+            Iterator<Map.Entry<String, BufferedImage>> iter =
+                    memCache.entrySet().iterator();
+            while ( iter.hasNext() ) {
+                Map.Entry<String, BufferedImage> e = iter.next();
+                if ( e.getKey().startsWith( prefix ) ) {
+                    memoryUsed -= imageSize( e.getValue() );
+                    iter.remove();
+                }
+            }
+        }
+        removeFromDisk( photoId );
+    }
+
+    /**
+     Get the amount of memory currently used by cached images
+     @return Size of images in memory (bytes)
+     */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    private synchronized void addToMemory( String key, BufferedImage img ) {
+        BufferedImage old = memCache.put( key, img );
+        if ( old != null ) {
+            memoryUsed -= imageSize( old );
+        }
+        memoryUsed += imageSize( img );
+        Iterator<BufferedImage> iter = memCache.values().iterator();
+        while ( memoryUsed > memoryBudget && iter.hasNext() ) {
+            BufferedImage evicted = iter.next();
+            if ( evicted == img ) {
+                // Never evict the image just added
+                continue;
+            }
+            memoryUsed -= imageSize( evicted );
+            iter.remove();
+        }
+    }
+
+    /**
+     Estimate memory used by an image
+     @param img The image
+     @return Size of image data in bytes
+     */
+    static long imageSize( BufferedImage img ) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() *
+                DataBuffer.getDataTypeSize( db.getDataType() ) / 8;
+    }
+
+    /**
+     Convert an image to TYPE_INT_RGB, the format used in cache
+     */
+    private static BufferedImage toIntRgb( BufferedImage img ) {
+        if ( img.getType() == BufferedImage.TYPE_INT_RGB ) {
+            return img;
+        }
+        BufferedImage rgb = new BufferedImage( img.getWidth(), img.getHeight(),
+                BufferedImage.TYPE_INT_RGB );
+        rgb.createGraphics().drawImage( img, 0, 0, null );
+        return rgb;
+    }
+
+    /**
+     Encode an image to the format used in disk cache
+     @param img The image (TYPE_INT_RGB)
+     @return Encoded image data
+     */
+    static byte[] encode( BufferedImage img ) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( width * height );
+        DataOutputStream os = new DataOutputStream( new BufferedOutputStream(
+                new DeflaterOutputStream( bos, new Deflater( Deflater.BEST_SPEED ) ) ) );
+        os.writeInt( FILE_MAGIC );
+        os.writeInt( width );
+        os.writeInt( height );
+        byte[] row = new byte[width * 3];
+        for ( int y = 0; y < height; y++ ) {
+            int offset = y * width;
+            for ( int x = 0; x < width; x++ ) {
+                int p = pixels[offset + x];
+                row[3 * x] = (byte) ( p >> 16 );
+                row[3 * x + 1] = (byte) ( p >> 8 );
+                row[3 * x + 2] = (byte) p;
+            }
+            os.write( row );
+        }
+        os.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     Decode image data created by {@link #encode(BufferedImage)}
+     @param data The encoded data
+     @return Decoded image
+     @throws IOException if the data is corrupted
+     */
+    static BufferedImage decode( byte[] data ) throws IOException {
+        DataInputStream is = new DataInputStream( new BufferedInputStream(
+                new InflaterInputStream( new ByteArrayInputStream( data ) ) ) );
+        if ( is.readInt() != FILE_MAGIC ) {
+            throw new IOException( "Not a cached thumbnail" );
+        }
+        int width = is.readInt();
+        int height = is.readInt();
+        BufferedImage img = new BufferedImage( width, height,
+                BufferedImage.TYPE_INT_RGB );
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        byte[] row = new byte[width * 3];
+        for ( int y = 0; y < height; y++ ) {
+            is.readFully( row );
+            int offset = y * width;
+            for ( int x = 0; x < width; x++ ) {
+                pixels[offset + x] = ( ( row[3 * x] & 0xff ) << 16 ) |
+                        ( ( row[3 * x + 1] & 0xff ) << 8 ) |
+                        ( row[3 * x + 2] & 0xff );
+            }
+        }
+        return img;
+    }
+
+    private BufferedImage readFromDisk( UUID photoId, UUID version ) {
+        if ( store == null ) {
+            return null;
+        }
+        byte[] data = store.get( photoId, version );
+        if ( data == null ) {
+            return null;
+        }
+        try {
+            return decode( data );
+        } catch ( IOException e ) {
+            log.warn( "Error reading cached thumbnail of " + photoId + ": " + e.getMessage() );
+            removeFromDisk( photoId );
+            return null;
+        }
+    }
+
+    private void writeToDisk( UUID photoId, UUID version, BufferedImage img ) {
+        if ( store == null ) {
+            return;
+        }
+        try {
+            store.put( photoId, version, encode( img ) );
+            if ( store.getSize() > diskBudget ) {
+                // Trim to 90% of budget so that trimming is not done after every write
+                store.trim( diskBudget / 10 * 9 );
+            }
+        } catch ( IOException e ) {
+            log.warn( "Error writing cached thumbnail of " + photoId + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     Remove thumbnails of a photo from disk cache
+     @param photoId UUID of the photo
+     */
+    private void removeFromDisk( UUID photoId ) {
+        if ( store == null ) {
+            return;
+        }
+        try {
+            store.remove( photoId );
+        } catch ( IOException e ) {
+            log.warn( "Error removing cached thumbnail of " + photoId + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     Save index of the disk cache
+     */
+    public void flush() {
+        if ( store == null ) {
+            return;
+        }
+        try {
+            store.saveIndex();
+        } catch ( IOException e ) {
+            log.warn( "Error saving thumbnail cache index: " + e.getMessage() );
+        }
+    }
+}
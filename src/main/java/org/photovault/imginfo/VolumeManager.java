@@ -30,10 +30,12 @@ import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.photovault.common.PhotovaultException;
@@ -81,6 +83,12 @@ public class VolumeManager {
      */
     Map<UUID, File> availableVolumes = new HashMap<UUID, File>();
     
+    /**
+     Listeners notified when volumes are mounted or unmounted
+     */
+    private List<VolumeMountListener> mountListeners = 
+            new CopyOnWriteArrayList<VolumeMountListener>();
+    
     /**
      Constructs a new VolumeManager. As this class is singleton, use instance() 
      method to get the instance.
@@ -118,6 +126,22 @@ public class VolumeManager {
         mountPoints.remove( mountPoint );
     }
     
+    /**
+     Add a listener that is notified when volumes are mounted or unmounted
+     @param l The listener
+     */
+    public void addVolumeMountListener( VolumeMountListener l ) {
+        mountListeners.add( l );
+    }
+    
+    /**
+     Remove a volume mount listener
+     @param l The listener that will be removed
+     */
+    public void removeVolumeMountListener( VolumeMountListener l ) {
+        mountListeners.remove( l );
+    }
+    
     /**
      Get all mount points that are searched for volumes
      
@@ -292,7 +316,13 @@ public class VolumeManager {
      @param mountDir The root directory of the volume
      */
     private void registerVolumeMount( VolumeBase vol, File mountDir ) {
-        availableVolumes.put( vol.getId(), mountDir );        
+        File oldMountDir = availableVolumes.put( vol.getId(), mountDir );
+        if ( !mountDir.equals( oldMountDir ) ) {
+            FileAvailabilityCache.instance().invalidateAll();
+            for ( VolumeMountListener l : mountListeners ) {
+                l.volumeMounted( vol, mountDir );
+            }
+        }
     }
     
     /**
@@ -309,7 +339,12 @@ public class VolumeManager {
      @param volId UUID of the volume that is no longer accessible.
      */
     private void unregisterVolumeMount( UUID volId ) {
-        availableVolumes.remove( volId );
+        if ( availableVolumes.remove( volId ) != null ) {
+            FileAvailabilityCache.instance().invalidateAll();
+            for ( VolumeMountListener l : mountListeners ) {
+                l.volumeUnmounted( volId );
+            }
+        }
     }
     
     
@@ -334,10 +369,22 @@ public class VolumeManager {
     }
 
     
+    /**
+     Check all mount points for volumes and update the set of available 
+     volumes. Cached file availability information is invalidated if the 
+     mounts have changed.
+     */
     public void updateVolumeMounts() {
         updateVolumeMounts( null );
     }
 
+    /**
+     Check all mount points for volumes and update the set of available 
+     volumes. Cached file availability information is invalidated if the 
+     mounts have changed.
+     @param volDao DAO used for finding persistent instances of the found 
+     volumes, or <code>null</code>
+     */
     public void updateVolumeMounts( VolumeDAO volDao ) {
         Set<UUID> oldVolumes = new HashSet<UUID>( availableVolumes.keySet() );
         for ( File dir : mountPoints ) {
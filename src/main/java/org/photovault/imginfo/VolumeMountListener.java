@@ -0,0 +1,46 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.imginfo;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ An interface for receiving notifications from {@link VolumeManager} when
+ volumes become available or unavailable.
+ @since 0.6.0
+ */
+public interface VolumeMountListener {
+    /**
+     Called when a volume has been found in a mount point or its mount point
+     has changed
+     @param vol The mounted volume
+     @param mountDir Root directory of the volume
+     */
+    public void volumeMounted( VolumeBase vol, File mountDir );
+
+    /**
+     Called when a volume is no longer available
+     @param volId UUID of the volume
+     */
+    public void volumeUnmounted( UUID volId );
+}
@@ -22,9 +22,11 @@ package org.photovault.imginfo.indexer;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import org.apache.commons.logging.Log;
@@ -74,9 +76,74 @@ public class ExtVolIndexer implements Runnable {
         commandHandler = ch;
     }
     
+    /**
+     Default number of worker threads, can be set with system property
+     photovault.indexer.threads
+     */
+    static final int DEFAULT_WORKER_COUNT = 
+            Integer.getInteger( "photovault.indexer.threads", 1 );
+    
+    /**
+     Number of files written to database in a single persistence context and,
+     if the command handler supports it, a single transaction
+     */
+    static final int WRITE_BATCH_SIZE = 50;
+    
+    /**
+     Number of worker threads used for indexing. If 1, all files are indexed 
+     sequentially in the calling thread.
+     */
+    private int workerCount = DEFAULT_WORKER_COUNT;
+    
+    /**
+     Set the number of worker threads used for indexing. If more than one 
+     thread is used, files are read, hashed and their previews are created in 
+     parallel while database modifications are done by a single writer thread.
+     In this case the command handler must be usable from several threads at 
+     the same time (e.g. a {@link PhotovaultCommandHandler} that is not 
+     associated with a persistence context).
+     @param count Number of worker threads, at least 1.
+     */
+    public void setWorkerCount( int count ) {
+        if ( count < 1 ) {
+            throw new IllegalArgumentException( "Worker count must be at least 1" );
+        }
+        workerCount = count;
+    }
+    
+    /**
+     Get the number of worker threads used for indexing
+     @return Number of threads
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+    
     
     private ExtVolIndexerEvent currentEvent = null;
     
+    /**
+     Command handler used for batched writes when indexing sequentially or
+     <code>null</code> if commands are committed one by one.
+     */
+    private PhotovaultCommandHandler batchHandler = null;
+    
+    /**
+     Persistence context of current batch
+     */
+    private Session batchSession = null;
+    
+    /**
+     Number of files indexed in current batch
+     */
+    private int filesInBatch = 0;
+    
+    /**
+     Files indexed in current batch whose previews are created after the 
+     batch has been committed
+     */
+    private List<IndexFileTask> uncommitted = new ArrayList<IndexFileTask>();
+    
     /**
      Etimate of current progress in indexing operation. Values 0..100
      */
@@ -95,7 +162,25 @@ public class ExtVolIndexer implements Runnable {
             startTime = new Date();
 
             DirectoryIndexer topIndexer = new DirectoryIndexer( volume.getBaseDir(), volume );
-            indexDirectory( topIndexer, 0, 100 );
+            if ( workerCount > 1 ) {
+                indexParallel( topIndexer );
+            } else {
+                if ( commandHandler instanceof PhotovaultCommandHandler ) {
+                    batchHandler = (PhotovaultCommandHandler) commandHandler;
+                }
+                try {
+                    indexDirectory( topIndexer, 0, 100 );
+                } finally {
+                    commitBatch();
+                    batchHandler = null;
+                }
+            }
+            // The whole volume has been scanned, so files that were not seen
+            // do not exist anymore
+            FileFingerprintCache fingerprints = 
+                    FileFingerprintCache.getInstance( volume );
+            fingerprints.retainSeen();
+            fingerprints.save();
             notifyListenersIndexingComplete();
         } catch( Throwable t ) {
             StringWriter strw = new StringWriter();
@@ -154,39 +239,42 @@ public class ExtVolIndexer implements Runnable {
         indexer.setCommandHandler( (PhotovaultCommandHandler) commandHandler );
         int subdirCount = indexer.getSubdirIndexers().size();
         while ( (fileTask = indexer.getNextFileIndexer(  )) != null ) {
-            Session photoSession =
-                    HibernateUtil.getSessionFactory(  ).openSession(  );
+            Session photoSession = null;
+            if ( batchHandler != null ) {
+                if ( batchSession == null ) {
+                    batchSession = batchHandler.beginBatch();
+                }
+                photoSession = batchSession;
+            } else {
+                photoSession = HibernateUtil.getSessionFactory(  ).openSession(  );
+            }
             Session oldSession =
                     ManagedSessionContext.bind( (org.hibernate.classic.Session) photoSession );
             fileTask.setSession( photoSession );
             fileTask.setCommandHandler( commandHandler );
-            fileTask.run(  );
-            ExtVolIndexerEvent ev =
-                    new ExtVolIndexerEvent( this );
-            switch ( ((IndexFileTask)fileTask).getResult(  ) ) {
-                case NEW_FILE:
-                    ev.setResult( ExtVolIndexerEvent.RESULT_NEW_PHOTO );
-                    newInstanceCount++;
-                    newPhotoCount++;
-                    break;
-                case NEW_LOCATION:
-                    ev.setResult( ExtVolIndexerEvent.RESULT_NEW_INSTANCE );
-                    newInstanceCount++;
-                    break;
-                case NOT_IMAGE:
-                    ev.setResult( ExtVolIndexerEvent.RESULT_NOT_IMAGE );
-                    break;
-                case ERROR:
-                    ev.setResult( ExtVolIndexerEvent.RESULT_ERROR );
-                    break;
+            if ( batchHandler != null && fileTask instanceof IndexFileTask ) {
+                ((IndexFileTask) fileTask).setDeferPreviews( true );
             }
+            fileTask.run(  );
             percentComplete =
                     startPercent +
                     (endPercent - startPercent) * 
                     indexer.getPercentComplete(  ) / (100 * (subdirCount + 1));
-            notifyListeners( ev );
-            photoSession.close(  );
+            if ( fileTask instanceof IndexFileTask ) {
+                fileIndexed( (IndexFileTask) fileTask );
+            }
             ManagedSessionContext.bind( (org.hibernate.classic.Session) oldSession );
+            if ( batchHandler != null ) {
+                photoSession.clear();
+                if ( fileTask instanceof IndexFileTask ) {
+                    uncommitted.add( (IndexFileTask) fileTask );
+                    if ( ++filesInBatch >= WRITE_BATCH_SIZE ) {
+                        commitBatch();
+                    }
+                }
+            } else {
+                photoSession.close(  );
+            }
         }
         int subdir = 0;
         for ( DirectoryIndexer subdirIndexer : indexer.getSubdirIndexers(  ) ) {
@@ -197,6 +285,157 @@ public class ExtVolIndexer implements Runnable {
         }
     }
 
+    /**
+     Commit files indexed in current batch, end the batch and create previews 
+     for the files. Previews are created only after the batch has been 
+     committed so that the transaction does not keep database locks while 
+     images are scaled. A new batch is started for the next file.
+     */
+    private void commitBatch() {
+        if ( batchSession == null ) {
+            return;
+        }
+        filesInBatch = 0;
+        batchSession = null;
+        try {
+            batchHandler.endBatch();
+        } catch ( CommandException e ) {
+            // The batch has been ended, a new one is started for next file
+            log.error( "Error committing indexed files", e );
+        }
+        createDeferredPreviews();
+    }
+    
+    /**
+     Create previews for files indexed in the last batch. Each preview is 
+     committed in its own transaction.
+     */
+    private void createDeferredPreviews() {
+        if ( uncommitted.isEmpty() ) {
+            return;
+        }
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Session oldSession =
+                ManagedSessionContext.bind( (org.hibernate.classic.Session) session );
+        try {
+            for ( IndexFileTask t : uncommitted ) {
+                try {
+                    t.createDeferredPreviews();
+                } catch ( RuntimeException e ) {
+                    log.warn( "Error creating previews for " + t.getFile(), e );
+                }
+                session.clear();
+            }
+        } finally {
+            uncommitted.clear();
+            session.close();
+            if ( oldSession != null ) {
+                ManagedSessionContext.bind( (org.hibernate.classic.Session) oldSession );
+            } else {
+                ManagedSessionContext.unbind( HibernateUtil.getSessionFactory() );
+            }
+        }
+    }
+    
+    /**
+     Index the whole volume using an {@link IndexingPipeline}. Directories are
+     read in the calling thread and the file indexing tasks are fed to the 
+     pipeline.
+     @param topIndexer Indexer for the top directory of volume
+     @throws InterruptedException if the thread is interrupted while waiting 
+     for the pipeline.
+     */
+    private void indexParallel( DirectoryIndexer topIndexer ) 
+            throws InterruptedException {
+        IndexingPipeline pipeline = new IndexingPipeline( workerCount, 
+                WRITE_BATCH_SIZE, commandHandler, new IndexingPipeline.Callback() {
+            public void fileIndexed( IndexFileTask task ) {
+                ExtVolIndexer.this.fileIndexed( task );
+            }
+        } );
+        List<BackgroundTask> finalizers = new ArrayList<BackgroundTask>();
+        try {
+            submitDirectory( topIndexer, pipeline, finalizers, 0, 100 );
+            pipeline.awaitCompletion();
+        } finally {
+            pipeline.shutdown();
+        }
+        // Complete the directories in the calling thread after all files are done
+        for ( BackgroundTask t : finalizers ) {
+            t.setSession( HibernateUtil.getSessionFactory().getCurrentSession() );
+            t.setCommandHandler( commandHandler );
+            t.run();
+        }
+        percentComplete = 100;
+    }
+    
+    /**
+     Feed all file indexing tasks of a directory hierarchy to a pipeline
+     @param indexer Indexer of the top directory
+     @param pipeline The pipeline that executes the tasks
+     @param finalizers Other tasks created by directory indexers are added to 
+     this list. They must be executed after all files have been indexed.
+     @param startPercent Estimated completeness when starting this directory
+     @param endPercent Estimated completeness after this directory
+     @throws InterruptedException if the thread is interrupted while waiting 
+     for the pipeline.
+     */
+    private void submitDirectory( DirectoryIndexer indexer, 
+            IndexingPipeline pipeline, List<BackgroundTask> finalizers,
+            int startPercent, int endPercent ) throws InterruptedException {
+        indexer.setCommandHandler( (PhotovaultCommandHandler) commandHandler );
+        int subdirCount = indexer.getSubdirIndexers().size();
+        percentComplete = startPercent;
+        BackgroundTask task = null;
+        while ( (task = indexer.getNextFileIndexer()) != null ) {
+            if ( task instanceof IndexFileTask ) {
+                pipeline.submit( (IndexFileTask) task );
+            } else {
+                finalizers.add( task );
+            }
+        }
+        int subdir = 0;
+        for ( DirectoryIndexer subdirIndexer : indexer.getSubdirIndexers() ) {
+            submitDirectory( subdirIndexer, pipeline, finalizers,
+                    startPercent + (endPercent - startPercent) * (subdir + 1) / 
+                    (subdirCount + 1),
+                    startPercent + (endPercent - startPercent) * (subdir + 2) /
+                    (subdirCount + 1) );
+            subdir++;
+        }
+    }
+    
+    /**
+     Update statistics & notify listeners after a file has been indexed. 
+     @param task The task that indexed the file
+     */
+    private synchronized void fileIndexed( IndexFileTask task ) {
+        ExtVolIndexerEvent ev = new ExtVolIndexerEvent( this );
+        IndexingResult result = task.getResult();
+        if ( result == null ) {
+            result = IndexingResult.ERROR;
+        }
+        indexedFileCount++;
+        switch ( result ) {
+            case NEW_FILE:
+                ev.setResult( ExtVolIndexerEvent.RESULT_NEW_PHOTO );
+                newInstanceCount++;
+                newPhotoCount++;
+                break;
+            case NEW_LOCATION:
+                ev.setResult( ExtVolIndexerEvent.RESULT_NEW_INSTANCE );
+                newInstanceCount++;
+                break;
+            case NOT_IMAGE:
+                ev.setResult( ExtVolIndexerEvent.RESULT_NOT_IMAGE );
+                break;
+            case ERROR:
+                ev.setResult( ExtVolIndexerEvent.RESULT_ERROR );
+                break;
+        }
+        notifyListeners( ev );
+    }
+
     /**
      Notifies all listeners that a new file has been indexed.
      @param e The indexer event object that describes the event
@@ -0,0 +1,478 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo.indexer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.photovault.imginfo.ExternalVolume;
+import org.photovault.imginfo.Murmur3Digest;
+
+/**
+ FileFingerprintCache remembers the hashes of files in an external volume so
+ that files that have not changed since the previous indexing operation do not
+ need to be read again.
+ <p>
+ Each file is identified by its volume relative path and a fingerprint that
+ consists of file size, last modification time and the file key (inode) given
+ by the file system. If all of these match the cached values, the cached hash
+ is used. The file key makes it possible to recognize also files that have
+ been moved or renamed inside the volume.
+ <p>
+ In addition, the cache stores a partial hash calculated from the first and
+ last blocks of each file. It is used as a cheap prefilter: if the partial hash
+ of a file differs from that of the candidate, the files cannot be equal and
+ calculating full hash for comparison can be skipped.
+ <p>
+ The cache is stored in the volume information directory (.photovault_volume)
+ so that it stays with the volume. If the directory does not exist or is not
+ writable the cache is kept only in memory.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+class FileFingerprintCache {
+
+    static private Log log = LogFactory.getLog( FileFingerprintCache.class.getName() );
+
+    /**
+     Size of the blocks read from beginning and end of the file for partial
+     hash
+     */
+    static final int PARTIAL_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     Identifies the version of cache file format
+     */
+    static private final int FILE_FORMAT_VERSION = 2;
+
+    /**
+     Name of the directory in which volume information is stored
+     */
+    static private final String VOL_INFO_DIR = ".photovault_volume";
+
+    /**
+     Caches of volumes that have been used in this session, by volume ID
+     */
+    static private Map<UUID, FileFingerprintCache> caches =
+            new HashMap<UUID, FileFingerprintCache>();
+
+    /**
+     Cached information about a single file
+     */
+    static class Entry {
+        long size;
+        long lastModified;
+        /**
+         File key given by file system or <code>null</code> if not available
+         */
+        String fileKey;
+        /**
+         Hash of the file or <code>null</code> if file is not an image
+         */
+        byte[] hash;
+        boolean notImage;
+
+        boolean matches( Entry e ) {
+            return size == e.size && lastModified == e.lastModified &&
+                    ( fileKey == null ? e.fileKey == null : fileKey.equals( e.fileKey ) );
+        }
+    }
+
+    /**
+     Entries by volume relative path
+     */
+    private Map<String, Entry> entriesByPath = new HashMap<String, Entry>();
+
+    /**
+     Entries by file key
+     */
+    private Map<String, Entry> entriesByKey = new HashMap<String, Entry>();
+
+    /**
+     Partial hashes by full hash
+     */
+    private Map<ByteBuffer, byte[]> partialHashes = new HashMap<ByteBuffer, byte[]>();
+
+    /**
+     Paths that have been looked up or updated after the cache was loaded or
+     pruned
+     */
+    private Set<String> seenPaths = new HashSet<String>();
+
+    /**
+     File in which the cache is stored, <code>null</code> if the cache is not
+     persistent
+     */
+    private File cacheFile;
+
+    /**
+     Has the cache been modified after it was loaded?
+     */
+    private boolean dirty = false;
+
+    /**
+     Create a new cache
+     @param cacheFile File from which the cache is loaded and in which it is
+     saved or <code>null</code> if the cache is kept only in memory.
+     */
+    FileFingerprintCache( File cacheFile ) {
+        this.cacheFile = cacheFile;
+        if ( cacheFile != null && cacheFile.exists() ) {
+            try {
+                load();
+            } catch ( IOException e ) {
+                log.warn( "Cannot read fingerprint cache " + cacheFile + ": " +
+                        e.getMessage() );
+                entriesByPath.clear();
+                entriesByKey.clear();
+                partialHashes.clear();
+            }
+        }
+    }
+
+    /**
+     Get the cache for given volume
+     @param vol The volume
+     @return The cache used for vol.
+     */
+    static synchronized FileFingerprintCache getInstance( ExternalVolume vol ) {
+        FileFingerprintCache c = caches.get( vol.getId() );
+        if ( c == null ) {
+            File cacheFile = null;
+            File infoDir = new File( vol.getBaseDir(), VOL_INFO_DIR );
+            if ( infoDir.isDirectory() ) {
+                cacheFile = new File( infoDir,
+                        String.format( "fingerprints_%s.dat", vol.getId() ) );
+            }
+            c = new FileFingerprintCache( cacheFile );
+            caches.put( vol.getId(), c );
+        }
+        return c;
+    }
+
+    /**
+     Read the fingerprint of a file from file system
+     @param f The file
+     @return Entry with size, modification time and file key set.
+     */
+    static Entry readFingerprint( File f ) {
+        Entry e = new Entry();
+        try {
+            BasicFileAttributes attrs =
+                    Files.readAttributes( f.toPath(), BasicFileAttributes.class );
+            e.size = attrs.size();
+            e.lastModified = attrs.lastModifiedTime().toMillis();
+            Object key = attrs.fileKey();
+            e.fileKey = key != null ? key.toString() : null;
+        } catch ( IOException ex ) {
+            e.size = f.length();
+            e.lastModified = f.lastModified();
+        }
+        return e;
+    }
+
+    /**
+     Find the cached entry for a file if the file has not changed after the
+     entry was stored
+     @param f The file
+     @param path Volume relative path of f
+     @return Matching entry or <code>null</code> if not found.
+     */
+    private Entry findEntry( File f, String path ) {
+        seenPaths.add( path );
+        Entry fp = readFingerprint( f );
+        Entry e = entriesByPath.get( path );
+        if ( e != null && e.matches( fp ) ) {
+            return e;
+        }
+        if ( fp.fileKey != null ) {
+            // The file may have been moved inside volume
+            e = entriesByKey.get( fp.fileKey );
+            if ( e != null && e.matches( fp ) ) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     Get the cached hash of a file
+     @param f The file
+     @param path Volume relative path of f
+     @return Hash of the file or <code>null</code> if the file is not in cache
+     or has been modified.
+     */
+    synchronized byte[] getHash( File f, String path ) {
+        Entry e = findEntry( f, path );
+        return e != null ? e.hash : null;
+    }
+
+    /**
+     Check whether a file is known not to be an image
+     @param f The file
+     @param path Volume relative path of f
+     @return <code>true</code> if the file has been found not to be an image
+     and has not been modified after that.
+     */
+    synchronized boolean isKnownNonImage( File f, String path ) {
+        Entry e = findEntry( f, path );
+        return e != null && e.notImage;
+    }
+
+    /**
+     Get the partial hash of a file with given full hash
+     @param hash Full hash of the file
+     @return Partial hash or <code>null</code> if it is not known.
+     */
+    synchronized byte[] getPartialHash( byte[] hash ) {
+        return hash != null ? partialHashes.get( ByteBuffer.wrap( hash ) ) : null;
+    }
+
+    /**
+     Store the hash of a file in cache
+     @param f The file
+     @param path Volume relative path of f
+     @param hash Hash of the file or <code>null</code> if the file is not an
+     image.
+     @param partialHash Partial hash of f or <code>null</code> if not known
+     */
+    synchronized void update( File f, String path, byte[] hash, byte[] partialHash ) {
+        seenPaths.add( path );
+        Entry fp = readFingerprint( f );
+        fp.hash = hash;
+        fp.notImage = ( hash == null );
+        if ( hash != null && partialHash != null ) {
+            partialHashes.put( ByteBuffer.wrap( hash ), partialHash );
+            dirty = true;
+        }
+        Entry old = entriesByPath.get( path );
+        if ( old != null && old.matches( fp ) && old.notImage == fp.notImage &&
+                Arrays.equals( old.hash, hash ) ) {
+            return;
+        }
+        if ( old != null && old.fileKey != null ) {
+            entriesByKey.remove( old.fileKey );
+        }
+        entriesByPath.put( path, fp );
+        if ( fp.fileKey != null ) {
+            entriesByKey.put( fp.fileKey, fp );
+        }
+        dirty = true;
+    }
+
+    /**
+     Remove entries of files that have not been accessed after the cache was
+     loaded or previous call of this method. Should be called after the whole
+     volume has been indexed.
+     */
+    synchronized void retainSeen() {
+        Set<ByteBuffer> hashesUsed = new HashSet<ByteBuffer>();
+        Iterator<Map.Entry<String, Entry>> iter = entriesByPath.entrySet().iterator();
+        while ( iter.hasNext() ) {
+            Map.Entry<String, Entry> me = iter.next();
+            Entry e = me.getValue();
+            if ( !seenPaths.contains( me.getKey() ) ) {
+                iter.remove();
+                if ( e.fileKey != null && entriesByKey.get( e.fileKey ) == e ) {
+                    entriesByKey.remove( e.fileKey );
+                }
+                dirty = true;
+            } else if ( e.hash != null ) {
+                hashesUsed.add( ByteBuffer.wrap( e.hash ) );
+            }
+        }
+        if ( partialHashes.keySet().retainAll( hashesUsed ) ) {
+            dirty = true;
+        }
+        seenPaths.clear();
+    }
+
+    /**
+     Calculate partial hash of a file. The partial hash is a
+     {@link Murmur3Digest} hash of file length and first and last 
+     {@link #PARTIAL_BLOCK_SIZE} bytes of the file.
+     @param f The file
+     @return Partial hash or <code>null</code> if the file cannot be read.
+     */
+    static byte[] calcPartialHash( File f ) {
+        RandomAccessFile raf = null;
+        try {
+            MessageDigest md = new Murmur3Digest();
+            raf = new RandomAccessFile( f, "r" );
+            long len = raf.length();
+            for ( int n = 0; n < 8; n++ ) {
+                md.update( (byte) ( len >>> ( 8 * n ) ) );
+            }
+            byte[] buf = new byte[PARTIAL_BLOCK_SIZE];
+            int headLen = (int) Math.min( len, PARTIAL_BLOCK_SIZE );
+            raf.readFully( buf, 0, headLen );
+            md.update( buf, 0, headLen );
+            if ( len > PARTIAL_BLOCK_SIZE ) {
+                long tailStart = Math.max( PARTIAL_BLOCK_SIZE, len - PARTIAL_BLOCK_SIZE );
+                int tailLen = (int) ( len - tailStart );
+                raf.seek( tailStart );
+                raf.readFully( buf, 0, tailLen );
+                md.update( buf, 0, tailLen );
+            }
+            return md.digest();
+        } catch ( IOException e ) {
+            log.warn( "Error reading " + f + ": " + e.getMessage() );
+        } finally {
+            if ( raf != null ) {
+                try {
+                    raf.close();
+                } catch ( IOException e ) {
+                    log.warn( "Error closing " + f + ": " + e.getMessage() );
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     Save the cache if it has been modified
+     */
+    synchronized void save() {
+        if ( cacheFile == null || !dirty ) {
+            return;
+        }
+        File tmpFile = new File( cacheFile.getParentFile(), cacheFile.getName() + ".tmp" );
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( tmpFile ) ) );
+            os.writeInt( FILE_FORMAT_VERSION );
+            os.writeInt( entriesByPath.size() );
+            for ( Map.Entry<String, Entry> me : entriesByPath.entrySet() ) {
+                Entry e = me.getValue();
+                os.writeUTF( me.getKey() );
+                os.writeLong( e.size );
+                os.writeLong( e.lastModified );
+                os.writeUTF( e.fileKey != null ? e.fileKey : "" );
+                writeBytes( os, e.hash );
+            }
+            os.writeInt( partialHashes.size() );
+            for ( Map.Entry<ByteBuffer, byte[]> me : partialHashes.entrySet() ) {
+                writeBytes( os, me.getKey().array() );
+                writeBytes( os, me.getValue() );
+            }
+            os.close();
+            os = null;
+            if ( !tmpFile.renameTo( cacheFile ) ) {
+                cacheFile.delete();
+                if ( !tmpFile.renameTo( cacheFile ) ) {
+                    throw new IOException( "Cannot rename " + tmpFile );
+                }
+            }
+            dirty = false;
+        } catch ( IOException e ) {
+            log.warn( "Cannot save fingerprint cache " + cacheFile + ": " +
+                    e.getMessage() );
+        } finally {
+            if ( os != null ) {
+                try {
+                    os.close();
+                } catch ( IOException e ) {
+                    // Nothing to do, failure already logged
+                }
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     Load the cache from file
+     @throws IOException if reading fails or the file format is not known
+     */
+    private void load() throws IOException {
+        DataInputStream is = new DataInputStream( new BufferedInputStream(
+                new FileInputStream( cacheFile ) ) );
+        try {
+            int version = is.readInt();
+            if ( version != FILE_FORMAT_VERSION ) {
+                throw new IOException( "Unknown format version " + version );
+            }
+            int count = is.readInt();
+            for ( int n = 0; n < count; n++ ) {
+                String path = is.readUTF();
+                Entry e = new Entry();
+                e.size = is.readLong();
+                e.lastModified = is.readLong();
+                String key = is.readUTF();
+                e.fileKey = key.length() > 0 ? key : null;
+                e.hash = readBytes( is );
+                e.notImage = ( e.hash == null );
+                entriesByPath.put( path, e );
+                if ( e.fileKey != null ) {
+                    entriesByKey.put( e.fileKey, e );
+                }
+            }
+            count = is.readInt();
+            for ( int n = 0; n < count; n++ ) {
+                byte[] hash = readBytes( is );
+                byte[] partial = readBytes( is );
+                partialHashes.put( ByteBuffer.wrap( hash ), partial );
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void writeBytes( DataOutputStream os, byte[] b )
+            throws IOException {
+        if ( b == null ) {
+            os.writeShort( 0 );
+        } else {
+            os.writeShort( b.length );
+            os.write( b );
+        }
+    }
+
+    private static byte[] readBytes( DataInputStream is ) throws IOException {
+        int len = is.readUnsignedShort();
+        if ( len == 0 ) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        is.readFully( b );
+        return b;
+    }
+}
@@ -21,6 +21,8 @@
 package org.photovault.imginfo.indexer;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
@@ -33,6 +35,8 @@ import org.photovault.image.PhotovaultImageFactory;
 import org.photovault.imginfo.CopyImageDescriptor;
 import org.photovault.imginfo.CreateCopyImageCommand;
 import org.photovault.imginfo.ExternalVolume;
+import org.photovault.imginfo.FileHashTable;
+import org.photovault.imginfo.FileHasher;
 import org.photovault.imginfo.FileLocation;
 import org.photovault.imginfo.ImageDescriptorBase;
 import org.photovault.imginfo.ImageFile;
@@ -42,6 +46,7 @@ import org.photovault.imginfo.ModifyImageFileCommand;
 import org.photovault.imginfo.OriginalImageDescriptor;
 import org.photovault.imginfo.PhotoInfo;
 import org.photovault.imginfo.PhotoInfoDAO;
+import org.photovault.imginfo.PreviewPyramid;
 import org.photovault.imginfo.Volume;
 import org.photovault.persistence.DAOFactory;
 import org.photovault.persistence.HibernateDAOFactory;
@@ -52,7 +57,10 @@ import org.photovault.taskscheduler.BackgroundTask;
     <ul>
     <li>First Photovault checks if the file is already indexed. If there is
     a file in this path according to database and its hash or both file size
-    and last modification time match this is assumed to be an existing file.</li>
+    and last modification time match this is assumed to be an existing file.
+    Hashes of files are stored in {@link FileFingerprintCache} so files whose
+    size, modification time and file key have not changed are not read 
+    again.</li>
     <li>
     If the file is not found Photovault tries to find an existing file with
     the same hash. If such is found, Photovault assumes that this is another
@@ -83,6 +91,7 @@ public class IndexFileTask extends BackgroundTask {
         this.f = f;
         this.volume = vol;
         this.dirIndexer = dir;
+        this.fingerprints = FileFingerprintCache.getInstance( vol );
     }
     
     /**
@@ -163,6 +172,13 @@ public class IndexFileTask extends BackgroundTask {
      MD5 hash of the file
      */
     private byte[] hash = null;
+    
+    /**
+     Content hash of the file, calculated with the algorithm chosen by 
+     database (see {@link FileHashTable}), or <code>null</code> if not 
+     calculated.
+     */
+    private byte[] contentHash = null;
     private ExtVolIndexerEvent currentEvent = new ExtVolIndexerEvent( this );
     
     /**
@@ -171,6 +187,203 @@ public class IndexFileTask extends BackgroundTask {
      */
     private DirectoryIndexer dirIndexer;
     
+    /**
+     Cache of file hashes in the volume
+     */
+    private FileFingerprintCache fingerprints;
+    
+    /**
+     Image loaded by {@link #prepare()} or <code>null</code> if the task has not
+     been prepared or the file was found to be unchanged.
+     */
+    private PhotovaultImage preparedImg = null;
+    
+    /**
+     Set by {@link #prepare()} if the file could not be read as an image.
+     */
+    private boolean notImage = false;
+    
+    /**
+     If <code>true</code>, preview images are not created by run() but must
+     be created later by calling {@link #createDeferredPreviews()}
+     */
+    private boolean deferPreviews = false;
+    
+    /**
+     Image that is used for creating deferred previews
+     */
+    private PhotovaultImage previewImg = null;
+    
+    /**
+     Perform the parts of indexing operation that do not modify database: check
+     whether the file has changed and if it has, load the image and calculate 
+     its hash. This method can be called in a worker thread (with its own 
+     persistence context) before the task is run, in which case run() uses the
+     results instead of reading the file again.
+     */
+    void prepare() {
+        DAOFactory daoFactory = DAOFactory.instance( HibernateDAOFactory.class );
+        ImageFileDAO ifDAO = daoFactory.getImageFileDAO();
+        String path = volume.mapFileToVolumeRelativeName( f );
+        ImageFile existing = ifDAO.findFileInLocation( volume, path );
+        if ( existing != null && 
+                matchesFile( existing, findLocation( existing ), ifDAO ) ) {
+            return;
+        }
+        if ( fingerprints.isKnownNonImage( f, path ) ) {
+            notImage = true;
+            return;
+        }
+        try {
+            PhotovaultImageFactory imgFactory = new PhotovaultImageFactory();
+            preparedImg = imgFactory.create( f, false, false );
+        } catch ( PhotovaultException e ) {
+            fingerprints.update( f, path, null, null );
+            notImage = true;
+            return;
+        }
+        if ( hash == null ) {
+            hash = fingerprints.getHash( f, path );
+        }
+        if ( hash == null ) {
+            calcHash();
+        }
+    }
+    
+    /**
+     Calculate hash of the file and store it in fingerprint cache together 
+     with the partial hash. If the database uses a content hash algorithm other
+     than MD5, the content hash is calculated at the same time.
+     */
+    private void calcHash() {
+        String algorithm = FileHashTable.getAlgorithm();
+        if ( FileHasher.MD5.equals( algorithm ) ) {
+            hash = ImageFile.calcHash( f );
+        } else {
+            try {
+                byte[][] hashes = FileHasher.hash( f, FileHasher.MD5, algorithm );
+                hash = hashes[0];
+                contentHash = hashes[1];
+            } catch ( IOException e ) {
+                log.error( "IOException while calculating hash: " + e.getMessage() );
+            }
+        }
+        if ( hash != null ) {
+            fingerprints.update( f, volume.mapFileToVolumeRelativeName( f ), 
+                    hash, FileFingerprintCache.calcPartialHash( f ) );
+        }
+    }
+    
+    /**
+     Ask that preview images are not created while running the task. Used by 
+     parallel indexing, which creates previews in worker threads, and by 
+     batched indexing, which creates them after the batch is committed.
+     @param defer <code>true</code> if preview creation should be deferred.
+     */
+    void setDeferPreviews( boolean defer ) {
+        deferPreviews = defer;
+    }
+    
+    /**
+     Check whether there are preview images to be created by 
+     {@link #createDeferredPreviews()}
+     @return <code>true</code> if previews must still be created.
+     */
+    boolean hasDeferredPreviews() {
+        return previewImg != null;
+    }
+    
+    /**
+     Create the preview images whose creation was deferred while running the 
+     task. The photos are reloaded in persistence context of the calling thread,
+     so this can be called in a different thread than run().
+     */
+    void createDeferredPreviews() {
+        if ( previewImg == null ) {
+            return;
+        }
+        DAOFactory daoFactory = DAOFactory.instance( HibernateDAOFactory.class );
+        PhotoInfoDAO photoDAO = daoFactory.getPhotoInfoDAO();
+        try {
+            for ( PhotoInfo p : photosFound ) {
+                PhotoInfo photo = photoDAO.findByUUID( p.getUuid() );
+                createPreviewInstances( previewImg, photo, daoFactory );
+            }
+        } catch ( CommandException ex ) {
+            log.warn( "Error creating previews for " + f.getAbsolutePath() + 
+                    ": " + ex.getMessage() );
+        } finally {
+            previewImg.dispose();
+            previewImg = null;
+        }
+    }
+    
+    /**
+     Find the location of an existing image file that matches the indexed file
+     @param existing The image file
+     @return Location or <code>null</code> if no matching location found.
+     */
+    private FileLocation findLocation( ImageFile existing ) {
+        for ( FileLocation loc : existing.getLocations() ) {
+            if ( loc.getFile().equals( f ) ) {
+                return loc;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     Check whether the indexed file is consistent with an existing ImageFile. 
+     The hash is calculated only if file size matches but modification time 
+     does not, and the file is not found in fingerprint cache. If the partial
+     hash of existing file is known it is compared first, so that full hash is 
+     not needed for files that have been modified. If the content hash of 
+     existing file is stored in database, it is used instead of MD5 hash.
+     @param existing The ImageFile found in file's location
+     @param loc Location of existing that corresponds to the indexed file
+     @param ifDAO DAO used to read the content hash
+     @return <code>true</code> if the file matches, <code>false</code> otherwise.
+     */
+    private boolean matchesFile( ImageFile existing, FileLocation loc, 
+            ImageFileDAO ifDAO ) {
+        if ( f.length() != existing.getFileSize() ) {
+            return false;
+        }
+        if ( loc != null && f.lastModified() == loc.getLastModified() ) {
+            return true;
+        }
+        String path = volume.mapFileToVolumeRelativeName( f );
+        if ( hash == null ) {
+            hash = fingerprints.getHash( f, path );
+        }
+        if ( hash == null ) {
+            byte[] partialHash = fingerprints.getPartialHash( existing.getHash() );
+            if ( partialHash != null && 
+                    !Arrays.equals( partialHash, FileFingerprintCache.calcPartialHash( f ) ) ) {
+                return false;
+            }
+            String algorithm = FileHashTable.getAlgorithm();
+            byte[] existingContentHash = 
+                    ifDAO.getContentHash( existing, algorithm );
+            if ( existingContentHash != null ) {
+                try {
+                    contentHash = new FileHasher( algorithm ).hash( f );
+                } catch ( IOException e ) {
+                    log.error( "IOException while calculating hash: " + e.getMessage() );
+                    return false;
+                }
+                if ( !Arrays.equals( contentHash, existingContentHash ) ) {
+                    return false;
+                }
+                hash = existing.getHash();
+                fingerprints.update( f, path, hash, 
+                        FileFingerprintCache.calcPartialHash( f ) );
+                return true;
+            }
+            calcHash();
+        }
+        return Arrays.equals( hash, existing.getHash() );
+    }
     
     /**
      Run the actual indexing operation
@@ -197,31 +410,19 @@ public class IndexFileTask extends BackgroundTask {
                 volume.mapFileToVolumeRelativeName( f ) );
         if ( ifile != null ) {
             log.debug( "found existing file" );
-            fileLoc = null;
-            for ( FileLocation loc : ifile.getLocations() ) {
-                if ( loc.getFile().equals( f ) ) {
-                    fileLoc = loc;
-                    break;
-                }
-            }
-            
-            boolean matchesFile = true;
-            if ( f.length() == ifile.getFileSize() ) {
-                if ( f.lastModified() != fileLoc.getLastModified() ) {
-                    hash = ImageFile.calcHash( f );
-                    if ( !hash.equals( ifile.getHash()  ) ) {
-                        matchesFile = false;
-                    }
-                }
-            } else {
-                matchesFile = false;
-            }
+            fileLoc = findLocation( ifile );
             
             // There is an existing instance, check whether the data matches
-            if ( matchesFile ) {
+            if ( matchesFile( ifile, fileLoc, ifDAO ) ) {
                 log.debug( "File is consistent with DB" );
                 result = IndexingResult.UNCHANGED;
+                fingerprints.update( f, volume.mapFileToVolumeRelativeName( f ), 
+                        ifile.getHash(), null );
                 updatePhotosFound();
+                if ( preparedImg != null ) {
+                    preparedImg.dispose();
+                    preparedImg = null;
+                }
                 return;
             } else {
                 ModifyImageFileCommand deleteCmd = new ModifyImageFileCommand( ifile  );
@@ -239,19 +440,31 @@ public class IndexFileTask extends BackgroundTask {
          If we reach here, the file is new (or changed) after last indexing.
          Check first if it is a copy of an existing instance
          */
-        PhotovaultImage img = null;
-        try {
-            PhotovaultImageFactory imgFactory = new PhotovaultImageFactory();
-            img = imgFactory.create( f, false, false );
-        } catch ( PhotovaultException e ) {
-            result = IndexingResult.NOT_IMAGE;
-            return;
+        PhotovaultImage img = preparedImg;
+        preparedImg = null;
+        if ( img == null ) {
+            String path = volume.mapFileToVolumeRelativeName( f );
+            if ( notImage || fingerprints.isKnownNonImage( f, path ) ) {
+                result = IndexingResult.NOT_IMAGE;
+                return;
+            }
+            try {
+                PhotovaultImageFactory imgFactory = new PhotovaultImageFactory();
+                img = imgFactory.create( f, false, false );
+            } catch ( PhotovaultException e ) {
+                fingerprints.update( f, path, null, null );
+                result = IndexingResult.NOT_IMAGE;
+                return;
+            }
         }
         // This is an image.
         
+        if ( hash == null ) {
+            hash = fingerprints.getHash( f, volume.mapFileToVolumeRelativeName( f ) );
+        }
         if ( hash == null ) {
             // TODO: This should be moved to PhotovaultImage
-            hash = ImageFile.calcHash( f );
+            calcHash();
         }
         
         ifile = ifDAO.findImageFileWithHash( hash );
@@ -280,6 +493,9 @@ public class IndexFileTask extends BackgroundTask {
         }
         fileLoc = volume.getFileLocation( f );
         cmd.addLocation( fileLoc );
+        if ( contentHash != null ) {
+            cmd.setContentHash( FileHashTable.getAlgorithm(), contentHash );
+        }
         try {
             cmdHandler.executeCommand( cmd );
 
@@ -287,8 +503,12 @@ public class IndexFileTask extends BackgroundTask {
             ifile = ifDAO.findById( cmd.getImageFile().getId(), false );
             updatePhotosFound();
             // Create any missing preview images for the found photos
-            for ( PhotoInfo p : photosFound ) {
-                createPreviewInstances( img, p, daoFactory );
+            if ( deferPreviews ) {
+                previewImg = img;
+            } else {
+                for ( PhotoInfo p : photosFound ) {
+                    createPreviewInstances( img, p, daoFactory );
+                }
             }
         } catch ( CommandException ex ) {
             log.warn( "Exception in modifyImageFileCommand: " + ex.getMessage() );
@@ -296,7 +516,9 @@ public class IndexFileTask extends BackgroundTask {
             return;
         }
 
-        img.dispose();
+        if ( img != previewImg ) {
+            img.dispose();
+        }
         currentEvent.setPhoto( null );        
         log.debug( "exit: indexFile " + f.getAbsolutePath() );
         ifile = cmd.getImageFile();
@@ -306,7 +528,8 @@ public class IndexFileTask extends BackgroundTask {
      Create the needed preview instances for a photo.
      The method cretes both a thumbnail (small, low quality, max 200x200 images)
      as well as preview that can be used for displaying if the volume with original is
-     offline (high quality, max 1280x1280 JPEG image without cropping)
+     offline (high quality, max 1280x1280 JPEG image without cropping) and
+     the preview pyramid levels needed for zooming large photos.
 
      @param img the loaded image that is used as a basis for preview
      @param p The photo
@@ -350,6 +573,14 @@ public class IndexFileTask extends BackgroundTask {
             cmd.setLowQualityAllowed( true );
             cmdHandler.executeCommand( cmd );
         }
+        // Pyramid levels are not needed for showing the photo, so failing to
+        // create them must not prevent creating preview and thumbnail
+        try {
+            PreviewPyramid.createMissingLevels( img, p, vol, cmdHandler );
+        } catch ( CommandException e ) {
+            log.warn( "Error creating preview pyramid for " + p.getUuid() + 
+                    ": " + e.getMessage() );
+        }
     }    
 
     private void updatePhotosFound() {
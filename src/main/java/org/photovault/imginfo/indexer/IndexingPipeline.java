@@ -0,0 +1,374 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.context.ManagedSessionContext;
+import org.photovault.command.CommandException;
+import org.photovault.command.CommandHandler;
+import org.photovault.command.PhotovaultCommandHandler;
+import org.photovault.persistence.HibernateUtil;
+
+/**
+ IndexingPipeline executes {@link IndexFileTask}s in parallel. Each task goes
+ through three stages:
+ <ul>
+ <li>Reading the file and calculating its hash ({@link IndexFileTask#prepare()})
+ is done in a pool of worker threads</li>
+ <li>The database is modified by a single writer thread that runs the tasks
+ in the order they were prepared. The writer reuses its persistence context
+ for a batch of tasks before opening a new one. If the command handler is a
+ {@link PhotovaultCommandHandler}, commands of the whole batch are executed 
+ in a single transaction (see {@link PhotovaultCommandHandler#beginBatch()}). 
+ The batch is committed when it is full or when there are no more prepared 
+ tasks waiting for the writer.</li>
+ <li>Preview images are created again in the worker pool.</li>
+ </ul>
+ The number of tasks in the pipeline is limited so that memory used by loaded
+ images stays bounded; {@link #submit(IndexFileTask)} blocks until there is
+ room for a new task.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+class IndexingPipeline {
+
+    static private Log log = LogFactory.getLog( IndexingPipeline.class.getName() );
+
+    /**
+     Callback interface used to inform the owner of the pipeline about
+     indexed files.
+     */
+    interface Callback {
+        /**
+         Called in the writer thread after a file has been written to database.
+         @param task The task that was executed.
+         */
+        void fileIndexed( IndexFileTask task );
+    }
+
+    /**
+     Pool of worker threads used for preparing the tasks and creating previews
+     */
+    private ExecutorService workers;
+
+    /**
+     Single thread executor that modifies the database
+     */
+    private ThreadPoolExecutor writer;
+
+    /**
+     Permits for tasks that can be in the pipeline at the same time
+     */
+    private Semaphore inFlight;
+
+    /**
+     Number of tasks that have been submitted but not yet completed
+     */
+    private int pendingCount = 0;
+
+    /**
+     Command handler given to the tasks
+     */
+    private CommandHandler cmdHandler;
+
+    /**
+     Callback that is notified about indexed files
+     */
+    private Callback callback;
+
+    /**
+     Number of tasks the writer executes before opening a new persistence
+     context
+     */
+    private int batchSize;
+
+    /**
+     Persistence context used by writer. Accessed only in writer thread.
+     */
+    private Session writerSession = null;
+
+    /**
+     Number of tasks written using current writerSession
+     */
+    private int writtenInBatch = 0;
+
+    /**
+     Command handler that supports batches, or <code>null</code> if every
+     command is committed separately
+     */
+    private PhotovaultCommandHandler batchHandler = null;
+
+    /**
+     Tasks written in current batch but not yet committed. Accessed only in 
+     writer thread.
+     */
+    private List<IndexFileTask> uncommitted = new ArrayList<IndexFileTask>();
+
+    /**
+     Create a new pipeline
+     @param workerCount Number of worker threads
+     @param batchSize Number of files written in single persistence context
+     @param cmdHandler Command handler used by the tasks. Note that this must
+     be usable from several threads at the same time.
+     @param callback Callback that is notified about indexed files.
+     */
+    IndexingPipeline( int workerCount, int batchSize,
+            CommandHandler cmdHandler, Callback callback ) {
+        if ( workerCount < 1 ) {
+            throw new IllegalArgumentException( "workerCount must be at least 1" );
+        }
+        this.batchSize = Math.max( batchSize, 1 );
+        this.cmdHandler = cmdHandler;
+        this.callback = callback;
+        if ( cmdHandler instanceof PhotovaultCommandHandler ) {
+            batchHandler = (PhotovaultCommandHandler) cmdHandler;
+        }
+        workers = Executors.newFixedThreadPool( workerCount );
+        writer = new ThreadPoolExecutor( 1, 1, 0L, TimeUnit.MILLISECONDS, 
+                new LinkedBlockingQueue<Runnable>() );
+        inFlight = new Semaphore( workerCount * 2 );
+    }
+
+    /**
+     Add a new task to the pipeline. Blocks until there is room in the
+     pipeline.
+     @param task The task to execute
+     @throws InterruptedException if the calling thread is interrupted while
+     waiting.
+     */
+    void submit( final IndexFileTask task ) throws InterruptedException {
+        inFlight.acquire();
+        synchronized ( this ) {
+            pendingCount++;
+        }
+        task.setDeferPreviews( true );
+        task.setCommandHandler( cmdHandler );
+        workers.execute( new Runnable() {
+            public void run() {
+                try {
+                    runInSession( new Runnable() {
+                        public void run() {
+                            task.prepare();
+                        }
+                    } );
+                } catch ( RuntimeException e ) {
+                    log.warn( "Error preparing " + task.getFile(), e );
+                }
+                writer.execute( new Runnable() {
+                    public void run() {
+                        write( task );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     Run a task in writer thread and hand it over to workers for preview
+     creation.
+     @param task The task to run.
+     */
+    private void write( final IndexFileTask task ) {
+        if ( writerSession == null ) {
+            writerSession = batchHandler != null ? 
+                batchHandler.beginBatch() :
+                HibernateUtil.getSessionFactory().openSession();
+        }
+        Session oldSession = ManagedSessionContext.bind(
+                (org.hibernate.classic.Session) writerSession );
+        try {
+            task.setSession( writerSession );
+            task.run();
+        } catch ( RuntimeException e ) {
+            log.warn( "Error indexing " + task.getFile(), e );
+        } finally {
+            writerSession.clear();
+            restoreSession( oldSession );
+        }
+        try {
+            callback.fileIndexed( task );
+        } catch ( RuntimeException e ) {
+            log.warn( "Error in indexing callback", e );
+        }
+        if ( batchHandler == null ) {
+            if ( ++writtenInBatch >= batchSize ) {
+                writerSession.close();
+                writerSession = null;
+                writtenInBatch = 0;
+            }
+            startPreviews( task );
+            return;
+        }
+        /*
+         Previews are created in other persistence contexts so the batch must 
+         be committed before that.
+         */
+        uncommitted.add( task );
+        if ( ++writtenInBatch >= batchSize || writer.getQueue().isEmpty() ) {
+            commitBatch( writtenInBatch >= batchSize );
+        }
+    }
+
+    /**
+     Commit the current batch and start creating previews for its tasks. 
+     Called in writer thread.
+     @param closeSession If <code>true</code>, the batch is ended and its 
+     persistence context closed.
+     */
+    private void commitBatch( boolean closeSession ) {
+        if ( writerSession == null ) {
+            return;
+        }
+        try {
+            if ( closeSession ) {
+                batchHandler.endBatch();
+                writerSession = null;
+                writtenInBatch = 0;
+            } else {
+                batchHandler.commitBatch();
+            }
+        } catch ( CommandException e ) {
+            // The batch has been ended
+            log.error( "Error committing indexing batch", e );
+            writerSession = null;
+            writtenInBatch = 0;
+        }
+        for ( IndexFileTask t : uncommitted ) {
+            startPreviews( t );
+        }
+        uncommitted.clear();
+    }
+
+    /**
+     Hand a written task over to workers for creating the deferred previews
+     @param task The task
+     */
+    private void startPreviews( final IndexFileTask task ) {
+        if ( !task.hasDeferredPreviews() ) {
+            taskCompleted();
+            return;
+        }
+        try {
+            workers.execute( new Runnable() {
+                public void run() {
+                    try {
+                        runInSession( new Runnable() {
+                            public void run() {
+                                task.createDeferredPreviews();
+                            }
+                        } );
+                    } catch ( RuntimeException e ) {
+                        log.warn( "Error creating previews for " + task.getFile(), e );
+                    } finally {
+                        taskCompleted();
+                    }
+                }
+            } );
+        } catch ( RejectedExecutionException e ) {
+            log.warn( "Pipeline shut down, previews not created for " + task.getFile() );
+            taskCompleted();
+        }
+    }
+
+    /**
+     Run a job in a new persistence context that is bound to current thread
+     @param job The job to run
+     */
+    private void runInSession( Runnable job ) {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Session oldSession =
+                ManagedSessionContext.bind( (org.hibernate.classic.Session) session );
+        try {
+            job.run();
+        } finally {
+            session.close();
+            restoreSession( oldSession );
+        }
+    }
+
+    /**
+     Restore the persistence context that was bound to current thread before
+     binding a new one.
+     @param oldSession The previous context or <code>null</code> if there was
+     none.
+     */
+    private void restoreSession( Session oldSession ) {
+        if ( oldSession != null ) {
+            ManagedSessionContext.bind( (org.hibernate.classic.Session) oldSession );
+        } else {
+            ManagedSessionContext.unbind( HibernateUtil.getSessionFactory() );
+        }
+    }
+
+    /**
+     Called when a task has passed through all stages of the pipeline
+     */
+    private void taskCompleted() {
+        inFlight.release();
+        synchronized ( this ) {
+            pendingCount--;
+            notifyAll();
+        }
+    }
+
+    /**
+     Wait until all submitted tasks have been completed
+     @throws InterruptedException if the calling thread is interrupted while
+     waiting.
+     */
+    synchronized void awaitCompletion() throws InterruptedException {
+        while ( pendingCount > 0 ) {
+            wait();
+        }
+    }
+
+    /**
+     Stop the worker threads after they have executed the tasks already 
+     submitted to them. Previews for tasks that are written after this call are
+     not created.
+     */
+    void shutdown() {
+        writer.execute( new Runnable() {
+            public void run() {
+                if ( batchHandler != null ) {
+                    commitBatch( true );
+                } else if ( writerSession != null ) {
+                    writerSession.close();
+                    writerSession = null;
+                }
+            }
+        } );
+        writer.shutdown();
+        workers.shutdown();
+    }
+}
@@ -380,6 +380,51 @@ public class Test_ExtVolIndexer extends PhotovaultTestCase {
         assertFalse( "p2 must not be in topFolder", p2folders.contains( topFolder ) );
     }
     
+    /**
+     Test that indexing with several worker threads gives the same results as
+     sequential indexing.
+     */
+    @Test
+    public void testParallelIndexing() throws PhotovaultException {
+        ExternalVolume v = new ExternalVolume( );
+        v.setName( "extVolParallel" );
+        PhotovaultSettings settings = PhotovaultSettings.getSettings();
+        PVDatabase db = settings.getDatabase( "pv_junit" );
+        try {
+            db.addVolume( v );
+        } catch (PhotovaultException ex) {
+            fail( ex.getMessage() );
+        }
+        VolumeDAO volDAO = daoFactory.getVolumeDAO();
+        volDAO.makePersistent( v );
+        session.flush();
+        VolumeManager.instance().initVolume( v, extVolDir );
+        ExtVolIndexer indexer = new ExtVolIndexer( v );
+        indexer.setCommandHandler( new PhotovaultCommandHandler( null ) );
+        indexer.setWorkerCount( 3 );
+        TestListener l = new TestListener();
+        indexer.addIndexerListener( l );
+        indexer.run();
+        assertTrue( l.complete );
+        
+        session.clear();
+        ImageFileDAO ifDAO = daoFactory.getImageFileDAO();
+        ImageFile if2 = ifDAO.findImageFileWithHash( hash2 );
+        assertNotNull( "if2 = null", if2 );
+        assertEquals( "Both instances of photo 2 must be found", 
+                2, if2.getLocations().size() );
+        OriginalImageDescriptor img2 = (OriginalImageDescriptor) if2.getImage( "image#0" );
+        assertEquals( "Only 1 photo per picture should be found", 
+                1, img2.getPhotos().size() );
+        assertFalse( "Previews must be created", img2.getCopies().isEmpty() );
+        
+        assertEquals( "Wrong photo count in listener", 2, l.photoCount );
+        assertEquals( "Wrong photo count in indexer statistics", 2, indexer.getNewPhotoCount() );
+        assertEquals( "Wrong instance count in listener", 3, l.instanceCount );
+        assertEquals( "Wrong instance count in indexer statistics", 3, indexer.getNewInstanceCount() );
+        assertEquals( "Indexing complete 100%", 100, indexer.getPercentComplete() );
+    }
+    
     void assertFolderHasPhotos( PhotoFolder folder, PhotoInfo photos[] ) {
         boolean found[] = new boolean[photos.length];
         for ( int n = 0; n < photos.length; n++ ) {
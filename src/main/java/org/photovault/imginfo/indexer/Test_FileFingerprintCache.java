@@ -0,0 +1,100 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo.indexer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link FileFingerprintCache}
+ @author Harri Kaimio
+ */
+public class Test_FileFingerprintCache {
+
+    private File createFile( int size, byte fill ) throws IOException {
+        File f = File.createTempFile( "pv_fp_test", ".dat" );
+        f.deleteOnExit();
+        byte[] data = new byte[size];
+        Arrays.fill( data, fill );
+        FileOutputStream os = new FileOutputStream( f );
+        os.write( data );
+        os.close();
+        return f;
+    }
+
+    /**
+     Verify that cached hashes are found for unchanged and moved files, are
+     not used for modified files and survive saving the cache.
+     */
+    @Test
+    public void testLookupAndPersistence() throws IOException {
+        File cacheFile = File.createTempFile( "pv_fp_cache", ".dat" );
+        cacheFile.delete();
+        cacheFile.deleteOnExit();
+        File f = createFile( 1000, (byte) 1 );
+        File nonImage = createFile( 10, (byte) 2 );
+        byte[] hash = new byte[] { 1, 2, 3, 4 };
+
+        FileFingerprintCache c = new FileFingerprintCache( cacheFile );
+        assertNull( c.getHash( f, "/a.jpg" ) );
+        c.update( f, "/a.jpg", hash, FileFingerprintCache.calcPartialHash( f ) );
+        c.update( nonImage, "/b.txt", null, null );
+        assertTrue( Arrays.equals( hash, c.getHash( f, "/a.jpg" ) ) );
+        assertTrue( c.isKnownNonImage( nonImage, "/b.txt" ) );
+        assertFalse( c.isKnownNonImage( f, "/a.jpg" ) );
+        c.save();
+
+        FileFingerprintCache c2 = new FileFingerprintCache( cacheFile );
+        assertTrue( Arrays.equals( hash, c2.getHash( f, "/a.jpg" ) ) );
+        assertTrue( c2.isKnownNonImage( nonImage, "/b.txt" ) );
+        assertTrue( Arrays.equals( FileFingerprintCache.calcPartialHash( f ),
+                c2.getPartialHash( hash ) ) );
+        // File with same inode in other path is recognized as moved file
+        if ( FileFingerprintCache.readFingerprint( f ).fileKey != null ) {
+            assertTrue( Arrays.equals( hash, c2.getHash( f, "/moved/a.jpg" ) ) );
+        }
+
+        f.setLastModified( f.lastModified() - 10000 );
+        assertNull( c2.getHash( f, "/a.jpg" ) );
+    }
+
+    /**
+     Verify that partial hash detects changes in file size and content.
+     */
+    @Test
+    public void testPartialHash() throws IOException {
+        int size = 3 * FileFingerprintCache.PARTIAL_BLOCK_SIZE;
+        File f1 = createFile( size, (byte) 0 );
+        byte[] h1 = FileFingerprintCache.calcPartialHash( f1 );
+        File f2 = createFile( size, (byte) 0 );
+        assertTrue( Arrays.equals( h1, FileFingerprintCache.calcPartialHash( f2 ) ) );
+        File f3 = createFile( size + 1, (byte) 0 );
+        assertFalse( Arrays.equals( h1, FileFingerprintCache.calcPartialHash( f3 ) ) );
+        File f4 = createFile( size, (byte) 1 );
+        assertFalse( Arrays.equals( h1, FileFingerprintCache.calcPartialHash( f4 ) ) );
+        File small = createFile( 100, (byte) 0 );
+        assertNotNull( FileFingerprintCache.calcPartialHash( small ) );
+    }
+}
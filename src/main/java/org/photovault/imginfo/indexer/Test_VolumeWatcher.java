@@ -0,0 +1,183 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo.indexer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.photovault.common.PhotovaultException;
+import org.photovault.imginfo.ExternalVolume;
+import org.photovault.imginfo.FileUtils;
+import org.photovault.imginfo.VolumeManager;
+import org.photovault.taskscheduler.BackgroundTask;
+import org.photovault.taskscheduler.TaskProducer;
+import org.photovault.taskscheduler.TaskScheduler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link VolumeWatcher}. The tasks are not executed, the tests
+ only check that correct tasks are produced for file system changes.
+ @author Harri Kaimio
+ */
+public class Test_VolumeWatcher {
+
+    File volDir;
+    ExternalVolume vol;
+    VolumeWatcher watcher;
+    
+    /**
+     Scheduler that just counts the registrations
+     */
+    int registrations = 0;
+    TaskScheduler scheduler = new TaskScheduler() {
+        public void registerTaskProducer( TaskProducer c, int priority ) {
+            synchronized ( Test_VolumeWatcher.this ) {
+                registrations++;
+                Test_VolumeWatcher.this.notifyAll();
+            }
+        }
+    };
+
+    @BeforeMethod
+    public void setUp() 
+            throws IOException, PhotovaultException, InterruptedException {
+        volDir = File.createTempFile( "pv_watchtest", "" );
+        volDir.delete();
+        vol = new ExternalVolume();
+        vol.setName( "watchtest" );
+        VolumeManager.instance().initVolume( vol, volDir );
+        new File( volDir, "existing" ).mkdir();
+        watcher = new VolumeWatcher( vol, scheduler, 0 );
+        watcher.setQuietPeriod( 200 );
+        watcher.setReconcileInterval( 0 );
+        watcher.start();
+        assertTrue( "Volume not watched", watcher.waitForStart( 20000 ) );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        watcher.stop();
+        FileUtils.deleteTree( volDir );
+    }
+
+    private void writeFile( File f ) throws IOException {
+        FileOutputStream os = new FileOutputStream( f );
+        os.write( new byte[1000] );
+        os.close();
+    }
+
+    /**
+     Wait until the watcher registers itself to scheduler
+     */
+    private synchronized void waitForRegistration() throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 20000;
+        while ( registrations == 0 && System.currentTimeMillis() < timeout ) {
+            wait( 100 );
+        }
+        assertTrue( "Watcher did not register", registrations > 0 );
+        registrations = 0;
+    }
+
+    /**
+     Collect files of index tasks produced by the watcher until it has 
+     nothing to do
+     */
+    private Set<File> indexedFiles( Set<String> deleted ) {
+        Set<File> ret = new HashSet<File>();
+        BackgroundTask t;
+        while ( (t = watcher.requestTask()) != null ) {
+            if ( t instanceof IndexFileTask ) {
+                ret.add( ((IndexFileTask) t).getFile() );
+            } else if ( t instanceof VolumeWatcher.RemoveLocationsTask ) {
+                VolumeWatcher.RemoveLocationsTask rt = 
+                        (VolumeWatcher.RemoveLocationsTask) t;
+                deleted.addAll( rt.getFiles() );
+                deleted.addAll( rt.getDirs() );
+            } else {
+                fail( "Unexpected task " + t );
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testChanges() throws IOException, InterruptedException {
+        // Several writes to the same file result in a single task
+        File f1 = new File( volDir, "test1.jpg" );
+        writeFile( f1 );
+        writeFile( f1 );
+        File f2 = new File( new File( volDir, "existing" ), "test2.jpg" );
+        writeFile( f2 );
+        waitForRegistration();
+        Set<String> deleted = new HashSet<String>();
+        Set<File> files = indexedFiles( deleted );
+        // Both files may not be ready at the same time
+        if ( files.size() < 2 ) {
+            waitForRegistration();
+            files.addAll( indexedFiles( deleted ) );
+        }
+        assertEquals( 2, files.size() );
+        assertTrue( files.contains( f1 ) );
+        assertTrue( files.contains( f2 ) );
+        assertTrue( deleted.isEmpty() );
+
+        // Files in a new directory tree
+        File newDir = new File( volDir, "newdir" );
+        File subDir = new File( newDir, "sub" );
+        subDir.mkdirs();
+        File f3 = new File( subDir, "test3.jpg" );
+        writeFile( f3 );
+        waitForRegistration();
+        files = indexedFiles( deleted );
+        assertEquals( 1, files.size() );
+        assertTrue( files.contains( f3 ) );
+
+        // Deletions
+        f1.delete();
+        f3.delete();
+        subDir.delete();
+        waitForRegistration();
+        files = indexedFiles( deleted );
+        // Give time for the rest of events
+        Thread.sleep( 500 );
+        files.addAll( indexedFiles( deleted ) );
+        assertTrue( files.isEmpty() );
+        assertTrue( deleted.contains( "test1.jpg" ) );
+        assertTrue( deleted.contains( "newdir/sub" ) );
+    }
+
+    /**
+     Test that a requested reconciliation is given to scheduler after the 
+     watcher thread has walked the directory tree
+     */
+    @Test
+    public void testReconcile() throws InterruptedException {
+        watcher.requestReconcile();
+        waitForRegistration();
+        BackgroundTask t = watcher.requestTask();
+        assertTrue( t instanceof DirTreeIndexerTask );
+    }
+}
@@ -0,0 +1,720 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.imginfo.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.photovault.command.CommandException;
+import org.photovault.imginfo.ExternalVolume;
+import org.photovault.imginfo.FileLocation;
+import org.photovault.imginfo.ImageFile;
+import org.photovault.imginfo.ImageFileDAO;
+import org.photovault.imginfo.ModifyImageFileCommand;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.taskscheduler.BackgroundTask;
+import org.photovault.taskscheduler.TaskProducer;
+import org.photovault.taskscheduler.TaskScheduler;
+
+/**
+ VolumeWatcher keeps Photovault index of an external volume up to date by
+ watching changes in the volume directories instead of rescanning the whole
+ volume.
+ <p>
+ All directories of the volume are registered with a {@link WatchService}.
+ Registration is done in the watcher's own thread, as it needs to walk 
+ through the whole directory tree.
+ Created and modified files are indexed with {@link IndexFileTask} once no
+ new events have been received for them during a quiet period, so that a
+ burst of events caused by e.g. copying a memory card results in a single
+ indexing operation per file. Locations of deleted files and directories are
+ removed from their image files.
+ <p>
+ If the watch service loses events (overflow) and periodically as a safety
+ net the whole volume is reconciled in the same way as
+ {@link DirTreeIndexerTask} and {@link DirectoryIndexer} do it for normal
+ indexing.
+ <p>
+ The watcher is a {@link TaskProducer}: it registers itself to the task
+ scheduler from the watcher thread when it has work to do, and the actual
+ indexing is done in the scheduler's persistence environment. All directory
+ walks are done in the watcher thread, so {@link #requestTask()} never 
+ blocks the scheduler for long.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class VolumeWatcher implements TaskProducer {
+
+    static private Log log = LogFactory.getLog( VolumeWatcher.class.getName() );
+
+    /**
+     Default quiet period in milliseconds, can be set with system property
+     photovault.watcher.quietperiod
+     */
+    static final long DEFAULT_QUIET_PERIOD =
+            Long.getLong( "photovault.watcher.quietperiod", 2000L );
+
+    /**
+     Default interval between full reconciliations in milliseconds, can be set
+     with system property photovault.watcher.reconcileinterval. 0 disables
+     periodic reconciliation.
+     */
+    static final long DEFAULT_RECONCILE_INTERVAL =
+            Long.getLong( "photovault.watcher.reconcileinterval", 3600000L );
+
+    /**
+     Name of the directory in which volume information is stored
+     */
+    static private final String VOL_INFO_DIR = ".photovault_volume";
+
+    /**
+     The watched volume
+     */
+    private ExternalVolume volume;
+
+    /**
+     Top directory of the watched tree
+     */
+    private File topDir;
+
+    /**
+     Scheduler that executes the tasks
+     */
+    private TaskScheduler scheduler;
+
+    /**
+     Priority used when registering to scheduler
+     */
+    private int priority;
+
+    private WatchService watchService = null;
+
+    /**
+     Watched directories by their watch key
+     */
+    private Map<WatchKey, File> keyDirs = new HashMap<WatchKey, File>();
+
+    /**
+     Watch keys of watched directories
+     */
+    private Map<File, WatchKey> dirKeys = new HashMap<File, WatchKey>();
+
+    /**
+     Files with pending changes and time of the last event for each of them
+     */
+    private Map<File, Long> pendingFiles = new LinkedHashMap<File, Long>();
+
+    /**
+     Files whose quiet period has passed and that are waiting for a task
+     */
+    private LinkedList<File> readyFiles = new LinkedList<File>();
+
+    /**
+     Volume relative paths of deleted files
+     */
+    private List<String> deletedFiles = new ArrayList<String>();
+
+    /**
+     Volume relative paths of deleted directories
+     */
+    private List<String> deletedDirs = new ArrayList<String>();
+
+    /**
+     Set if the volume must be reconciled
+     */
+    private boolean reconcileRequested = false;
+
+    /**
+     Set by watcher thread when the directory tree has been registered again
+     for a requested reconciliation and the reconciliation tasks can be 
+     started.
+     */
+    private boolean reconcileReady = false;
+
+    /**
+     Tree indexer of an ongoing reconciliation or <code>null</code>
+     */
+    private DirTreeIndexerTask treeIndexer = null;
+
+    /**
+     Directory indexers of an ongoing reconciliation or <code>null</code>
+     */
+    private LinkedList<DirectoryIndexer> reconcileIndexers = null;
+
+    /**
+     Directory indexer currently producing reconciliation tasks
+     */
+    private DirectoryIndexer currentIndexer = null;
+
+    /**
+     Is this producer currently registered to scheduler
+     */
+    private boolean isRegistered = false;
+
+    private long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+    private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+    /**
+     Thread that reads the events from watch service
+     */
+    private Thread watchThread = null;
+
+    private volatile boolean running = false;
+
+    /**
+     Released when the directory tree has been registered or registration
+     has failed
+     */
+    private CountDownLatch registered = new CountDownLatch( 1 );
+
+    /**
+     Create a new watcher
+     @param vol The volume to watch
+     @param scheduler Scheduler that will execute indexing tasks
+     @param priority Priority of the indexing tasks
+     */
+    public VolumeWatcher( ExternalVolume vol, TaskScheduler scheduler,
+            int priority ) {
+        this.volume = vol;
+        this.scheduler = scheduler;
+        this.priority = priority;
+    }
+
+    /**
+     Start watching the volume. The volume must be mounted. The method returns
+     immediately, directories of the volume are registered in background. Use
+     {@link #waitForStart(long)} to wait until changes are being watched.
+     @throws IOException if the volume is not mounted or watch service cannot
+     be created.
+     */
+    public synchronized void start() throws IOException {
+        if ( running ) {
+            return;
+        }
+        topDir = volume.getBaseDir();
+        if ( topDir == null ) {
+            throw new IOException( "Volume " + volume.getName() + " is not mounted" );
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        running = true;
+        registered = new CountDownLatch( 1 );
+        watchThread = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    registerVolume();
+                } finally {
+                    registered.countDown();
+                }
+                watchLoop();
+            }
+        }, "Volume watcher " + volume.getName() );
+        watchThread.setDaemon( true );
+        watchThread.start();
+    }
+
+    /**
+     Register all directories of the volume to watch service. Stops the 
+     watcher if this fails.
+     */
+    private void registerVolume() {
+        long startTime = System.currentTimeMillis();
+        try {
+            registerTree( topDir, false, startTime );
+        } catch ( IOException e ) {
+            log.warn( "Cannot watch volume " + volume.getName() + ": " + 
+                    e.getMessage() );
+            stop();
+            return;
+        } catch ( ClosedWatchServiceException e ) {
+            // Stopped while registering
+            return;
+        }
+        log.debug( "Registered " + volume.getName() + " in " + 
+                ( System.currentTimeMillis() - startTime ) + " ms" );
+    }
+
+    /**
+     Wait until the directories of the volume have been registered and 
+     changes are being watched.
+     @param millis Maximum time to wait in milliseconds
+     @return <code>true</code> if the volume is being watched, 
+     <code>false</code> if registration failed, watcher was stopped or the 
+     timeout passed.
+     @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean waitForStart( long millis ) throws InterruptedException {
+        return registered.await( millis, TimeUnit.MILLISECONDS ) && running;
+    }
+
+    /**
+     Stop watching the volume. Tasks that have already been given to
+     scheduler are not affected.
+     */
+    public void stop() {
+        Thread t;
+        synchronized ( this ) {
+            if ( !running ) {
+                return;
+            }
+            running = false;
+            t = watchThread;
+            watchThread = null;
+            try {
+                watchService.close();
+            } catch ( IOException e ) {
+                log.warn( "Error closing watch service: " + e.getMessage() );
+            }
+            keyDirs.clear();
+            dirKeys.clear();
+            pendingFiles.clear();
+        }
+        if ( t != Thread.currentThread() ) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     Check whether the watcher is running
+     @return <code>true</code> if the volume is being watched.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     Get the watched volume
+     @return The volume
+     */
+    public ExternalVolume getVolume() {
+        return volume;
+    }
+
+    /**
+     Set the time that must pass without new events for a file before it is
+     indexed
+     @param millis Quiet period in milliseconds
+     */
+    public void setQuietPeriod( long millis ) {
+        quietPeriod = millis;
+    }
+
+    /**
+     Get the time that must pass without new events for a file before it is
+     indexed
+     @return Quiet period in milliseconds
+     */
+    public long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     Set interval between full reconciliations of the volume
+     @param millis Interval in milliseconds, 0 disables periodic
+     reconciliation.
+     */
+    public void setReconcileInterval( long millis ) {
+        reconcileInterval = millis;
+    }
+
+    /**
+     Get interval between full reconciliations of the volume
+     @return Interval in milliseconds
+     */
+    public long getReconcileInterval() {
+        return reconcileInterval;
+    }
+
+    /**
+     Ask the watcher to reconcile the whole volume with database. The 
+     directory tree is walked in the watcher thread, after that the 
+     reconciliation tasks are given to scheduler. Does nothing if the watcher
+     is not running.
+     */
+    public synchronized void requestReconcile() {
+        reconcileRequested = true;
+    }
+
+    /**
+     Main loop of the watch thread
+     */
+    private void watchLoop() {
+        long nextReconcile = System.currentTimeMillis() + reconcileInterval;
+        while ( running ) {
+            WatchKey key = null;
+            try {
+                key = watchService.poll( Math.max( quietPeriod / 4, 50 ),
+                        TimeUnit.MILLISECONDS );
+            } catch ( InterruptedException e ) {
+                break;
+            } catch ( ClosedWatchServiceException e ) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            if ( key != null ) {
+                processEvents( key, now );
+            }
+            if ( reconcileInterval > 0 && now >= nextReconcile ) {
+                synchronized ( this ) {
+                    reconcileRequested = true;
+                }
+                nextReconcile = now + reconcileInterval;
+            }
+            boolean rescan;
+            synchronized ( this ) {
+                rescan = reconcileRequested;
+                reconcileRequested = false;
+            }
+            if ( rescan ) {
+                prepareReconcile();
+            }
+            collectReadyFiles( now );
+            registerIfNeeded();
+        }
+        log.debug( "Stopped watching " + volume.getName() );
+    }
+
+    /**
+     Process events of a watch key
+     @param key The key
+     @param now Current time
+     */
+    private synchronized void processEvents( WatchKey key, long now ) {
+        File dir = keyDirs.get( key );
+        for ( WatchEvent<?> ev : key.pollEvents() ) {
+            WatchEvent.Kind<?> kind = ev.kind();
+            if ( kind == StandardWatchEventKinds.OVERFLOW ) {
+                log.info( "Watch events lost for " + volume.getName() +
+                        ", reconciling volume" );
+                reconcileRequested = true;
+                continue;
+            }
+            if ( dir == null ) {
+                continue;
+            }
+            File f = new File( dir, ((Path) ev.context()).toString() );
+            if ( f.getName().equals( VOL_INFO_DIR ) ) {
+                continue;
+            }
+            if ( kind == StandardWatchEventKinds.ENTRY_CREATE && f.isDirectory() ) {
+                try {
+                    registerTree( f, true, now );
+                } catch ( IOException e ) {
+                    log.warn( "Cannot watch " + f + ": " + e.getMessage() );
+                    reconcileRequested = true;
+                }
+            } else if ( kind == StandardWatchEventKinds.ENTRY_DELETE &&
+                    dirKeys.containsKey( f ) ) {
+                dirDeleted( f );
+            } else if ( !f.isDirectory() ) {
+                pendingFiles.put( f, now );
+            }
+        }
+        if ( !key.reset() ) {
+            File d = keyDirs.remove( key );
+            if ( d != null ) {
+                dirKeys.remove( d );
+            }
+        }
+    }
+
+    /**
+     Register the whole directory tree again to pick up directories whose 
+     events may have been lost and let the reconciliation start. Called in 
+     watcher thread.
+     */
+    private void prepareReconcile() {
+        try {
+            registerTree( topDir, false, System.currentTimeMillis() );
+        } catch ( IOException e ) {
+            log.warn( "Error registering " + topDir + ": " + e.getMessage() );
+        } catch ( ClosedWatchServiceException e ) {
+            // Stopped while registering
+            return;
+        }
+        synchronized ( this ) {
+            reconcileReady = true;
+        }
+    }
+
+    /**
+     Start watching a directory and its subdirectories
+     @param dir The top directory
+     @param addFiles If <code>true</code>, all files in the tree are
+     scheduled for indexing.
+     @param now Current time
+     @throws IOException if a directory cannot be registered
+     */
+    private void registerTree( File dir, boolean addFiles, long now )
+            throws IOException {
+        synchronized ( this ) {
+            if ( !running ) {
+                throw new ClosedWatchServiceException();
+            }
+            WatchKey key = dir.toPath().register( watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY );
+            keyDirs.put( key, dir );
+            dirKeys.put( dir, key );
+        }
+        File[] entries = dir.listFiles();
+        if ( entries == null ) {
+            return;
+        }
+        for ( File f : entries ) {
+            if ( f.isDirectory() ) {
+                if ( !f.getName().equals( VOL_INFO_DIR ) ) {
+                    registerTree( f, addFiles, now );
+                }
+            } else if ( addFiles ) {
+                synchronized ( this ) {
+                    pendingFiles.put( f, now );
+                }
+            }
+        }
+    }
+
+    /**
+     Stop watching a deleted directory and its subdirectories and schedule
+     removal of file locations in them
+     @param dir The deleted directory
+     */
+    private void dirDeleted( File dir ) {
+        String prefix = dir.getPath() + File.separator;
+        Iterator<Map.Entry<File, WatchKey>> iter = dirKeys.entrySet().iterator();
+        while ( iter.hasNext() ) {
+            Map.Entry<File, WatchKey> e = iter.next();
+            File d = e.getKey();
+            if ( d.equals( dir ) || d.getPath().startsWith( prefix ) ) {
+                e.getValue().cancel();
+                keyDirs.remove( e.getValue() );
+                iter.remove();
+                deletedDirs.add( volume.mapFileToVolumeRelativeName( d ) );
+            }
+        }
+    }
+
+    /**
+     Move files whose quiet period has passed to ready list
+     @param now Current time
+     */
+    private synchronized void collectReadyFiles( long now ) {
+        Iterator<Map.Entry<File, Long>> iter = pendingFiles.entrySet().iterator();
+        while ( iter.hasNext() ) {
+            Map.Entry<File, Long> e = iter.next();
+            if ( now - e.getValue() >= quietPeriod ) {
+                readyFiles.add( e.getKey() );
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     Check whether there is work that is not yet given to scheduler
+     @return <code>true</code> if there is work to do.
+     */
+    private boolean hasWork() {
+        return !readyFiles.isEmpty() || !deletedFiles.isEmpty() || 
+                !deletedDirs.isEmpty() ||
+                reconcileReady || treeIndexer != null ||
+                reconcileIndexers != null;
+    }
+
+    /**
+     Register this producer to scheduler if there is work to do and it is
+     not registered yet. Called in watcher thread.
+     */
+    private void registerIfNeeded() {
+        synchronized ( this ) {
+            if ( isRegistered || !hasWork() ) {
+                return;
+            }
+            isRegistered = true;
+        }
+        scheduler.registerTaskProducer( this, priority );
+    }
+
+    /**
+     Get the next task for synchronizing the volume.
+     @return Next task or <code>null</code> if there is nothing to do
+     currently.
+     */
+    public synchronized BackgroundTask requestTask() {
+        BackgroundTask task = nextReconcileTask();
+        if ( task != null ) {
+            return task;
+        }
+        if ( !deletedDirs.isEmpty() ) {
+            task = new RemoveLocationsTask( volume,
+                    new ArrayList<String>(), new ArrayList<String>( deletedDirs ) );
+            deletedDirs.clear();
+            return task;
+        }
+        if ( !deletedFiles.isEmpty() ) {
+            task = new RemoveLocationsTask( volume, 
+                    new ArrayList<String>( deletedFiles ), new ArrayList<String>() );
+            deletedFiles.clear();
+            return task;
+        }
+        while ( !readyFiles.isEmpty() ) {
+            File f = readyFiles.removeFirst();
+            if ( !f.exists() ) {
+                deletedFiles.add( volume.mapFileToVolumeRelativeName( f ) );
+            } else if ( f.canRead() ) {
+                return new IndexFileTask( f, volume, null );
+            }
+        }
+        if ( !deletedFiles.isEmpty() ) {
+            return requestTask();
+        }
+        isRegistered = false;
+        return null;
+    }
+
+    /**
+     Get next task of an ongoing or requested reconciliation. This works like
+     {@link org.photovault.swingui.indexer.BackgroundIndexer}.
+     @return The task or <code>null</code> if no reconciliation is in
+     progress.
+     */
+    private BackgroundTask nextReconcileTask() {
+        if ( reconcileReady && treeIndexer == null &&
+                reconcileIndexers == null ) {
+            reconcileReady = false;
+            treeIndexer = new DirTreeIndexerTask( topDir, volume, true );
+            return treeIndexer;
+        }
+        if ( treeIndexer != null ) {
+            reconcileIndexers = treeIndexer.getDirIndexers();
+            treeIndexer = null;
+        }
+        while ( reconcileIndexers != null ) {
+            if ( currentIndexer != null ) {
+                BackgroundTask task = currentIndexer.getNextFileIndexer();
+                if ( task != null ) {
+                    return task;
+                }
+            }
+            if ( reconcileIndexers.size() > 0 ) {
+                currentIndexer = reconcileIndexers.removeFirst();
+            } else {
+                currentIndexer = null;
+                reconcileIndexers = null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     Task that removes locations of deleted files from database
+     */
+    static class RemoveLocationsTask extends BackgroundTask {
+
+        private ExternalVolume volume;
+
+        /**
+         Volume relative paths of deleted files
+         */
+        private List<String> files;
+
+        /**
+         Volume relative paths of deleted directories
+         */
+        private List<String> dirs;
+
+        RemoveLocationsTask( ExternalVolume vol, List<String> files,
+                List<String> dirs ) {
+            this.volume = vol;
+            this.files = files;
+            this.dirs = dirs;
+        }
+
+        List<String> getFiles() {
+            return files;
+        }
+
+        List<String> getDirs() {
+            return dirs;
+        }
+
+        @Override
+        public void run() {
+            DAOFactory daoFactory = DAOFactory.instance( HibernateDAOFactory.class );
+            ImageFileDAO ifDAO = daoFactory.getImageFileDAO();
+            for ( String path : files ) {
+                ImageFile ifile = ifDAO.findFileInLocation( volume, path );
+                if ( ifile == null ) {
+                    continue;
+                }
+                for ( FileLocation loc : ifile.getLocations() ) {
+                    if ( isInVolume( loc ) && path.equals( loc.getFname() ) ) {
+                        removeLocation( ifile, loc );
+                    }
+                }
+            }
+            for ( String dir : dirs ) {
+                for ( ImageFile ifile : ifDAO.findFilesInDir( volume, dir ) ) {
+                    for ( FileLocation loc : ifile.getLocations() ) {
+                        if ( isInVolume( loc ) && dir.equals( loc.getDirName() ) ) {
+                            removeLocation( ifile, loc );
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean isInVolume( FileLocation loc ) {
+            return loc.getVolume().getId().equals( volume.getId() );
+        }
+
+        private void removeLocation( ImageFile ifile, FileLocation loc ) {
+            log.debug( "Removing deleted location " + loc.getFname() );
+            ModifyImageFileCommand cmd = new ModifyImageFileCommand( ifile );
+            cmd.removeLocation( loc );
+            try {
+                cmdHandler.executeCommand( cmd );
+            } catch ( CommandException e ) {
+                log.warn( "Error removing location " + loc.getFname() +
+                        ": " + e.getMessage() );
+            }
+        }
+    }
+}
@@ -20,10 +20,23 @@
 
 package org.photovault.persistence;
 import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import org.hibernate.*;
 import org.hibernate.cfg.*;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.event.EventListeners;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.photovault.folder.FolderClosure;
 import org.photovault.common.PVDatabase;
 import org.photovault.common.PhotovaultException;
+import org.photovault.imginfo.FileHashTable;
+import org.photovault.imginfo.FulltextIndex;
+import org.photovault.replication.ChangeDigest;
 
 /**
  Hibernate startup utility class
@@ -37,12 +50,48 @@ public class HibernateUtil {
         try {
             cfg = dbDesc.getDbDescriptor().initHibernate( user, passwd );
             cfg.setNamingStrategy( DefaultComponentSafeNamingStrategy.INSTANCE );
+            FolderClosure.Listener closureListener = new FolderClosure.Listener();
+            EventListeners listeners = cfg.getEventListeners();
+            listeners.setPostInsertEventListeners( append(
+                    listeners.getPostInsertEventListeners(), closureListener ) );
+            listeners.setPostUpdateEventListeners( append(
+                    listeners.getPostUpdateEventListeners(), closureListener ) );
+            listeners.setPostDeleteEventListeners( append(
+                    listeners.getPostDeleteEventListeners(), closureListener ) );
+            ChangeDigest.Listener digestListener = new ChangeDigest.Listener();
+            listeners.setPostInsertEventListeners( append(
+                    listeners.getPostInsertEventListeners(), digestListener ) );
+            listeners.setPostDeleteEventListeners( append(
+                    listeners.getPostDeleteEventListeners(), digestListener ) );
+            listeners.setPostCommitDeleteEventListeners( append(
+                    listeners.getPostCommitDeleteEventListeners(), 
+                    new FulltextIndex.Listener() ) );
             sessionFactory = cfg.buildSessionFactory();
+            Session s = sessionFactory.openSession();
+            try {
+                FolderClosure.init( s );
+                ChangeDigest.init( s );
+                FileHashTable.init( s );
+            } finally {
+                s.close();
+            }
         } catch (Throwable ex) {
             throw new ExceptionInInitializerError(ex);
         }
     }
     
+    /**
+     Create a copy of listener array with one listener added to the end
+     */
+    @SuppressWarnings( "unchecked" )
+    private static <T> T[] append( T[] listeners, T l ) {
+        T[] ret = (T[]) java.lang.reflect.Array.newInstance(
+                listeners.getClass().getComponentType(), listeners.length+1 );
+        System.arraycopy( listeners, 0, ret, 0, listeners.length );
+        ret[listeners.length] = l;
+        return ret;
+    }
+    
     public static SessionFactory getSessionFactory() {
 // Alternatively, you could look up in JNDI here
         return sessionFactory;
@@ -52,6 +101,49 @@ public class HibernateUtil {
         return cfg;
     }
     
+    /**
+     Remove given objects and collections owned by them from the second level
+     cache. This must be called if changes to the objects have been flushed
+     but were later rolled back without ending the transaction, as otherwise
+     the cache would be updated with the rolled back state when the transaction
+     is committed.
+     @param entities The objects to evict. Objects that are not persistent
+     entities are ignored.
+     */
+    public static void evictFromCache( Collection<?> entities ) {
+        SessionFactoryImplementor sf = (SessionFactoryImplementor) sessionFactory;
+        Cache cache = sf.getCache();
+        List<CollectionPersister> cachedCollections = 
+                new ArrayList<CollectionPersister>();
+        for ( Object role : sf.getAllCollectionMetadata().keySet() ) {
+            CollectionPersister cp = sf.getCollectionPersister( (String) role );
+            if ( cp.hasCache() ) {
+                cachedCollections.add( cp );
+            }
+        }
+        for ( Object o : entities ) {
+            Class<?> entityClass = Hibernate.getClass( o );
+            ClassMetadata md = sf.getClassMetadata( entityClass );
+            if ( md == null ) {
+                continue;
+            }
+            // Photovault entities have simple identifier properties that can 
+            // be read without a session
+            Serializable id = md.getIdentifier( o, (SessionImplementor) null );
+            if ( id == null ) {
+                continue;
+            }
+            cache.evictEntity( entityClass, id );
+            for ( CollectionPersister cp : cachedCollections ) {
+                Class<?> ownerClass = 
+                        cp.getOwnerEntityPersister().getMappedClass( EntityMode.POJO );
+                if ( ownerClass.isAssignableFrom( entityClass ) ) {
+                    cache.evictCollection( cp.getRole(), id );
+                }
+            }
+        }
+    }
+    
     public static void shutdown() {
 // Close caches and connection pools
         getSessionFactory().close();
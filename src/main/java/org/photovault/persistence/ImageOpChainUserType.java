@@ -16,6 +16,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import com.google.protobuf.InvalidProtocolBufferException;
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.tool.ant.HibernateToolTask;
@@ -81,12 +82,29 @@ public class ImageOpChainUserType implements UserType {
         return true;
     }
 
-    public Serializable disassemble( Object arg0 ) throws HibernateException {
-        throw new UnsupportedOperationException( "Not supported yet." );
+    /**
+     Convert the chain to serialized protocol buffer for storing in second 
+     level cache
+     */
+    public Serializable disassemble( Object obj ) throws HibernateException {
+        if ( obj == null ) {
+            return null;
+        }
+        ImageOpChain chain = (ImageOpChain) obj;
+        return chain.getBuilder().build().toByteArray();
     }
 
-    public Object assemble( Serializable arg0, Object arg1 ) throws HibernateException {
-        throw new UnsupportedOperationException( "Not supported yet." );
+    public Object assemble( Serializable cached, Object owner ) throws HibernateException {
+        if ( cached == null ) {
+            return null;
+        }
+        ImageOpDto.ImageOpChain icp = null;
+        try {
+            icp = ImageOpDto.ImageOpChain.parseFrom( (byte[]) cached );
+        } catch ( InvalidProtocolBufferException e ) {
+            throw new HibernateException( e );
+        }
+        return new ImageOpChain( icp );
     }
 
     public Object replace( Object orig, Object target, Object owner ) throws HibernateException {
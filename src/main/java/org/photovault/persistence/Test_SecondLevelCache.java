@@ -0,0 +1,117 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.persistence;
+
+import java.util.Collections;
+import java.util.UUID;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.stat.Statistics;
+import org.photovault.imginfo.PhotoInfo;
+import org.photovault.test.PhotovaultTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for second level cache configuration and 
+ {@link HibernateUtil#evictFromCache(java.util.Collection)}
+ */
+public class Test_SecondLevelCache extends PhotovaultTestCase {
+
+    private Statistics stats;
+    private UUID photoId;
+
+    @BeforeMethod
+    @Override
+    public void setUp() {
+        Session s = HibernateUtil.getSessionFactory().openSession();
+        try {
+            HibernateDAOFactory df = new HibernateDAOFactory();
+            df.setSession( s );
+            Transaction tx = s.beginTransaction();
+            PhotoInfo p = df.getPhotoInfoDAO().create();
+            tx.commit();
+            photoId = p.getUuid();
+        } finally {
+            s.close();
+        }
+        stats = HibernateUtil.getSessionFactory().getStatistics();
+        stats.setStatisticsEnabled( true );
+        stats.clear();
+    }
+
+    @AfterMethod
+    @Override
+    public void tearDown() {
+        stats.setStatisticsEnabled( false );
+    }
+
+    /**
+     Load the test photo in a new session
+     */
+    private PhotoInfo loadPhoto() {
+        Session s = HibernateUtil.getSessionFactory().openSession();
+        try {
+            PhotoInfo p = (PhotoInfo) s.get( PhotoInfo.class, photoId );
+            assertNotNull( p );
+            return p;
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     Loading a photo in another session must be served from second level 
+     cache without querying the database.
+     */
+    @Test
+    public void testPhotoCached() {
+        String region = PhotoInfo.class.getName();
+        loadPhoto();
+        long loads = stats.getEntityLoadCount();
+        long hits = stats.getSecondLevelCacheStatistics( region ).getHitCount();
+        loadPhoto();
+        loadPhoto();
+        assertEquals( hits + 2, 
+                stats.getSecondLevelCacheStatistics( region ).getHitCount() );
+        assertEquals( loads, stats.getEntityLoadCount() );
+    }
+
+    /**
+     Evicted photo must be read from database again
+     */
+    @Test
+    public void testEvict() {
+        String region = PhotoInfo.class.getName();
+        PhotoInfo p = loadPhoto();
+        long misses = stats.getSecondLevelCacheStatistics( region ).getMissCount();
+        HibernateUtil.evictFromCache( Collections.singleton( p ) );
+        loadPhoto();
+        assertEquals( misses + 1, 
+                stats.getSecondLevelCacheStatistics( region ).getMissCount() );
+        
+        // Objects that are not entities are ignored
+        HibernateUtil.evictFromCache( Collections.singleton( "not an entity" ) );
+    }
+}
@@ -420,17 +420,9 @@ public class Change<T> {
             initChangedFields();
         }
         // Find the common ancestor version
-        Set<Change> ancestors = new HashSet<Change>();
-        for ( Change c = this ; c != null; c = c.getPrevChange() ) {
-            ancestors.add( c );
-        }
-        Change<T> commonBase = null;
+        Change<T> commonBase = findCommonBase( this, other );
         Map<String, FieldChange> changedFieldsOther = new HashMap();
-        for ( Change<T> c = other ; c != null ; c = c.getPrevChange() ) {
-            if ( ancestors.contains( c ) ) {
-                commonBase = c;
-                break;
-            }
+        for ( Change<T> c = other ; c != commonBase ; c = c.getPrevChange() ) {
             
             // record all field changes that are still valid currently
             for ( Map.Entry<String,FieldChange> e : c.getChangedFields().entrySet() ) {
@@ -511,6 +503,37 @@ public class Change<T> {
     }
 
 
+    /**
+     Find the latest common ancestor of two changes when following the 
+     prevChange links. Both chains are walked in turns so that only the changes
+     between the given changes and the common ancestor are visited.
+     @param c1 The first change
+     @param c2 The second change
+     @return Latest change that is ancestor of both (a change is considered 
+     its own ancestor) or <code>null</code> if there is no such change.
+     */
+    static <T> Change<T> findCommonBase( Change<T> c1, Change<T> c2 ) {
+        Set<Change<T>> ancestors1 = new HashSet<Change<T>>();
+        Set<Change<T>> ancestors2 = new HashSet<Change<T>>();
+        while ( c1 != null || c2 != null ) {
+            if ( c1 != null ) {
+                if ( ancestors2.contains( c1 ) ) {
+                    return c1;
+                }
+                ancestors1.add( c1 );
+                c1 = c1.getPrevChange();
+            }
+            if ( c2 != null ) {
+                if ( ancestors1.contains( c2 ) ) {
+                    return c2;
+                }
+                ancestors2.add( c2 );
+                c2 = c2.getPrevChange();
+            }
+        }
+        return null;
+    }
+
     /**
      Helper method to find the change in which a field was last modified
      @param field The field name
@@ -29,8 +29,10 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.UUID;
@@ -167,6 +169,30 @@ public class ChangeDTO<T> implements Serializable {
         return changeUuid;
     }
 
+    /**
+     Get all values referenced by this change, i.e. new values of changed 
+     fields and items added to or removed from set fields. These can be used
+     to find out which other objects must be known before the change is 
+     applied.
+     @return Set of referenced values
+     */
+    public Set<Object> getReferencedValues() {
+        Set<Object> ret = new HashSet<Object>();
+        for ( FieldChange fc : changedFields.values() ) {
+            if ( fc instanceof ValueChange ) {
+                for ( Object v : ((ValueChange) fc).getPropChanges().values() ) {
+                    if ( v != null ) {
+                        ret.add( v );
+                    }
+                }
+            } else if ( fc instanceof SetChange ) {
+                ret.addAll( ((SetChange) fc).getAddedItems() );
+                ret.addAll( ((SetChange) fc).getRemovedItems() );
+            }
+        }
+        return ret;
+    }
+
     private static XStream getXStream() {
         /*
          This is intentionally unsynchronized: the worst thing that can happen 
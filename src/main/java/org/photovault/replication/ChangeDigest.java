@@ -0,0 +1,521 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.replication;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.jdbc.Work;
+
+/**
+ ChangeDigest maintains digests of the set of changes in database so that two 
+ databases can find the objects whose histories differ without comparing 
+ every history.
+ <p>
+ Digest of an object is XOR of the UUIDs of all its changes. As change UUIDs 
+ are hashes of change content, two databases have the same changes for an
+ object if and only if the digests are equal (with a very high probability).
+ The objects are divided into {@link #BUCKET_COUNT} buckets by the first bits
+ of their UUIDs, and digest of a bucket is XOR of the digests of objects in 
+ it. Buckets form a hierarchy in which each bucket at level <i>n</i> contains
+ {@link #FANOUT} buckets of level <i>n</i>+1; the leaf buckets at level 
+ {@link #LEAF_LEVEL} are stored in table pv_change_digest. Digests of upper 
+ levels are calculated from leaves, and digests of individual objects from
+ pv_changes when needed.
+ <p>
+ As XOR is its own inverse and does not depend on order, the leaf digests are
+ updated incrementally by {@link Listener} whenever changes are inserted to or 
+ deleted from pv_changes. Each leaf row contains also the number of changes in
+ the bucket, which is used by {@link #init(Session)} to detect if the table 
+ needs to be rebuilt.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class ChangeDigest {
+
+    static private Log log = LogFactory.getLog( ChangeDigest.class.getName() );
+
+    /**
+     Name of the digest table
+     */
+    static public final String TABLE = "pv_change_digest";
+
+    /**
+     Number of bits in bucket index at each level of the hierarchy
+     */
+    static final int FANOUT_BITS = 4;
+
+    /**
+     Number of child buckets of each bucket
+     */
+    static public final int FANOUT = 1 << FANOUT_BITS;
+
+    /**
+     Level of the leaf buckets. Level 0 is a single bucket containing all 
+     objects.
+     */
+    static public final int LEAF_LEVEL = 3;
+
+    /**
+     Number of leaf buckets
+     */
+    static public final int BUCKET_COUNT = 1 << ( FANOUT_BITS * LEAF_LEVEL );
+
+    /**
+     Digest of a set of changes
+     */
+    static public final class Digest {
+        private long hi;
+        private long lo;
+
+        /**
+         Creates a digest of empty set
+         */
+        public Digest() {
+        }
+
+        /**
+         Creates a digest with given value
+         */
+        public Digest( long hi, long lo ) {
+            this.hi = hi;
+            this.lo = lo;
+        }
+
+        /**
+         Add or remove a change to the set
+         @param changeId UUID of the change
+         */
+        public void add( UUID changeId ) {
+            hi ^= changeId.getMostSignificantBits();
+            lo ^= changeId.getLeastSignificantBits();
+        }
+
+        /**
+         Add all changes of another (disjoint) set
+         @param d Digest of the other set
+         */
+        public void add( Digest d ) {
+            hi ^= d.hi;
+            lo ^= d.lo;
+        }
+
+        public long getHi() {
+            return hi;
+        }
+
+        public long getLo() {
+            return lo;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !( o instanceof Digest ) ) {
+                return false;
+            }
+            Digest d = (Digest) o;
+            return hi == d.hi && lo == d.lo;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) ( hi ^ ( hi >>> 32 ) ^ lo ^ ( lo >>> 32 ) );
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString( hi ) + ":" + Long.toHexString( lo );
+        }
+    }
+
+    /**
+     Not to be instantiated
+     */
+    private ChangeDigest() {
+
+    }
+
+    /**
+     Get the leaf bucket of an object
+     @param targetId UUID of the object
+     @return Index of the bucket
+     */
+    static public int getBucket( UUID targetId ) {
+        return (int) ( targetId.getMostSignificantBits() >>> 
+                ( 64 - FANOUT_BITS * LEAF_LEVEL ) );
+    }
+
+    /**
+     Calculate digests of all buckets at given level
+     @param leaves Digests of leaf buckets
+     @param level The level
+     @return Digests of the buckets at level
+     */
+    static public Digest[] getLevelDigests( Digest[] leaves, int level ) {
+        int shift = FANOUT_BITS * ( LEAF_LEVEL - level );
+        Digest[] ret = new Digest[1 << ( FANOUT_BITS * level )];
+        for ( int n = 0 ; n < ret.length ; n++ ) {
+            ret[n] = new Digest();
+        }
+        for ( int n = 0 ; n < leaves.length ; n++ ) {
+            ret[n >>> shift].add( leaves[n] );
+        }
+        return ret;
+    }
+
+    /**
+     Create the digest table if it does not exist and rebuild it if it is not
+     consistent with changes in database.
+     @param s Session used to access the database
+     */
+    static public void init( Session s ) {
+        Transaction tx = s.beginTransaction();
+        try {
+            final int[] changeCount = {-1};
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    ensureTable( con );
+                    try {
+                        changeCount[0] = count( con, "select count(*) from pv_changes" );
+                    } catch ( SQLException e ) {
+                        // Change table does not exist yet, database is being created
+                        log.debug( "Cannot count changes: " + e.getMessage() );
+                    }
+                }
+            } );
+            tx.commit();
+            tx = s.beginTransaction();
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    int rowCount = count( con, "select count(*) from " + TABLE );
+                    int digestCount = rowCount > 0 ? 
+                        count( con, "select sum(change_count) from " + TABLE ) : 0;
+                    if ( rowCount != BUCKET_COUNT || 
+                            digestCount != Math.max( changeCount[0], 0 ) ) {
+                        rebuild( con, changeCount[0] >= 0 );
+                    }
+                }
+            } );
+            tx.commit();
+        } catch ( HibernateException e ) {
+            log.error( "Error initializing change digests", e );
+            tx.rollback();
+        }
+    }
+
+    /**
+     Create the table if it does not exist
+     */
+    static private void ensureTable( Connection con ) throws SQLException {
+        DatabaseMetaData md = con.getMetaData();
+        for ( String name : new String[] {TABLE, TABLE.toUpperCase()} ) {
+            ResultSet rs = md.getTables( null, null, name, null );
+            try {
+                if ( rs.next() ) {
+                    return;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        log.info( "Creating table " + TABLE );
+        execute( con, "create table " + TABLE + " ( " +
+                "bucket integer not null, " +
+                "digest_hi bigint not null, " +
+                "digest_lo bigint not null, " +
+                "change_count integer not null, " +
+                "primary key ( bucket ) )" );
+    }
+
+    /**
+     Recreate the contents of digest table from change table
+     @param con Connection used
+     @throws SQLException if an error occurs
+     */
+    static public void rebuild( Connection con ) throws SQLException {
+        rebuild( con, true );
+    }
+
+    static private void rebuild( Connection con, boolean readChanges ) 
+            throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Digest[] digests = new Digest[BUCKET_COUNT];
+        int[] counts = new int[BUCKET_COUNT];
+        for ( int n = 0 ; n < BUCKET_COUNT ; n++ ) {
+            digests[n] = new Digest();
+        }
+        Statement stmt = con.createStatement();
+        try {
+            if ( readChanges ) {
+                ResultSet rs = stmt.executeQuery(
+                        "select target_uuid, change_uuid from pv_changes" );
+                while ( rs.next() ) {
+                    int bucket = getBucket( UUID.fromString( rs.getString( 1 ) ) );
+                    digests[bucket].add( UUID.fromString( rs.getString( 2 ) ) );
+                    counts[bucket]++;
+                }
+                rs.close();
+            }
+            stmt.executeUpdate( "delete from " + TABLE );
+        } finally {
+            stmt.close();
+        }
+        PreparedStatement ins = con.prepareStatement( "insert into " + TABLE +
+                " ( bucket, digest_hi, digest_lo, change_count ) values ( ?, ?, ?, ? )" );
+        try {
+            for ( int n = 0 ; n < BUCKET_COUNT ; n++ ) {
+                ins.setInt( 1, n );
+                ins.setLong( 2, digests[n].hi );
+                ins.setLong( 3, digests[n].lo );
+                ins.setInt( 4, counts[n] );
+                ins.addBatch();
+                if ( ( n + 1 ) % 500 == 0 ) {
+                    ins.executeBatch();
+                }
+            }
+            ins.executeBatch();
+        } finally {
+            ins.close();
+        }
+        log.info( "Rebuilt change digests in " +
+                ( System.currentTimeMillis() - startTime ) + " ms" );
+    }
+
+    /**
+     Read digests of all leaf buckets
+     @param con Connection used
+     @return Digests, indexed by bucket
+     @throws SQLException if an error occurs
+     */
+    static public Digest[] readLeafDigests( Connection con ) throws SQLException {
+        Digest[] ret = new Digest[BUCKET_COUNT];
+        for ( int n = 0 ; n < BUCKET_COUNT ; n++ ) {
+            ret[n] = new Digest();
+        }
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery( 
+                    "select bucket, digest_hi, digest_lo from " + TABLE );
+            while ( rs.next() ) {
+                ret[rs.getInt( 1 )] = new Digest( rs.getLong( 2 ), rs.getLong( 3 ) );
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        return ret;
+    }
+
+    /**
+     Read digests of all leaf buckets using connection of a Hibernate session
+     @param s The session
+     @return Digests, indexed by bucket
+     @throws HibernateException if an error occurs
+     */
+    static public Digest[] readLeafDigests( Session s ) {
+        final Digest[][] ret = new Digest[1][];
+        s.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                ret[0] = readLeafDigests( con );
+            }
+        } );
+        return ret[0];
+    }
+
+    /**
+     Calculate digests of all objects in a leaf bucket
+     @param con Connection used
+     @param bucket Index of the bucket
+     @return Map from object UUID to digest of its changes
+     @throws SQLException if an error occurs
+     */
+    static public Map<UUID, Digest> readObjectDigests( Connection con, int bucket ) 
+            throws SQLException {
+        Map<UUID, Digest> ret = new HashMap<UUID, Digest>();
+        String prefix = String.format( "%0" + ( FANOUT_BITS * LEAF_LEVEL / 4 ) + "x", 
+                bucket );
+        PreparedStatement stmt = con.prepareStatement( 
+                "select target_uuid, change_uuid from pv_changes " +
+                "where target_uuid like ?" );
+        try {
+            stmt.setString( 1, prefix + "%" );
+            ResultSet rs = stmt.executeQuery();
+            while ( rs.next() ) {
+                UUID target = UUID.fromString( rs.getString( 1 ) );
+                Digest d = ret.get( target );
+                if ( d == null ) {
+                    d = new Digest();
+                    ret.put( target, d );
+                }
+                d.add( UUID.fromString( rs.getString( 2 ) ) );
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        return ret;
+    }
+
+    /**
+     Update digest of a bucket after a change has been inserted or deleted
+     @param con Connection used
+     @param targetId UUID of the change's target object
+     @param changeId UUID of the change
+     @param countDelta 1 if the change was inserted, -1 if deleted
+     */
+    static void changeModified( Connection con, UUID targetId, UUID changeId, 
+            int countDelta ) throws SQLException {
+        int bucket = getBucket( targetId );
+        /*
+         Update the count first so that the row is locked until end of 
+         transaction and no concurrent update of digest can be lost.
+         */
+        PreparedStatement upd = con.prepareStatement( "update " + TABLE + 
+                " set change_count = change_count + ? where bucket = ?" );
+        try {
+            upd.setInt( 1, countDelta );
+            upd.setInt( 2, bucket );
+            if ( upd.executeUpdate() == 0 ) {
+                log.warn( "Digest bucket " + bucket + " not found" );
+                return;
+            }
+        } finally {
+            upd.close();
+        }
+        Digest d = null;
+        PreparedStatement sel = con.prepareStatement( "select digest_hi, digest_lo from " + 
+                TABLE + " where bucket = ?" );
+        try {
+            sel.setInt( 1, bucket );
+            ResultSet rs = sel.executeQuery();
+            rs.next();
+            d = new Digest( rs.getLong( 1 ), rs.getLong( 2 ) );
+            rs.close();
+        } finally {
+            sel.close();
+        }
+        d.add( changeId );
+        upd = con.prepareStatement( "update " + TABLE +
+                " set digest_hi = ?, digest_lo = ? where bucket = ?" );
+        try {
+            upd.setLong( 1, d.hi );
+            upd.setLong( 2, d.lo );
+            upd.setInt( 3, bucket );
+            upd.executeUpdate();
+        } finally {
+            upd.close();
+        }
+    }
+
+    static private int count( Connection con, String sql ) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery( sql );
+            rs.next();
+            return rs.getInt( 1 );
+        } finally {
+            stmt.close();
+        }
+    }
+
+    static private void execute( Connection con, String sql ) throws SQLException {
+        Statement stmt = con.createStatement();
+        try {
+            stmt.executeUpdate( sql );
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     Calculate digests of all objects in a leaf bucket using connection of a
+     Hibernate session
+     @param s The session
+     @param bucket Index of the bucket
+     @return Map from object UUID to digest of its changes
+     @throws HibernateException if an error occurs
+     */
+    static public Map<UUID, Digest> readObjectDigests( Session s, 
+            final int bucket ) {
+        final Map<UUID, Digest> ret = new HashMap<UUID, Digest>();
+        s.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                ret.putAll( readObjectDigests( con, bucket ) );
+            }
+        } );
+        return ret;
+    }
+
+    /**
+     Hibernate event listener that updates the digests when changes are
+     inserted or deleted.
+     */
+    static public class Listener implements PostInsertEventListener,
+            PostDeleteEventListener {
+
+        static final long serialVersionUID = 1L;
+
+        public void onPostInsert( PostInsertEvent event ) {
+            if ( !( event.getEntity() instanceof Change ) ) {
+                return;
+            }
+            update( event.getSession(), (Change) event.getEntity(), 1 );
+        }
+
+        public void onPostDelete( PostDeleteEvent event ) {
+            if ( !( event.getEntity() instanceof Change ) ) {
+                return;
+            }
+            update( event.getSession(), (Change) event.getEntity(), -1 );
+        }
+
+        private void update( Session s, Change c, final int countDelta ) {
+            ObjectHistory h = c.getTargetHistory();
+            if ( h == null || h.getTargetUuid() == null || c.getUuid() == null ) {
+                return;
+            }
+            final UUID targetId = h.getTargetUuid();
+            final UUID changeId = c.getUuid();
+            s.doWork( new Work() {
+                public void execute( Connection con ) throws SQLException {
+                    changeModified( con, targetId, changeId, countDelta );
+                }
+            } );
+        }
+    }
+}
@@ -143,6 +143,17 @@ abstract class FieldChange implements Cloneable {
      */
     public abstract FieldChange getReverse( Change baseline );
     
+    /**
+     Creates a FieldChange object that reverses the impact of this change when 
+     both field changes are applied to a known state of the field.
+     @param baseState State of the field before this change, i.e. all changes 
+     to the field from the beginning of history combined (see {@link 
+     ObjectHistory#getFieldState(Change)}), or <code>null</code> if the field 
+     has not been changed before.
+     @return The reverse change
+     */
+    public abstract FieldChange getReverseToState( FieldChange baseState );
+    
     @Override
     public Object clone() throws CloneNotSupportedException {
         return super.clone();
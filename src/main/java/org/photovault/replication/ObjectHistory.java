@@ -24,8 +24,11 @@ package org.photovault.replication;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import javax.persistence.CascadeType;
@@ -83,6 +86,66 @@ public class ObjectHistory<T> {
      */
     Set<Change<T>> allChanges = new HashSet<Change<T>>();
 
+    /**
+     Number of changes between snapshots of field state. Can be set with 
+     system property photovault.history.snapshotinterval.
+     */
+    static final int SNAPSHOT_INTERVAL = 
+            Integer.getInteger( "photovault.history.snapshotinterval", 32 );
+    
+    /**
+     Maximum number of snapshots kept in memory. Can be set with system 
+     property photovault.history.maxsnapshots.
+     */
+    static final int MAX_SNAPSHOTS = 
+            Integer.getInteger( "photovault.history.maxsnapshots", 1024 );
+    
+    /**
+     Snapshots of the state of all fields after certain changes, keyed by 
+     UUID of the change. These are created by {@link #getFieldState(Change)} 
+     while walking the history so that the state of a long history does not 
+     need to be reconstructed from the beginning every time. As UUID of a 
+     frozen change is determined by its content and predecessors, the 
+     snapshots are shared by all histories and stay valid across sessions. At 
+     most {@link #MAX_SNAPSHOTS} of them are kept, the least recently used one 
+     is dropped first.
+     */
+    static private Map<UUID, Map<String, FieldChange>> snapshots = 
+            new LinkedHashMap<UUID, Map<String, FieldChange>>( 16, 0.75f, true ) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry( 
+                Map.Entry<UUID, Map<String, FieldChange>> e ) {
+            return size() > MAX_SNAPSHOTS;
+        }
+    };
+    
+    /**
+     Get a copy of the snapshot of field state after a change
+     @param changeId UUID of the change
+     @return Copy of the snapshot or <code>null</code> if there is no snapshot 
+     for this change.
+     */
+    static private Map<String, FieldChange> getSnapshot( UUID changeId ) {
+        synchronized ( snapshots ) {
+            Map<String, FieldChange> state = snapshots.get( changeId );
+            return state != null ? copyState( state ) : null;
+        }
+    }
+    
+    /**
+     Store a copy of field state as snapshot
+     @param changeId UUID of the change after which state is
+     @param state The state
+     */
+    static private void putSnapshot( UUID changeId, Map<String, FieldChange> state ) {
+        Map<String, FieldChange> copy = copyState( state );
+        synchronized ( snapshots ) {
+            snapshots.put( changeId, copy );
+        }
+    }
+
 
     /**
      Default constructor for persistence & replication layers, do not use otherwise
@@ -198,6 +261,73 @@ public class ObjectHistory<T> {
         return currentVersion;
     }
     
+    /**
+     Get the state of target object's fields after given change. The state is
+     returned as combination of all field changes from the beginning of 
+     history. It is constructed from the nearest snapshot of state before the
+     change, and new snapshots are created at every {@link #SNAPSHOT_INTERVAL}
+     changes.
+     @param version The change
+     @return Map from field name to combined change. Caller can modify the 
+     map and the changes.
+     */
+    Map<String, FieldChange> getFieldState( Change<T> version ) {
+        List<Change<T>> path = new ArrayList<Change<T>>();
+        Map<String, FieldChange> base = null;
+        for ( Change<T> c = version ; c != null ; c = c.getPrevChange() ) {
+            if ( c.isFrozen() ) {
+                base = getSnapshot( c.getUuid() );
+                if ( base != null ) {
+                    break;
+                }
+            }
+            path.add( c );
+        }
+        Map<String, FieldChange> state = 
+                base != null ? base : new HashMap<String, FieldChange>();
+        for ( int n = path.size()-1 ; n >= 0 ; n-- ) {
+            Change<T> c = path.get( n );
+            for ( FieldChange fc : c.getChangedFields().values() ) {
+                FieldChange sfc = state.get( fc.getName() );
+                if ( sfc != null ) {
+                    sfc.addChange( fc );
+                } else {
+                    state.put( fc.getName(), cloneFieldChange( fc ) );
+                }
+            }
+            if ( ( path.size() - n ) % SNAPSHOT_INTERVAL == 0 && c.isFrozen() ) {
+                putSnapshot( c.getUuid(), state );
+            }
+        }
+        log.debug( "getFieldState: replayed " + path.size() + " changes" );
+        return state;
+    }
+    
+    /**
+     Create a deep copy of field state
+     @param state The state to copy, or <code>null</code>
+     @return A new map with copies of the field changes
+     */
+    private static Map<String, FieldChange> copyState( 
+            Map<String, FieldChange> state ) {
+        Map<String, FieldChange> ret = new HashMap<String, FieldChange>();
+        if ( state != null ) {
+            for ( Map.Entry<String, FieldChange> e : state.entrySet() ) {
+                ret.put( e.getKey(), cloneFieldChange( e.getValue() ) );
+            }
+        }
+        return ret;
+    }
+    
+    private static FieldChange cloneFieldChange( FieldChange fc ) {
+        try {
+            return (FieldChange) fc.clone();
+        } catch ( CloneNotSupportedException ex ) {
+            throw new IllegalStateException( 
+                    "FieldChanges must support cloning", ex );
+        }
+    }
+    
     /**
      Write all changes of the target object to output stream. First, the total 
      number of changes is written as integer. Then the changes are 
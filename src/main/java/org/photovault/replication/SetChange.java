@@ -178,6 +178,31 @@ class SetChange extends FieldChange implements Externalizable {
     }    
 
     
+    public FieldChange getReverseToState( FieldChange baseState ) {
+        SetChange reverse = new SetChange( name );
+        Set baseItems = ( baseState instanceof SetChange ) ?
+            ((SetChange) baseState).addedItems : Collections.EMPTY_SET;
+        for ( Object o : addedItems ) {
+            if ( !baseItems.contains( o ) ) {
+                reverse.removeItem( o );
+            }
+        }
+        for ( Object o : removedItems ) {
+            if ( baseItems.contains( o ) ) {
+                reverse.addItem( o );
+            }
+        }
+        return reverse;
+    }
+    
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        SetChange ret = (SetChange) super.clone();
+        ret.addedItems = new HashSet( addedItems );
+        ret.removedItems = new HashSet( removedItems );
+        return ret;
+    }
+    
     public FieldChange getReverse( Change baseline ) {
         SetChange reverse = new SetChange( name );
         Set toBeAdded = new HashSet( removedItems );
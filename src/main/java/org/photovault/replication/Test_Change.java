@@ -253,6 +253,67 @@ public class Test_Change {
         c.freeze();
     }
     
+    /**
+     Test moving between versions in a long history, both along the same 
+     branch and between branches. State of the fields must be reconstructed 
+     correctly using snapshots.
+     */
+    @Test
+    public void testChangeToVersionLongHistory() {
+        TestObject t = new TestObject();
+        t.setSub( new TestStruct( 0, 0 ) );
+        int count = 3 * ObjectHistory.SNAPSHOT_INTERVAL + 5;
+        Change<TestObject>[] versions = new Change[count];
+        for ( int n = 0 ; n < count ; n++ ) {
+            VersionedObjectEditor<TestObject> e = 
+                    new VersionedObjectEditor<TestObject>( t, resolvFactory );
+            e.setField( "f1", n );
+            if ( n % 2 == 0 ) {
+                e.setField( "f2", n );
+            }
+            e.addToSet( "numbers", n );
+            if ( n > 0 ) {
+                e.removeFromSet( "numbers", n-1 );
+            }
+            e.apply();
+            versions[n] = e.getChange();
+        }
+        Change<TestObject> head = t.getVersion();
+        
+        VersionedObjectEditor<TestObject> e = 
+                new VersionedObjectEditor<TestObject>( t, resolvFactory );
+        e.changeToVersion( versions[7] );
+        assertEquals( 7, t.getF1() );
+        assertEquals( 6, t.getF2() );
+        assertEquals( 1, t.getNumbers().size() );
+        assertTrue( t.getNumbers().contains( 7 ) );
+        
+        // Create a branch
+        e = new VersionedObjectEditor<TestObject>( t, resolvFactory );
+        e.setField( "f1", 1000 );
+        e.addToSet( "numbers", 1000 );
+        e.apply();
+        Change<TestObject> branch = e.getChange();
+        
+        e = new VersionedObjectEditor<TestObject>( t, resolvFactory );
+        e.changeToVersion( head );
+        assertEquals( count-1, t.getF1() );
+        assertEquals( ( count-1 ) & ~1, t.getF2() );
+        assertEquals( 1, t.getNumbers().size() );
+        assertTrue( t.getNumbers().contains( count-1 ) );
+        
+        e = new VersionedObjectEditor<TestObject>( t, resolvFactory );
+        e.changeToVersion( branch );
+        assertEquals( 1000, t.getF1() );
+        assertEquals( 6, t.getF2() );
+        assertEquals( 2, t.getNumbers().size() );
+        assertTrue( t.getNumbers().contains( 7 ) );
+        assertTrue( t.getNumbers().contains( 1000 ) );
+        
+        Map<String, FieldChange> state = t.getHistory().getFieldState( head );
+        assertEquals( count-1, ((ValueChange)state.get( "f1" )).getValue() );
+    }
+    
     @Test
     public void testMerge() {
         TestObject t = new TestObject();
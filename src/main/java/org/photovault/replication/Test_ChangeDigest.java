@@ -0,0 +1,138 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+
+package org.photovault.replication;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import org.hibernate.Transaction;
+import org.hibernate.classic.Session;
+import org.hibernate.jdbc.Work;
+import org.photovault.imginfo.PhotoInfo;
+import org.photovault.persistence.HibernateUtil;
+import org.photovault.test.PhotovaultTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link ChangeDigest}
+ */
+public class Test_ChangeDigest extends PhotovaultTestCase {
+    private Session session;
+
+    @Override
+    @BeforeMethod
+    public void setUp() {
+        session = HibernateUtil.getSessionFactory().openSession();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        session.close();
+    }
+
+    @Test
+    public void testDigest() {
+        UUID c1 = UUID.randomUUID();
+        UUID c2 = UUID.randomUUID();
+        ChangeDigest.Digest d1 = new ChangeDigest.Digest();
+        d1.add( c1 );
+        d1.add( c2 );
+        ChangeDigest.Digest d2 = new ChangeDigest.Digest();
+        d2.add( c2 );
+        d2.add( c1 );
+        assertEquals( d1, d2 );
+        assertEquals( d1.hashCode(), d2.hashCode() );
+        d2.add( c2 );
+        assertFalse( d1.equals( d2 ) );
+        d2.add( c2 );
+        assertEquals( d1, d2 );
+    }
+
+    @Test
+    public void testBuckets() {
+        assertEquals( 0, ChangeDigest.getBucket( 
+                UUID.fromString( "00000000-ffff-ffff-ffff-ffffffffffff" ) ) );
+        assertEquals( ChangeDigest.BUCKET_COUNT - 1, ChangeDigest.getBucket( 
+                UUID.fromString( "fff00000-0000-0000-0000-000000000000" ) ) );
+
+        ChangeDigest.Digest[] leaves = 
+                new ChangeDigest.Digest[ChangeDigest.BUCKET_COUNT];
+        for ( int n = 0 ; n < leaves.length ; n++ ) {
+            leaves[n] = new ChangeDigest.Digest();
+        }
+        UUID c = UUID.randomUUID();
+        leaves[ChangeDigest.BUCKET_COUNT - 1].add( c );
+        ChangeDigest.Digest expected = new ChangeDigest.Digest();
+        expected.add( c );
+        for ( int level = 0 ; level <= ChangeDigest.LEAF_LEVEL ; level++ ) {
+            ChangeDigest.Digest[] digests = 
+                    ChangeDigest.getLevelDigests( leaves, level );
+            assertEquals( 1 << ( 4 * level ), digests.length );
+            assertEquals( expected, digests[digests.length-1] );
+            assertEquals( new ChangeDigest.Digest(), digests[0] );
+        }
+    }
+
+    /**
+     Verify that incrementally updated digests match digests calculated from
+     pv_changes after new changes are persisted.
+     */
+    @Test
+    public void testIncrementalUpdate() {
+        DTOResolverFactory rf = new HibernateDtoResolverFactory( session );
+        Transaction tx = session.beginTransaction();
+        PhotoInfo p = PhotoInfo.create();
+        VersionedObjectEditor<PhotoInfo> e1 = new VersionedObjectEditor<PhotoInfo>( p, rf );
+        e1.apply();
+        VersionedObjectEditor<PhotoInfo> e2 = new VersionedObjectEditor<PhotoInfo>( p, rf );
+        e2.setField( "camera", "Canon 30D" );
+        e2.apply();
+        session.saveOrUpdate( p );
+        session.flush();
+
+        ChangeDigest.Digest[] incremental = 
+                ChangeDigest.readLeafDigests( session );
+        int bucket = ChangeDigest.getBucket( p.getUuid() );
+        Map<UUID, ChangeDigest.Digest> objects = 
+                ChangeDigest.readObjectDigests( session, bucket );
+        ChangeDigest.Digest expected = new ChangeDigest.Digest();
+        for ( Change<PhotoInfo> c : p.getHistory().getChanges() ) {
+            expected.add( c.getUuid() );
+        }
+        assertEquals( expected, objects.get( p.getUuid() ) );
+
+        session.doWork( new Work() {
+            public void execute( Connection con ) throws SQLException {
+                ChangeDigest.rebuild( con );
+            }
+        } );
+        ChangeDigest.Digest[] rebuilt = 
+                ChangeDigest.readLeafDigests( session );
+        assertTrue( Arrays.equals( rebuilt, incremental ) );
+        tx.rollback();
+    }
+}
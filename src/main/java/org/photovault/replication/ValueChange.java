@@ -288,7 +288,8 @@ final class ValueChange extends FieldChange implements Externalizable {
             }
         }
         for ( Map.Entry<String, Object> e : vc.propChanges.entrySet() ) {
-            if ( propsToAdd.contains( e.getKey() ) ) {
+            if ( propsToAdd.contains( e.getKey() ) && 
+                    !propChanges.containsKey( e.getKey() ) ) {
                 propChanges.put( e.getKey(), e.getValue() );
             }
         }
@@ -369,34 +370,70 @@ final class ValueChange extends FieldChange implements Externalizable {
             for ( Change c = baseline ; c != null ; c = c.getPrevChange() ) {
                 ValueChange fc = (ValueChange) c.getFieldChange( name );
                 if ( fc != null ) {
-                    try {
-                    Object prevValue = fc.getSubProperty( propName );
+                    Object prevValue = 
+                            fc.getPreviousValue( propName, "getReverse" );
                     if ( prevValue != null ) {
                         ret.addPropChange( propName, prevValue );
                         break;
                     }
-                    } catch ( IllegalAccessException ex ) {
-                        log.error( ex );
-                        throw new IllegalStateException(
-                                "Cannot query property " + propName +
-                                " in ValueChange.getReverse()", ex);
-                    } catch ( InvocationTargetException ex ) {
-                        log.error( ex );
-                        throw new IllegalStateException(
-                                "Cannot query property " + propName +
-                                " in ValueChange.getReverse()", ex);
-                    } catch ( NoSuchMethodException ex ) {
-                        log.error( ex );
-                        throw new IllegalStateException(
-                                "Cannot query property " + propName +
-                                " in ValueChange.getReverse()", ex);
-                    }
                 }
             }
         }
         return ret;
     }    
 
+    @Override
+    public FieldChange getReverseToState( FieldChange baseState ) {
+        ValueChange ret = new ValueChange();
+        ret.name = name;
+        if ( !( baseState instanceof ValueChange ) ) {
+            return ret;
+        }
+        ValueChange base = (ValueChange) baseState;
+        for ( String key: propChanges.keySet() ) {
+            String propName = getPropName( key );
+            Object prevValue = 
+                    base.getPreviousValue( propName, "getReverseToState" );
+            if ( prevValue != null ) {
+                ret.addPropChange( propName, prevValue );
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     Get value of a property that is needed for a reverse change
+     @param propName Name of the property
+     @param caller Name of the calling method, used in error message
+     @return Value of the property or <code>null</code> if this change does 
+     not set it
+     @throws IllegalStateException if the property cannot be read
+     */
+    private Object getPreviousValue( String propName, String caller ) {
+        try {
+            return getSubProperty( propName );
+        } catch ( IllegalAccessException ex ) {
+            log.error( ex );
+            throw new IllegalStateException( "Cannot query property " + 
+                    propName + " in ValueChange." + caller + "()", ex );
+        } catch ( InvocationTargetException ex ) {
+            log.error( ex );
+            throw new IllegalStateException( "Cannot query property " + 
+                    propName + " in ValueChange." + caller + "()", ex );
+        } catch ( NoSuchMethodException ex ) {
+            log.error( ex );
+            throw new IllegalStateException( "Cannot query property " + 
+                    propName + " in ValueChange." + caller + "()", ex );
+        }
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        ValueChange ret = (ValueChange) super.clone();
+        ret.propChanges = new TreeMap<String, Object>( propChanges );
+        return ret;
+    }
+
     @Override
     public String toString() {
         StringBuffer buf = new StringBuffer();
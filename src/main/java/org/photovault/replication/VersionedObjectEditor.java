@@ -357,18 +357,7 @@ public class VersionedObjectEditor<T> {
         }
         
         // Find the common ancestor between these versions
-        Set<Change<T>> oldAncestors = new HashSet<Change<T>>();
-        for ( Change<T> c = oldVersion ; c != null ; c = c.getPrevChange() ) {
-            oldAncestors.add( c );
-        }
-        
-        Change<T> commonBase = null;
-        for ( Change<T> c = newVersion ; c != null ; c = c.getPrevChange() ) {
-            if ( oldAncestors.contains( c ) ) {
-                commonBase = c;
-                break;
-            }
-        }
+        Change<T> commonBase = Change.findCommonBase( oldVersion, newVersion );
         
         /*
          Find out the fields that were changed between old version and common 
@@ -392,20 +381,28 @@ public class VersionedObjectEditor<T> {
         }
 
         /*
-         Find out the changes between common base and new version
+         Find out the changes between common base and new version. If there
+         is no common base (e.g. the object is being constructed) use the 
+         state from history snapshots instead of walking through all changes.
          */
         Map<String, FieldChange> baseToNewVersion = 
                 new HashMap<String, FieldChange>();
-        for ( Change<T> c = newVersion ; c != commonBase ; c = c.getPrevChange() ) {
-            for ( FieldChange fc : c.getChangedFields().values() ) {
-                FieldChange ofc = baseToNewVersion.get( fc.getName() );
-                if ( ofc != null ) {
-                    ofc.addEarlier( fc );
-                } else {
-                    try {
-                        baseToNewVersion.put( fc.getName(), (FieldChange) fc.clone() );
-                    } catch ( CloneNotSupportedException ex ) {
-                        log.error( ex );
+        if ( commonBase == null ) {
+            if ( newVersion != null ) {
+                baseToNewVersion = history.getFieldState( newVersion );
+            }
+        } else {
+            for ( Change<T> c = newVersion ; c != commonBase ; c = c.getPrevChange() ) {
+                for ( FieldChange fc : c.getChangedFields().values() ) {
+                    FieldChange ofc = baseToNewVersion.get( fc.getName() );
+                    if ( ofc != null ) {
+                        ofc.addEarlier( fc );
+                    } else {
+                        try {
+                            baseToNewVersion.put( fc.getName(), (FieldChange) fc.clone() );
+                        } catch ( CloneNotSupportedException ex ) {
+                            log.error( ex );
+                        }
                     }
                 }
             }
@@ -416,8 +413,10 @@ public class VersionedObjectEditor<T> {
          new version. If field was changed between common base and old version,
          apply the reverse change before change from base to new version
          */
+        Map<String, FieldChange> baseState = baseToOldVersion.isEmpty() ? 
+            null : history.getFieldState( commonBase );
         for ( FieldChange fc : baseToOldVersion.values() ) {
-            FieldChange reverse = fc.getReverse( commonBase );
+            FieldChange reverse = fc.getReverseToState( baseState.get( fc.getName() ) );
             FieldChange nfc = baseToNewVersion.get( reverse.getName() );
             if ( nfc != null ) {
                 nfc.addEarlier( reverse );
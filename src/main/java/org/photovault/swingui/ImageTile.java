@@ -50,7 +50,18 @@ public class ImageTile implements TileComputationListener {
     int tileX;
     int tileY;
     JComponent comp;
-    TileRequest tileReq;
+    /**
+     Pending request for computing this tile or <code>null</code> if none. 
+     This is cleared in tile computation callbacks that are called by tile 
+     scheduler threads.
+     */
+    volatile TileRequest tileReq;
+    /**
+     Set if computing this tile has failed. A failed tile is not requested 
+     again, as it would fail again on every repaint. A new tile object is 
+     created when the displayed image changes.
+     */
+    volatile boolean failed;
     int tileWidth;
     int tileHeight;
     Rectangle bounds;
@@ -71,29 +82,76 @@ public class ImageTile implements TileComputationListener {
      * for computing it.
      * @param cache
      * @param g
+     * @return <code>true</code> if the tile was drawn, <code>false</code> if
+     * it is still being computed.
+     */
+    public boolean drawTile( TileCache cache, Graphics2D g ) {
+        if ( drawCachedTile( cache, g ) ) {
+            return true;
+        }
+        if ( tileReq == null && !failed ) {
+            Point[] tileCoord = new Point[1];
+            tileCoord[0] = new Point( tileX, tileY );
+            tileReq = img.queueTiles( tileCoord );
+        }
+        return false;
+    }
+
+    /**
+     * Draws the tile if it is found in cache but does not request computing 
+     * it otherwise.
+     * @param cache
+     * @param g
+     * @return <code>true</code> if the tile was drawn
      */
-    public void drawTile( TileCache cache, Graphics2D g ) {
+    public boolean drawCachedTile( TileCache cache, Graphics2D g ) {
         Raster r = cache.getTile( img, tileX, tileY );
         if ( r == null ) {
-            if ( tileReq == null ) {
-                Point[] tileCoord = new Point[1];
-                tileCoord[0] = new Point( tileX, tileY );
-                tileReq = img.queueTiles( tileCoord );
-            }
-        } else {
-            DataBuffer buf = r.getDataBuffer();
-            SampleModel sm = r.getSampleModel();
-            WritableRaster wr = Raster.createWritableRaster( sm, buf, new Point(
-                    0, 0 ) );
-            ColorModel cm = img.getColorModel();
-            BufferedImage bufImg = new BufferedImage( cm, wr, false, null );
-            g.drawImage( bufImg, null, tileX*tileWidth, tileY*tileHeight );
+            return false;
+        }
+        DataBuffer buf = r.getDataBuffer();
+        SampleModel sm = r.getSampleModel();
+        WritableRaster wr = Raster.createWritableRaster( sm, buf, new Point(
+                0, 0 ) );
+        ColorModel cm = img.getColorModel();
+        BufferedImage bufImg = new BufferedImage( cm, wr, false, null );
+        g.drawImage( bufImg, null, tileX*tileWidth, tileY*tileHeight );
+        return true;
+    }
+    
+    /**
+     * Check whether the tile has been computed
+     * @param cache
+     * @return <code>true</code> if the tile is found in cache
+     */
+    public boolean isCached( TileCache cache ) {
+        return cache.getTile( img, tileX, tileY ) != null;
+    }
+    
+    /**
+     * Cancel pending request for computing this tile, e.g. because it is not
+     * visible anymore. Computation that has already started is not 
+     * interrupted.
+     */
+    public void cancel() {
+        TileRequest req = tileReq;
+        if ( req != null ) {
+            tileReq = null;
+            img.cancelTiles( req, null );
         }
     }
 
     public Rectangle getBounds() {
         return bounds;
     }
+    
+    /**
+     * Check whether computing the tile has failed
+     * @return <code>true</code> if the tile could not be computed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
 
     public void tileComputed( Object o, TileRequest[] trs, PlanarImage pi, int i,
             int i1, Raster raster ) {
@@ -109,7 +167,8 @@ public class ImageTile implements TileComputationListener {
 
     public void tileComputationFailure( Object o, TileRequest[] trs,
             PlanarImage pi, int i, int i1, Throwable thrwbl ) {
+        failed = true;
         tileReq = null;
-        log.debug( "tileComputationFailure " + tileX + ", " + tileY + ": " + thrwbl );
+        log.warn( "Cannot compute tile " + tileX + ", " + tileY + ": " + thrwbl );
     }
 }
@@ -116,19 +116,33 @@ public class JAIPhotoView extends JPanel
 
         public void tileComputed( Object o, TileRequest[] trs, PlanarImage pi,
                 int tilex, int tiley, Raster raster ) {
+            ImageTile tile = view.getImageTile( pi, tilex, tiley );
+            if ( tile == null ) {
+                // Tile of an image that is not displayed anymore
+                return;
+            }
+            tile.tileComputed( o, trs, pi, tilex, tiley, raster );
             int x = view.imgX + pi.getTileWidth() * tilex;
-            int y = view.imgY + pi.getTileWidth() * tiley;
+            int y = view.imgY + pi.getTileHeight() * tiley;
             view.repaint( x, y, pi.getTileWidth(), pi.getTileHeight() );
         }
 
         public void tileCancelled( Object o, TileRequest[] trs, PlanarImage pi,
                 int x, int y ) {
             log.debug( "tileCancelled("+ x + ", " + y + ")" );
+            ImageTile tile = view.getImageTile( pi, x, y );
+            if ( tile != null ) {
+                tile.tileCancelled( o, trs, pi, x, y );
+            }
         }
 
         public void tileComputationFailure( Object o, TileRequest[] trs,
                 PlanarImage pi, int x, int y, Throwable thrwbl ) {
             log.debug( "tileComputationFailure ("+ x + ", " + y + "): " + thrwbl );
+            ImageTile tile = view.getImageTile( pi, x, y );
+            if ( tile != null ) {
+                tile.tileComputationFailure( o, trs, pi, x, y, thrwbl );
+            }
         }
 
     }
@@ -151,7 +165,18 @@ public class JAIPhotoView extends JPanel
 	    imgY = (compHeight-imgHeight)/2;
             g2.translate( imgX, imgY );
             Shape oldClip = g2.getClip();
-            g2.setClip( 0, 0, xformImage.getWidth(), xformImage.getHeight() );
+            g2.clipRect( 0, 0, xformImage.getWidth(), xformImage.getHeight() );
+            if ( proxy != null ) {
+                drawProxy( g2, imgWidth, imgHeight );
+            }
+            /*
+             Draw the tiles that are already computed and request computing
+             the missing ones that are visible. Requests for tiles that have
+             been scrolled out of view are cancelled.
+             */
+            Rectangle visible = getVisibleRect();
+            visible.translate( -imgX, -imgY );
+            boolean complete = true;
             int xTileCount = xformImage.getNumXTiles();
             int yTileCount = xformImage.getNumYTiles();
             TileCache cache = JAI.getDefaultInstance().getTileCache();
@@ -159,14 +184,27 @@ public class JAIPhotoView extends JPanel
                 for ( int xtile = 0; xtile < xTileCount ; xtile++ ) {
                     ImageTile tile = xformImageTiles[xtile][ytile];
                     Rectangle tileBounds = tile.getBounds();
+                    boolean isVisible = tileBounds.intersects( visible );
                     if ( g2.hitClip( (int) tileBounds.getMinX(),
                             (int) tileBounds.getMinY(),
                             (int) tileBounds.getWidth(),
                             (int) tileBounds.getHeight() ) ) {
-                        xformImageTiles[xtile][ytile].drawTile( cache, g2 );
+                        if ( !tile.drawTile( cache, g2 ) && isVisible ) {
+                            complete = false;
+                        }
+                    } else if ( isVisible ) {
+                        if ( !tile.isCached( cache ) ) {
+                            complete = false;
+                        }
+                    } else {
+                        tile.cancel();
                     }
                 }
             }
+            if ( complete ) {
+                // All visible tiles are ready, the proxy is not needed anymore
+                proxy = null;
+            }
             g2.setClip( oldClip );
 //            g2.drawRenderedImage( xformImage, new AffineTransform(1f,0f,0f,1f, imgX, imgY) );
             g2.translate( -imgX, -imgY );
@@ -693,11 +731,29 @@ public class JAIPhotoView extends JPanel
      @param img The image
      */
     public void setImage( PhotovaultImage img ) {
+        invalidateXformImage( false );
+        if ( origImage != null ) {
+            origImage.dispose();
+        }
+	origImage = img;
+        fireImageChangedEvent( new PhotoViewEvent( this ) );
+ 	repaint();
+    }
+    
+    /**
+     Replace the displayed image with another instance of the same photo, e.g. 
+     one with a different resolution. Current rendering is shown as a proxy 
+     until the tiles of the new image have been computed. Crop and rotation
+     can be adjusted to match the new instance before the view is repainted.
+     @param img The new image
+     */
+    public void replaceImage( PhotovaultImage img ) {
+        invalidateXformImage( true );
+        replacingImage = true;
         if ( origImage != null ) {
             origImage.dispose();
         }
 	origImage = img;
-	xformImage = null;
         fireImageChangedEvent( new PhotoViewEvent( this ) );
  	repaint();
     }
@@ -732,7 +788,7 @@ public class JAIPhotoView extends JPanel
      */
     public void setScale( float newValue ) {
 	imgScale = newValue;
-	xformImage = null;
+	invalidateXformImage( true );
 	fitSize = false;
 	revalidate();
         // Revalidate issues a paint request if the component's size changes. 
@@ -750,7 +806,7 @@ public class JAIPhotoView extends JPanel
      */
     public void setRotation( double newRot ) {
 	newRotDegrees = newRot;
-	xformImage = null;
+	invalidateXformImage( replacingImage );
 	revalidate();
         repaint();
     }
@@ -765,7 +821,7 @@ public class JAIPhotoView extends JPanel
      */
     public void setCrop( Rectangle2D crop ) {
         newCrop = (Rectangle2D) crop.clone();
-        xformImage = null;
+        invalidateXformImage( replacingImage );
         updateCropParamEditor();
         revalidate();
         repaint();
@@ -779,7 +835,7 @@ public class JAIPhotoView extends JPanel
     void setSaturation(double newSat) {
         if ( origImage != null ) {
             origImage.setSaturation( newSat );
-            xformImage = null;
+            invalidateXformImage( true );
             repaint();
         }
     }
@@ -799,7 +855,7 @@ public class JAIPhotoView extends JPanel
             ChannelMapOperationFactory f = new ChannelMapOperationFactory( cm );
             f.setChannelCurve( name, c );
             origImage.setColorAdjustment( f.create() );
-            xformImage = null;
+            invalidateXformImage( true );
             repaint();
         }
     }
@@ -850,7 +906,7 @@ public class JAIPhotoView extends JPanel
     public void setDrawCropped( boolean cropped ) {
         drawCropped = cropped;
         paramEditor.setVisible( !drawCropped );
-        xformImage = null;
+        invalidateXformImage( false );
         revalidate();
         repaint();
     }
@@ -896,16 +952,122 @@ public class JAIPhotoView extends JPanel
 	maxWidth = width;
 	maxHeight = height;
 	// Revalidate the geometry & image size
-	xformImage = null;
+	invalidateXformImage( true );
         revalidate();
 	repaint();
     }
     
+    /**
+     Discard current rendering so that it will be rebuilt when the view is 
+     painted next time. Pending tile requests are cancelled.
+     @param keepProxy If <code>true</code>, the visible part of current 
+     rendering is saved and shown scaled until the new tiles are computed. 
+     This should be used only if the new rendering differs just in scale or 
+     colors.
+     */
+    private void invalidateXformImage( boolean keepProxy ) {
+        if ( keepProxy ) {
+            saveProxy();
+        } else {
+            proxy = null;
+        }
+        if ( xformImageTiles != null ) {
+            for ( ImageTile[] column : xformImageTiles ) {
+                for ( ImageTile tile : column ) {
+                    tile.cancel();
+                }
+            }
+        }
+        if ( xformImage != null && tileListener != null ) {
+            ((PlanarImage) xformImage).removeTileComputationListener( tileListener );
+        }
+        xformImage = null;
+        xformImageTiles = null;
+    }
+    
+    /**
+     Save the visible part of current rendering as proxy image. The tiles that 
+     have not yet been computed are taken from the previous proxy. If there is 
+     no current rendering the previous proxy is retained.
+     */
+    private void saveProxy() {
+        if ( xformImage == null || xformImageTiles == null ) {
+            return;
+        }
+        int width = xformImage.getWidth();
+        int height = xformImage.getHeight();
+        Rectangle visible = getVisibleRect();
+        visible.translate( -imgX, -imgY );
+        Rectangle r = visible.intersection( new Rectangle( 0, 0, width, height ) );
+        if ( r.isEmpty() ) {
+            proxy = null;
+            return;
+        }
+        BufferedImage snapshot = 
+                new BufferedImage( r.width, r.height, BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = snapshot.createGraphics();
+        g.translate( -r.x, -r.y );
+        if ( proxy != null ) {
+            drawProxy( g, width, height );
+        }
+        TileCache cache = JAI.getDefaultInstance().getTileCache();
+        for ( ImageTile[] column : xformImageTiles ) {
+            for ( ImageTile tile : column ) {
+                if ( tile.getBounds().intersects( r ) ) {
+                    tile.drawCachedTile( cache, g );
+                }
+            }
+        }
+        g.dispose();
+        proxy = snapshot;
+        proxyBounds = r;
+        proxyImgWidth = width;
+        proxyImgHeight = height;
+    }
+    
+    /**
+     Draw the proxy image scaled to current rendering
+     @param g Graphics context, in coordinates of the rendering
+     @param width Width of current rendering
+     @param height Height of current rendering
+     */
+    private void drawProxy( Graphics2D g, int width, int height ) {
+        double sx = ((double) width) / proxyImgWidth;
+        double sy = ((double) height) / proxyImgHeight;
+        Object oldInterpolation = g.getRenderingHint( RenderingHints.KEY_INTERPOLATION );
+        g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, 
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+        g.drawImage( proxy, 
+                (int) ( proxyBounds.x * sx ), (int) ( proxyBounds.y * sy ),
+                (int) Math.ceil( proxyBounds.width * sx ), 
+                (int) Math.ceil( proxyBounds.height * sy ), null );
+        if ( oldInterpolation != null ) {
+            g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, oldInterpolation );
+        }
+    }
+    
+    /**
+     Get the tile painter for a tile of current rendering
+     @param img The image whose tile is requested
+     @param tileX Tile column
+     @param tileY Tile row
+     @return The tile or <code>null</code> if img is not the current rendering
+     */
+    ImageTile getImageTile( PlanarImage img, int tileX, int tileY ) {
+        ImageTile[][] tiles = xformImageTiles;
+        if ( img != xformImage || tiles == null || tileX < 0 || 
+                tileX >= tiles.length || tileY < 0 || tileY >= tiles[tileX].length ) {
+            return null;
+        }
+        return tiles[tileX][tileY];
+    }
+    
     /**
      Rebuilds the zoomed, cropped & rotated image to show 
      */
     private void buildXformImage() {
         Cursor oldCursor = getCursor();
+        replacingImage = false;
         try {
             
             imgRot = newRotDegrees;
@@ -946,8 +1108,10 @@ public class JAIPhotoView extends JPanel
                             xtile, ytile);
                 }
             }
-            ((PlanarImage)xformImage).addTileComputationListener(
-                    new ImageTileComputationListener( this ) );
+            if ( tileListener == null ) {
+                tileListener = new ImageTileComputationListener( this );
+            }
+            ((PlanarImage)xformImage).addTileComputationListener( tileListener );
 
             cropBorderXpoints = null;
             cropBorderYpoints = null;
@@ -1158,6 +1322,39 @@ public class JAIPhotoView extends JPanel
     PhotovaultImage origImage = null;
     RenderedImage xformImage = null;
     ImageTile[][] xformImageTiles = null;
+    
+    /**
+     Listener that repaints tiles of xformImage after they are computed
+     */
+    ImageTileComputationListener tileListener = null;
+    
+    /**
+     Low resolution version of previous rendering that is drawn while tiles of
+     xformImage are computed, or <code>null</code> if none.
+     */
+    BufferedImage proxy = null;
+    
+    /**
+     Area of the previous rendering that is covered by proxy
+     */
+    Rectangle proxyBounds = null;
+    
+    /**
+     Width of the rendering from which proxy was created
+     */
+    int proxyImgWidth;
+    
+    /**
+     Height of the rendering from which proxy was created
+     */
+    int proxyImgHeight;
+    
+    /**
+     <code>true</code> after {@link #replaceImage} until the new image is 
+     rendered. Crop and rotation changes during this time do not discard 
+     the proxy.
+     */
+    boolean replacingImage = false;
 
     // scale of the image
     float imgScale = 1.0f;
@@ -91,13 +91,44 @@ public class JAIPhotoViewer extends JPanel implements
     
     float rawConvScaling = 1.0f;
     
+    /**
+     Resolution of the displayed instance compared to the original image (or 
+     to the cropped original if the instance is already cropped).
+     */
+    double instanceScale = 1.0;
+    
+    /**
+     Descriptor of the displayed instance
+     */
+    ImageDescriptorBase currentInstance = null;
+    
+    /**
+     Set the zoom scale. If the displayed instance does not have enough 
+     resolution for the new scale, or if a smaller instance (like a lower
+     level of preview pyramid) would be sufficient, the instance is changed.
+     @param scale The new scale, 1.0 means one pixel of the original image per
+     screen pixel.
+     */
     public void setScale( float scale ) {
         isFit = false;
-        imageView.setScale(scale);
+        if ( photo != null ) {
+            Dimension croppedSize = photo.getCroppedSize();
+            ImageDescriptorBase image = findBestInstance( 
+                    (int) Math.ceil( croppedSize.getWidth() * scale ),
+                    (int) Math.ceil( croppedSize.getHeight() * scale ) );
+            if ( image != null && image != currentInstance ) {
+                try {
+                    showInstance( image );
+                } catch ( PhotovaultException ex ) {
+                    log.error( "Cannot change displayed instance: " + ex.getMessage() );
+                }
+            }
+        }
+        imageView.setScale( (float) ( scale / instanceScale ) );
     }
 
     public float getScale() {
-	return imageView.getScale() * rawConvScaling;
+	return (float) ( imageView.getScale() * instanceScale ) * rawConvScaling;
     }
 
     public void fit() {
@@ -164,6 +195,8 @@ public class JAIPhotoViewer extends JPanel implements
 	this.photo = photo;
 	if ( photo == null ) {
 	    setImage( null );
+            currentInstance = null;
+            instanceScale = 1.0;
             fireViewChangeEvent();
 	    return;
 	}
@@ -174,6 +207,7 @@ public class JAIPhotoViewer extends JPanel implements
         log.debug( "JAIPhotoViewer.setPhoto() photo="  + photo.getUuid() );
 
 	photo.addChangeListener( this );
+        currentInstance = null;
         try {
             showBestInstance();
         } catch (PhotovaultException ex) {
@@ -190,22 +224,52 @@ public class JAIPhotoViewer extends JPanel implements
      
      */
     private void showBestInstance() throws PhotovaultException {
-        EnumSet<ImageOperations> allowedOps = EnumSet.allOf( ImageOperations.class );
-        allowedOps.removeAll( dynOps );
         int w = imageView.getWidth();
         int h = imageView.getHeight();
         Dimension croppedSize = photo.getCroppedSize();
-        double ar = croppedSize.getWidth() / croppedSize.getHeight();
-        if ( w > ar * h ) {
-            w = (int) (h * ar);
+        if ( isFit ) {
+            double ar = croppedSize.getWidth() / croppedSize.getHeight();
+            if ( w > ar * h ) {
+                w = (int) (h * ar);
+            } else {
+                h = (int)(w / ar);
+            }
         } else {
-            h = (int)(w / ar);
+            // Resolution needed for current zoom level
+            w = (int) Math.ceil( croppedSize.getWidth() * getScale() );
+            h = (int) Math.ceil( croppedSize.getHeight() * getScale() );
         }
-        ImageDescriptorBase image = photo.getPreferredImage( 
+        showInstance( findBestInstance( w, h ) );
+    }
+    
+    /**
+     Find the smallest instance of current photo that has at least given 
+     resolution after cropping and in which none of the operations in 
+     {@link dynOps} is preapplied.
+     @param w Minimum width of the cropped image
+     @param h Minimum height of the cropped image
+     @return The instance or <code>null</code> if no suitable instance is 
+     available.
+     */
+    private ImageDescriptorBase findBestInstance( int w, int h ) {
+        EnumSet<ImageOperations> allowedOps = EnumSet.allOf( ImageOperations.class );
+        allowedOps.removeAll( dynOps );
+        return photo.getPreferredImage( 
                 EnumSet.noneOf( ImageOperations.class ),
                 allowedOps,
                 w, h,
                 Integer.MAX_VALUE, Integer.MAX_VALUE );
+    }
+    
+    /**
+     Load an instance of current photo and show it, applying the operations 
+     that have not been applied in the instance.
+     @param image The instance to show
+     @throws PhotovaultException if the instance is not available.
+     */
+    private void showInstance( ImageDescriptorBase image ) 
+            throws PhotovaultException {
+        float oldScale = getScale();
         if ( image != null && image.getLocator().equals( "image#0" ) ) {
             File imageFile = image.getFile().findAvailableCopy();
             if ( imageFile != null && imageFile.canRead() ) {
@@ -250,14 +314,21 @@ public class JAIPhotoViewer extends JPanel implements
                         // Check the correct resolution for this image
                         if ( isFit ) {
                             fit(  );
-                        } else {
-                            setScale( getScale(  ) );
                         }
                     } else {
                         rawImage = null;
                         rawConvScaling = 1.0f;
                     }
                 }
+                if ( currentInstance != null ) {
+                    /*
+                     Another instance of the same photo is displayed, show it
+                     as a proxy until the new one is rendered
+                     */
+                    imageView.replaceImage( img );
+                } else {
+                    setImage( img );
+                }
                 if ( image instanceof CopyImageDescriptor ) {
                     // This is a copy, so it may be cropped already
                     appliedOps = ((CopyImageDescriptor) image).getAppliedOperations(  );
@@ -278,18 +349,40 @@ public class JAIPhotoViewer extends JPanel implements
                     imageView.setRotation( photo.getPrefRotation(  )  );
                     imageView.setCrop( photo.getCropBounds(  ) );
                 }
-                setImage( img );
+                currentInstance = image;
+                instanceScale = getInstanceScale( image );
+                if ( !isFit ) {
+                    imageView.setScale( (float) ( oldScale / rawConvScaling / instanceScale ) );
+                }
                 fireViewChangeEvent(  );
                 return;
             }
         }
         // if we get this far no instance of the original image has been found
         setImage( null );
+        currentInstance = null;
+        instanceScale = 1.0;
         throw new PhotovaultException( "No suitable instance of photo " 
                 + photo.getUuid() + " found" );
         
     }
     
+    /**
+     Calculate resolution of an instance compared to the original
+     @param image The instance
+     @return Scale of the instance, relative to cropped original if cropping 
+     has been applied to the instance.
+     */
+    private double getInstanceScale( ImageDescriptorBase image ) {
+        if ( image instanceof CopyImageDescriptor ) {
+            CopyImageDescriptor copy = (CopyImageDescriptor) image;
+            if ( copy.getAppliedOperations().contains( ImageOperations.CROP ) ) {
+                return image.getWidth() / photo.getCroppedSize().getWidth();
+            }
+        }
+        return ((double) image.getWidth()) / photo.getOriginal().getWidth();
+    }
+    
     // Rotation of the currently displayed instance (compared to the original)
     double instanceRotation = 0;
     
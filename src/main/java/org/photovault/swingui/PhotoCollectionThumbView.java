@@ -36,10 +36,15 @@ import java.awt.Toolkit;
 import java.awt.event.ComponentEvent;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import org.photovault.command.CommandException;
 import org.photovault.dbhelper.ODMGXAWrapper;
 import org.photovault.imginfo.FuzzyDate;
+import org.photovault.imginfo.PagedPhotoList;
 import org.photovault.imginfo.PhotoCollection;
 import org.photovault.imginfo.PhotoCollectionChangeEvent;
 import org.photovault.imginfo.PhotoCollectionChangeListener;
@@ -88,6 +93,8 @@ import org.photovault.imginfo.CreateCopyImageCommand;
 import org.photovault.imginfo.CreatePreviewImagesTask;
 import org.photovault.imginfo.Volume;
 import org.photovault.imginfo.VolumeDAO;
+import org.photovault.swingui.taskscheduler.BackgroundTaskListener;
+import org.photovault.swingui.taskscheduler.SwingWorkerTaskScheduler;
 import org.photovault.swingui.taskscheduler.TaskPriority;
 import org.photovault.taskscheduler.TaskProducer;
 import org.photovault.taskscheduler.BackgroundTask;
@@ -106,6 +113,15 @@ import org.photovault.taskscheduler.BackgroundTask;
    <li> Automatic fetching and creation of thumbnails on background if
    these do not exist </li> </ul>
 
+   <h1> Thumbnail loading</h1>
+
+   Thumbnails are never loaded while painting. Instead, a placeholder is
+   painted and the thumbnails of visible photos are loaded by a
+   {@link ThumbnailLoader} in background. After visible photos, thumbnails of
+   the next {@link #PREFETCH_ROWS} rows in scrolling direction are prefetched.
+   Requests for photos that have been scrolled out of view before their
+   loading started are cancelled.
+
    <h1> Selection & drag-n-drop logic</h1>
 
    <ul> <li> If mouse is pressed between images, the drag is
@@ -151,52 +167,156 @@ public class PhotoCollectionThumbView
     }
 
     
+    /**
+     Set the photos shown in this view. Normally the photos are copied, but a 
+     {@link PagedPhotoList} is used directly so that only the pages that are 
+     displayed are loaded. In that case the list adds change listener to 
+     photos of the pages it loads.
+     @param photos The photos to show
+     */
     public void setPhotos( List<PhotoInfo> photos ) {
-        for ( PhotoInfo photo : this.photos ) {
-	    photo.removeChangeListener( this );
-	}
+        if ( this.photos instanceof PagedPhotoList ) {
+            PagedPhotoList pagedPhotos = (PagedPhotoList) this.photos;
+            pagedPhotos.removePhotoChangeListener( this );
+            pagedPhotos.removePhotoCollectionChangeListener( this );
+        } else {
+            for ( PhotoInfo photo : this.photos ) {
+                photo.removeChangeListener( this );
+            }
+        }
+        clearThumbnailState();
 	
-	this.photos.clear();
-
-        if ( photos != null ) {
-            for ( Object o : photos ) {
-                PhotoInfo photo = (PhotoInfo) o;
-                photo.addChangeListener( this );
-                this.photos.add( photo );
+        if ( photos instanceof PagedPhotoList ) {
+            PagedPhotoList pagedPhotos = (PagedPhotoList) photos;
+            pagedPhotos.addPhotoChangeListener( this );
+            pagedPhotos.addPhotoCollectionChangeListener( this );
+            this.photos = photos;
+        } else {
+            this.photos = new ArrayList<PhotoInfo>();
+            if ( photos != null ) {
+                for ( Object o : photos ) {
+                    PhotoInfo photo = (PhotoInfo) o;
+                    photo.addChangeListener( this );
+                    this.photos.add( photo );
+                }
             }
         }
         revalidate();
         repaint();
     }
-   
+    
     public List<PhotoInfo> getPhotos() {
         return Collections.unmodifiableList( photos );
     }
 
 
     /**
-       Removes all change listeners this photo has added, repopulates the photos array
-       from current photoCollection and adds change listeners to all photos in it.
+       Removes all change listeners this view has added and adds them again to 
+       the photos shown. The photo list is not modified, as a 
+       {@link PagedPhotoList} cannot be changed and it maintains the 
+       listeners of its photos itself.
     */
     private void refreshPhotoChangeListeners() {
+        if ( photos instanceof PagedPhotoList ) {
+            return;
+        }
 	// remove change listeners from all existing photos
-	Iterator iter = photos.iterator();
-	while ( iter.hasNext() ) {
-	    PhotoInfo photo = (PhotoInfo) iter.next();
+        for ( PhotoInfo photo : photos ) {
 	    photo.removeChangeListener( this );
 	}
 	
-	photos.clear();
-	
 	// Add the change listeners to all photos so that we are aware of modifications
-	for ( int n = 0; n < photos.size(); n++ ) {
-	    PhotoInfo photo = photos.get( n );
+        for ( PhotoInfo photo : photos ) {
 	    photo.addChangeListener( this );
 	}
     }
 
     List<PhotoInfo> photos = new ArrayList<PhotoInfo>();
 
+    /**
+     Number of rows (or columns, if the view scrolls horizontally) outside the
+     visible area whose thumbnails are prefetched.
+     */
+    static final int PREFETCH_ROWS = 2;
+
+    /**
+     Number of threads used for loading thumbnails
+     */
+    static final int THUMBNAIL_LOADER_THREADS = 2;
+
+    /**
+     Loader for thumbnails, created when first needed
+     */
+    private ThumbnailLoader thumbLoader = null;
+
+    /**
+     Minimum number of photos whose thumbnail state is kept in memory
+     */
+    static final int MIN_CACHED_THUMBNAILS = 64;
+
+    /**
+     Maximum number of entries in loadedThumbnails, staleThumbnails and 
+     photosWithoutThumbnail. Set by requestThumbnails() so that it covers the
+     visible area and prefetched rows in both scrolling directions.
+     */
+    private int thumbnailCacheSize = MIN_CACHED_THUMBNAILS;
+
+    /**
+     Create a map that keeps only the thumbnailCacheSize most recently used
+     entries
+     */
+    private <V> Map<UUID, V> createThumbnailCache() {
+        return new LinkedHashMap<UUID, V>( 16, 0.75f, true ) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<UUID, V> eldest ) {
+                return size() > thumbnailCacheSize;
+            }
+        };
+    }
+
+    /**
+     Thumbnails loaded by thumbLoader, by photo UUID. The image data itself
+     is kept in {@link org.photovault.imginfo.ThumbnailCache}.
+     */
+    private Map<UUID, Thumbnail> loadedThumbnails = createThumbnailCache();
+
+    /**
+     Outdated thumbnails of changed photos that are shown until a new
+     thumbnail has been loaded
+     */
+    private Map<UUID, Thumbnail> staleThumbnails = createThumbnailCache();
+
+    /**
+     Photos for which the loader did not find a thumbnail. If a photo is 
+     dropped from this set the loader finds it again when it is scrolled into
+     view.
+     */
+    private Set<UUID> photosWithoutThumbnail = 
+            Collections.newSetFromMap( this.<Boolean>createThumbnailCache() );
+
+    /**
+     Indexes of photos whose thumbnails were last requested from loader
+     */
+    private Map<UUID, Integer> requestedPhotoIndexes = new HashMap<UUID, Integer>();
+
+    /**
+     Position of visible area when thumbnails were last requested, used for
+     determining scrolling direction
+     */
+    private Rectangle lastRequestRect = null;
+
+    /**
+     Last scroll direction, 1 if forward, -1 if backward
+     */
+    private int scrollDirection = 1;
+
+    /**
+     Has this view been registered as listener of background tasks?
+     */
+    private boolean isTaskListenerRegistered = false;
+
     
     /**
      * Get a currently selected photos
@@ -581,9 +701,11 @@ public class PhotoCollectionThumbView
         int row = 0;
         Rectangle thumbRect = new Rectangle();
         
-        for ( PhotoInfo photo : photos ) {
+        // Access only visible photos so that paged list loads only them
+        for ( int n = 0; n < photoCount; n++ ) {
             thumbRect.setBounds(col*columnWidth, row*rowHeight, columnWidth, rowHeight );
             if ( thumbRect.intersects( clipRect ) ) {
+                PhotoInfo photo = photos.get( n );
                 if ( photo != null ) {
                     paintThumbnail( g2, photo, col*columnWidth, row*rowHeight, selection.contains( photo ) );
                 }
@@ -595,6 +717,8 @@ public class PhotoCollectionThumbView
             }
         }
 
+        requestThumbnails();
+
 	// Paint the selection rectangle if needed
 	if ( dragSelectionRect != null ) {
 	    Stroke prevStroke = g2.getStroke();
@@ -622,42 +746,29 @@ public class PhotoCollectionThumbView
         int ypos = starty + rowHeight/2;
         boolean useOldThumbnail = false;
         
-        Thumbnail thumbnail = null;
         log.debug( "finding thumb" );
-        boolean hasThumbnail = photo.hasThumbnail();
-        log.debug( "asked if has thumb" );
-        if ( hasThumbnail ) {
-            log.debug( "Photo " + photo.getUuid() + " has thumbnail" );
-            thumbnail = photo.getThumbnail();
-            log.debug( "got thumbnail" );
-        } else {
+        Thumbnail thumbnail = loadedThumbnails.get( photo.getUuid() );
+        BufferedImage img = thumbnail != null ? thumbnail.getCachedImage() : null;
+        if ( img == null ) {
             /*
-             Check if the thumbnail has been just invalidated. If so, use the 
-             old one until we get the new thumbnail created.
+             The thumbnail is not yet loaded (it was requested by paint()). If 
+             the thumbnail has been just invalidated, use the old one until we 
+             get the new thumbnail.
              */
-            thumbnail = photo.getOldThumbnail();
-            if ( thumbnail != null ) {
+            thumbnail = staleThumbnails.get( photo.getUuid() );
+            img = thumbnail != null ? thumbnail.getCachedImage() : null;
+            if ( img != null ) {
                 useOldThumbnail = true;
             } else {
                 // No success, use default thumnail.
                 thumbnail = Thumbnail.getDefaultThumbnail();
+                img = thumbnail.getImage();
             }
-
-            // Inform background task scheduler that we have some work to do
-            ctrl.getBackgroundTaskScheduler().
-                    registerTaskProducer( this, 
-                    TaskPriority.CREATE_VISIBLE_THUMBNAIL );
         }
         thumbReadyTime = System.currentTimeMillis();
         
         log.debug( "starting to draw" );
         // Find the position for the thumbnail
-        BufferedImage img = thumbnail.getImage();
-        if ( img == null ) {
-            thumbnail = Thumbnail.getDefaultThumbnail();
-            img = thumbnail.getImage();
-        }
-
         float scaleX = ((float) thumbWidth) / ((float) img.getWidth());
         float scaleY = ((float) thumbHeight) / ((float) img.getHeight());
         float scale = Math.min(  scaleX, scaleY);
@@ -899,6 +1010,7 @@ public class PhotoCollectionThumbView
     */
     public void photoInfoChanged( PhotoInfoChangeEvent ev ) {
 	PhotoInfo photo = (PhotoInfo) ev.getSource();
+        thumbnailInvalidated( photo.getUuid() );
 	repaintPhoto( photo );
 	// Find the location of the photo
 
@@ -965,12 +1077,10 @@ public class PhotoCollectionThumbView
             // Get thumbnail dimensions or use defaults if no thumbnail available
             int width = thumbWidth;
             int height = thumbHeight;
-            Thumbnail thumb = null;
-            if ( photoCandidate.hasThumbnail() ) {
-                thumb = photoCandidate.getThumbnail();
-            }
-            if ( thumb != null ) {
-                BufferedImage img = thumb.getImage();
+            Thumbnail thumb = photoCandidate != null ?
+                loadedThumbnails.get( photoCandidate.getUuid() ) : null;
+            BufferedImage img = thumb != null ? thumb.getCachedImage() : null;
+            if ( img != null ) {
                 double scaleW = ((double)thumbWidth) / img.getWidth();
                 double scaleH = ((double)thumbHeight) / img.getHeight();
                 double scale = Math.min( scaleW, scaleH );
@@ -1171,9 +1281,10 @@ public class PhotoCollectionThumbView
                 Rectangle cellRect = getPhotoCellBounds( n );
                 if ( dragSelectionRect.intersects( cellRect ) ) {
                     Rectangle photoRect = getPhotoBounds( n );
-                    if ( dragSelectionRect.intersects( photoRect ) ) {
-                        selection.add( photos.get( n ) );
-                        repaintPhoto( photos.get( n ) );
+                    PhotoInfo photo = photos.get( n );
+                    if ( photo != null && dragSelectionRect.intersects( photoRect ) ) {
+                        selection.add( photo );
+                        repaintPhoto( photo );
                     }
                 }
 	    }
@@ -1277,7 +1388,10 @@ public class PhotoCollectionThumbView
             scrollRectToVisible( selectionBounds );
 
             selection.clear();
-            selection.add( photos.get( idx ));
+            PhotoInfo photo = photos.get( idx );
+            if ( photo != null ) {
+                selection.add( photo );
+            }
             fireSelectionChangeEvent();            
             repaint();
         }        
@@ -1297,7 +1411,10 @@ public class PhotoCollectionThumbView
             scrollRectToVisible( selectionBounds );
 
             selection.clear();
-            selection.add( photos.get( idx ));
+            PhotoInfo photo = photos.get( idx );
+            if ( photo != null ) {
+                selection.add( photo );
+            }
             fireSelectionChangeEvent();
             repaint();
         }        
@@ -1310,7 +1427,10 @@ public class PhotoCollectionThumbView
             scrollRectToVisible( selectionBounds );
             
             selection.clear();
-            selection.add( photos.get( 0 ));
+            PhotoInfo photo = photos.get( 0 );
+            if ( photo != null ) {
+                selection.add( photo );
+            }
             fireSelectionChangeEvent();
             repaint();
         }
@@ -1421,6 +1541,183 @@ public class PhotoCollectionThumbView
         return false;
     }
 
+    /**
+     Stop the thumbnail loader when the view is removed from its container. 
+     A new loader is created if the view is shown again.
+     */
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        if ( thumbLoader != null ) {
+            thumbLoader.shutdown();
+            thumbLoader = null;
+        }
+        clearThumbnailState();
+    }
+
+    /**
+     Forget all loaded thumbnails and pending requests
+     */
+    private void clearThumbnailState() {
+        loadedThumbnails.clear();
+        staleThumbnails.clear();
+        photosWithoutThumbnail.clear();
+        requestedPhotoIndexes.clear();
+        lastRequestRect = null;
+    }
+
+    /**
+     Request the thumbnails of visible photos and photos just outside the 
+     visible area from thumbnail loader. Requests made earlier that have not 
+     been started are cancelled.
+     */
+    private void requestThumbnails() {
+        Rectangle viewRect = getVisibleRect();
+        if ( viewRect.isEmpty() || photos.isEmpty() || 
+                columnsToPaint <= 0 || columnWidth <= 0 || rowHeight <= 0 ) {
+            return;
+        }
+        // Rows are added to the bottom if the view has fixed number of columns,
+        // otherwise to the right
+        boolean vertical = rowCount <= 0 || columnCount > 0;
+        if ( lastRequestRect != null ) {
+            int delta = vertical ? viewRect.y - lastRequestRect.y : 
+                viewRect.x - lastRequestRect.x;
+            if ( delta != 0 ) {
+                scrollDirection = delta > 0 ? 1 : -1;
+            }
+        }
+        lastRequestRect = new Rectangle( viewRect );
+        
+        Rectangle prefetchRect = new Rectangle( viewRect );
+        int prefetch = PREFETCH_ROWS * ( vertical ? rowHeight : columnWidth );
+        if ( vertical ) {
+            prefetchRect.height += prefetch;
+            if ( scrollDirection < 0 ) {
+                prefetchRect.y -= prefetch;
+            }
+        } else {
+            prefetchRect.width += prefetch;
+            if ( scrollDirection < 0 ) {
+                prefetchRect.x -= prefetch;
+            }
+        }
+        // Keep state of photos that are prefetched in either direction
+        int cacheRows = viewRect.height / rowHeight + 2;
+        int cacheCols = viewRect.width / columnWidth + 2;
+        if ( vertical ) {
+            cacheRows += 2 * PREFETCH_ROWS;
+        } else {
+            cacheCols += 2 * PREFETCH_ROWS;
+        }
+        thumbnailCacheSize = 
+                Math.max( MIN_CACHED_THUMBNAILS, cacheRows * cacheCols );
+        
+        requestedPhotoIndexes.clear();
+        List<UUID> requests = new ArrayList<UUID>();
+        addThumbnailRequests( viewRect, requests );
+        addThumbnailRequests( prefetchRect, requests );
+        if ( requests.isEmpty() && thumbLoader == null ) {
+            return;
+        }
+        if ( thumbLoader == null ) {
+            thumbLoader = new ThumbnailLoader( THUMBNAIL_LOADER_THREADS, 
+                    new ThumbnailLoader.Listener() {
+                public void thumbnailLoaded( UUID photoId, Thumbnail thumbnail ) {
+                    PhotoCollectionThumbView.this.thumbnailLoaded( photoId, thumbnail );
+                }
+            } );
+        }
+        thumbLoader.setRequests( requests );
+    }
+
+    /**
+     Add requests for the thumbnails of photos in given area that have not 
+     been loaded
+     @param rect The area
+     @param requests UUIDs of photos whose thumbnails are needed are added 
+     to this list.
+     */
+    private void addThumbnailRequests( Rectangle rect, List<UUID> requests ) {
+        int firstRow = Math.max( 0, rect.y / rowHeight );
+        int lastRow = ( rect.y + rect.height - 1 ) / rowHeight;
+        int firstCol = Math.max( 0, rect.x / columnWidth );
+        int lastCol = Math.min( columnsToPaint - 1, 
+                ( rect.x + rect.width - 1 ) / columnWidth );
+        for ( int row = firstRow; row <= lastRow; row++ ) {
+            for ( int col = firstCol; col <= lastCol; col++ ) {
+                int n = row * columnsToPaint + col;
+                if ( n >= photos.size() ) {
+                    return;
+                }
+                PhotoInfo photo = photos.get( n );
+                if ( photo == null ) {
+                    continue;
+                }
+                UUID id = photo.getUuid();
+                if ( requestedPhotoIndexes.containsKey( id ) ) {
+                    continue;
+                }
+                requestedPhotoIndexes.put( id, n );
+                Thumbnail t = loadedThumbnails.get( id );
+                if ( !photosWithoutThumbnail.contains( id ) && 
+                        ( t == null || !t.isImageLoaded() ) ) {
+                    requests.add( id );
+                }
+            }
+        }
+    }
+
+    /**
+     Called by thumbnail loader in AWT thread when a thumbnail has been loaded.
+     @param photoId UUID of the photo
+     @param thumbnail The thumbnail or <code>null</code> if the photo does not
+     have a thumbnail.
+     */
+    private void thumbnailLoaded( UUID photoId, Thumbnail thumbnail ) {
+        if ( thumbnail == null ) {
+            loadedThumbnails.remove( photoId );
+            photosWithoutThumbnail.add( photoId );
+            // Inform background task scheduler that we have some work to do
+            if ( ctrl != null ) {
+                SwingWorkerTaskScheduler sched = ctrl.getBackgroundTaskScheduler();
+                if ( !isTaskListenerRegistered ) {
+                    sched.addTaskListener( this, new BackgroundTaskListener() {
+                        public void taskExecuted( TaskProducer producer, 
+                                BackgroundTask task ) {
+                            PhotoCollectionThumbView.this.taskExecuted( task );
+                        }
+                        public void taskProducerFinished( TaskProducer producer ) {
+                        }
+                    } );
+                    isTaskListenerRegistered = true;
+                }
+                sched.registerTaskProducer( this, 
+                        TaskPriority.CREATE_VISIBLE_THUMBNAIL );
+            }
+        } else {
+            loadedThumbnails.put( photoId, thumbnail );
+            staleThumbnails.remove( photoId );
+        }
+        Integer n = requestedPhotoIndexes.get( photoId );
+        if ( n != null ) {
+            repaintPhoto( n );
+        }
+    }
+
+    /**
+     Called when the thumbnail of a photo may have changed. The current 
+     thumbnail is shown until a new one has been loaded.
+     @param photoId UUID of the photo
+     */
+    private void thumbnailInvalidated( UUID photoId ) {
+        Thumbnail old = loadedThumbnails.remove( photoId );
+        if ( old != null ) {
+            staleThumbnails.put( photoId, old );
+        }
+        photosWithoutThumbnail.remove( photoId );
+    }
+
     /**
      This method is called by background task scheduler when it is ready to execute
      a task for this window.
@@ -1438,11 +1735,18 @@ public class PhotoCollectionThumbView
 	// Walk through all photos until we find a photo that is visible
 	// and does not have a thumbnail. If all visible photos have a thumbnail
         // but some non-visible ones do not, create a thumbnail for one of those.
+        // Only photos that the thumbnail loader has found to be without 
+        // thumbnail are checked so that no database access is needed.
 	log.debug( "Finding photo without thumbnail" );
-	for ( int n = 0; n < photos.size(); n++ ) {
+        PagedPhotoList pagedPhotos = photos instanceof PagedPhotoList ?
+            (PagedPhotoList) photos : null;
+	for ( int n = 0; n < photos.size() && !photosWithoutThumbnail.isEmpty(); n++ ) {
+            if ( pagedPhotos != null && !pagedPhotos.isLoaded( n ) ) {
+                continue;
+            }
             PhotoInfo photoCandidate = photos.get( n );
-	    log.debug( "Photo " + photoCandidate.getUuid() );
-	    if ( !photoCandidate.hasThumbnail() ) {
+	    if ( photoCandidate != null &&
+                    photosWithoutThumbnail.contains( photoCandidate.getUuid() ) ) {
 		log.debug( "No thumbnail" );
 		Rectangle photoRect = getPhotoBounds( n );
 		if ( photoRect.intersects( viewRect )  ) {
@@ -1459,6 +1763,7 @@ public class PhotoCollectionThumbView
 	}
 	if ( nextPhoto != null ) {
             // We found a photo without thumbnail
+            photosWithoutThumbnail.remove( nextPhoto.getUuid() );
             VolumeDAO volDAO = ctrl.getDAOFactory().getVolumeDAO();
             Volume vol = volDAO.getDefaultVolume();
             return new CreatePreviewImagesTask( nextPhoto );
@@ -1468,10 +1773,18 @@ public class PhotoCollectionThumbView
     }
 
     /**
-     Called after executing a thumbnail creation task. CUrrently a no-op.
+     Called after executing a thumbnail creation task. Loads the new thumbnail.
      @param task The task executed
      */
     public void taskExecuted( BackgroundTask task ) {
+        if ( task instanceof CreatePreviewImagesTask ) {
+            UUID photoId = ((CreatePreviewImagesTask) task).getPhotoUuid();
+            thumbnailInvalidated( photoId );
+            Integer n = requestedPhotoIndexes.get( photoId );
+            if ( n != null ) {
+                repaintPhoto( n );
+            }
+        }
     }
 
 }
@@ -66,9 +66,12 @@ import org.photovault.folder.PhotoFolderDAO;
 import org.photovault.imginfo.ChangePhotoInfoCommand;
 import org.photovault.imginfo.CreateCopyImageCommand;
 import org.photovault.imginfo.FileLocation;
+import org.photovault.imginfo.PagedPhotoList;
 import org.photovault.imginfo.PhotoCollection;
 import org.photovault.imginfo.PhotoInfo;
 import org.photovault.imginfo.PhotoInfoDAO;
+import org.photovault.imginfo.PhotoQuery;
+import org.photovault.imginfo.SortedPhotoCollection;
 import org.photovault.imginfo.indexer.IndexFileTask;
 import org.photovault.imginfo.indexer.IndexingResult;
 import org.photovault.replication.Change;
@@ -309,11 +312,36 @@ public class PhotoViewController extends PersistenceController {
      * sorted by {@link #photoComparator}
      */
     private void updateThumbView() {
-        if ( photoComparator != null && photos != null ) {
+        if ( photos instanceof PagedPhotoList ) {
+            PagedPhotoList pagedPhotos = (PagedPhotoList) photos;
+            PagedPhotoList.SortKey key = getSortKey();
+            if ( key == null ) {
+                // The list cannot be sorted in database, read all photos
+                photos = new ArrayList<PhotoInfo>( photos );
+            } else if ( key != pagedPhotos.getSortKey() ) {
+                photos = new PagedPhotoList( 
+                        pagedPhotos.getQuery(), getPersistenceContext(), key );
+            }
+        }
+        if ( photoComparator != null && photos != null && 
+                !( photos instanceof PagedPhotoList ) ) {
             Collections.sort( photos, photoComparator );
         }
         thumbPane.setPhotos( photos );
     }
+    
+    /**
+     Get the sort key for paged query results that matches current comparator
+     @return The sort key or <code>null</code> if the photos cannot be sorted 
+     in database.
+     */
+    private PagedPhotoList.SortKey getSortKey() {
+        Comparator c = photoComparator;
+        if ( c instanceof SetPhotoOrderAction.FullOrderPhotoComparator ) {
+            c = ((SetPhotoOrderAction.FullOrderPhotoComparator) c).getComparator();
+        }
+        return PagedPhotoList.SortKey.forComparator( c );
+    }
 
     /**
      This method is called after a {@link ChangePhotoInfoCommand} has been 
@@ -342,13 +370,38 @@ public class PhotoViewController extends PersistenceController {
         }
 
         // Update photos that belong to this collection
+        List<PhotoInfo> updated = new ArrayList<PhotoInfo>();
         for ( PhotoInfo p: cmd.getChangedPhotos() ) {
             if ( containsPhoto( p ) ) {
                 PhotoInfo mergedPhoto = (PhotoInfo) getPersistenceContext().merge( p );
+                updated.add( mergedPhoto );
             }
         }
+        if ( photoComparator != null && !( photos instanceof PagedPhotoList ) ) {
+            movePhotosToSortedPlace( updated );
+        }
         thumbPane.setPhotos( photos );
     }
+    
+    /**
+     Move changed photos to their correct place in {@link #photos} without 
+     sorting the whole list
+     @param updated Changed photos that belong to the list
+     */
+    @SuppressWarnings( "unchecked" )
+    private void movePhotosToSortedPlace( List<PhotoInfo> updated ) {
+        if ( updated.size() > Math.max( 1, photos.size() / 8 ) ) {
+            Collections.sort( photos, photoComparator );
+            return;
+        }
+        for ( PhotoInfo p : updated ) {
+            int idx = SortedPhotoCollection.findSorted( photos, p, photoComparator );
+            if ( idx >= 0 ) {
+                photos.remove( idx );
+                SortedPhotoCollection.insertSorted( photos, p, photoComparator );
+            }
+        }
+    }
 
 
     private void imageCreated( CreateCopyImageCommand cmd ) {
@@ -367,17 +420,15 @@ public class PhotoViewController extends PersistenceController {
     private void changeApplied( ApplyChangeCommand cmd ) {
         for ( ChangeDTO ch : cmd.getChanges() ) {
             UUID id = ch.getTargetUuid();
-            for ( PhotoInfo p : photos ) {
-                if ( id.equals( p.getUuid() ) ) {
-                    DTOResolverFactory rf =
-                            getDAOFactory().getDTOResolverFactory();
-                    VersionedObjectEditor e =
-                            new VersionedObjectEditor( p, rf );
-                    ChangeDAO chDao = getDAOFactory().getChangeDAO();
-                    Change c = chDao.findChange( ch.getChangeUuid() );
-                    e.changeToVersion( c );
-                    break;
-                }
+            PhotoInfo p = findPhoto( id );
+            if ( p != null ) {
+                DTOResolverFactory rf =
+                        getDAOFactory().getDTOResolverFactory();
+                VersionedObjectEditor e =
+                        new VersionedObjectEditor( p, rf );
+                ChangeDAO chDao = getDAOFactory().getChangeDAO();
+                Change c = chDao.findChange( ch.getChangeUuid() );
+                e.changeToVersion( c );
             }
         }
         thumbPane.setPhotos( photos );
@@ -426,13 +477,26 @@ public class PhotoViewController extends PersistenceController {
     }
 
     private boolean containsPhoto( UUID photoUuid ) {
+        return findPhoto( photoUuid ) != null;
+    }
+
+    /**
+     Find a photo from the model. If the model is a {@link PagedPhotoList}, 
+     only photos currently in memory are searched as the others will be read
+     from database when needed.
+     @param photoUuid UUID of the photo
+     @return The photo or <code>null</code> if it is not found.
+     */
+    private PhotoInfo findPhoto( UUID photoUuid ) {
+        if ( photos instanceof PagedPhotoList ) {
+            return ((PagedPhotoList) photos).findLoaded( photoUuid );
+        }
         for ( PhotoInfo p : photos ) {
             if ( p.getUuid().equals( photoUuid ) ) {
-                return true;
+                return p;
             }
         }
-        return false;
-
+        return null;
     }
 
     /**
@@ -677,7 +741,12 @@ public class PhotoViewController extends PersistenceController {
          command events from already executed commands.
          */
         getPersistenceContext().clear();
-        if ( c != null ) {
+        if ( c instanceof PhotoQuery && ((PhotoQuery) c).isPageable() &&
+                getSortKey() != null ) {
+            // Load only the photos that are shown
+            photos = new PagedPhotoList( (PhotoQuery) c, 
+                    getPersistenceContext(), getSortKey() );
+        } else if ( c != null ) {
             photos = c.queryPhotos(getPersistenceContext());
         }
         updateThumbView();
@@ -23,7 +23,14 @@ package org.photovault.swingui;
 import com.sun.media.jai.util.SunTileCache;
 import com.sun.media.jai.util.SunTileScheduler;
 import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import javax.media.jai.JAI;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
@@ -45,15 +52,23 @@ import org.photovault.common.PhotovaultSettings;
 import org.apache.log4j.PropertyConfigurator;
 import org.hibernate.Transaction;
 import org.photovault.command.CommandListener;
+import org.photovault.command.DataAccessCommand;
+import org.photovault.imginfo.FulltextIndex;
+import org.photovault.imginfo.ExternalVolume;
+import org.photovault.imginfo.VolumeBase;
 import org.photovault.imginfo.VolumeDAO;
 import org.photovault.imginfo.VolumeManager;
+import org.photovault.imginfo.VolumeMountListener;
+import org.photovault.imginfo.indexer.VolumeWatcher;
 import org.photovault.persistence.DAOFactory;
 import org.photovault.persistence.HibernateDAOFactory;
 import org.photovault.persistence.HibernateUtil;
 import org.photovault.swingui.db.DbSettingsDlg;
 import org.photovault.swingui.framework.AbstractController;
 import org.photovault.swingui.framework.DefaultEvent;
+import org.photovault.swingui.framework.DefaultEventListener;
 import org.photovault.swingui.taskscheduler.SwingWorkerTaskScheduler;
+import org.photovault.swingui.taskscheduler.TaskPriority;
 import org.photovault.taskscheduler.TaskScheduler;
 
 /**
@@ -67,6 +82,19 @@ public class Photovault extends AbstractController implements SchemaUpdateListen
     static Photovault instance;
     private SwingWorkerTaskScheduler taskScheduler;
     
+    /**
+     Watchers that keep index of mounted external volumes up to date, by 
+     volume UUID
+     */
+    private Map<UUID, VolumeWatcher> volumeWatchers = 
+            new HashMap<UUID, VolumeWatcher>();
+    
+    /**
+     Listener that starts and stops volume watchers when volumes are mounted
+     or unmounted, or <code>null</code> if volumes are not watched.
+     */
+    private VolumeMountListener mountListener = null;
+    
     
     private Photovault() {
 	settings = PhotovaultSettings.getSettings();
@@ -78,6 +106,16 @@ public class Photovault extends AbstractController implements SchemaUpdateListen
                 fireEventGlobal( e );
             }
         } );
+        // Keep full text index up to date. Commands executed by background
+        // tasks are fired globally by the task scheduler so listen to all
+        // command events instead of just the main command handler.
+        registerEventListener( CommandExecutedEvent.class, 
+                new DefaultEventListener<DataAccessCommand>() {
+            public void handleEvent( DefaultEvent<DataAccessCommand> event ) {
+                FulltextIndex.instance().commandExecuted( 
+                        (CommandExecutedEvent) event );
+            }
+        } );
         
         taskScheduler = new SwingWorkerTaskScheduler( this );
         instance = this;
@@ -107,10 +145,14 @@ public class Photovault extends AbstractController implements SchemaUpdateListen
         String passwd = ld.getPassword();
         String dbName = ld.getDb();
         log.debug( "Using configuration " + dbName );
+        // Watchers of previous database must not index to the new one
+        stopVolumeWatchers();
         settings.setConfiguration( dbName );
         PVDatabase db = settings.getDatabase( dbName );
 
         HibernateUtil.init( user, passwd, db );
+        // Index of previous database must not be used
+        FulltextIndex.instance().clear();
 
         // TODO: Hack...
         currentSession = HibernateUtil.getSessionFactory().openSession();
@@ -167,13 +209,20 @@ public class Photovault extends AbstractController implements SchemaUpdateListen
          -d command line argument.
          */
         public static boolean debugTileCache = true;
+        /**
+         Number of threads used for computing image tiles. Can be set with 
+         system property photovault.tilethreads, default is number of 
+         processors.
+         */
+        static final int TILE_THREADS = Integer.getInteger( 
+                "photovault.tilethreads", Runtime.getRuntime().availableProcessors() );
         /**
          Initialize Java Advanced Imaging.
          */
         public static void initJAI() {
             JAI jaiInstance = JAI.getDefaultInstance();
             jaiInstance.setTileCache( new SunTileCache( 100*1024*1024 ) );
-            TileScheduler sched = new SunTileScheduler( 4, 0, 4, 0 );
+            TileScheduler sched = new SunTileScheduler( TILE_THREADS, 0, 4, 0 );
             jaiInstance.setTileScheduler( sched );
             JAI.setDefaultTileSize( new Dimension( 256, 256 ) );
         /*
@@ -198,6 +247,12 @@ public class Photovault extends AbstractController implements SchemaUpdateListen
 
     void run() {
         checkSystem();
+        Runtime.getRuntime().addShutdownHook( new Thread() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        } );
         // 100 MB tile cache
         JaiInitializer.initJAI();
         PhotovaultSettings settings = PhotovaultSettings.getSettings();
@@ -261,8 +316,102 @@ public class Photovault extends AbstractController implements SchemaUpdateListen
         VolumeManager vm = VolumeManager.instance();
         vm.updateVolumeMounts( volDao );
         s.flush();
+        boolean watchVolumes = 
+                !"false".equals( System.getProperty( "photovault.watchvolumes" ) );
+        List<ExternalVolume> mountedVolumes = new ArrayList<ExternalVolume>();
+        if ( watchVolumes ) {
+            for ( VolumeBase vol : volDao.findAll() ) {
+                if ( vol instanceof ExternalVolume && vol.isAvailable() ) {
+                    mountedVolumes.add( (ExternalVolume) vol );
+                }
+            }
+        }
         tx.commit();
         s.close();
+        if ( watchVolumes ) {
+            startVolumeWatchers( mountedVolumes );
+        }
+    }
+
+    /**
+     Start watching changes in mounted external volumes so that new photos 
+     are indexed without rescanning the volumes, and start watching volumes 
+     that are mounted later. Watching can be disabled by setting system 
+     property photovault.watchvolumes to false.
+     @param volumes Currently mounted external volumes
+     */
+    private void startVolumeWatchers( List<ExternalVolume> volumes ) {
+        for ( ExternalVolume vol : volumes ) {
+            startVolumeWatcher( vol );
+        }
+        if ( mountListener == null ) {
+            mountListener = new VolumeMountListener() {
+                public void volumeMounted( VolumeBase vol, File mountDir ) {
+                    if ( vol instanceof ExternalVolume ) {
+                        stopVolumeWatcher( vol.getId() );
+                        startVolumeWatcher( (ExternalVolume) vol );
+                    }
+                }
+
+                public void volumeUnmounted( UUID volId ) {
+                    stopVolumeWatcher( volId );
+                }
+            };
+            VolumeManager.instance().addVolumeMountListener( mountListener );
+        }
+    }
+
+    /**
+     Start watching a volume. The directories of the volume are registered in
+     background.
+     @param vol The volume
+     */
+    private synchronized void startVolumeWatcher( ExternalVolume vol ) {
+        if ( volumeWatchers.containsKey( vol.getId() ) ) {
+            return;
+        }
+        VolumeWatcher watcher = new VolumeWatcher( vol, taskScheduler, 
+                TaskPriority.WATCH_EXTVOL.getPriority() );
+        try {
+            watcher.start();
+            volumeWatchers.put( vol.getId(), watcher );
+        } catch ( IOException e ) {
+            log.warn( "Cannot watch volume " + vol.getName() + ": " + 
+                    e.getMessage() );
+        }
+    }
+
+    /**
+     Stop watching a volume
+     @param volId UUID of the volume
+     */
+    private synchronized void stopVolumeWatcher( UUID volId ) {
+        VolumeWatcher watcher = volumeWatchers.remove( volId );
+        if ( watcher != null ) {
+            watcher.stop();
+        }
+    }
+
+    /**
+     Stop all volume watchers and stop listening to volume mounts
+     */
+    private synchronized void stopVolumeWatchers() {
+        if ( mountListener != null ) {
+            VolumeManager.instance().removeVolumeMountListener( mountListener );
+            mountListener = null;
+        }
+        for ( VolumeWatcher watcher : volumeWatchers.values() ) {
+            watcher.stop();
+        }
+        volumeWatchers.clear();
+    }
+
+    /**
+     Release resources used by the application before exiting. Called from
+     a shutdown hook.
+     */
+    public void shutdown() {
+        stopVolumeWatchers();
     }
 
     protected void checkJAI() throws PhotovaultException {
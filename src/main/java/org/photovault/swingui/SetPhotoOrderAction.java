@@ -63,13 +63,20 @@ public class SetPhotoOrderAction extends AbstractAction  {
      that even photos that would be compared as equal will always be sorted to
      same order.
      */
-    static private class FullOrderPhotoComparator implements Comparator {
+    static class FullOrderPhotoComparator implements Comparator {
         public FullOrderPhotoComparator( Comparator comp ) {
             c = comp;
         }
 
         Comparator c;
         
+        /**
+         Get the comparator that determines the order of photos
+         */
+        Comparator getComparator() {
+            return c;
+        }
+        
         public int compare(Object o1, Object o2 ) {
             PhotoInfo p1 = (PhotoInfo) o1;
             PhotoInfo p2 = (PhotoInfo) o2;
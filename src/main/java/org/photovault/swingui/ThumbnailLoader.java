@@ -0,0 +1,232 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.swingui;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import javax.swing.SwingUtilities;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.context.ManagedSessionContext;
+import org.photovault.imginfo.PhotoInfo;
+import org.photovault.imginfo.PhotoInfoDAO;
+import org.photovault.imginfo.Thumbnail;
+import org.photovault.persistence.DAOFactory;
+import org.photovault.persistence.HibernateDAOFactory;
+import org.photovault.persistence.HibernateUtil;
+
+/**
+ ThumbnailLoader loads thumbnails of photos in background threads so that
+ the user interface does not need to wait for database access or image
+ decoding while painting.
+ <p>
+ The owner tells which photos it needs by calling
+ {@link #setRequests(List)}, most important first. Each call replaces the
+ previous request list, so requests for photos that are not needed anymore
+ (e.g. scrolled out of view) are cancelled if their loading has not started.
+ <p>
+ Each worker thread loads the photo in its own persistence context, so the
+ loaded thumbnails are not associated with the photo instances used in
+ AWT thread. Image data of the thumbnails is in {@link
+ org.photovault.imginfo.ThumbnailCache}; the owner should use only
+ {@link Thumbnail#getCachedImage()} and request the photo again by its UUID
+ if the image has been evicted from memory, since the photo of a loaded
+ thumbnail is detached.
+ <p>
+ The owner must call {@link #shutdown()} when the loader is not needed
+ anymore, otherwise the worker threads are left waiting.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+class ThumbnailLoader {
+
+    static private Log log = LogFactory.getLog( ThumbnailLoader.class.getName() );
+
+    /**
+     Interface for receiving loaded thumbnails
+     */
+    interface Listener {
+        /**
+         Called in AWT event thread after a thumbnail has been loaded.
+         @param photoId UUID of the photo
+         @param thumbnail The loaded thumbnail or <code>null</code> if the
+         photo does not have a thumbnail yet.
+         */
+        void thumbnailLoaded( UUID photoId, Thumbnail thumbnail );
+    }
+
+    /**
+     Photos waiting to be loaded, in priority order
+     */
+    private LinkedHashSet<UUID> queue = new LinkedHashSet<UUID>();
+
+    /**
+     Photos currently being loaded
+     */
+    private Set<UUID> inProgress = new HashSet<UUID>();
+
+    /**
+     Listener that is notified about loaded thumbnails
+     */
+    private Listener listener;
+
+    /**
+     Has the loader been shut down?
+     */
+    private boolean isShutdown = false;
+
+    /**
+     Create a new loader
+     @param threadCount Number of worker threads
+     @param listener Listener that receives the thumbnails
+     */
+    ThumbnailLoader( int threadCount, Listener listener ) {
+        this.listener = listener;
+        for ( int n = 0; n < threadCount; n++ ) {
+            Thread t = new Thread( new Runnable() {
+                public void run() {
+                    workerLoop();
+                }
+            }, "Thumbnail loader " + n );
+            t.setDaemon( true );
+            t.setPriority( Thread.NORM_PRIORITY - 1 );
+            t.start();
+        }
+    }
+
+    /**
+     Set the photos whose thumbnails should be loaded. Replaces previous
+     requests that have not yet been started.
+     @param photoIds UUIDs of the photos, in the order they should be loaded.
+     */
+    synchronized void setRequests( List<UUID> photoIds ) {
+        queue.clear();
+        for ( UUID id : photoIds ) {
+            if ( !inProgress.contains( id ) ) {
+                queue.add( id );
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     Stop the worker threads after they have completed current work
+     */
+    synchronized void shutdown() {
+        isShutdown = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    private synchronized boolean isShutdown() {
+        return isShutdown;
+    }
+
+    /**
+     Get next photo to load. Blocks until there is one.
+     @return UUID of the photo or <code>null</code> if loader has been shut
+     down.
+     */
+    private synchronized UUID nextRequest() {
+        while ( queue.isEmpty() && !isShutdown ) {
+            try {
+                wait();
+            } catch ( InterruptedException e ) {
+                return null;
+            }
+        }
+        if ( isShutdown ) {
+            return null;
+        }
+        Iterator<UUID> iter = queue.iterator();
+        UUID id = iter.next();
+        iter.remove();
+        inProgress.add( id );
+        return id;
+    }
+
+    private synchronized void requestDone( UUID id ) {
+        inProgress.remove( id );
+    }
+
+    private void workerLoop() {
+        UUID id;
+        while ( (id = nextRequest()) != null ) {
+            Thumbnail thumb = null;
+            try {
+                thumb = load( id );
+            } catch ( RuntimeException e ) {
+                log.warn( "Error loading thumbnail for " + id, e );
+                thumb = Thumbnail.getErrorThumbnail();
+            } finally {
+                requestDone( id );
+            }
+            final UUID photoId = id;
+            final Thumbnail result = thumb;
+            SwingUtilities.invokeLater( new Runnable() {
+                public void run() {
+                    if ( !isShutdown() ) {
+                        listener.thumbnailLoaded( photoId, result );
+                    }
+                }
+            } );
+        }
+    }
+
+    /**
+     Load thumbnail of a photo in a new persistence context
+     @param id UUID of the photo
+     @return The thumbnail or <code>null</code> if none exists
+     */
+    private Thumbnail load( UUID id ) {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Session oldSession = ManagedSessionContext.bind(
+                (org.hibernate.classic.Session) session );
+        try {
+            DAOFactory df = DAOFactory.instance( HibernateDAOFactory.class );
+            PhotoInfoDAO photoDAO = df.getPhotoInfoDAO();
+            PhotoInfo p = photoDAO.findByUUID( id );
+            if ( p == null ) {
+                return null;
+            }
+            Thumbnail thumb = p.getExistingThumbnail();
+            if ( thumb == null || thumb == Thumbnail.getDefaultThumbnail() ) {
+                return null;
+            }
+            // Ensure that the image data is in memory cache
+            thumb.getImage();
+            return thumb;
+        } finally {
+            session.close();
+            if ( oldSession != null ) {
+                ManagedSessionContext.bind( (org.hibernate.classic.Session) oldSession );
+            } else {
+                ManagedSessionContext.unbind( HibernateUtil.getSessionFactory() );
+            }
+        }
+    }
+}
@@ -21,38 +21,44 @@
 
 package org.photovault.swingui.taskscheduler;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import java.util.List;
 import java.util.Set;
 import javax.swing.SwingUtilities;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.hibernate.Session;
-import org.hibernate.context.ManagedSessionContext;
-import org.jdesktop.swingworker.SwingWorker;
 import org.photovault.command.CommandExecutedEvent;
 import org.photovault.command.CommandListener;
-import org.photovault.command.PhotovaultCommandHandler;
-import org.photovault.persistence.HibernateUtil;
 import org.photovault.swingui.framework.AbstractController;
 import org.photovault.taskscheduler.BackgroundTask;
+import org.photovault.taskscheduler.ConcurrentTaskScheduler;
+import org.photovault.taskscheduler.TaskLane;
 import org.photovault.taskscheduler.TaskProducer;
-import org.photovault.taskscheduler.TaskScheduler;
 
 /**
- TaskScheduler implementation that uses SwingWorker to execute the tasks. The 
- tasks are executed in order set by producer priorities - if several TaskProducers 
+ TaskScheduler implementation used by Photovault Swing UI. The tasks are 
+ executed in order set by producer priorities - if several TaskProducers 
  share the same priority they are scheduler by round robin algorithm.
+ <p>
+ Tasks are executed by {@link ConcurrentTaskScheduler} in two lanes, each of 
+ which runs one task at a time: one for tasks that create images visible in 
+ UI and other for indexing, export and other background work. In this way 
+ a long running background task does not block creation of thumbnails the 
+ user is looking at.
+ <p>
+ Task producers are always polled and task listeners notified in AWT event 
+ thread, so producers can safely access user interface state. Producers can 
+ be registered from any thread.
  
  <p>
  SwingWorkerTaskScheduler can be associated with an {@link AbstractController}. If
  this is the case the scheduler send a {@link CommandEvent} to it after every 
  command execution.
  */
-public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler {
+public class SwingWorkerTaskScheduler extends ConcurrentTaskScheduler 
+        implements CommandListener {
 
     static private Log log = 
             LogFactory.getLog( SwingWorkerTaskScheduler.class.getName() );
@@ -62,40 +68,41 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
      @parent The controller that owns this scheduler
      */
     public SwingWorkerTaskScheduler( AbstractController parent ) {
+        super( createLanes(), 0 );
         this.parent = parent;
+        addCommandListener( this );
     }    
+    
     /**
      Lowest priority for tasks
      */
-    public static int MIN_PRIORITY = 31;
+    public static int MIN_PRIORITY = ConcurrentTaskScheduler.MIN_PRIORITY;
     
     /**
      Parent controller
      */
     AbstractController parent;
     
-    /**
-     Priorities of each currently registered producer
-     */
-    Map<TaskProducer, Integer> customerPriorities = new HashMap<TaskProducer, Integer>(  );
-    
-    /**
-     Registered producers by priority
-     */
-    @SuppressWarnings( value = "unchecked" )
-    Queue<TaskProducer>[] waitList = new LinkedList[MIN_PRIORITY + 1];
-    
-    /**
-     Currently active task or <code>null</code> if no task is active
-     */
-    BackgroundTask activeTask = null;
-    
     /**
      Listeners for each task producer
      */
     HashMap<TaskProducer, Set<BackgroundTaskListener>> listeners = 
             new HashMap<TaskProducer, Set<BackgroundTaskListener>>();
 
+    /**
+     Create the lanes used by the scheduler
+     @return List of lanes
+     */
+    private static List<TaskLane> createLanes() {
+        List<TaskLane> lanes = new ArrayList<TaskLane>();
+        lanes.add( new TaskLane( "interactive", 0, 
+                TaskPriority.CREATE_VISIBLE_THUMBNAIL.getPriority(), 1 ) );
+        lanes.add( new TaskLane( "background", 
+                TaskPriority.CREATE_VISIBLE_THUMBNAIL.getPriority() + 1, 
+                ConcurrentTaskScheduler.MIN_PRIORITY, 1 ) );
+        return lanes;
+    }
+    
     /**
      Get the task listeners registered for a certain TaskProducer
      @param p The TaskProducer we are interested in
@@ -112,7 +119,8 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
 
     /**
      Ask that a {@link BackgroundTaskListener} will be notified about progress 
-     of tasks produced by a certain {@link TaskProducer}
+     of tasks produced by a certain {@link TaskProducer}. This method must be 
+     called in AWT event thread.
      
      @param p The TaskProducer we are interested in
      @param l The listener that will be added
@@ -123,7 +131,8 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
     }
 
     /**
-     Ask that a {@link BackgroundTaskListener} will not anymore be notified.     
+     Ask that a {@link BackgroundTaskListener} will not anymore be notified.
+     This method must be called in AWT event thread.
      @param p The TaskProducer we are interested in
      @param l The listener that will be removed
      */
@@ -142,109 +151,63 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
     }
     
     /**
-     See {@link TaskScheduler#registerTaskProducer()} for details.
+     Run a piece of code in AWT event thread. If called in event thread the 
+     code is executed immediately, otherwise it is queued.
+     @param r The code to run
      */
-    public void registerTaskProducer( TaskProducer c, int priority  ) {
-        log.debug( "entry: registerTaskProducer" );
-        if ( priority < 0 || priority > MIN_PRIORITY ) {
-            log.warn( "priority = " + priority );
-            throw new IllegalArgumentException( "Priority must be between 0 and " + MIN_PRIORITY );
+    private static void runInEventThread( Runnable r ) {
+        if ( SwingUtilities.isEventDispatchThread() ) {
+            r.run();
+        } else {
+            SwingUtilities.invokeLater( r );
         }
-        if ( waitList[priority] == null ) {
-            waitList[priority] = new LinkedList<TaskProducer>(  );
-        }
-        Integer oldPriority = null;
-        if ( (oldPriority = customerPriorities.put( c, priority )) != null ) {
-            waitList[oldPriority].remove( c );
-        }
-        waitList[priority].add( c );
-        if ( activeTask == null ) {
-            scheduleNext(  );
-        }
-        log.debug( "exit: registerTaskProducer" );
     }
 
     /**
-     Called by schduleNext in AWT thread to schedule the selected task for 
-     execution.
-     @param nextTask The task to execute
+     Poll the producers in AWT event thread.
      */
-    private void runTask( final TaskProducer producer, final BackgroundTask nextTask  ) {
-        final SwingWorkerTaskScheduler tthis = this;
-        SwingWorker worker = new SwingWorker(  ) {
-
-            protected Object doInBackground( ) throws Exception {
-                tthis.doRunTask( nextTask );
-                return null;
-            }
-
-            @Override
-            protected void done( ) {
-                fireTaskExecutedEvent( producer, nextTask );
-                log.debug( "Task " + nextTask + " executed" );
-                activeTask = null;
-                parent.fireEvent( 
-                        new TaskFinishedEvent( SwingWorkerTaskScheduler.this, nextTask ) );
+    @Override
+    protected void requestScheduling() {
+        runInEventThread( new Runnable() {
+            public void run() {
                 scheduleNext();
             }
-        };
-        worker.execute(  );
+        } );
+    }
+    
+    /**
+     Called by scheduleNext in AWT thread when a task is started.
+     */
+    @Override
+    protected void taskStarted( TaskProducer producer, BackgroundTask task ) {
+        log.debug( "Scheduling task " + task );
+        parent.fireEvent( new TaskScheduledEvent( this, task ) );
     }
 
     /**
-     Called in worker thread by runTask to actually execute the task. Sets up
-     Hibernate environment and runs the task.
-     @param task The task to execute
-     @throws Exception if the task.run() method throws one.
+     Called in worker thread after a task has been executed. Informs the 
+     listeners in AWT thread.
      */
-    protected void doRunTask( BackgroundTask task ) throws Exception {
-        Session session = HibernateUtil.getSessionFactory(  ).openSession(  );
-        Session oldSession = ManagedSessionContext.bind( (org.hibernate.classic.Session) session );
-        PhotovaultCommandHandler cmdHandler = new PhotovaultCommandHandler( session );
-        cmdHandler.addCommandListener( this );
-        try {
-            log.debug( "Executing task " + task.toString() );
-            task.executeTask( session, cmdHandler );
-            log.debug( "Finished executing task " + task.toString() );
-        } catch ( Exception e ) {
-            log.warn( "Exception while executing task " + task.toString(), e );
-            throw e;
-        } catch (Error e ) {
-            log.warn( "Error executing task " + task.toString(), e );
-            throw e;
-        } finally {
-            session.close(  );
-            if ( oldSession != null ) {
-                ManagedSessionContext.bind( (org.hibernate.classic.Session) oldSession );
-            } else {
-                ManagedSessionContext.unbind( HibernateUtil.getSessionFactory() );
+    @Override
+    protected void taskExecuted( final TaskProducer producer, 
+            final BackgroundTask task ) {
+        runInEventThread( new Runnable() {
+            public void run() {
+                fireTaskExecutedEvent( producer, task );
+                log.debug( "Task " + task + " executed" );
+                parent.fireEvent( 
+                        new TaskFinishedEvent( SwingWorkerTaskScheduler.this, task ) );
             }
-        }
+        } );
     }
 
     /**
-     Select the next task to execute.
+     Called by scheduleNext in AWT thread when a producer has no more tasks.
      */
-    protected synchronized void scheduleNext( ) {
-        activeTask = null;
-        for ( int n = 0 ; n <= MIN_PRIORITY && activeTask == null ; n++ ) {
-            if ( waitList[n] != null ) {
-                TaskProducer c;
-                while ( (c = waitList[n].poll(  )) != null ) {
-                    activeTask = c.requestTask(  );
-                    log.debug( "Scheduling task " + activeTask );
-                    if ( activeTask != null ) {
-                        parent.fireEvent( new TaskScheduledEvent( this, activeTask) );
-                        runTask( c, activeTask );
-                        waitList[n].add(c);
-                        return;
-                    } else {
-                        parent.fireEvent( new TaskFinishedEvent( this, activeTask) );
-                        fireTaskProducerFinishedEvent( c );
-                    }
-                }
-            }
-        }
+    @Override
+    protected void taskProducerFinished( TaskProducer producer ) {
+        parent.fireEvent( new TaskFinishedEvent( this, null ) );
+        fireTaskProducerFinishedEvent( producer );
     }
     
     /**
@@ -254,7 +217,8 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
      @param task The executed task
      */
     private void fireTaskExecutedEvent( final TaskProducer producer, final BackgroundTask task ) {
-        for ( BackgroundTaskListener l : getTaskListeners( producer ) ) {
+        for ( BackgroundTaskListener l : 
+                new ArrayList<BackgroundTaskListener>( getTaskListeners( producer ) ) ) {
             l.taskExecuted( producer, task );
         }
     }
@@ -265,7 +229,8 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
      @param producer The producer that has completed all its tasks
      */
     private void fireTaskProducerFinishedEvent( TaskProducer producer ) {
-        for ( BackgroundTaskListener l : getTaskListeners( producer ) ) {
+        for ( BackgroundTaskListener l : 
+                new ArrayList<BackgroundTaskListener>( getTaskListeners( producer ) ) ) {
             l.taskProducerFinished( producer );
         }
     }
@@ -300,4 +265,4 @@ public class SwingWorkerTaskScheduler implements CommandListener, TaskScheduler
             }
         }
     }
-}
\ No newline at end of file
+}
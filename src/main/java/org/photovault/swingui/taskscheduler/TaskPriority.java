@@ -40,6 +40,11 @@ public enum TaskPriority {
      */
     INDEX_CURRENT_DIR( 3 ),
     
+    /**
+     VolumeWatcher that indexes files changed in an external volume
+     */
+    WATCH_EXTVOL( 3 ),
+    
     /**
      Tasks that export images based on user request
      */
@@ -0,0 +1,436 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.taskscheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.context.ManagedSessionContext;
+import org.photovault.command.CommandExecutedEvent;
+import org.photovault.command.CommandListener;
+import org.photovault.command.PhotovaultCommandHandler;
+import org.photovault.persistence.HibernateUtil;
+
+/**
+ TaskScheduler implementation that executes several tasks at the same time in
+ a pool of worker threads. It does not depend on Swing, so it can be used also
+ in batch jobs that are run without user interface.
+ <p>
+ Task producers are assigned to {@link TaskLane}s based on their priority.
+ Each lane limits the number of concurrent tasks from its producers, so that
+ e.g. a long indexing operation cannot use all worker threads and starve
+ creation of thumbnails that are visible in user interface. Inside the limits
+ the tasks are started in priority order - if several producers share the same
+ priority they are scheduled by round robin algorithm. Tasks of a single
+ producer are always executed one at a time, so producers do not need to be
+ aware of concurrency. Running tasks are never interrupted, so a higher
+ priority task preempts lower priority ones at the moment a worker thread
+ becomes free.
+ <p>
+ Each task is executed in its own persistence context that is bound to the
+ worker thread for the duration of the task.
+
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class ConcurrentTaskScheduler implements TaskScheduler {
+
+    static private Log log =
+            LogFactory.getLog( ConcurrentTaskScheduler.class.getName() );
+
+    /**
+     Lowest priority for tasks
+     */
+    public static final int MIN_PRIORITY = 31;
+
+    /**
+     Lanes of this scheduler, in the order they were added
+     */
+    private List<TaskLane> lanes = new ArrayList<TaskLane>();
+
+    /**
+     Lane used for producers whose priority does not match any other lane
+     */
+    private TaskLane defaultLane;
+
+    /**
+     Maximum number of tasks running at the same time
+     */
+    private int maxThreads;
+
+    /**
+     Number of currently running tasks
+     */
+    private int runningCount = 0;
+
+    /**
+     Priorities of each currently registered producer
+     */
+    private Map<TaskProducer, Integer> producerPriorities =
+            new HashMap<TaskProducer, Integer>();
+
+    /**
+     Registered producers by priority
+     */
+    @SuppressWarnings( value = "unchecked" )
+    private Queue<TaskProducer>[] waitList = new LinkedList[MIN_PRIORITY + 1];
+
+    /**
+     Producers that have a task running. These are kept in waitList but no
+     new tasks are requested from them before the running one is finished.
+     */
+    private Set<TaskProducer> busyProducers = new HashSet<TaskProducer>();
+
+    /**
+     Executor for the tasks
+     */
+    private ExecutorService executor;
+
+    /**
+     Listeners that are notified of executed commands
+     */
+    private Set<CommandListener> commandListeners =
+            new HashSet<CommandListener>();
+
+    /**
+     Internal listener that forwards command events from the command handlers
+     of worker threads.
+     */
+    private CommandListener commandForwarder = new CommandListener() {
+        public void commandExecuted( CommandExecutedEvent e ) {
+            fireCommandEvent( e );
+        }
+    };
+
+    /**
+     Is the scheduler shut down?
+     */
+    private boolean isShutdown = false;
+
+    /**
+     Create a new scheduler
+     @param lanes Lanes of the scheduler. Producers whose priority does not
+     match any lane are executed in a default lane that runs one task at a
+     time.
+     @param maxThreads Maximum number of tasks executed at the same time. If
+     0, the sum of lane limits is used, so that every lane can always run its
+     tasks.
+     */
+    public ConcurrentTaskScheduler( List<TaskLane> lanes, int maxThreads ) {
+        this.lanes.addAll( lanes );
+        defaultLane = new TaskLane( "default", 0, MIN_PRIORITY, 1 );
+        if ( maxThreads <= 0 ) {
+            maxThreads = defaultLane.getMaxConcurrentTasks();
+            for ( TaskLane l : lanes ) {
+                maxThreads += l.getMaxConcurrentTasks();
+            }
+        }
+        this.maxThreads = maxThreads;
+        executor = Executors.newFixedThreadPool( maxThreads, new ThreadFactory() {
+            private int threadCount = 0;
+            public synchronized Thread newThread( Runnable r ) {
+                Thread t = new Thread( r, "Photovault task " + (++threadCount) );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+    /**
+     Create a new scheduler with a single lane that runs as many tasks
+     concurrently as there are processors available.
+     */
+    public ConcurrentTaskScheduler() {
+        this( Collections.singletonList( new TaskLane( "all", 0, MIN_PRIORITY,
+                Runtime.getRuntime().availableProcessors() ) ), 0 );
+    }
+
+    /**
+     Add a listener that will be notified about commands executed by the
+     tasks. Note that the listener is called in worker thread.
+     @param l The listener
+     */
+    public void addCommandListener( CommandListener l ) {
+        synchronized ( commandListeners ) {
+            commandListeners.add( l );
+        }
+    }
+
+    /**
+     Remove a command listener
+     @param l The listener to remove
+     */
+    public void removeCommandListener( CommandListener l ) {
+        synchronized ( commandListeners ) {
+            commandListeners.remove( l );
+        }
+    }
+
+    /**
+     See {@link TaskScheduler#registerTaskProducer(TaskProducer, int)} for
+     details.
+     */
+    public synchronized void registerTaskProducer( TaskProducer c, int priority ) {
+        if ( priority < 0 || priority > MIN_PRIORITY ) {
+            throw new IllegalArgumentException(
+                    "Priority must be between 0 and " + MIN_PRIORITY );
+        }
+        if ( isShutdown ) {
+            throw new IllegalStateException( "Scheduler has been shut down" );
+        }
+        if ( waitList[priority] == null ) {
+            waitList[priority] = new LinkedList<TaskProducer>();
+        }
+        Integer oldPriority = producerPriorities.put( c, priority );
+        if ( oldPriority != null ) {
+            waitList[oldPriority].remove( c );
+        }
+        waitList[priority].add( c );
+        requestScheduling();
+    }
+
+    /**
+     Find the lane for producers of given priority
+     @param priority The priority
+     @return Lane that serves the priority
+     */
+    private TaskLane getLane( int priority ) {
+        for ( TaskLane l : lanes ) {
+            if ( l.servesPriority( priority ) ) {
+                return l;
+            }
+        }
+        return defaultLane;
+    }
+
+    /**
+     Called when there may be new tasks to start. By default calls
+     scheduleNext() immediately in the calling thread; derived classes can
+     override this to poll the producers in some other thread.
+     */
+    protected void requestScheduling() {
+        scheduleNext();
+    }
+
+    /**
+     Start new tasks as long as there are free worker threads and lanes with
+     free capacity that have producers waiting.
+     */
+    protected synchronized void scheduleNext() {
+        boolean started = true;
+        while ( started && runningCount < maxThreads && !isShutdown ) {
+            started = false;
+            for ( int n = 0; n <= MIN_PRIORITY && !started; n++ ) {
+                if ( waitList[n] == null || waitList[n].isEmpty() ) {
+                    continue;
+                }
+                TaskLane lane = getLane( n );
+                if ( !lane.hasCapacity() ) {
+                    continue;
+                }
+                for ( int k = waitList[n].size(); k > 0; k-- ) {
+                    TaskProducer c = waitList[n].poll();
+                    if ( busyProducers.contains( c ) ) {
+                        waitList[n].add( c );
+                        continue;
+                    }
+                    BackgroundTask task = c.requestTask();
+                    if ( task != null ) {
+                        waitList[n].add( c );
+                        startTask( lane, c, task );
+                        started = true;
+                        break;
+                    }
+                    producerPriorities.remove( c );
+                    taskProducerFinished( c );
+                }
+            }
+        }
+    }
+
+    /**
+     Start executing a task in worker thread
+     @param lane The lane of the task
+     @param producer Producer of the task
+     @param task The task to execute
+     */
+    private void startTask( final TaskLane lane, final TaskProducer producer,
+            final BackgroundTask task ) {
+        lane.runningCount++;
+        runningCount++;
+        busyProducers.add( producer );
+        log.debug( "Starting task " + task + " in " + lane.getName() );
+        taskStarted( producer, task );
+        executor.execute( new Runnable() {
+            public void run() {
+                try {
+                    doRunTask( task );
+                } catch ( Exception e ) {
+                    // Already logged by doRunTask
+                } catch ( Error e ) {
+                    log.error( "Error executing " + task, e );
+                } finally {
+                    taskFinished( lane, producer, task );
+                }
+            }
+        } );
+    }
+
+    /**
+     Called in worker thread after a task has been executed
+     */
+    private void taskFinished( TaskLane lane, TaskProducer producer,
+            BackgroundTask task ) {
+        synchronized ( this ) {
+            lane.runningCount--;
+            runningCount--;
+            busyProducers.remove( producer );
+            notifyAll();
+        }
+        taskExecuted( producer, task );
+        requestScheduling();
+    }
+
+    /**
+     Called in worker thread to actually execute the task. Sets up Hibernate
+     environment for the worker thread and runs the task.
+     @param task The task to execute
+     @throws Exception if the task.run() method throws one.
+     */
+    protected void doRunTask( BackgroundTask task ) throws Exception {
+        Session session = HibernateUtil.getSessionFactory().openSession();
+        Session oldSession = ManagedSessionContext.bind(
+                (org.hibernate.classic.Session) session );
+        PhotovaultCommandHandler cmdHandler = new PhotovaultCommandHandler( session );
+        cmdHandler.addCommandListener( commandForwarder );
+        try {
+            log.debug( "Executing task " + task.toString() );
+            task.executeTask( session, cmdHandler );
+            log.debug( "Finished executing task " + task.toString() );
+        } catch ( Exception e ) {
+            log.warn( "Exception while executing task " + task.toString(), e );
+            throw e;
+        } finally {
+            session.close();
+            if ( oldSession != null ) {
+                ManagedSessionContext.bind( (org.hibernate.classic.Session) oldSession );
+            } else {
+                ManagedSessionContext.unbind( HibernateUtil.getSessionFactory() );
+            }
+        }
+    }
+
+    /**
+     Called when a task is about to be started. Derived classes can override
+     this to inform e.g. user interface about progress. Note that this is
+     called while holding lock of the scheduler.
+     @param producer Producer of the task
+     @param task The task
+     */
+    protected void taskStarted( TaskProducer producer, BackgroundTask task ) {
+    }
+
+    /**
+     Called in worker thread after a task has been executed. Derived classes
+     can override this to inform e.g. user interface about progress.
+     @param producer Producer of the task
+     @param task The executed task
+     */
+    protected void taskExecuted( TaskProducer producer, BackgroundTask task ) {
+    }
+
+    /**
+     Called when a producer has no more tasks to execute. Derived classes can
+     override this to inform e.g. user interface about progress. Note that
+     this is called while holding lock of the scheduler.
+     @param producer The producer that has finished.
+     */
+    protected void taskProducerFinished( TaskProducer producer ) {
+    }
+
+    /**
+     Send a command event to all listeners
+     @param e The event
+     */
+    private void fireCommandEvent( CommandExecutedEvent e ) {
+        List<CommandListener> ls;
+        synchronized ( commandListeners ) {
+            ls = new ArrayList<CommandListener>( commandListeners );
+        }
+        for ( CommandListener l : ls ) {
+            l.commandExecuted( e );
+        }
+    }
+
+    /**
+     Get the number of tasks that are currently running
+     @return Number of running tasks
+     */
+    public synchronized int getRunningTaskCount() {
+        return runningCount;
+    }
+
+    /**
+     Wait until all registered producers have finished and all tasks have been
+     executed. Useful for batch jobs.
+     @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while ( runningCount > 0 || !producerPriorities.isEmpty() ) {
+            scheduleNext();
+            if ( runningCount == 0 && 
+                    ( producerPriorities.isEmpty() || isShutdown ) ) {
+                break;
+            }
+            wait();
+        }
+    }
+
+    /**
+     Stop the scheduler. Tasks that are already running are completed but no
+     new tasks are started.
+     @param timeout Maximum time to wait for running tasks
+     @param unit Unit of timeout
+     @return <code>true</code> if all tasks completed before timeout.
+     @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean shutdown( long timeout, TimeUnit unit )
+            throws InterruptedException {
+        synchronized ( this ) {
+            isShutdown = true;
+        }
+        executor.shutdown();
+        return executor.awaitTermination( timeout, unit );
+    }
+}
@@ -0,0 +1,119 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.taskscheduler;
+
+/**
+ A lane of {@link ConcurrentTaskScheduler}. Each lane serves task producers
+ whose priority is in a certain range and limits how many tasks from these
+ producers can be executed at the same time.
+ @author Harri Kaimio
+ @since 0.6.0
+ */
+public class TaskLane {
+
+    /**
+     Name of the lane, used for logging
+     */
+    private String name;
+
+    /**
+     Highest priority (numerically smallest) served by this lane
+     */
+    private int highestPriority;
+
+    /**
+     Lowest priority (numerically largest) served by this lane
+     */
+    private int lowestPriority;
+
+    /**
+     Maximum number of tasks from this lane that can be run concurrently
+     */
+    private int maxConcurrentTasks;
+
+    /**
+     Number of tasks currently running in this lane. Guarded by the scheduler.
+     */
+    int runningCount = 0;
+
+    /**
+     Create a new lane
+     @param name Name of the lane
+     @param highestPriority Highest priority of producers served by this lane
+     @param lowestPriority Lowest priority of producers served by this lane
+     @param maxConcurrentTasks Maximum number of tasks from this lane that can
+     be executed at the same time.
+     */
+    public TaskLane( String name, int highestPriority, int lowestPriority,
+            int maxConcurrentTasks ) {
+        if ( highestPriority > lowestPriority ) {
+            throw new IllegalArgumentException(
+                    "highestPriority must not be larger than lowestPriority" );
+        }
+        if ( maxConcurrentTasks < 1 ) {
+            throw new IllegalArgumentException(
+                    "maxConcurrentTasks must be at least 1" );
+        }
+        this.name = name;
+        this.highestPriority = highestPriority;
+        this.lowestPriority = lowestPriority;
+        this.maxConcurrentTasks = maxConcurrentTasks;
+    }
+
+    /**
+     Get the name of this lane
+     @return Name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     Check whether this lane serves producers of given priority
+     @param priority The priority
+     @return <code>true</code> if priority is in range of this lane.
+     */
+    public boolean servesPriority( int priority ) {
+        return priority >= highestPriority && priority <= lowestPriority;
+    }
+
+    /**
+     Get the maximum number of concurrent tasks in this lane
+     @return Maximum task count
+     */
+    public int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    /**
+     Check whether a new task can be started in this lane
+     @return <code>true</code> if the lane has free capacity
+     */
+    boolean hasCapacity() {
+        return runningCount < maxConcurrentTasks;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskLane " + name + " [" + highestPriority + ".." +
+                lowestPriority + "], max " + maxConcurrentTasks;
+    }
+}
@@ -29,6 +29,7 @@ public interface TaskScheduler {
     /**
      Register a new producer that assigns tasks to this scheduler. The scheduler
      requests new tasks by calling producer's requestTask() method.
+     Implementations must allow calling this method from any thread.
      @param c The new task producer
      @param priority Priority of the new task producer. THis can vary from 0 
      (highest) to MIN_PRIORITY (lowest).
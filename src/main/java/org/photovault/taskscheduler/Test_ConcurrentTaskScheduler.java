@@ -0,0 +1,161 @@
+/*
+  Copyright (c) 2011 Harri Kaimio
+
+  This file is part of Photovault.
+
+  Photovault is free software; you can redistribute it and/or modify it
+  under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  Photovault is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+  General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with Photovault; if not, write to the Free Software Foundation,
+  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA
+ */
+
+package org.photovault.taskscheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.Test;
+import static org.testng.AssertJUnit.*;
+
+/**
+ Test cases for {@link ConcurrentTaskScheduler}
+ @author Harri Kaimio
+ */
+public class Test_ConcurrentTaskScheduler {
+
+    /**
+     Scheduler that runs the tasks without persistence context
+     */
+    static class TestScheduler extends ConcurrentTaskScheduler {
+        TestScheduler( List<TaskLane> lanes, int maxThreads ) {
+            super( lanes, maxThreads );
+        }
+
+        @Override
+        protected void doRunTask( BackgroundTask task ) throws Exception {
+            task.run();
+        }
+    }
+
+    /**
+     Producer that creates a given number of tasks and keeps track of how many
+     of them are running concurrently.
+     */
+    static class CountingProducer implements TaskProducer {
+        int tasksLeft;
+        int running = 0;
+        int maxRunning = 0;
+        int executed = 0;
+        List<String> log;
+        String name;
+
+        CountingProducer( String name, int taskCount, List<String> log ) {
+            this.name = name;
+            this.tasksLeft = taskCount;
+            this.log = log;
+        }
+
+        public synchronized BackgroundTask requestTask() {
+            if ( tasksLeft == 0 ) {
+                return null;
+            }
+            tasksLeft--;
+            return new BackgroundTask() {
+                @Override
+                public void run() {
+                    synchronized ( CountingProducer.this ) {
+                        running++;
+                        maxRunning = Math.max( running, maxRunning );
+                    }
+                    log.add( name );
+                    try {
+                        Thread.sleep( 20 );
+                    } catch ( InterruptedException e ) {
+                    }
+                    synchronized ( CountingProducer.this ) {
+                        running--;
+                        executed++;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     Verify that lane limits are respected and all tasks are executed
+     */
+    @Test
+    public void testLaneLimits() throws Exception {
+        List<TaskLane> lanes = new ArrayList<TaskLane>();
+        lanes.add( new TaskLane( "interactive", 0, 2, 2 ) );
+        lanes.add( new TaskLane( "batch", 3, 31, 1 ) );
+        TestScheduler s = new TestScheduler( lanes, 0 );
+        List<String> log = Collections.synchronizedList( new ArrayList<String>() );
+        CountingProducer ui = new CountingProducer( "ui", 10, log );
+        CountingProducer batch = new CountingProducer( "batch", 10, log );
+        s.registerTaskProducer( batch, 5 );
+        s.registerTaskProducer( ui, 1 );
+        s.awaitIdle();
+        assertEquals( 10, ui.executed );
+        assertEquals( 10, batch.executed );
+        assertTrue( ui.maxRunning <= 2 );
+        assertEquals( 1, batch.maxRunning );
+        assertTrue( s.shutdown( 1, TimeUnit.SECONDS ) );
+    }
+
+    /**
+     Verify that tasks from a single producer are not executed concurrently
+     even if the lane has free capacity.
+     */
+    @Test
+    public void testProducerSerialized() throws Exception {
+        List<TaskLane> lanes = new ArrayList<TaskLane>();
+        lanes.add( new TaskLane( "all", 0, 31, 4 ) );
+        TestScheduler s = new TestScheduler( lanes, 0 );
+        List<String> log = Collections.synchronizedList( new ArrayList<String>() );
+        CountingProducer p1 = new CountingProducer( "p1", 5, log );
+        CountingProducer p2 = new CountingProducer( "p2", 5, log );
+        s.registerTaskProducer( p1, 3 );
+        s.registerTaskProducer( p2, 3 );
+        s.awaitIdle();
+        assertEquals( 5, p1.executed );
+        assertEquals( 5, p2.executed );
+        assertEquals( 1, p1.maxRunning );
+        assertEquals( 1, p2.maxRunning );
+        assertTrue( s.shutdown( 1, TimeUnit.SECONDS ) );
+    }
+
+    /**
+     Verify that tasks with higher priority are started first when there is
+     only one worker thread.
+     */
+    @Test
+    public void testPriorityOrder() throws Exception {
+        List<TaskLane> lanes = new ArrayList<TaskLane>();
+        lanes.add( new TaskLane( "all", 0, 31, 1 ) );
+        TestScheduler s = new TestScheduler( lanes, 1 );
+        List<String> log = Collections.synchronizedList( new ArrayList<String>() );
+        CountingProducer low = new CountingProducer( "low", 3, log );
+        CountingProducer high = new CountingProducer( "high", 3, log );
+        s.registerTaskProducer( low, 10 );
+        s.registerTaskProducer( high, 1 );
+        s.awaitIdle();
+        // The first low priority task may have started before high priority
+        // producer was registered but after that all high priority tasks
+        // must be executed before remaining low priority ones.
+        int lastHigh = log.lastIndexOf( "high" );
+        assertTrue( lastHigh <= 3 );
+        assertEquals( 6, log.size() );
+        s.shutdown( 1, TimeUnit.SECONDS );
+    }
+}